@@ -0,0 +1,162 @@
+package ru.pricelist.test.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.pricelist.test.api.Price;
+import ru.pricelist.test.util.CompactPriceBook;
+import ru.pricelist.test.util.PriceBook;
+
+/**
+ * Бенчмарки применения порции новых цен к заранее построенной книге цен.
+ * <br>
+ * Книга перестраивается перед каждым вызовом; выделение самого применения - это разность
+ * {@code gc.alloc.rate.norm} бенчмарка и соответствующего бенчмарка {@code *Baseline}.
+ * {@link #priceBookResend} повторно применяет к книге все ее цены: ключи с совпавшими
+ * отпечатками пропускаются, и книга не меняется, поэтому не перестраивается.
+ * Запуск:
+ * <pre>
+ * mvn -Pbenchmarks package -DskipTests
+ * java -jar target/benchmarks.jar PriceBookApplyBenchmark -prof gc
+ * </pre>
+ *
+ * @author Valery Skavysh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PriceBookApplyBenchmark
+{
+    @State(Scope.Thread)
+    public static class PriceBookInput
+    {
+        @Param
+        private PriceScenario scenario;
+
+        private List<Price> oldPrices;
+
+        private List<Price> newPrices;
+
+        private PriceBook priceBook;
+
+        private List<Price> newPricesCopy;
+
+        @Setup(Level.Trial)
+        public void createPrices()
+        {
+            oldPrices = scenario.createOldPrices();
+            newPrices = scenario.createNewPrices();
+        }
+
+        @Setup(Level.Invocation)
+        public void createPriceBook()
+        {
+            priceBook = new PriceBook(PriceScenario.copy(oldPrices));
+            newPricesCopy = PriceScenario.copy(newPrices);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PriceBookResendInput
+    {
+        @Param
+        private PriceScenario scenario;
+
+        private PriceBook priceBook;
+
+        private List<Price> resentPrices;
+
+        @Setup(Level.Trial)
+        public void createPriceBook()
+        {
+            priceBook = new PriceBook(scenario.createOldPrices());
+            resentPrices = PriceScenario.copy(new ArrayList<>(priceBook.getPrices()));
+            Collections.shuffle(resentPrices, new Random(resentPrices.size()));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CompactPriceBookInput
+    {
+        @Param
+        private PriceScenario scenario;
+
+        private List<Price> oldPrices;
+
+        private List<Price> newPrices;
+
+        private CompactPriceBook priceBook;
+
+        @Setup(Level.Trial)
+        public void createPrices()
+        {
+            oldPrices = scenario.createOldPrices();
+            newPrices = scenario.createNewPrices();
+        }
+
+        @Setup(Level.Invocation)
+        public void createPriceBook()
+        {
+            priceBook = new CompactPriceBook(oldPrices);
+        }
+    }
+
+    @Benchmark
+    public PriceBook priceBookBaseline(
+            PriceBookInput input)
+    {
+        return input.priceBook;
+    }
+
+    @Benchmark
+    public PriceBook priceBookApply(
+            PriceBookInput input)
+    {
+        input.priceBook.apply(input.newPricesCopy);
+
+        return input.priceBook;
+    }
+
+    @Benchmark
+    public PriceBook priceBookResend(
+            PriceBookResendInput input)
+    {
+        input.priceBook.apply(input.resentPrices);
+
+        return input.priceBook;
+    }
+
+    @Benchmark
+    public CompactPriceBook compactPriceBookBaseline(
+            CompactPriceBookInput input)
+    {
+        return input.priceBook;
+    }
+
+    @Benchmark
+    public CompactPriceBook compactPriceBookApply(
+            CompactPriceBookInput input)
+    {
+        input.priceBook.apply(input.newPrices);
+
+        return input.priceBook;
+    }
+}
@@ -0,0 +1,66 @@
+package ru.pricelist.test.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.pricelist.test.api.Price;
+import ru.pricelist.test.util.CompactPriceBook;
+
+/**
+ * Бенчмарк повторного применения к книге цен порции, которая только расширяет
+ * имеющиеся интервалы с теми же значениями.
+ * <br>
+ * Книга строится один раз; после первого вызова каждая новая цена проходит ветку
+ * расширения интервала, не меняя его границ. Такое применение не добавляет ключей
+ * и интервалов, поэтому {@code gc.alloc.rate.norm} должен быть близок к нулю.
+ * Запуск:
+ * <pre>
+ * mvn -Pbenchmarks package -DskipTests
+ * java -jar target/benchmarks.jar PriceBookExtendBenchmark -prof gc
+ * </pre>
+ *
+ * @author Valery Skavysh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class PriceBookExtendBenchmark
+{
+    @Param({"OVERLAP_EQUAL_VALUES", "FEW_KEYS_EQUAL_VALUES"})
+    private PriceScenario scenario;
+
+    private List<Price> newPrices;
+
+    private CompactPriceBook priceBook;
+
+    @Setup
+    public void createPriceBook()
+    {
+        newPrices = scenario.createNewPrices();
+        priceBook = new CompactPriceBook(scenario.createOldPrices());
+        priceBook.apply(newPrices);
+    }
+
+    @Benchmark
+    public CompactPriceBook compactPriceBookExtend()
+    {
+        priceBook.apply(newPrices);
+
+        return priceBook;
+    }
+}
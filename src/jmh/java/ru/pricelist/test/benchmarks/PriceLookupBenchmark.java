@@ -0,0 +1,119 @@
+package ru.pricelist.test.benchmarks;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.pricelist.test.api.Price;
+import ru.pricelist.test.util.CompactPriceBook;
+import ru.pricelist.test.util.PriceBook;
+import ru.pricelist.test.util.PriceTimeline;
+import ru.pricelist.test.util.PriceTimes;
+
+/**
+ * Бенчмарки поиска цены, действующей в заданный момент, на ценах сценария
+ * {@link PriceScenario#LARGE_OLD_SMALL_DELTA}.
+ * <br>
+ * {@link CompactPriceBook#valueAt(String, int, int, long)} не должен выделять память:
+ * {@code gc.alloc.rate.norm} бенчмарка {@link #compactPriceBookValueAt} близок к нулю.
+ * {@link #priceTimelineValueAt} ищет то же значение в скомпилированном индексе {@link PriceTimeline}.
+ * Запуск:
+ * <pre>
+ * mvn -Pbenchmarks package -DskipTests
+ * java -jar target/benchmarks.jar PriceLookupBenchmark -prof gc
+ * </pre>
+ *
+ * @author Valery Skavysh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriceLookupBenchmark
+{
+    private static final int QUERY_COUNT = 1 << 12;
+
+    private PriceBook priceBook;
+
+    private CompactPriceBook compactPriceBook;
+
+    private PriceTimeline priceTimeline;
+
+    private String[] productCodes = new String[QUERY_COUNT];
+
+    private int[] numbers = new int[QUERY_COUNT];
+
+    private int[] departs = new int[QUERY_COUNT];
+
+    private LocalDateTime[] times = new LocalDateTime[QUERY_COUNT];
+
+    private long[] epochMillis = new long[QUERY_COUNT];
+
+    private int query;
+
+    @Setup
+    public void createPriceBooks()
+    {
+        List<Price> prices = PriceScenario.LARGE_OLD_SMALL_DELTA.createOldPrices();
+        priceBook = new PriceBook(PriceScenario.copy(prices));
+        compactPriceBook = new CompactPriceBook(prices);
+        priceTimeline = PriceTimeline.compile(prices);
+
+        Random random = new Random(QUERY_COUNT);
+        for (int i = 0; i < QUERY_COUNT; i++)
+        {
+            Price price = prices.get(random.nextInt(prices.size()));
+            productCodes[i] = new String(price.getProductCode());
+            numbers[i] = price.getNumber();
+            departs[i] = price.getDepart();
+            times[i] = price.getBegin().plusMinutes(random.nextInt(24 * 60));
+            epochMillis[i] = PriceTimes.toEpochMillis(times[i]);
+        }
+    }
+
+    @Benchmark
+    public Price priceBookPriceAt()
+    {
+        int i = query++ & (QUERY_COUNT - 1);
+
+        return priceBook.priceAt(productCodes[i], numbers[i], departs[i], times[i]);
+    }
+
+    @Benchmark
+    public Price compactPriceBookPriceAt()
+    {
+        int i = query++ & (QUERY_COUNT - 1);
+
+        return compactPriceBook.priceAt(productCodes[i], numbers[i], departs[i], times[i]);
+    }
+
+    @Benchmark
+    public long compactPriceBookValueAt()
+    {
+        int i = query++ & (QUERY_COUNT - 1);
+
+        return compactPriceBook.valueAt(productCodes[i], numbers[i], departs[i], epochMillis[i]);
+    }
+
+    @Benchmark
+    public long priceTimelineValueAt()
+    {
+        int i = query++ & (QUERY_COUNT - 1);
+
+        return priceTimeline.valueAt(productCodes[i], numbers[i], departs[i], epochMillis[i]);
+    }
+}
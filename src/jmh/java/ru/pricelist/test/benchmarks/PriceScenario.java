@@ -0,0 +1,256 @@
+package ru.pricelist.test.benchmarks;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Наборы старых и новых цен для бенчмарков объединения.
+ * <br>
+ * Старые цены одного ключа идут подряд без пересечений и с чередующимися значениями.
+ *
+ * @author Valery Skavysh.
+ */
+public enum PriceScenario
+{
+    /**
+     * Пустой прайс-лист и большая порция новых цен.
+     */
+    EMPTY_OLD_LARGE_NEW
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 50_000; key++)
+            {
+                addTimeline(newPrices, key, 4, random);
+            }
+        }
+    },
+
+    /**
+     * Большой прайс-лист и небольшая порция изменений.
+     */
+    LARGE_OLD_SMALL_DELTA
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 50_000; key++)
+            {
+                addTimeline(oldPrices, key, 4, random);
+            }
+
+            for (int i = 0; i < 1_000; i++)
+            {
+                int key = random.nextInt(50_000);
+                newPrices.add(createPrice(key, START.plusHours(random.nextInt(4 * PRICE_HOURS)),
+                        1 + random.nextInt(PRICE_HOURS), random.nextInt(3)));
+            }
+        }
+    },
+
+    /**
+     * Новые цены внутри старых цен с другими значениями: каждая старая цена разрывается.
+     */
+    OVERLAP_DIFFERENT_VALUES
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 50_000; key++)
+            {
+                addTimeline(oldPrices, key, 4, random);
+                newPrices.add(createPrice(key, START.plusHours(PRICE_HOURS + 1), PRICE_HOURS / 2, 1_000_000));
+            }
+        }
+    },
+
+    /**
+     * Новые цены, пересекающие старые цены с теми же значениями: старые цены расширяются.
+     */
+    OVERLAP_EQUAL_VALUES
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 50_000; key++)
+            {
+                addTimeline(oldPrices, key, 4, random);
+
+                Price crossedPrice = oldPrices.get(oldPrices.size() - 1);
+                newPrices.add(createPrice(key, crossedPrice.getBegin().plusHours(1), PRICE_HOURS,
+                        crossedPrice.getValue()));
+            }
+        }
+    },
+
+    /**
+     * Много ключей с одной ценой.
+     */
+    MANY_KEYS
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 200_000; key++)
+            {
+                oldPrices.add(createPrice(key, START, PRICE_HOURS, 0));
+                newPrices.add(createPrice(key, START.plusHours(PRICE_HOURS / 2), PRICE_HOURS, 1 + random.nextInt(2)));
+            }
+        }
+    },
+
+    /**
+     * Мало ключей с тысячами интервалов.
+     */
+    FEW_KEYS
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 20; key++)
+            {
+                addTimeline(oldPrices, key, 10_000, random);
+                for (int i = 0; i < 1_000; i++)
+                {
+                    newPrices.add(createPrice(key, START.plusHours(i * 10L * PRICE_HOURS + PRICE_HOURS / 3),
+                            PRICE_HOURS, random.nextInt(3)));
+                }
+            }
+        }
+    },
+
+    /**
+     * Мало ключей с тысячами интервалов и новые цены внутри старых цен с теми же значениями.
+     */
+    FEW_KEYS_EQUAL_VALUES
+    {
+        @Override
+        void fill(
+                Random random,
+                List<Price> oldPrices,
+                List<Price> newPrices)
+        {
+            for (int key = 0; key < 20; key++)
+            {
+                int first = oldPrices.size();
+                addTimeline(oldPrices, key, 10_000, random);
+                for (int i = 0; i < 1_000; i++)
+                {
+                    Price crossedPrice = oldPrices.get(first + i * 10);
+                    newPrices.add(createPrice(key, crossedPrice.getBegin().plusHours(1), PRICE_HOURS - 1,
+                            crossedPrice.getValue()));
+                }
+            }
+        }
+    };
+
+    private static final LocalDateTime START = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    private static final int PRICE_HOURS = 24;
+
+    private static final long SEED = 122856;
+
+    abstract void fill(
+            Random random,
+            List<Price> oldPrices,
+            List<Price> newPrices);
+
+    /**
+     * Создает старые цены сценария.
+     */
+    public List<Price> createOldPrices()
+    {
+        List<Price> oldPrices = new ArrayList<>();
+        fill(new Random(SEED), oldPrices, new ArrayList<>());
+
+        return oldPrices;
+    }
+
+    /**
+     * Создает новые цены сценария.
+     */
+    public List<Price> createNewPrices()
+    {
+        List<Price> newPrices = new ArrayList<>();
+        fill(new Random(SEED), new ArrayList<>(), newPrices);
+
+        return newPrices;
+    }
+
+    /**
+     * Копирует цены, чтобы изменяющее объединение не портило исходный набор.
+     */
+    public static List<Price> copy(
+            Collection<Price> prices)
+    {
+        List<Price> copies = new ArrayList<>(prices.size());
+        for (Price price : prices)
+        {
+            Price copy = new Price();
+            copy.setProductCode(price.getProductCode());
+            copy.setNumber(price.getNumber());
+            copy.setDepart(price.getDepart());
+            copy.setBegin(price.getBegin());
+            copy.setEnd(price.getEnd());
+            copy.setValue(price.getValue());
+            copies.add(copy);
+        }
+
+        return copies;
+    }
+
+    private static void addTimeline(
+            List<Price> prices,
+            int key,
+            int count,
+            Random random)
+    {
+        long value = random.nextInt(3);
+        for (int i = 0; i < count; i++)
+        {
+            prices.add(createPrice(key, START.plusHours((long) i * PRICE_HOURS), PRICE_HOURS, value));
+            value = (value + 1 + random.nextInt(2)) % 3;
+        }
+    }
+
+    private static Price createPrice(
+            int key,
+            LocalDateTime begin,
+            int hours,
+            long value)
+    {
+        Price price = new Price();
+        price.setProductCode(String.valueOf(100_000 + key / 4));
+        price.setNumber(1 + key % 2);
+        price.setDepart(1 + key / 2 % 2);
+        price.setBegin(begin);
+        price.setEnd(begin.plusHours(hours));
+        price.setValue(value);
+
+        return price;
+    }
+}
@@ -0,0 +1,115 @@
+package ru.pricelist.test.benchmarks;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ru.pricelist.test.api.Price;
+import ru.pricelist.test.util.CompactPriceBook;
+import ru.pricelist.test.util.PriceMergeStatistics;
+import ru.pricelist.test.util.Prices;
+
+/**
+ * Бенчмарки полного объединения старых и новых цен на сценариях {@link PriceScenario}.
+ * <br>
+ * Объединение изменяет переданные цены, поэтому перед каждым вызовом наборы копируются.
+ * Профилировщик {@code -prof gc} учитывает и память копий, поэтому выделение самого
+ * объединения - это разность {@code gc.alloc.rate.norm} бенчмарка и {@link #copyBaseline}.
+ * Разность {@link #mergeWithStatistics} и {@link #merge} - стоимость статистики объединения.
+ * Запуск:
+ * <pre>
+ * mvn -Pbenchmarks package -DskipTests
+ * java -jar target/benchmarks.jar PricesMergeBenchmark -prof gc
+ * </pre>
+ *
+ * @author Valery Skavysh.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class PricesMergeBenchmark
+{
+    @State(Scope.Thread)
+    public static class MergeInput
+    {
+        @Param
+        private PriceScenario scenario;
+
+        private List<Price> oldPrices;
+
+        private List<Price> newPrices;
+
+        private List<Price> oldPricesCopy;
+
+        private List<Price> newPricesCopy;
+
+        private final PriceMergeStatistics statistics = new PriceMergeStatistics();
+
+        @Setup(Level.Trial)
+        public void createPrices()
+        {
+            oldPrices = scenario.createOldPrices();
+            newPrices = scenario.createNewPrices();
+        }
+
+        @Setup(Level.Invocation)
+        public void copyPrices()
+        {
+            oldPricesCopy = PriceScenario.copy(oldPrices);
+            newPricesCopy = PriceScenario.copy(newPrices);
+        }
+    }
+
+    @Benchmark
+    public List<Price> copyBaseline(
+            MergeInput input)
+    {
+        return input.oldPricesCopy;
+    }
+
+    @Benchmark
+    public Set<Price> merge(
+            MergeInput input)
+    {
+        return Prices.merge(input.oldPricesCopy, input.newPricesCopy);
+    }
+
+    @Benchmark
+    public Set<Price> mergeWithStatistics(
+            MergeInput input)
+    {
+        return Prices.merge(input.oldPricesCopy, input.newPricesCopy, input.statistics);
+    }
+
+    @Benchmark
+    public Set<Price> mergeParallel(
+            MergeInput input)
+    {
+        return Prices.mergeParallel(input.oldPricesCopy, input.newPricesCopy);
+    }
+
+    @Benchmark
+    public CompactPriceBook compactPriceBookMerge(
+            MergeInput input)
+    {
+        CompactPriceBook priceBook = new CompactPriceBook(input.oldPricesCopy);
+        priceBook.apply(input.newPricesCopy);
+
+        return priceBook;
+    }
+}
@@ -0,0 +1,525 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен {@link ConcurrentPriceBook} с ограниченным кэшем запросов действующей цены.
+ * <br>
+ * Кэш хранит для пары (ключ, момент) срок действия и значение найденной цены либо отметку
+ * об отсутствии цены и вытесняет давно не запрашиваемые пары (LRU), не превышая заданных
+ * количества пар и оценки занимаемой памяти. Кэш разбит на сегменты по ключу
+ * с отдельной блокировкой у каждого.
+ * <br>
+ * Применение порции сбрасывает только пары ключей, встречающихся в порции: остальные
+ * ключи порция не изменяет. Чтобы промах, прочитавший книгу до применения порции,
+ * не положил в кэш устаревшую цену, сегмент хранит версии ключей (по полосам хэша):
+ * сброс увеличивает версию, а промах кладет цену, только если версия не изменилась.
+ * После возврата из {@link #apply(Collection)} ни один запрос не видит цен ключей порции,
+ * действовавших до ее применения.
+ * <br>
+ * Книга потокобезопасна. Все изменения должны проходить через {@link #apply(Collection)}:
+ * изменения, внесенные напрямую в книгу {@link #getPriceBook()}, кэш не видит.
+ *
+ * @author Valery Skavysh.
+ */
+public class CachedPriceBook
+{
+    /**
+     * Наибольшее количество пар кэша по умолчанию.
+     */
+    public static final int DEFAULT_MAX_SIZE = 16384;
+
+    /**
+     * Наибольшая оценка памяти кэша по умолчанию, 4 Мбайт.
+     */
+    public static final long DEFAULT_MAX_MEMORY = 4L << 20;
+
+    /**
+     * Оценка памяти пары кэша без учета кода товара: элемент {@link LinkedHashMap},
+     * ключ пары, запись о цене и элемент индекса ключей.
+     */
+    private static final int ESTIMATED_ENTRY_SIZE = 160;
+
+    private static final int MAX_SEGMENT_COUNT = 16;
+
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private static final int VERSION_STRIPE_COUNT = 64;
+
+    private final ConcurrentPriceBook priceBook;
+
+    private final Segment[] segments;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder invalidationCount = new LongAdder();
+
+    /**
+     * Создает кэш с ограничениями по умолчанию.
+     *
+     * @param priceBook
+     *        книга цен.
+     */
+    public CachedPriceBook(
+            ConcurrentPriceBook priceBook)
+    {
+        this(priceBook, DEFAULT_MAX_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Создает кэш с заданными ограничениями.
+     *
+     * @param priceBook
+     *        книга цен.
+     * @param maxSize
+     *        наибольшее количество пар кэша.
+     * @param maxMemory
+     *        наибольшая оценка памяти кэша в байтах.
+     */
+    public CachedPriceBook(
+            ConcurrentPriceBook priceBook,
+            int maxSize,
+            long maxMemory)
+    {
+        if (maxSize <= 0 || maxMemory <= 0)
+        {
+            throw new IllegalArgumentException("Cache limits must be positive: " + maxSize + ", " + maxMemory);
+        }
+
+        this.priceBook = priceBook;
+
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENT_COUNT && (long) segmentCount * 2 * MIN_SEGMENT_SIZE <= maxSize)
+        {
+            segmentCount <<= 1;
+        }
+
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            segments[i] = new Segment((maxSize + segmentCount - 1) / segmentCount,
+                    (maxMemory + segmentCount - 1) / segmentCount);
+        }
+    }
+
+    /**
+     * Применяет к книге порцию новых цен и сбрасывает пары кэша ключей порции.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     *
+     * @see ConcurrentPriceBook#apply(Collection)
+     */
+    public void apply(
+            Collection<Price> newPrices)
+    {
+        Set<PriceKey> keys = new HashSet<>();
+        for (Price newPrice : newPrices)
+        {
+            keys.add(PriceKey.of(newPrice));
+        }
+
+        try
+        {
+            priceBook.apply(newPrices);
+        }
+        finally
+        {
+            for (PriceKey key : keys)
+            {
+                segmentOf(key).invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        CachedPrice price = lookup(new PriceKey(productCode, number, depart), epochMillis);
+
+        return price == CachedPrice.NONE ? CompactPriceBook.NO_VALUE : price.value;
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        CachedPrice cachedPrice = lookup(new PriceKey(productCode, number, depart), PriceTimes.toEpochMillis(time));
+        if (cachedPrice == CachedPrice.NONE)
+        {
+            return null;
+        }
+
+        Price price = new Price();
+        price.setProductCode(productCode);
+        price.setNumber(number);
+        price.setDepart(depart);
+        price.setBegin(PriceTimes.fromEpochMillis(cachedPrice.begin));
+        price.setEnd(PriceTimes.fromEpochMillis(cachedPrice.end));
+        price.setValue(cachedPrice.value);
+
+        return price;
+    }
+
+    /**
+     * Возвращает книгу цен за кэшем.
+     */
+    public ConcurrentPriceBook getPriceBook()
+    {
+        return priceBook;
+    }
+
+    /**
+     * Возвращает количество запросов, найденных в кэше.
+     */
+    public long getHitCount()
+    {
+        return hitCount.sum();
+    }
+
+    /**
+     * Возвращает количество запросов, прочитанных из книги.
+     */
+    public long getMissCount()
+    {
+        return missCount.sum();
+    }
+
+    /**
+     * Возвращает количество пар, вытесненных из-за ограничений кэша.
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Возвращает количество пар, сброшенных применением порций.
+     */
+    public long getInvalidationCount()
+    {
+        return invalidationCount.sum();
+    }
+
+    /**
+     * Возвращает текущее количество пар кэша.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    private CachedPrice lookup(
+            PriceKey key,
+            long epochMillis)
+    {
+        Segment segment = segmentOf(key);
+        CacheKey cacheKey = new CacheKey(key, epochMillis);
+        CachedPrice price = segment.get(cacheKey);
+        if (price != null)
+        {
+            hitCount.increment();
+
+            return price;
+        }
+        missCount.increment();
+
+        long version = segment.getVersion(key);
+
+        PriceIntervals intervals = priceBook.getIntervals(key);
+        int index = intervals == null ? -1 : intervals.indexAt(epochMillis);
+        price = index < 0 ? CachedPrice.NONE
+                : new CachedPrice(intervals.getBegin(index), intervals.getEnd(index), intervals.getValue(index));
+        segment.put(cacheKey, price, version);
+
+        return price;
+    }
+
+    private Segment segmentOf(
+            PriceKey key)
+    {
+        int hash = key.hashCode();
+
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Сегмент кэша: пары в порядке обращения, индекс моментов по ключам и версии ключей.
+     */
+    private final class Segment
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final LinkedHashMap<CacheKey, CachedPrice> prices = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final HashMap<PriceKey, Set<CacheKey>> keyIndex = new HashMap<>();
+
+        private final long[] versions = new long[VERSION_STRIPE_COUNT];
+
+        private final int maxSize;
+
+        private final long maxMemory;
+
+        private long memory;
+
+        private Segment(
+                int maxSize,
+                long maxMemory)
+        {
+            this.maxSize = maxSize;
+            this.maxMemory = maxMemory;
+        }
+
+        long getVersion(
+                PriceKey key)
+        {
+            lock.lock();
+            try
+            {
+                return versions[versionStripeOf(key)];
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        CachedPrice get(
+                CacheKey cacheKey)
+        {
+            lock.lock();
+            try
+            {
+                return prices.get(cacheKey);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Кладет цену в сегмент, если версия ключа не изменилась с начала промаха,
+         * и вытесняет давно не запрашиваемые пары сверх ограничений.
+         */
+        void put(
+                CacheKey cacheKey,
+                CachedPrice price,
+                long version)
+        {
+            lock.lock();
+            try
+            {
+                if (versions[versionStripeOf(cacheKey.key)] != version
+                        || prices.putIfAbsent(cacheKey, price) != null)
+                {
+                    return;
+                }
+
+                keyIndex.computeIfAbsent(cacheKey.key, k -> new HashSet<>()).add(cacheKey);
+                memory += estimateMemory(cacheKey);
+
+                Iterator<CacheKey> eldestKeys = prices.keySet().iterator();
+                while (prices.size() > maxSize || memory > maxMemory)
+                {
+                    CacheKey eldestKey = eldestKeys.next();
+                    eldestKeys.remove();
+                    unindex(eldestKey);
+                    evictionCount.increment();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Сбрасывает все пары ключа и увеличивает его версию.
+         */
+        void invalidate(
+                PriceKey key)
+        {
+            lock.lock();
+            try
+            {
+                versions[versionStripeOf(key)]++;
+
+                Set<CacheKey> cacheKeys = keyIndex.remove(key);
+                if (cacheKeys != null)
+                {
+                    for (CacheKey cacheKey : cacheKeys)
+                    {
+                        prices.remove(cacheKey);
+                        memory -= estimateMemory(cacheKey);
+                    }
+                    invalidationCount.add(cacheKeys.size());
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        int size()
+        {
+            lock.lock();
+            try
+            {
+                return prices.size();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void unindex(
+                CacheKey cacheKey)
+        {
+            Set<CacheKey> cacheKeys = keyIndex.get(cacheKey.key);
+            cacheKeys.remove(cacheKey);
+            if (cacheKeys.isEmpty())
+            {
+                keyIndex.remove(cacheKey.key);
+            }
+            memory -= estimateMemory(cacheKey);
+        }
+
+        private int versionStripeOf(
+                PriceKey key)
+        {
+            int hash = key.hashCode() * 0x9E3779B9;
+
+            return hash >>> (Integer.SIZE - Integer.numberOfTrailingZeros(VERSION_STRIPE_COUNT));
+        }
+
+        private long estimateMemory(
+                CacheKey cacheKey)
+        {
+            return ESTIMATED_ENTRY_SIZE + 2L * cacheKey.key.getProductCode().length();
+        }
+    }
+
+    /**
+     * Ключ пары кэша: ключ цены и момент времени.
+     */
+    private static final class CacheKey
+    {
+        private final PriceKey key;
+
+        private final long epochMillis;
+
+        private CacheKey(
+                PriceKey key,
+                long epochMillis)
+        {
+            this.key = key;
+            this.epochMillis = epochMillis;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * key.hashCode() + Long.hashCode(epochMillis);
+        }
+
+        @Override
+        public boolean equals(
+                Object object)
+        {
+            if (this == object)
+            {
+                return true;
+            }
+
+            if (!(object instanceof CacheKey))
+            {
+                return false;
+            }
+
+            CacheKey cacheKey = (CacheKey) object;
+
+            return epochMillis == cacheKey.epochMillis && key.equals(cacheKey.key);
+        }
+    }
+
+    /**
+     * Срок действия и значение цены, найденной для пары кэша.
+     */
+    private static final class CachedPrice
+    {
+        /**
+         * Отметка об отсутствии цены в запрошенный момент.
+         */
+        private static final CachedPrice NONE = new CachedPrice(0, 0, CompactPriceBook.NO_VALUE);
+
+        private final long begin;
+
+        private final long end;
+
+        private final long value;
+
+        private CachedPrice(
+                long begin,
+                long end,
+                long value)
+        {
+            this.begin = begin;
+            this.end = end;
+            this.value = value;
+        }
+    }
+}
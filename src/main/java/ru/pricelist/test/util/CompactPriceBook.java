@@ -0,0 +1,420 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен с компактным примитивным хранением сроков действия.
+ * <br>
+ * В отличие от {@link PriceBook}, не хранит экземпляры {@link Price}: интервалы каждого ключа
+ * лежат в упорядоченных массивах {@code long}, а цены создаются только при выдаче
+ * из книги. Правила объединения те же, что и у {@link Prices#merge(Collection, Collection)}.
+ * <br>
+ * Сроки действия хранятся с точностью до миллисекунды (см. {@link PriceTimes}),
+ * идентификаторы цен не сохраняются. Сроки действия и значения цен не должны быть {@code null}.
+ * <br>
+ * Необъединенная новая цена, начало которой совпало с началом другой цены ключа, как и в
+ * {@link PriceBook}, хранится отдельно: она выдается из книги, но не участвует в последующих
+ * объединениях и в поиске действующей цены.
+ * <br>
+ * Книга не является потокобезопасной.
+ *
+ * @author Valery Skavysh.
+ */
+public class CompactPriceBook
+{
+    /**
+     * Значение, возвращаемое {@link #valueAt(String, int, int, long)}, если цена не действует.
+     */
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    private final PriceKeyMap<PriceIntervals> numberDepartIntervals = new PriceKeyMap<>();
+
+    private final ArrayList<PriceIntervals> batchIntervals = new ArrayList<>();
+
+    private long[] batchBegins = new long[16];
+
+    private long[] batchEnds = new long[16];
+
+    private long[] batchValues = new long[16];
+
+    private int[] batchNext = new int[16];
+
+    private int batchSize;
+
+    private final IntervalBuffer keyBatch = new IntervalBuffer();
+
+    private final IntervalBuffer keyBatchScratch = new IntervalBuffer();
+
+    private final IntervalBuffer sweepBuffer = new IntervalBuffer();
+
+    /**
+     * Создает пустую книгу цен.
+     */
+    public CompactPriceBook()
+    {
+    }
+
+    /**
+     * Создает книгу цен и заполняет ее имеющимися ценами.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public CompactPriceBook(
+            Collection<Price> prices)
+    {
+        for (Price price : prices)
+        {
+            PriceIntervals intervals = getIntervals(price.getProductCode(), price.getNumber(), price.getDepart());
+            intervals.add(PriceTimes.toEpochMillis(price.getBegin()), PriceTimes.toEpochMillis(price.getEnd()),
+                    price.getValue());
+        }
+    }
+
+    /**
+     * Создает книгу цен и заполняет ее ценами файла.
+     * <br>
+     * Интервалы переносятся из отображенных записей прямо в массивы книги без создания
+     * экземпляров {@link Price}; записи файла уже упорядочены, поэтому интервалы
+     * каждого ключа добавляются в конец без поиска. Книга не ссылается на файл,
+     * и его можно закрыть сразу после загрузки.
+     *
+     * @param priceFile
+     *        отображенный файл цен.
+     * @throws IllegalStateException
+     *         если файл закрыт.
+     */
+    public CompactPriceBook(
+            MappedPriceFile priceFile)
+    {
+        priceFile.checkOpen();
+        PriceIntervals intervals = null;
+        int productId = -1;
+        int number = 0;
+        int depart = 0;
+        for (long i = 0; i < priceFile.size(); i++)
+        {
+            if (intervals == null
+                    || priceFile.getProductId(i) != productId
+                    || priceFile.getNumber(i) != number
+                    || priceFile.getDepart(i) != depart)
+            {
+                productId = priceFile.getProductId(i);
+                number = priceFile.getNumber(i);
+                depart = priceFile.getDepart(i);
+                intervals = getIntervals(priceFile.getProductCode(i), number, depart);
+            }
+
+            if (priceFile.isCollided(i))
+            {
+                intervals.appendCollided(priceFile.getBegin(i), priceFile.getEnd(i), priceFile.getValue(i));
+            }
+            else
+            {
+                intervals.append(priceFile.getBegin(i), priceFile.getEnd(i), priceFile.getValue(i));
+            }
+        }
+    }
+
+    /**
+     * Применяет к книге порцию новых цен.
+     * <br>
+     * Цены порции группируются по ключам с сохранением порядка, после чего каждый
+     * затронутый ключ объединяется со своей частью порции целиком
+     * (см. {@link PriceIntervals#mergeBatch(IntervalBuffer, IntervalBuffer, IntervalBuffer)}).
+     * <br>
+     * Вся временная память книги многоразовая: если порция не добавляет новых ключей
+     * и интервалов, применение не создает объектов.
+     * <br>
+     * Цены порции проверяются до объединения: порция с ценой, начинающейся позже своего конца,
+     * отвергается целиком.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     * @throws IllegalArgumentException
+     *         если начало срока действия цены порции позже его конца.
+     *
+     * @see PriceBook#apply(Collection)
+     */
+    public void apply(
+            Collection<Price> newPrices)
+    {
+        try
+        {
+            for (Price newPrice : newPrices)
+            {
+                PriceIntervals intervals = getIntervals(newPrice.getProductCode(), newPrice.getNumber(),
+                        newPrice.getDepart());
+                addToBatch(intervals, PriceTimes.toEpochMillis(newPrice.getBegin()),
+                        PriceTimes.toEpochMillis(newPrice.getEnd()), newPrice.getValue());
+            }
+
+            mergeBatch();
+        }
+        finally
+        {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Применяет к книге порцию новых цен, разобранную из текстового файла.
+     *
+     * @param chunk
+     *        разобранная часть файла.
+     *
+     * @see PriceFeeds
+     */
+    void apply(
+            PriceFeedChunk chunk)
+    {
+        try
+        {
+            for (int i = 0; i < chunk.size(); i++)
+            {
+                PriceIntervals intervals = getIntervals(chunk.getProductCode(i), chunk.getNumber(i),
+                        chunk.getDepart(i));
+                addToBatch(intervals, chunk.getBegin(i), chunk.getEnd(i), chunk.getValue(i));
+            }
+
+            mergeBatch();
+        }
+        finally
+        {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Возвращает все цены книги.
+     *
+     * @return новое множество цен книги.
+     */
+    public Set<Price> getPrices()
+    {
+        Set<Price> prices = new HashSet<>();
+        numberDepartIntervals.forEach((key, intervals) -> {
+            for (int i = 0; i < intervals.size(); i++)
+            {
+                prices.add(createPrice(key, intervals, i));
+            }
+        });
+
+        return prices;
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     * <br>
+     * Цена действует с начала срока действия включительно до его конца исключительно.
+     * Правило выбора цены то же, что и у {@link PriceBook#priceAt(String, int, int, LocalDateTime)}:
+     * из цен с одинаковым началом действует первая попавшая в книгу.
+     * Поиск выполняется за O(log n) по интервалам ключа.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        PriceIntervals intervals = numberDepartIntervals.get(productCode, number, depart);
+        if (intervals == null)
+        {
+            return null;
+        }
+
+        int index = intervals.indexAt(PriceTimes.toEpochMillis(time));
+
+        return index < 0 ? null : createPrice(new PriceKey(productCode, number, depart), intervals, index);
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link #NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        PriceIntervals intervals = numberDepartIntervals.get(productCode, number, depart);
+        if (intervals == null)
+        {
+            return NO_VALUE;
+        }
+
+        int index = intervals.indexAt(epochMillis);
+
+        return index < 0 ? NO_VALUE : intervals.getValue(index);
+    }
+
+    /**
+     * Возвращает цены всех ключей, действующие в заданный момент.
+     *
+     * @param time
+     *        момент времени.
+     * @return новый список цен.
+     */
+    public List<Price> pricesAt(
+            LocalDateTime time)
+    {
+        long epochMillis = PriceTimes.toEpochMillis(time);
+
+        List<Price> prices = new ArrayList<>();
+        numberDepartIntervals.forEach((key, intervals) -> {
+            int index = intervals.indexAt(epochMillis);
+            if (index >= 0)
+            {
+                prices.add(createPrice(key, intervals, index));
+            }
+        });
+
+        return prices;
+    }
+
+    /**
+     * Возвращает количество интервалов в книге.
+     *
+     * @return количество интервалов.
+     */
+    public int size()
+    {
+        int[] size = new int[1];
+        numberDepartIntervals.forEachValue(intervals -> size[0] += intervals.size());
+
+        return size[0];
+    }
+
+    /**
+     * Обходит интервалы всех ключей книги.
+     */
+    void forEachIntervals(
+            BiConsumer<PriceKey, PriceIntervals> action)
+    {
+        numberDepartIntervals.forEach(action);
+    }
+
+    private PriceIntervals getIntervals(
+            String productCode,
+            int number,
+            int depart)
+    {
+        return numberDepartIntervals.computeIfAbsent(productCode, number, depart, PriceIntervals::new);
+    }
+
+    private void mergeBatch()
+    {
+        for (int k = 0; k < batchIntervals.size(); k++)
+        {
+            PriceIntervals intervals = batchIntervals.get(k);
+            keyBatch.clear();
+            for (int i = intervals.batchHead; i >= 0; i = batchNext[i])
+            {
+                keyBatch.append(batchBegins[i], batchEnds[i], batchValues[i]);
+            }
+
+            intervals.mergeBatch(keyBatch, keyBatchScratch, sweepBuffer);
+        }
+    }
+
+    private void clearBatch()
+    {
+        for (int k = 0; k < batchIntervals.size(); k++)
+        {
+            PriceIntervals intervals = batchIntervals.get(k);
+            intervals.batchHead = -1;
+            intervals.batchTail = -1;
+        }
+
+        batchIntervals.clear();
+        batchSize = 0;
+    }
+
+    private void addToBatch(
+            PriceIntervals intervals,
+            long begin,
+            long end,
+            long value)
+    {
+        if (begin > end)
+        {
+            throw new IllegalArgumentException("Price begin is after its end");
+        }
+
+        if (batchSize == batchBegins.length)
+        {
+            int capacity = batchSize << 1;
+            batchBegins = Arrays.copyOf(batchBegins, capacity);
+            batchEnds = Arrays.copyOf(batchEnds, capacity);
+            batchValues = Arrays.copyOf(batchValues, capacity);
+            batchNext = Arrays.copyOf(batchNext, capacity);
+        }
+
+        batchBegins[batchSize] = begin;
+        batchEnds[batchSize] = end;
+        batchValues[batchSize] = value;
+        batchNext[batchSize] = -1;
+
+        if (intervals.batchHead < 0)
+        {
+            intervals.batchHead = batchSize;
+            batchIntervals.add(intervals);
+        }
+        else
+        {
+            batchNext[intervals.batchTail] = batchSize;
+        }
+        intervals.batchTail = batchSize;
+
+        batchSize++;
+    }
+
+    static Price createPrice(
+            PriceKey key,
+            PriceIntervals intervals,
+            int index)
+    {
+        Price price = new Price();
+        price.setProductCode(key.getProductCode());
+        price.setNumber(key.getNumber());
+        price.setDepart(key.getDepart());
+        price.setBegin(PriceTimes.fromEpochMillis(intervals.getBegin(index)));
+        price.setEnd(PriceTimes.fromEpochMillis(intervals.getEnd(index)));
+        price.setValue(intervals.getValue(index));
+
+        return price;
+    }
+}
@@ -0,0 +1,93 @@
+package ru.pricelist.test.util;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Неизменяемое представление объединения непересекающихся множеств без копирования элементов.
+ *
+ * @author Valery Skavysh.
+ */
+final class ConcatenatedSet<E>
+extends AbstractSet<E>
+{
+    private final List<Set<E>> parts;
+
+    private final int size;
+
+    ConcatenatedSet(
+            List<Set<E>> parts)
+    {
+        this.parts = parts;
+
+        int size = 0;
+        for (Set<E> part : parts)
+        {
+            size += part.size();
+        }
+        this.size = size;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean contains(
+            Object o)
+    {
+        for (Set<E> part : parts)
+        {
+            if (part.contains(o))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Iterator<E>()
+        {
+            private final Iterator<Set<E>> partsIterator = parts.iterator();
+
+            private Iterator<E> partIterator = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                while (!partIterator.hasNext())
+                {
+                    if (!partsIterator.hasNext())
+                    {
+                        return false;
+                    }
+
+                    partIterator = partsIterator.next().iterator();
+                }
+
+                return true;
+            }
+
+            @Override
+            public E next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+
+                return partIterator.next();
+            }
+        };
+    }
+}
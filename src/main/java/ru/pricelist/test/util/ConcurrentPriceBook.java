@@ -0,0 +1,276 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Потокобезопасная книга цен с неблокирующим чтением.
+ * <br>
+ * Интервалы каждого ключа хранятся так же, как в {@link CompactPriceBook}, но опубликованные
+ * интервалы никогда не изменяются: писатель копирует интервалы ключа, объединяет копию
+ * с новыми ценами и публикует ее в {@link ConcurrentHashMap}. Читатель получает
+ * интервалы ключа одним чтением карты и всегда видит либо состояние до применения цен,
+ * либо после, но не промежуточное (например, укороченную цену без оставшейся части).
+ * <br>
+ * Писатели разных ключей работают параллельно; писатели ключей одной полосы блокировок
+ * выполняются по очереди. Порция новых цен применяется атомарно для каждого ключа,
+ * но не для порции в целом. Если порция ключа не применилась из-за исключения,
+ * интервалы этого ключа не изменяются.
+ *
+ * @author Valery Skavysh.
+ */
+public class ConcurrentPriceBook
+{
+    private static final int DEFAULT_STRIPE_COUNT = 64;
+
+    private static final int MAX_STRIPE_COUNT = 1 << 16;
+
+    private final ConcurrentHashMap<PriceKey, PriceIntervals> numberDepartIntervals = new ConcurrentHashMap<>();
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Создает пустую книгу цен.
+     */
+    public ConcurrentPriceBook()
+    {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * Создает пустую книгу цен с заданным количеством полос блокировок писателей.
+     *
+     * @param stripeCount
+     *        количество полос блокировок; округляется вверх до степени двойки не больше 65536.
+     */
+    public ConcurrentPriceBook(
+            int stripeCount)
+    {
+        if (stripeCount <= 0)
+        {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+
+        int capacity = 1;
+        while (capacity < stripeCount && capacity < MAX_STRIPE_COUNT)
+        {
+            capacity <<= 1;
+        }
+
+        stripes = new ReentrantLock[capacity];
+        for (int i = 0; i < stripes.length; i++)
+        {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Создает книгу цен и заполняет ее имеющимися ценами.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public ConcurrentPriceBook(
+            Collection<Price> prices)
+    {
+        this(DEFAULT_STRIPE_COUNT);
+
+        CompactPriceBook priceBook = new CompactPriceBook(prices);
+        priceBook.forEachIntervals(numberDepartIntervals::put);
+    }
+
+    /**
+     * Применяет к книге порцию новых цен.
+     * <br>
+     * Цены порции группируются по ключам с сохранением порядка, после чего каждый
+     * затронутый ключ объединяется со своей частью порции под блокировкой своей полосы.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     *
+     * @see CompactPriceBook#apply(Collection)
+     */
+    public void apply(
+            Collection<Price> newPrices)
+    {
+        Map<PriceKey, IntervalBuffer> keyBatches = new LinkedHashMap<>();
+        for (Price newPrice : newPrices)
+        {
+            keyBatches.computeIfAbsent(PriceKey.of(newPrice), k -> new IntervalBuffer(4)).append(
+                    PriceTimes.toEpochMillis(newPrice.getBegin()), PriceTimes.toEpochMillis(newPrice.getEnd()),
+                    newPrice.getValue());
+        }
+
+        IntervalBuffer scratch = new IntervalBuffer();
+        IntervalBuffer sweepBuffer = new IntervalBuffer();
+        for (Map.Entry<PriceKey, IntervalBuffer> entry : keyBatches.entrySet())
+        {
+            PriceKey key = entry.getKey();
+            ReentrantLock stripe = stripeOf(key);
+            stripe.lock();
+            try
+            {
+                PriceIntervals intervals = numberDepartIntervals.get(key);
+                PriceIntervals mergedIntervals = intervals == null ? new PriceIntervals() : intervals.copy();
+                mergedIntervals.mergeBatch(entry.getValue(), scratch, sweepBuffer);
+
+                numberDepartIntervals.put(key, mergedIntervals);
+            }
+            finally
+            {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Не блокируется и не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        PriceIntervals intervals = numberDepartIntervals.get(new PriceKey(productCode, number, depart));
+        if (intervals == null)
+        {
+            return CompactPriceBook.NO_VALUE;
+        }
+
+        int index = intervals.indexAt(epochMillis);
+
+        return index < 0 ? CompactPriceBook.NO_VALUE : intervals.getValue(index);
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        PriceKey key = new PriceKey(productCode, number, depart);
+        PriceIntervals intervals = numberDepartIntervals.get(key);
+        if (intervals == null)
+        {
+            return null;
+        }
+
+        int index = intervals.indexAt(PriceTimes.toEpochMillis(time));
+
+        return index < 0 ? null : CompactPriceBook.createPrice(key, intervals, index);
+    }
+
+    /**
+     * Возвращает все цены ключа в одном согласованном состоянии.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @return новый список цен ключа, упорядоченный по началу срока действия.
+     */
+    public List<Price> getPrices(
+            String productCode,
+            int number,
+            int depart)
+    {
+        PriceKey key = new PriceKey(productCode, number, depart);
+        PriceIntervals intervals = numberDepartIntervals.get(key);
+        if (intervals == null)
+        {
+            return new ArrayList<>();
+        }
+
+        List<Price> prices = new ArrayList<>(intervals.size());
+        for (int i = 0; i < intervals.size(); i++)
+        {
+            prices.add(CompactPriceBook.createPrice(key, intervals, i));
+        }
+
+        return prices;
+    }
+
+    /**
+     * Возвращает все цены книги.
+     * <br>
+     * Цены каждого ключа согласованы между собой; ключи, изменяемые во время вызова,
+     * могут попасть в результат как до, так и после изменения.
+     *
+     * @return новое множество цен книги.
+     */
+    public Set<Price> getPrices()
+    {
+        Set<Price> prices = new HashSet<>();
+        for (Map.Entry<PriceKey, PriceIntervals> entry : numberDepartIntervals.entrySet())
+        {
+            PriceIntervals intervals = entry.getValue();
+            for (int i = 0; i < intervals.size(); i++)
+            {
+                prices.add(CompactPriceBook.createPrice(entry.getKey(), intervals, i));
+            }
+        }
+
+        return prices;
+    }
+
+    /**
+     * Возвращает опубликованные интервалы ключа.
+     * <br>
+     * Не блокируется; опубликованные интервалы не изменяются.
+     *
+     * @return интервалы ключа или {@code null}, если у ключа нет цен.
+     */
+    PriceIntervals getIntervals(
+            PriceKey key)
+    {
+        return numberDepartIntervals.get(key);
+    }
+
+    private ReentrantLock stripeOf(
+            PriceKey key)
+    {
+        int hash = key.hashCode();
+
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,493 @@
+package ru.pricelist.test.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен {@link CompactPriceBook}, сохраняющая свое состояние в локальном каталоге.
+ * <br>
+ * Каждая порция новых цен получает последовательный номер и перед применением дописывается
+ * в журнал предзаписи ({@link PriceLog}). Метод {@link #apply(Collection)} возвращает
+ * управление только после сброса порции на диск; сбросы объединяются: пока один писатель
+ * сбрасывает журнал, другие дописывают свои порции, и следующий сброс подтверждает их все.
+ * <br>
+ * Метод {@link #checkpoint()} записывает состояние книги в файл формата {@link PriceFiles}
+ * и начинает новый сегмент журнала, после чего старые сегменты и контрольные точки удаляются.
+ * При открытии каталога книга загружает последнюю контрольную точку и применяет только
+ * порции журнала после нее; оборванный при сбое хвост журнала отбрасывается.
+ * Контрольные точки следует создавать периодически, например из
+ * {@link java.util.concurrent.ScheduledExecutorService}.
+ * <br>
+ * Коды товаров, сроки действия и значения цен не должны быть {@code null}.
+ * Книга потокобезопасна: применение порций, контрольные точки и чтение выполняются по очереди,
+ * а ожидание сброса журнала - параллельно.
+ *
+ * @author Valery Skavysh.
+ */
+public class DurablePriceBook
+implements Closeable
+{
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+
+    private static final String CHECKPOINT_SUFFIX = ".prc";
+
+    private static final String LOG_PREFIX = "log-";
+
+    private static final String LOG_SUFFIX = ".wal";
+
+    private final Path directory;
+
+    private final CompactPriceBook priceBook;
+
+    /**
+     * Блокировка книги и текущего сегмента журнала.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Блокировка сброса журнала; захватывается после {@link #lock}, если нужны обе.
+     */
+    private final ReentrantLock syncLock = new ReentrantLock();
+
+    private PriceLog log;
+
+    private long logFirstSequence;
+
+    private long sequence;
+
+    private long checkpointSequence;
+
+    private volatile long writtenSequence;
+
+    private volatile long durableSequence;
+
+    private boolean closed;
+
+    /**
+     * Открывает книгу в каталоге, создавая каталог при отсутствии.
+     * <br>
+     * Загружает последнюю контрольную точку и применяет к ней порции журнала после нее.
+     *
+     * @param directory
+     *        каталог книги.
+     * @throws IOException
+     *         если каталог не удалось прочитать или его файлы повреждены.
+     */
+    public DurablePriceBook(
+            Path directory)
+            throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+
+        List<Long> checkpoints = listSequences(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        if (checkpoints.isEmpty())
+        {
+            priceBook = new CompactPriceBook();
+        }
+        else
+        {
+            checkpointSequence = checkpoints.get(checkpoints.size() - 1);
+            priceBook = new CompactPriceBook(PriceFiles.map(checkpointPath(checkpointSequence)));
+        }
+
+        sequence = checkpointSequence;
+        List<Long> logs = listSequences(LOG_PREFIX, LOG_SUFFIX);
+        for (long firstSequence : logs)
+        {
+            sequence = PriceLog.replay(logPath(firstSequence), sequence, priceBook::apply);
+        }
+        for (long firstSequence : logs)
+        {
+            if (firstSequence > sequence)
+            {
+                Files.delete(logPath(firstSequence));
+            }
+        }
+
+        writtenSequence = sequence;
+        durableSequence = sequence;
+        logFirstSequence = sequence + 1;
+        log = PriceLog.create(logPath(logFirstSequence), logFirstSequence);
+    }
+
+    /**
+     * Записывает порцию новых цен в журнал и применяет ее к книге.
+     * <br>
+     * Правила объединения те же, что и у {@link CompactPriceBook#apply(Collection)}.
+     * Порция становится видна читателям книги сразу после записи в журнал,
+     * а метод возвращает управление после сброса журнала на диск.
+     * <br>
+     * Порция с неверной ценой отвергается до записи в журнал; если порцию все же
+     * не удалось применить, она отрезается от журнала и не получает номера.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return номер порции.
+     * @throws IllegalArgumentException
+     *         если у цены порции нет кода товара или начало срока действия позже его конца.
+     * @throws IOException
+     *         если порцию не удалось записать в журнал; тогда книга не изменяется.
+     */
+    public long apply(
+            Collection<Price> newPrices)
+            throws IOException
+    {
+        long batchSequence;
+        lock.lock();
+        try
+        {
+            ensureOpen();
+
+            batchSequence = sequence + 1;
+            log.append(batchSequence, newPrices);
+            try
+            {
+                priceBook.apply(newPrices);
+            }
+            catch (RuntimeException | Error e)
+            {
+                try
+                {
+                    log.discardLast();
+                }
+                catch (IOException discardException)
+                {
+                    e.addSuppressed(discardException);
+                }
+
+                throw e;
+            }
+
+            sequence = batchSequence;
+            writtenSequence = batchSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        awaitDurable(batchSequence);
+
+        return batchSequence;
+    }
+
+    /**
+     * Записывает контрольную точку состояния книги и удаляет прежние файлы.
+     * <br>
+     * На время записи применение порций и чтение книги блокируются.
+     *
+     * @throws IOException
+     *         если контрольную точку не удалось записать.
+     */
+    public void checkpoint()
+            throws IOException
+    {
+        lock.lock();
+        try
+        {
+            ensureOpen();
+            if (sequence == checkpointSequence)
+            {
+                return;
+            }
+
+            PriceFiles.write(checkpointPath(sequence), priceBook);
+
+            if (logFirstSequence <= sequence)
+            {
+                syncLock.lock();
+                try
+                {
+                    log.sync();
+                    durableSequence = sequence;
+                    log.close();
+                    logFirstSequence = sequence + 1;
+                    log = PriceLog.create(logPath(logFirstSequence), logFirstSequence);
+                }
+                finally
+                {
+                    syncLock.unlock();
+                }
+            }
+            checkpointSequence = sequence;
+
+            for (long checkpoint : listSequences(CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX))
+            {
+                if (checkpoint < checkpointSequence)
+                {
+                    Files.delete(checkpointPath(checkpoint));
+                }
+            }
+            for (long firstSequence : listSequences(LOG_PREFIX, LOG_SUFFIX))
+            {
+                if (firstSequence <= checkpointSequence)
+                {
+                    Files.delete(logPath(firstSequence));
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает номер последней примененной порции.
+     *
+     * @return номер порции; у пустого каталога - 0.
+     */
+    public long getSequence()
+    {
+        lock.lock();
+        try
+        {
+            return sequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает номер последней порции, вошедшей в контрольную точку.
+     *
+     * @return номер порции или 0, если контрольных точек не было.
+     */
+    public long getCheckpointSequence()
+    {
+        lock.lock();
+        try
+        {
+            return checkpointSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает все цены книги.
+     *
+     * @return новое множество цен книги.
+     *
+     * @see CompactPriceBook#getPrices()
+     */
+    public Set<Price> getPrices()
+    {
+        lock.lock();
+        try
+        {
+            return priceBook.getPrices();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     *
+     * @see CompactPriceBook#priceAt(String, int, int, LocalDateTime)
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        lock.lock();
+        try
+        {
+            return priceBook.priceAt(productCode, number, depart, time);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        lock.lock();
+        try
+        {
+            return priceBook.valueAt(productCode, number, depart, epochMillis);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает журнал на диск и закрывает его.
+     *
+     * @throws IOException
+     *         если журнал не удалось сбросить.
+     */
+    @Override
+    public void close()
+            throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+
+            syncLock.lock();
+            try
+            {
+                try
+                {
+                    log.sync();
+                    durableSequence = sequence;
+                }
+                finally
+                {
+                    log.close();
+                }
+            }
+            finally
+            {
+                syncLock.unlock();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Дожидается сброса порции на диск, сбрасывая журнал, если его еще никто не сбрасывает.
+     * <br>
+     * Сброс подтверждает все порции, записанные до его начала, поэтому писатели,
+     * ожидавшие блокировку сброса, чаще всего находят свою порцию уже сброшенной.
+     */
+    private void awaitDurable(
+            long batchSequence)
+            throws IOException
+    {
+        if (durableSequence >= batchSequence)
+        {
+            return;
+        }
+
+        syncLock.lock();
+        try
+        {
+            if (durableSequence < batchSequence)
+            {
+                if (closed)
+                {
+                    throw new IOException("Price book is closed: " + directory);
+                }
+
+                long syncedSequence = writtenSequence;
+                log.sync();
+                durableSequence = syncedSequence;
+            }
+        }
+        finally
+        {
+            syncLock.unlock();
+        }
+    }
+
+    private void ensureOpen()
+            throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Price book is closed: " + directory);
+        }
+    }
+
+    private Path checkpointPath(
+            long checkpoint)
+    {
+        return directory.resolve(String.format("%s%020d%s", CHECKPOINT_PREFIX, checkpoint, CHECKPOINT_SUFFIX));
+    }
+
+    private Path logPath(
+            long firstSequence)
+    {
+        return directory.resolve(String.format("%s%020d%s", LOG_PREFIX, firstSequence, LOG_SUFFIX));
+    }
+
+    /**
+     * Возвращает упорядоченные номера файлов каталога с заданными префиксом и суффиксом.
+     */
+    private List<Long> listSequences(
+            String prefix,
+            String suffix)
+            throws IOException
+    {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, prefix + "*" + suffix))
+        {
+            for (Path path : paths)
+            {
+                String name = path.getFileName().toString();
+                try
+                {
+                    sequences.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException("Unexpected price book file: " + path, e);
+                }
+            }
+        }
+        Collections.sort(sequences);
+
+        return sequences;
+    }
+}
@@ -0,0 +1,404 @@
+package ru.pricelist.test.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Объединение старых и новых цен, не помещающихся в памяти.
+ * <br>
+ * Цены обеих коллекций накапливаются в памяти в пределах заданного бюджета, упорядочиваются
+ * по ключу и порядку следования и сбрасываются во временные отрезки ({@link PriceRunFile}).
+ * Отрезки сливаются k-путевым слиянием (при большом числе отрезков - в несколько проходов),
+ * и на выходе слияния цены каждого ключа объединяются по правилам
+ * {@link Prices#merge(Collection, Collection)} и дописываются в выходной файл.
+ * Переданные экземпляры цен не изменяются.
+ * <br>
+ * Цены ключа упорядочиваются не по началу срока действия, а по порядку следования в своей
+ * коллекции: результат объединения зависит от порядка новых цен и от того, какая из старых цен
+ * с одинаковым началом встретилась первой. Поэтому результат совпадает с
+ * {@link Prices#merge(Collection, Collection)} цена в цену, в том числе на пересекающихся
+ * новых ценах и на необъединенных новых ценах с одинаковым началом срока действия.
+ * <br>
+ * В памяти одновременно находятся буфер цен в пределах бюджета либо буферы чтения сливаемых
+ * отрезков и цены одного ключа. Выходной файл содержит цены по возрастанию ключа и начала
+ * срока действия и читается методом {@link #forEach(Path, Consumer)}.
+ * <br>
+ * Коды товаров, номера, отделы, сроки действия и значения цен не должны быть {@code null}.
+ *
+ * @see Prices
+ *
+ * @author Valery Skavysh.
+ */
+public final class ExternalPriceMerge
+{
+    /**
+     * Бюджет памяти по умолчанию, 64 Мбайт.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    /**
+     * Оценка занимаемой в куче памяти цены с записью отрезка без учета кода товара.
+     */
+    private static final int ESTIMATED_RECORD_SIZE = 256;
+
+    private static final int MAX_FAN_IN = 1024;
+
+    private static final Comparator<Price> OUTPUT_ORDER = Comparator
+            .comparing(Price::getBegin)
+            .thenComparing(Price::getEnd)
+            .thenComparing(Price::getValue);
+
+    private final Path tempDirectory;
+
+    private final long memoryBudget;
+
+    /**
+     * Создает объединение с бюджетом памяти по умолчанию.
+     *
+     * @param tempDirectory
+     *        каталог временных отрезков.
+     */
+    public ExternalPriceMerge(
+            Path tempDirectory)
+    {
+        this(tempDirectory, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Создает объединение.
+     *
+     * @param tempDirectory
+     *        каталог временных отрезков.
+     * @param memoryBudget
+     *        бюджет памяти в байтах для буфера цен и буферов чтения отрезков.
+     */
+    public ExternalPriceMerge(
+            Path tempDirectory,
+            long memoryBudget)
+    {
+        if (memoryBudget <= 0)
+        {
+            throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+        }
+
+        this.tempDirectory = tempDirectory;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Объединяет старые цены с новыми и записывает результат в файл.
+     * <br>
+     * Временные отрезки удаляются по завершении, в том числе при ошибке.
+     *
+     * @param oldPrices
+     *        старые цены.
+     * @param newPrices
+     *        новые цены.
+     * @param output
+     *        выходной файл; существующий файл перезаписывается.
+     * @return количество цен в выходном файле.
+     * @throws IOException
+     *         если не удалось записать или прочитать отрезки либо выходной файл.
+     */
+    public long merge(
+            Iterator<Price> oldPrices,
+            Iterator<Price> newPrices,
+            Path output)
+            throws IOException
+    {
+        List<Path> runs = new ArrayList<>();
+        try
+        {
+            List<PriceRunFile.Record> buffer = new ArrayList<>();
+            long bufferSize = spill(oldPrices, false, buffer, 0, runs);
+            bufferSize = spill(newPrices, true, buffer, bufferSize, runs);
+
+            try (PriceRunFile.Writer writer = new PriceRunFile.Writer(output))
+            {
+                KeyMerger keyMerger = new KeyMerger(writer);
+                if (runs.isEmpty())
+                {
+                    buffer.sort(PriceRunFile.RECORD_ORDER);
+                    for (PriceRunFile.Record record : buffer)
+                    {
+                        keyMerger.accept(record);
+                    }
+                }
+                else
+                {
+                    if (!buffer.isEmpty())
+                    {
+                        writeRun(buffer, runs);
+                    }
+                    buffer = null;
+
+                    int fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / PriceRunFile.BUFFER_SIZE));
+                    while (runs.size() > fanIn)
+                    {
+                        List<Path> mergedRuns = new ArrayList<>(runs.subList(0, fanIn));
+                        Path run = createRun(runs);
+                        try (PriceRunFile.Writer runWriter = new PriceRunFile.Writer(run))
+                        {
+                            mergeRuns(mergedRuns, runWriter::write);
+                        }
+                        deleteRuns(mergedRuns);
+                        runs.removeAll(mergedRuns);
+                    }
+
+                    mergeRuns(runs, keyMerger::accept);
+                }
+                keyMerger.finish();
+
+                return writer.getCount();
+            }
+        }
+        finally
+        {
+            deleteRuns(runs);
+        }
+    }
+
+    /**
+     * Читает цены выходного файла объединения по порядку.
+     *
+     * @param path
+     *        выходной файл объединения.
+     * @param consumer
+     *        получатель цен.
+     * @return количество прочитанных цен.
+     * @throws IOException
+     *         если файл не удалось прочитать.
+     */
+    public static long forEach(
+            Path path,
+            Consumer<Price> consumer)
+            throws IOException
+    {
+        long count = 0;
+        try (PriceRunFile.Reader reader = new PriceRunFile.Reader(path))
+        {
+            for (PriceRunFile.Record record = reader.read(); record != null; record = reader.read())
+            {
+                consumer.accept(record.price);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Добавляет цены в буфер, сбрасывая его в отрезок при превышении бюджета.
+     *
+     * @return оценка памяти, занятой буфером.
+     */
+    private long spill(
+            Iterator<Price> prices,
+            boolean newPrice,
+            List<PriceRunFile.Record> buffer,
+            long bufferSize,
+            List<Path> runs)
+            throws IOException
+    {
+        long sequence = 0;
+        while (prices.hasNext())
+        {
+            Price price = prices.next();
+            if (price.getProductCode() == null || price.getNumber() == null || price.getDepart() == null
+                    || price.getBegin() == null || price.getEnd() == null || price.getValue() == null)
+            {
+                throw new IllegalArgumentException("Price fields must not be null: " + price);
+            }
+
+            buffer.add(new PriceRunFile.Record(price, newPrice, sequence++));
+            bufferSize += ESTIMATED_RECORD_SIZE + 2L * price.getProductCode().length();
+            if (bufferSize > memoryBudget)
+            {
+                writeRun(buffer, runs);
+                bufferSize = 0;
+            }
+        }
+
+        return bufferSize;
+    }
+
+    private void writeRun(
+            List<PriceRunFile.Record> buffer,
+            List<Path> runs)
+            throws IOException
+    {
+        buffer.sort(PriceRunFile.RECORD_ORDER);
+        try (PriceRunFile.Writer writer = new PriceRunFile.Writer(createRun(runs)))
+        {
+            for (PriceRunFile.Record record : buffer)
+            {
+                writer.write(record);
+            }
+        }
+        buffer.clear();
+    }
+
+    private Path createRun(
+            List<Path> runs)
+            throws IOException
+    {
+        Path run = Files.createTempFile(tempDirectory, "prices-", ".run");
+        runs.add(run);
+
+        return run;
+    }
+
+    /**
+     * Сливает упорядоченные отрезки и передает их записи получателю по порядку.
+     */
+    private static void mergeRuns(
+            List<Path> runs,
+            RecordConsumer consumer)
+            throws IOException
+    {
+        PriorityQueue<RunHead> heads = new PriorityQueue<>(runs.size());
+        List<PriceRunFile.Reader> readers = new ArrayList<>(runs.size());
+        try
+        {
+            for (Path run : runs)
+            {
+                PriceRunFile.Reader reader = new PriceRunFile.Reader(run);
+                readers.add(reader);
+
+                PriceRunFile.Record record = reader.read();
+                if (record != null)
+                {
+                    heads.add(new RunHead(reader, record));
+                }
+            }
+
+            while (!heads.isEmpty())
+            {
+                RunHead head = heads.poll();
+                consumer.accept(head.record);
+
+                head.record = head.reader.read();
+                if (head.record != null)
+                {
+                    heads.add(head);
+                }
+            }
+        }
+        finally
+        {
+            for (PriceRunFile.Reader reader : readers)
+            {
+                reader.close();
+            }
+        }
+    }
+
+    private static void deleteRuns(
+            List<Path> runs)
+            throws IOException
+    {
+        for (Path run : runs)
+        {
+            Files.deleteIfExists(run);
+        }
+    }
+
+    private interface RecordConsumer
+    {
+        void accept(
+                PriceRunFile.Record record)
+                throws IOException;
+    }
+
+    /**
+     * Текущая запись сливаемого отрезка.
+     */
+    private static final class RunHead
+    implements Comparable<RunHead>
+    {
+        private final PriceRunFile.Reader reader;
+
+        private PriceRunFile.Record record;
+
+        private RunHead(
+                PriceRunFile.Reader reader,
+                PriceRunFile.Record record)
+        {
+            this.reader = reader;
+            this.record = record;
+        }
+
+        @Override
+        public int compareTo(
+                RunHead head)
+        {
+            return PriceRunFile.RECORD_ORDER.compare(record, head.record);
+        }
+    }
+
+    /**
+     * Собирает цены одного ключа из упорядоченного потока записей, объединяет их
+     * и пишет результат в выходной файл.
+     */
+    private static final class KeyMerger
+    {
+        private final PriceRunFile.Writer writer;
+
+        private final List<Price> oldPrices = new ArrayList<>();
+
+        private final List<Price> newPrices = new ArrayList<>();
+
+        private PriceRunFile.Record keyRecord;
+
+        private long sequence;
+
+        private KeyMerger(
+                PriceRunFile.Writer writer)
+        {
+            this.writer = writer;
+        }
+
+        void accept(
+                PriceRunFile.Record record)
+                throws IOException
+        {
+            if (keyRecord != null && !keyRecord.hasSameKey(record))
+            {
+                finish();
+            }
+
+            keyRecord = record;
+            (record.newPrice ? newPrices : oldPrices).add(record.price);
+        }
+
+        void finish()
+                throws IOException
+        {
+            if (keyRecord == null)
+            {
+                return;
+            }
+
+            List<Price> mergedPrices = new ArrayList<>(Prices.mergeCopyOnWrite(oldPrices, newPrices));
+            mergedPrices.sort(OUTPUT_ORDER);
+            for (Price price : mergedPrices)
+            {
+                writer.write(new PriceRunFile.Record(price, false, sequence++));
+            }
+
+            oldPrices.clear();
+            newPrices.clear();
+            keyRecord = null;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ru.pricelist.test.util;
+
+import java.util.Arrays;
+
+/**
+ * Растущий буфер интервалов цен в колоночном примитивном представлении.
+ * <br>
+ * Используется как многоразовая временная память при объединении порций новых цен.
+ *
+ * @author Valery Skavysh.
+ */
+final class IntervalBuffer
+{
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private long[] begins;
+
+    private long[] ends;
+
+    private long[] values;
+
+    private int size;
+
+    IntervalBuffer()
+    {
+        this(16);
+    }
+
+    IntervalBuffer(
+            int capacity)
+    {
+        begins = new long[capacity];
+        ends = new long[capacity];
+        values = new long[capacity];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    long getBegin(
+            int index)
+    {
+        return begins[index];
+    }
+
+    long getEnd(
+            int index)
+    {
+        return ends[index];
+    }
+
+    long getValue(
+            int index)
+    {
+        return values[index];
+    }
+
+    /**
+     * Массивы буфера для прямой записи после {@link #ensureCapacity(int)}.
+     */
+    long[] getBegins()
+    {
+        return begins;
+    }
+
+    long[] getEnds()
+    {
+        return ends;
+    }
+
+    long[] getValues()
+    {
+        return values;
+    }
+
+    /**
+     * Увеличивает емкость буфера без сохранения содержимого.
+     */
+    void ensureCapacity(
+            int capacity)
+    {
+        if (begins.length < capacity)
+        {
+            capacity = Math.max(capacity, begins.length + (begins.length >> 1) + 1);
+            begins = new long[capacity];
+            ends = new long[capacity];
+            values = new long[capacity];
+        }
+        size = 0;
+    }
+
+    void append(
+            long begin,
+            long end,
+            long value)
+    {
+        if (size == begins.length)
+        {
+            int capacity = size + (size >> 1) + 1;
+            begins = Arrays.copyOf(begins, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        begins[size] = begin;
+        ends[size] = end;
+        values[size] = value;
+        size++;
+    }
+
+    void copyFrom(
+            IntervalBuffer buffer)
+    {
+        clear();
+        for (int i = 0; i < buffer.size; i++)
+        {
+            append(buffer.begins[i], buffer.ends[i], buffer.values[i]);
+        }
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Проверяет, что интервалы непусты, упорядочены по началу и не пересекаются.
+     */
+    boolean isSortedDisjoint()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (begins[i] >= ends[i] || i > 0 && ends[i - 1] > begins[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Упорядочивает интервалы по началу.
+     */
+    void sortByBegin()
+    {
+        sort(0, size - 1);
+    }
+
+    private void sort(
+            int low,
+            int high)
+    {
+        while (high - low >= INSERTION_SORT_THRESHOLD)
+        {
+            long pivot = begins[(low + high) >>> 1];
+            int left = low;
+            int right = high;
+            while (left <= right)
+            {
+                while (begins[left] < pivot)
+                {
+                    left++;
+                }
+                while (begins[right] > pivot)
+                {
+                    right--;
+                }
+                if (left <= right)
+                {
+                    swap(left++, right--);
+                }
+            }
+
+            if (right - low < high - left)
+            {
+                sort(low, right);
+                low = left;
+            }
+            else
+            {
+                sort(left, high);
+                high = right;
+            }
+        }
+
+        for (int i = low + 1; i <= high; i++)
+        {
+            for (int j = i; j > low && begins[j - 1] > begins[j]; j--)
+            {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private void swap(
+            int i,
+            int j)
+    {
+        long begin = begins[i];
+        begins[i] = begins[j];
+        begins[j] = begin;
+
+        long end = ends[i];
+        ends[i] = ends[j];
+        ends[j] = end;
+
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
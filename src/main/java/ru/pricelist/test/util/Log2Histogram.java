@@ -0,0 +1,90 @@
+package ru.pricelist.test.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Потокобезопасная гистограмма неотрицательных значений с корзинами по степеням двойки.
+ * <br>
+ * Корзина 0 считает нули, корзина i &gt; 0 - значения от 2<sup>i-1</sup> до 2<sup>i</sup> - 1.
+ * Запись значения - одно приращение {@link LongAdder} без блокировок и без создания объектов.
+ *
+ * @author Valery Skavysh.
+ */
+final class Log2Histogram
+{
+    static final int BUCKET_COUNT = Long.SIZE;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+    private final LongAdder sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    Log2Histogram()
+    {
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Записывает значение; отрицательные значения записываются как нуль.
+     */
+    void record(
+            long value)
+    {
+        long recordedValue = Math.max(0, value);
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(recordedValue)].increment();
+        sum.add(recordedValue);
+        max.accumulate(recordedValue);
+    }
+
+    /**
+     * Возвращает количества значений по корзинам.
+     *
+     * @return новый массив длиной {@link #BUCKET_COUNT}.
+     */
+    long[] getCounts()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = buckets[i].sum();
+        }
+
+        return counts;
+    }
+
+    long getCount()
+    {
+        long count = 0;
+        for (LongAdder bucket : buckets)
+        {
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+    long getSum()
+    {
+        return sum.sum();
+    }
+
+    long getMax()
+    {
+        return max.get();
+    }
+
+    void reset()
+    {
+        for (LongAdder bucket : buckets)
+        {
+            bucket.reset();
+        }
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,141 @@
+package ru.pricelist.test.util;
+
+/**
+ * Карта с примитивными ключами {@code long}, значениями {@code int} и открытой адресацией.
+ * <br>
+ * Устроена так же, как {@link LongObjectHashMap}, но хранит значения в массиве {@code int},
+ * поэтому не создает объектов ни при поиске, ни при вставке. Ключ {@code 0} зарезервирован
+ * как признак свободной ячейки, значения не должны быть отрицательными. Удаление не поддерживается.
+ * <br>
+ * Карта не является потокобезопасной.
+ *
+ * @author Valery Skavysh.
+ */
+final class LongIntHashMap
+{
+    /**
+     * Значение, возвращаемое {@link #get(long)} для отсутствующего ключа.
+     */
+    static final int NO_VALUE = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+
+    private int[] values;
+
+    private int size;
+
+    private int resizeThreshold;
+
+    LongIntHashMap()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Возвращает значение ключа.
+     *
+     * @return значение или {@link #NO_VALUE}, если ключа нет.
+     */
+    int get(
+            long key)
+    {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask)
+        {
+            long slotKey = keys[slot];
+            if (slotKey == key)
+            {
+                return values[slot];
+            }
+
+            if (slotKey == 0)
+            {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Связывает ключ со значением.
+     */
+    void put(
+            long key,
+            int value)
+    {
+        if (key == 0)
+        {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        }
+
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != 0)
+        {
+            if (keys[slot] == key)
+            {
+                values[slot] = value;
+                return;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeThreshold)
+        {
+            resize();
+        }
+    }
+
+    private void resize()
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length << 1);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != 0)
+            {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(
+            int capacity)
+    {
+        keys = new long[capacity];
+        values = new int[capacity];
+        resizeThreshold = capacity / 4 * 3;
+    }
+
+    private static int slot(
+            long key,
+            int mask)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
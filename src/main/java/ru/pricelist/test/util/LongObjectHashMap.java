@@ -0,0 +1,157 @@
+package ru.pricelist.test.util;
+
+/**
+ * Карта с примитивными ключами {@code long} и открытой адресацией.
+ * <br>
+ * Ключи и значения лежат в двух параллельных массивах, коллизии разрешаются линейным
+ * пробированием, поиск и вставка существующего ключа не создают объектов.
+ * Ключ {@code 0} зарезервирован как признак свободной ячейки. Удаление не поддерживается.
+ * <br>
+ * Обход выполняется по ячейкам: {@link #capacity()}, {@link #keyAt(int)} и {@link #valueAt(int)}.
+ * Карта не является потокобезопасной.
+ *
+ * @author Valery Skavysh.
+ */
+final class LongObjectHashMap<V>
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    private int resizeThreshold;
+
+    LongObjectHashMap()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(
+            long key)
+    {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask)
+        {
+            long slotKey = keys[slot];
+            if (slotKey == key)
+            {
+                return (V) values[slot];
+            }
+
+            if (slotKey == 0)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Связывает ключ со значением.
+     *
+     * @return прежнее значение ключа или {@code null}.
+     */
+    @SuppressWarnings("unchecked")
+    V put(
+            long key,
+            V value)
+    {
+        if (key == 0)
+        {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        while (keys[slot] != 0)
+        {
+            if (keys[slot] == key)
+            {
+                V previous = (V) values[slot];
+                values[slot] = value;
+
+                return previous;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeThreshold)
+        {
+            resize();
+        }
+
+        return null;
+    }
+
+    int capacity()
+    {
+        return keys.length;
+    }
+
+    /**
+     * Возвращает ключ ячейки или {@code 0}, если ячейка свободна.
+     */
+    long keyAt(
+            int slot)
+    {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(
+            int slot)
+    {
+        return (V) values[slot];
+    }
+
+    private void resize()
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length << 1);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != 0)
+            {
+                int slot = slot(oldKeys[i], mask);
+                while (keys[slot] != 0)
+                {
+                    slot = (slot + 1) & mask;
+                }
+
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(
+            int capacity)
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        resizeThreshold = capacity / 4 * 3;
+    }
+
+    private static int slot(
+            long key,
+            int mask)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
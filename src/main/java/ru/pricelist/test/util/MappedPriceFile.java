@@ -0,0 +1,448 @@
+package ru.pricelist.test.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Файл цен в двоичном формате {@link PriceFiles}, отображенный в память.
+ * <br>
+ * Записи читаются прямо из отображенных буферов без разбора и создания объектов:
+ * поиск цены выполняется двоичным поиском по записям, упорядоченным по ключу
+ * и началу срока действия, а загрузка в {@link CompactPriceBook} переносит
+ * интервалы в примитивные массивы книги.
+ * <br>
+ * Экземпляр неизменяем и допускает одновременное чтение из нескольких потоков.
+ * <br>
+ * Метод {@link #close()} сразу освобождает отображения файла (см. {@link OffHeapIntervalSlab#close()}),
+ * не дожидаясь сборщика мусора. Закрывать файл можно только после того, как чтение из него
+ * завершено во всех потоках; после закрытия поиск и загрузка завершаются {@link IllegalStateException}.
+ *
+ * @see PriceFiles#map(Path)
+ *
+ * @author Valery Skavysh.
+ */
+public final class MappedPriceFile
+implements AutoCloseable
+{
+    /**
+     * Количество записей в одном отображенном сегменте файла.
+     * <br>
+     * Один {@link MappedByteBuffer} ограничен 2 ГБ, поэтому файл отображается сегментами.
+     */
+    private static final int SEGMENT_SHIFT = 24;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final String[] productCodes;
+
+    private final HashMap<String, Integer> productIds;
+
+    private final MappedByteBuffer[] segments;
+
+    private final long size;
+
+    /**
+     * Количество записей, среди которых ищется действующая цена; за ними идут записи,
+     * хранящиеся отдельно.
+     */
+    private final long searchedSize;
+
+    private boolean closed;
+
+    private MappedPriceFile(
+            String[] productCodes,
+            MappedByteBuffer[] segments,
+            long size,
+            long collidedSize)
+    {
+        this.productCodes = productCodes;
+        this.segments = segments;
+        this.size = size;
+        searchedSize = size - collidedSize;
+
+        productIds = new HashMap<>(productCodes.length * 4 / 3 + 1);
+        for (int i = 0; i < productCodes.length; i++)
+        {
+            productIds.put(productCodes[i], i);
+        }
+    }
+
+    static MappedPriceFile map(
+            Path path)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long fileSize = channel.size();
+            if (fileSize < PriceFiles.VERSION_1_HEADER_SIZE)
+            {
+                throw new IOException("Price file is too short: " + path);
+            }
+
+            int headerSize;
+            long size;
+            int productCodeCount;
+            int dictionarySize;
+            long collidedSize;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(fileSize, PriceFiles.HEADER_SIZE));
+            try
+            {
+                if (header.getInt() != PriceFiles.MAGIC)
+                {
+                    throw new IOException("Not a price file: " + path);
+                }
+
+                int version = header.getInt();
+                if (version == PriceFiles.VERSION)
+                {
+                    headerSize = PriceFiles.HEADER_SIZE;
+                }
+                else if (version == 1)
+                {
+                    headerSize = PriceFiles.VERSION_1_HEADER_SIZE;
+                }
+                else
+                {
+                    throw new IOException("Unsupported price file version " + version + ": " + path);
+                }
+
+                if (fileSize < headerSize)
+                {
+                    throw new IOException("Price file is too short: " + path);
+                }
+
+                size = header.getLong();
+                productCodeCount = header.getInt();
+                dictionarySize = header.getInt();
+                collidedSize = version == 1 ? 0 : header.getLong();
+            }
+            finally
+            {
+                OffHeapIntervalSlab.release(header);
+            }
+
+            long recordsOffset = headerSize + (long) dictionarySize;
+            if (size < 0 || productCodeCount < 0 || dictionarySize < 0 || collidedSize < 0 || collidedSize > size
+                    || fileSize != recordsOffset + size * PriceFiles.RECORD_SIZE)
+            {
+                throw new IOException("Corrupted price file: " + path);
+            }
+
+            String[] productCodes;
+            MappedByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, headerSize, dictionarySize);
+            try
+            {
+                productCodes = readProductCodes(dictionary, productCodeCount, path);
+            }
+            finally
+            {
+                OffHeapIntervalSlab.release(dictionary);
+            }
+
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            try
+            {
+                for (int i = 0; i < segments.length; i++)
+                {
+                    long first = (long) i << SEGMENT_SHIFT;
+                    long count = Math.min(size - first, 1L << SEGMENT_SHIFT);
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            recordsOffset + first * PriceFiles.RECORD_SIZE, count * PriceFiles.RECORD_SIZE);
+                }
+            }
+            catch (Throwable e)
+            {
+                release(segments);
+                throw e;
+            }
+
+            return new MappedPriceFile(productCodes, segments, size, collidedSize);
+        }
+    }
+
+    private static String[] readProductCodes(
+            ByteBuffer dictionary,
+            int productCodeCount,
+            Path path)
+            throws IOException
+    {
+        String[] productCodes = new String[productCodeCount];
+        for (int i = 0; i < productCodeCount; i++)
+        {
+            int length = dictionary.remaining() < Integer.BYTES ? -1 : dictionary.getInt();
+            if (length < 0 || length > dictionary.remaining())
+            {
+                throw new IOException("Corrupted price file dictionary: " + path);
+            }
+
+            byte[] bytes = new byte[length];
+            dictionary.get(bytes);
+            productCodes[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return productCodes;
+    }
+
+    /**
+     * Освобождает отображения файла.
+     * <br>
+     * Повторное закрытие ничего не делает.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        release(segments);
+    }
+
+    /**
+     * Возвращает количество записей файла.
+     *
+     * @return количество записей.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Поиск выполняется за O(log n) прямо по отображенным записям и не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        checkOpen();
+        long index = indexAt(productCode, number, depart, epochMillis);
+
+        return index < 0 ? CompactPriceBook.NO_VALUE : getValue(index);
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        checkOpen();
+        long index = indexAt(productCode, number, depart, PriceTimes.toEpochMillis(time));
+        if (index < 0)
+        {
+            return null;
+        }
+
+        Price price = new Price();
+        price.setProductCode(productCode);
+        price.setNumber(number);
+        price.setDepart(depart);
+        price.setBegin(PriceTimes.fromEpochMillis(getBegin(index)));
+        price.setEnd(PriceTimes.fromEpochMillis(getEnd(index)));
+        price.setValue(getValue(index));
+
+        return price;
+    }
+
+    void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Price file is closed");
+        }
+    }
+
+    /**
+     * Проверяет, что запись хранится отдельно и не участвует в поиске действующей цены.
+     */
+    boolean isCollided(
+            long index)
+    {
+        return index >= searchedSize;
+    }
+
+    String getProductCode(
+            long index)
+    {
+        return productCodes[segment(index).getInt(offset(index) + PriceFiles.PRODUCT_ID_OFFSET)];
+    }
+
+    int getProductId(
+            long index)
+    {
+        return segment(index).getInt(offset(index) + PriceFiles.PRODUCT_ID_OFFSET);
+    }
+
+    int getNumber(
+            long index)
+    {
+        return segment(index).getInt(offset(index) + PriceFiles.NUMBER_OFFSET);
+    }
+
+    int getDepart(
+            long index)
+    {
+        return segment(index).getInt(offset(index) + PriceFiles.DEPART_OFFSET);
+    }
+
+    long getBegin(
+            long index)
+    {
+        return segment(index).getLong(offset(index) + PriceFiles.BEGIN_OFFSET);
+    }
+
+    long getEnd(
+            long index)
+    {
+        return segment(index).getLong(offset(index) + PriceFiles.END_OFFSET);
+    }
+
+    long getValue(
+            long index)
+    {
+        return segment(index).getLong(offset(index) + PriceFiles.VALUE_OFFSET);
+    }
+
+    /**
+     * Находит запись, действующую в заданный момент, по тем же правилам,
+     * что и {@link PriceIntervals#indexAt(long)}.
+     *
+     * @return индекс записи или {@code -1}, если в этот момент цена не действует.
+     */
+    private long indexAt(
+            String productCode,
+            int number,
+            int depart,
+            long time)
+    {
+        Integer productId = productIds.get(productCode);
+        if (productId == null)
+        {
+            return -1;
+        }
+
+        long low = 0;
+        long high = searchedSize;
+        while (low < high)
+        {
+            long middle = (low + high) >>> 1;
+            if (compare(middle, productId, number, depart, time) <= 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        long index = low - 1;
+        if (index < 0
+                || getProductId(index) != productId
+                || getNumber(index) != number
+                || getDepart(index) != depart)
+        {
+            return -1;
+        }
+
+        while (index > 0 && compare(index - 1, productId, number, depart, getBegin(index)) == 0)
+        {
+            index--;
+        }
+
+        if (time < getEnd(index))
+        {
+            return index;
+        }
+
+        return -1;
+    }
+
+    private int compare(
+            long index,
+            int productId,
+            int number,
+            int depart,
+            long begin)
+    {
+        int result = Integer.compare(getProductId(index), productId);
+        if (result == 0)
+        {
+            result = Integer.compare(getNumber(index), number);
+        }
+        if (result == 0)
+        {
+            result = Integer.compare(getDepart(index), depart);
+        }
+        if (result == 0)
+        {
+            result = Long.compare(getBegin(index), begin);
+        }
+
+        return result;
+    }
+
+    private static void release(
+            MappedByteBuffer[] segments)
+    {
+        for (MappedByteBuffer segment : segments)
+        {
+            if (segment != null)
+            {
+                OffHeapIntervalSlab.release(segment);
+            }
+        }
+    }
+
+    private MappedByteBuffer segment(
+            long index)
+    {
+        return segments[(int) (index >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(
+            long index)
+    {
+        return (int) (index & SEGMENT_MASK) * PriceFiles.RECORD_SIZE;
+    }
+}
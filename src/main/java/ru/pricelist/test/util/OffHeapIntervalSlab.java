@@ -0,0 +1,446 @@
+package ru.pricelist.test.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Распределитель блоков интервалов цен вне кучи.
+ * <br>
+ * Память выделяется кусками - прямыми буферами {@link ByteBuffer#allocateDirect(int)}
+ * одного размера - и нарезается на блоки. Блок хранит интервалы одного ключа,
+ * упорядоченные по началу срока действия, записями фиксированной ширины:
+ * <pre>
+ * блок:
+ *     int    количество интервалов
+ *     int    класс размера
+ *     int    количество интервалов, хранящихся отдельно
+ *     int    не используется
+ *     записи, {@link #RECORD_SIZE} байт каждая:
+ *         long   начало срока действия, миллисекунды от начала эпохи
+ *         long   конец срока действия
+ *         long   значение
+ * </pre>
+ * Интервалы, хранящиеся отдельно (см. {@link PriceIntervals#appendCollided(long, long, long)}),
+ * записываются последними и в поиске действующего интервала не участвуют.
+ * <br>
+ * Емкость блока класса {@code c} - {@code 2 << c} записей. Освобожденный блок попадает
+ * в список свободных блоков своего класса, связанный через первые байты самих блоков,
+ * и выдается снова при следующем запросе блока того же класса; новый кусок выделяется
+ * только при пустом списке и нехватке места в текущем куске.
+ * <br>
+ * Блок задается дескриптором {@code long}: номер куска в старших 32 битах и смещение
+ * в куске в младших. Распределитель не проверяет дескрипторы и не является потокобезопасным.
+ *
+ * @author Valery Skavysh.
+ */
+final class OffHeapIntervalSlab
+implements AutoCloseable
+{
+    /**
+     * Размер записи интервала в байтах.
+     */
+    static final int RECORD_SIZE = 24;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final long NO_BLOCK = -1;
+
+    private final int chunkSize;
+
+    private final long maxMemory;
+
+    private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+
+    /**
+     * Первые свободные блоки классов размера.
+     */
+    private final long[] freeBlocks;
+
+    private ByteBuffer chunk;
+
+    private int chunkOffset;
+
+    private long usedMemory;
+
+    private long freeMemory;
+
+    private long blockCount;
+
+    private boolean closed;
+
+    /**
+     * @param chunkSize
+     *        размер куска в байтах.
+     * @param maxMemory
+     *        наибольший общий размер кусков в байтах.
+     */
+    OffHeapIntervalSlab(
+            int chunkSize,
+            long maxMemory)
+    {
+        if (chunkSize < HEADER_SIZE + 2 * RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("Chunk size is too small: " + chunkSize);
+        }
+
+        this.chunkSize = chunkSize;
+        this.maxMemory = maxMemory;
+
+        int sizeClassCount = 0;
+        while (blockSize(sizeClassCount) <= chunkSize)
+        {
+            sizeClassCount++;
+        }
+        freeBlocks = new long[sizeClassCount];
+        Arrays.fill(freeBlocks, NO_BLOCK);
+    }
+
+    /**
+     * Возвращает наибольшую емкость блока в записях.
+     */
+    int getMaxCapacity()
+    {
+        return capacityOf(freeBlocks.length - 1);
+    }
+
+    /**
+     * Выделяет пустой блок емкостью не меньше заданной.
+     *
+     * @throws IllegalStateException
+     *         если емкость больше наибольшей или превышен предел памяти.
+     */
+    long allocate(
+            int capacity)
+    {
+        int sizeClass = sizeClassFor(capacity);
+        if (sizeClass >= freeBlocks.length)
+        {
+            throw new IllegalStateException("Too many intervals for one price key: " + capacity
+                    + " (max " + getMaxCapacity() + ")");
+        }
+
+        int blockSize = blockSize(sizeClass);
+        long block = freeBlocks[sizeClass];
+        if (block != NO_BLOCK)
+        {
+            freeBlocks[sizeClass] = buffer(block).getLong(offset(block));
+            freeMemory -= blockSize;
+        }
+        else
+        {
+            if (chunk == null || chunkOffset + blockSize > chunkSize)
+            {
+                if ((long) (chunks.size() + 1) * chunkSize > maxMemory)
+                {
+                    throw new IllegalStateException("Off-heap memory limit exceeded: " + maxMemory + " bytes");
+                }
+
+                chunk = ByteBuffer.allocateDirect(chunkSize).order(ByteOrder.nativeOrder());
+                chunks.add(chunk);
+                chunkOffset = 0;
+            }
+
+            block = (long) (chunks.size() - 1) << 32 | chunkOffset;
+            chunkOffset += blockSize;
+        }
+
+        ByteBuffer buffer = buffer(block);
+        int offset = offset(block);
+        buffer.putInt(offset, 0);
+        buffer.putInt(offset + 4, sizeClass);
+        buffer.putInt(offset + 8, 0);
+        usedMemory += blockSize;
+        blockCount++;
+
+        return block;
+    }
+
+    /**
+     * Возвращает блок в список свободных блоков его класса.
+     */
+    void free(
+            long block)
+    {
+        int sizeClass = sizeClass(block);
+        buffer(block).putLong(offset(block), freeBlocks[sizeClass]);
+        freeBlocks[sizeClass] = block;
+
+        int blockSize = blockSize(sizeClass);
+        usedMemory -= blockSize;
+        freeMemory += blockSize;
+        blockCount--;
+    }
+
+    int size(
+            long block)
+    {
+        return buffer(block).getInt(offset(block));
+    }
+
+    int capacity(
+            long block)
+    {
+        return capacityOf(sizeClass(block));
+    }
+
+    long getBegin(
+            long block,
+            int index)
+    {
+        return buffer(block).getLong(recordOffset(block, index));
+    }
+
+    long getEnd(
+            long block,
+            int index)
+    {
+        return buffer(block).getLong(recordOffset(block, index) + 8);
+    }
+
+    long getValue(
+            long block,
+            int index)
+    {
+        return buffer(block).getLong(recordOffset(block, index) + 16);
+    }
+
+    /**
+     * Находит интервал блока, действующий в заданный момент, по тем же правилам,
+     * что и {@link PriceIntervals#indexAt(long)}.
+     *
+     * @return индекс интервала или {@code -1}, если в этот момент цена не действует.
+     */
+    int indexAt(
+            long block,
+            long time)
+    {
+        ByteBuffer buffer = buffer(block);
+        int records = offset(block) + HEADER_SIZE;
+        int low = 0;
+        int high = buffer.getInt(offset(block)) - buffer.getInt(offset(block) + 8);
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(records + middle * RECORD_SIZE) > time)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+
+        int index = low - 1;
+        while (index > 0 && buffer.getLong(records + (index - 1) * RECORD_SIZE)
+                == buffer.getLong(records + index * RECORD_SIZE))
+        {
+            index--;
+        }
+
+        if (index >= 0 && time < buffer.getLong(records + index * RECORD_SIZE + 8))
+        {
+            return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Переносит интервалы блока в конец интервалов ключа в куче.
+     */
+    void read(
+            long block,
+            PriceIntervals intervals)
+    {
+        ByteBuffer buffer = buffer(block);
+        int offset = offset(block);
+        int size = buffer.getInt(offset);
+        int mergedSize = size - buffer.getInt(offset + 8);
+        int record = offset + HEADER_SIZE;
+        for (int i = 0; i < size; i++)
+        {
+            if (i < mergedSize)
+            {
+                intervals.append(buffer.getLong(record), buffer.getLong(record + 8), buffer.getLong(record + 16));
+            }
+            else
+            {
+                intervals.appendCollided(buffer.getLong(record), buffer.getLong(record + 8),
+                        buffer.getLong(record + 16));
+            }
+            record += RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Записывает интервалы ключа в блок, который должен их вместить.
+     */
+    void write(
+            long block,
+            PriceIntervals intervals)
+    {
+        ByteBuffer buffer = buffer(block);
+        int offset = offset(block);
+        buffer.putInt(offset, intervals.size());
+        buffer.putInt(offset + 8, intervals.getCollidedCount());
+
+        int record = offset + HEADER_SIZE;
+        for (int i = 0; i < intervals.size(); i++)
+        {
+            buffer.putLong(record, intervals.getBegin(i));
+            buffer.putLong(record + 8, intervals.getEnd(i));
+            buffer.putLong(record + 16, intervals.getValue(i));
+            record += RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Возвращает общий размер выделенных кусков в байтах.
+     */
+    long getReservedMemory()
+    {
+        return (long) chunks.size() * chunkSize;
+    }
+
+    /**
+     * Возвращает размер занятых блоков в байтах.
+     */
+    long getUsedMemory()
+    {
+        return usedMemory;
+    }
+
+    /**
+     * Возвращает размер свободных блоков, ожидающих повторного выделения, в байтах.
+     */
+    long getFreeMemory()
+    {
+        return freeMemory;
+    }
+
+    long getBlockCount()
+    {
+        return blockCount;
+    }
+
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Освобождает все куски.
+     * <br>
+     * Память прямых буферов освобождается сразу, если JDK это позволяет, иначе - сборщиком
+     * мусора вместе с буферами. После закрытия дескрипторы блоков недействительны.
+     */
+    @Override
+    public void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+
+        closed = true;
+        for (ByteBuffer buffer : chunks)
+        {
+            release(buffer);
+        }
+        chunks.clear();
+        chunk = null;
+        usedMemory = 0;
+        freeMemory = 0;
+        blockCount = 0;
+    }
+
+    /**
+     * Возвращает наименьший класс размера, вмещающий заданное количество записей.
+     */
+    static int sizeClassFor(
+            int capacity)
+    {
+        return capacity <= 2 ? 0 : 31 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    static int capacityOf(
+            int sizeClass)
+    {
+        return 2 << sizeClass;
+    }
+
+    private static int blockSize(
+            int sizeClass)
+    {
+        return HEADER_SIZE + capacityOf(sizeClass) * RECORD_SIZE;
+    }
+
+    private int sizeClass(
+            long block)
+    {
+        return buffer(block).getInt(offset(block) + 4);
+    }
+
+    private ByteBuffer buffer(
+            long block)
+    {
+        return chunks.get((int) (block >>> 32));
+    }
+
+    private static int offset(
+            long block)
+    {
+        return (int) block;
+    }
+
+    private static int recordOffset(
+            long block,
+            int index)
+    {
+        return offset(block) + HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Освобождает память прямого буфера или отображение файла, не дожидаясь сборщика мусора.
+     * <br>
+     * Использует {@code sun.misc.Unsafe.invokeCleaner} (Java 9+) или очиститель буфера (Java 8);
+     * если ни то, ни другое недоступно, память освободит сборщик мусора. После освобождения
+     * обращение к буферу недопустимо.
+     */
+    static void release(
+            ByteBuffer buffer)
+    {
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try
+            {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            }
+            catch (NoSuchMethodException e)
+            {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                {
+                    Method clean = cleaner.getClass().getMethod("clean");
+                    clean.setAccessible(true);
+                    clean.invoke(cleaner);
+                }
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            // память освободит сборщик мусора
+        }
+    }
+}
@@ -0,0 +1,601 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен, хранящая интервалы вне кучи.
+ * <br>
+ * Интервалы каждого ключа лежат одним блоком записей фиксированной ширины в прямых буферах
+ * распределителя {@link OffHeapIntervalSlab}, а в куче остаются только словарь кодов товаров
+ * и несколько примитивных массивов по числу ключей: упакованные ключи ({@link PackedPriceKeys})
+ * ищутся в {@link LongIntHashMap} и получают плотные номера, по которым хранятся дескрипторы
+ * блоков. Поэтому занятость кучи и работа сборщика мусора не зависят от количества интервалов.
+ * <br>
+ * При применении порции цены группируются по ключам так же, как в {@link CompactPriceBook};
+ * интервалы каждого затронутого ключа переносятся в многоразовый буфер в куче, объединяются
+ * с его частью порции тем же кодом ({@link PriceIntervals}) и записываются обратно. Блок, из
+ * которого интервалы выросли или в котором их стало вчетверо меньше емкости, заменяется блоком
+ * подходящего класса размера, а прежний блок возвращается распределителю для повторного
+ * использования. Правила объединения и поиска те же, что и у {@link CompactPriceBook}.
+ * <br>
+ * Книга занимает память до вызова {@link #close()}, после которого ее нельзя использовать.
+ * Объем памяти ограничивается при создании; занятость можно узнать методами
+ * {@link #getReservedMemory()}, {@link #getUsedMemory()} и {@link #getFreeMemory()}.
+ * Если памяти не хватило, применение порции прекращается с {@link IllegalStateException}:
+ * ключи, объединенные до этого, остаются измененными, остальные - прежними.
+ * <br>
+ * Сроки действия хранятся с точностью до миллисекунды (см. {@link PriceTimes}),
+ * идентификаторы цен не сохраняются. Сроки действия и значения цен не должны быть {@code null}.
+ * Книга не является потокобезопасной.
+ *
+ * @author Valery Skavysh.
+ */
+public class OffHeapPriceBook
+implements AutoCloseable
+{
+    /**
+     * Размер куска памяти по умолчанию, 16 Мбайт.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+    /**
+     * Предел памяти по умолчанию - без ограничения.
+     */
+    public static final long DEFAULT_MAX_MEMORY = Long.MAX_VALUE;
+
+    private static final long NO_BLOCK = -1;
+
+    private final OffHeapIntervalSlab slab;
+
+    private final ProductCodes productCodes = new ProductCodes();
+
+    private final LongIntHashMap packedKeyIds = new LongIntHashMap();
+
+    private HashMap<PriceKey, Integer> unpackedKeyIds;
+
+    /**
+     * Ключи по номерам: упакованный ключ или 0 для ключа из {@link #unpackedKeys}.
+     */
+    private long[] keys = new long[16];
+
+    private HashMap<Integer, PriceKey> unpackedKeys;
+
+    /**
+     * Дескрипторы блоков по номерам ключей.
+     */
+    private long[] blocks = new long[16];
+
+    private int keyCount;
+
+    private long intervalCount;
+
+    private int[] keyBatchHeads = new int[16];
+
+    private int[] keyBatchTails = new int[16];
+
+    private int[] batchKeyIds = new int[16];
+
+    private int batchKeyCount;
+
+    private long[] batchBegins = new long[16];
+
+    private long[] batchEnds = new long[16];
+
+    private long[] batchValues = new long[16];
+
+    private int[] batchNext = new int[16];
+
+    private int batchSize;
+
+    private final PriceIntervals intervals = new PriceIntervals();
+
+    private final IntervalBuffer keyBatch = new IntervalBuffer();
+
+    private final IntervalBuffer keyBatchScratch = new IntervalBuffer();
+
+    private final IntervalBuffer sweepBuffer = new IntervalBuffer();
+
+    /**
+     * Создает пустую книгу цен с размером куска и пределом памяти по умолчанию.
+     */
+    public OffHeapPriceBook()
+    {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Создает пустую книгу цен.
+     *
+     * @param chunkSize
+     *        размер куска памяти в байтах; ограничивает и наибольшее количество интервалов
+     *        одного ключа (примерно {@code chunkSize / 24}, округленное вниз до степени двойки).
+     * @param maxMemory
+     *        предел памяти вне кучи в байтах.
+     */
+    public OffHeapPriceBook(
+            int chunkSize,
+            long maxMemory)
+    {
+        slab = new OffHeapIntervalSlab(chunkSize, maxMemory);
+        Arrays.fill(keyBatchHeads, -1);
+    }
+
+    /**
+     * Создает книгу цен с размером куска и пределом памяти по умолчанию и заполняет ее
+     * имеющимися ценами.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public OffHeapPriceBook(
+            Collection<Price> prices)
+    {
+        this(prices, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_MEMORY);
+    }
+
+    /**
+     * Создает книгу цен и заполняет ее имеющимися ценами.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     * Если цены не поместились, выделенная память освобождается до выброса исключения.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     * @param chunkSize
+     *        размер куска памяти в байтах (см. {@link #OffHeapPriceBook(int, long)}).
+     * @param maxMemory
+     *        предел памяти вне кучи в байтах.
+     * @throws IllegalStateException
+     *         если не хватило памяти.
+     */
+    public OffHeapPriceBook(
+            Collection<Price> prices,
+            int chunkSize,
+            long maxMemory)
+    {
+        this(chunkSize, maxMemory);
+
+        try
+        {
+            groupBatch(prices);
+            for (int k = 0; k < batchKeyCount; k++)
+            {
+                int keyId = batchKeyIds[k];
+                load(keyId);
+                for (int i = keyBatchHeads[keyId]; i >= 0; i = batchNext[i])
+                {
+                    intervals.add(batchBegins[i], batchEnds[i], batchValues[i]);
+                }
+                store(keyId);
+            }
+        }
+        catch (Throwable e)
+        {
+            slab.close();
+            throw e;
+        }
+        finally
+        {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Применяет к книге порцию новых цен.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     * @throws IllegalStateException
+     *         если книга закрыта или не хватило памяти.
+     *
+     * @see CompactPriceBook#apply(Collection)
+     */
+    public void apply(
+            Collection<Price> newPrices)
+    {
+        ensureOpen();
+        try
+        {
+            groupBatch(newPrices);
+            for (int k = 0; k < batchKeyCount; k++)
+            {
+                int keyId = batchKeyIds[k];
+                keyBatch.clear();
+                for (int i = keyBatchHeads[keyId]; i >= 0; i = batchNext[i])
+                {
+                    keyBatch.append(batchBegins[i], batchEnds[i], batchValues[i]);
+                }
+
+                load(keyId);
+                intervals.mergeBatch(keyBatch, keyBatchScratch, sweepBuffer);
+                store(keyId);
+            }
+        }
+        finally
+        {
+            clearBatch();
+        }
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        ensureOpen();
+
+        long block = findBlock(productCode, number, depart);
+        if (block == NO_BLOCK)
+        {
+            return CompactPriceBook.NO_VALUE;
+        }
+
+        int index = slab.indexAt(block, epochMillis);
+
+        return index < 0 ? CompactPriceBook.NO_VALUE : slab.getValue(block, index);
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        ensureOpen();
+
+        long block = findBlock(productCode, number, depart);
+        if (block == NO_BLOCK)
+        {
+            return null;
+        }
+
+        int index = slab.indexAt(block, PriceTimes.toEpochMillis(time));
+
+        return index < 0 ? null : createPrice(new PriceKey(productCode, number, depart), block, index);
+    }
+
+    /**
+     * Возвращает все цены книги.
+     *
+     * @return новое множество цен книги.
+     */
+    public Set<Price> getPrices()
+    {
+        ensureOpen();
+
+        Set<Price> prices = new HashSet<>();
+        for (int keyId = 0; keyId < keyCount; keyId++)
+        {
+            long block = blocks[keyId];
+            int size = slab.size(block);
+            if (size > 0)
+            {
+                PriceKey key = getKey(keyId);
+                for (int i = 0; i < size; i++)
+                {
+                    prices.add(createPrice(key, block, i));
+                }
+            }
+        }
+
+        return prices;
+    }
+
+    /**
+     * Возвращает количество интервалов в книге.
+     */
+    public long size()
+    {
+        return intervalCount;
+    }
+
+    /**
+     * Возвращает количество ключей книги.
+     */
+    public int getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * Возвращает объем памяти вне кучи, выделенной книгой, в байтах.
+     */
+    public long getReservedMemory()
+    {
+        return slab.getReservedMemory();
+    }
+
+    /**
+     * Возвращает объем памяти вне кучи, занятой блоками интервалов, в байтах.
+     */
+    public long getUsedMemory()
+    {
+        return slab.getUsedMemory();
+    }
+
+    /**
+     * Возвращает объем памяти освобожденных блоков, ожидающих повторного использования, в байтах.
+     */
+    public long getFreeMemory()
+    {
+        return slab.getFreeMemory();
+    }
+
+    /**
+     * Освобождает память вне кучи. Повторный вызов ничего не делает.
+     */
+    @Override
+    public void close()
+    {
+        slab.close();
+    }
+
+    private void ensureOpen()
+    {
+        if (slab.isClosed())
+        {
+            throw new IllegalStateException("Off-heap price book is closed");
+        }
+    }
+
+    /**
+     * Группирует цены порции по ключам с сохранением порядка, создавая недостающие ключи.
+     */
+    private void groupBatch(
+            Collection<Price> prices)
+    {
+        for (Price price : prices)
+        {
+            int keyId = getKeyId(price.getProductCode(), price.getNumber(), price.getDepart());
+            if (batchSize == batchBegins.length)
+            {
+                int capacity = batchSize << 1;
+                batchBegins = Arrays.copyOf(batchBegins, capacity);
+                batchEnds = Arrays.copyOf(batchEnds, capacity);
+                batchValues = Arrays.copyOf(batchValues, capacity);
+                batchNext = Arrays.copyOf(batchNext, capacity);
+            }
+
+            batchBegins[batchSize] = PriceTimes.toEpochMillis(price.getBegin());
+            batchEnds[batchSize] = PriceTimes.toEpochMillis(price.getEnd());
+            batchValues[batchSize] = price.getValue();
+            batchNext[batchSize] = -1;
+
+            if (keyBatchHeads[keyId] < 0)
+            {
+                keyBatchHeads[keyId] = batchSize;
+                if (batchKeyCount == batchKeyIds.length)
+                {
+                    batchKeyIds = Arrays.copyOf(batchKeyIds, batchKeyCount << 1);
+                }
+                batchKeyIds[batchKeyCount++] = keyId;
+            }
+            else
+            {
+                batchNext[keyBatchTails[keyId]] = batchSize;
+            }
+            keyBatchTails[keyId] = batchSize;
+
+            batchSize++;
+        }
+    }
+
+    private void clearBatch()
+    {
+        for (int k = 0; k < batchKeyCount; k++)
+        {
+            keyBatchHeads[batchKeyIds[k]] = -1;
+        }
+
+        batchKeyCount = 0;
+        batchSize = 0;
+    }
+
+    /**
+     * Переносит интервалы ключа в буфер {@link #intervals}.
+     */
+    private void load(
+            int keyId)
+    {
+        intervals.clear();
+        if (blocks[keyId] != NO_BLOCK)
+        {
+            slab.read(blocks[keyId], intervals);
+        }
+    }
+
+    /**
+     * Записывает буфер {@link #intervals} в блок ключа, заменяя блок, если он мал
+     * или слишком велик.
+     * <br>
+     * Новый блок выделяется до освобождения прежнего, поэтому при нехватке памяти
+     * интервалы ключа остаются прежними.
+     */
+    private void store(
+            int keyId)
+    {
+        long block = blocks[keyId];
+        int size = intervals.size();
+        int previousSize = 0;
+        if (block == NO_BLOCK || size > slab.capacity(block)
+                || slab.capacity(block) > 2 && size <= slab.capacity(block) / 4)
+        {
+            long newBlock = slab.allocate(size);
+            if (block != NO_BLOCK)
+            {
+                previousSize = slab.size(block);
+                slab.free(block);
+            }
+            block = newBlock;
+            blocks[keyId] = block;
+        }
+        else
+        {
+            previousSize = slab.size(block);
+        }
+
+        slab.write(block, intervals);
+        intervalCount += size - previousSize;
+    }
+
+    private long findBlock(
+            String productCode,
+            int number,
+            int depart)
+    {
+        int keyId = findKeyId(productCode, number, depart);
+
+        return keyId < 0 ? NO_BLOCK : blocks[keyId];
+    }
+
+    private int findKeyId(
+            String productCode,
+            int number,
+            int depart)
+    {
+        if (productCode != null && PackedPriceKeys.fits(number, depart))
+        {
+            int productId = productCodes.find(productCode);
+            if (productId >= 0)
+            {
+                return packedKeyIds.get(PackedPriceKeys.pack(productId, number, depart));
+            }
+
+            if (productCodes.size() <= PackedPriceKeys.MAX_PRODUCT_ID)
+            {
+                return -1;
+            }
+        }
+
+        Integer keyId = unpackedKeyIds == null ? null : unpackedKeyIds.get(new PriceKey(productCode, number, depart));
+
+        return keyId == null ? -1 : keyId;
+    }
+
+    /**
+     * Возвращает номер ключа, создавая ключ при отсутствии.
+     * <br>
+     * Ключи хранятся так же, как в {@link PriceKeyMap}: редкие ключи, не помещающиеся
+     * в упакованное представление, - в обычной карте по {@link PriceKey}.
+     */
+    private int getKeyId(
+            String productCode,
+            int number,
+            int depart)
+    {
+        int keyId = findKeyId(productCode, number, depart);
+        if (keyId >= 0)
+        {
+            return keyId;
+        }
+
+        keyId = keyCount;
+        ensureKeyCapacity(keyId + 1);
+
+        long packedKey = 0;
+        if (productCode != null && PackedPriceKeys.fits(number, depart)
+                && (productCodes.find(productCode) >= 0 || productCodes.size() <= PackedPriceKeys.MAX_PRODUCT_ID))
+        {
+            packedKey = PackedPriceKeys.pack(productCodes.intern(productCode), number, depart);
+            packedKeyIds.put(packedKey, keyId);
+        }
+        else
+        {
+            PriceKey key = new PriceKey(productCode, number, depart);
+            if (unpackedKeyIds == null)
+            {
+                unpackedKeyIds = new HashMap<>();
+                unpackedKeys = new HashMap<>();
+            }
+            unpackedKeyIds.put(key, keyId);
+            unpackedKeys.put(keyId, key);
+        }
+
+        keys[keyId] = packedKey;
+        blocks[keyId] = NO_BLOCK;
+        keyBatchHeads[keyId] = -1;
+        keyCount++;
+
+        return keyId;
+    }
+
+    private void ensureKeyCapacity(
+            int capacity)
+    {
+        if (capacity > keys.length)
+        {
+            int newCapacity = keys.length << 1;
+            keys = Arrays.copyOf(keys, newCapacity);
+            blocks = Arrays.copyOf(blocks, newCapacity);
+            keyBatchHeads = Arrays.copyOf(keyBatchHeads, newCapacity);
+            keyBatchTails = Arrays.copyOf(keyBatchTails, newCapacity);
+        }
+    }
+
+    private PriceKey getKey(
+            int keyId)
+    {
+        long packedKey = keys[keyId];
+        if (packedKey == 0)
+        {
+            return unpackedKeys.get(keyId);
+        }
+
+        return new PriceKey(productCodes.getCode(PackedPriceKeys.productId(packedKey)),
+                PackedPriceKeys.number(packedKey), PackedPriceKeys.depart(packedKey));
+    }
+
+    private Price createPrice(
+            PriceKey key,
+            long block,
+            int index)
+    {
+        Price price = new Price();
+        price.setProductCode(key.getProductCode());
+        price.setNumber(key.getNumber());
+        price.setDepart(key.getDepart());
+        price.setBegin(PriceTimes.fromEpochMillis(slab.getBegin(block, index)));
+        price.setEnd(PriceTimes.fromEpochMillis(slab.getEnd(block, index)));
+        price.setValue(slab.getValue(block, index));
+
+        return price;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.pricelist.test.util;
+
+/**
+ * Утилитный класс для упаковки ключа цены в одно примитивное значение {@code long}.
+ * <br>
+ * Старшие 24 бита занимает номер кода товара в словаре {@link ProductCodes}, увеличенный
+ * на единицу, следующие 16 бит - номер цены, младшие 24 бита - отдел. Номер цены и отдел
+ * хранятся в дополнительном коде, поэтому допустимы и отрицательные значения.
+ * Упакованный ключ никогда не равен нулю.
+ *
+ * @author Valery Skavysh.
+ */
+final class PackedPriceKeys
+{
+    static final int MAX_PRODUCT_ID = (1 << 23) - 2;
+
+    private static final int NUMBER_BITS = 16;
+
+    private static final int DEPART_BITS = 24;
+
+    private static final int PRODUCT_ID_SHIFT = NUMBER_BITS + DEPART_BITS;
+
+    private PackedPriceKeys()
+    {
+    }
+
+    /**
+     * Проверяет, что номер цены и отдел помещаются в упакованный ключ.
+     */
+    static boolean fits(
+            int number,
+            int depart)
+    {
+        return number >= Short.MIN_VALUE && number <= Short.MAX_VALUE
+                && depart >= -(1 << (DEPART_BITS - 1)) && depart < 1 << (DEPART_BITS - 1);
+    }
+
+    /**
+     * Упаковывает ключ.
+     *
+     * @throws IllegalArgumentException
+     *         если часть ключа не помещается в отведенные ей биты.
+     */
+    static long pack(
+            int productId,
+            int number,
+            int depart)
+    {
+        if (productId < 0 || productId > MAX_PRODUCT_ID || !fits(number, depart))
+        {
+            throw new IllegalArgumentException(String.format(
+                    "Price key is out of packed range: product id %d, number %d, depart %d",
+                    productId, number, depart));
+        }
+
+        return (long) (productId + 1) << PRODUCT_ID_SHIFT
+                | (long) (number & 0xFFFF) << DEPART_BITS
+                | depart & 0xFFFFFFL;
+    }
+
+    static int productId(
+            long key)
+    {
+        return (int) (key >>> PRODUCT_ID_SHIFT) - 1;
+    }
+
+    static int number(
+            long key)
+    {
+        return (short) (key >>> DEPART_BITS);
+    }
+
+    static int depart(
+            long key)
+    {
+        return (int) (key << (64 - DEPART_BITS) >> (64 - DEPART_BITS));
+    }
+}
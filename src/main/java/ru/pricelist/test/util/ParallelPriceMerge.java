@@ -0,0 +1,207 @@
+package ru.pricelist.test.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Параллельное объединение цен, разбитых на части по хешу ключа.
+ * <br>
+ * Цены разных ключей объединяются независимо, поэтому обе коллекции разбиваются
+ * на части по {@link PriceKey#hashCode()}, каждая часть объединяется отдельной
+ * книгой {@link PriceBook}, а результаты частей не сливаются в общее множество.
+ * Порядок цен одного ключа внутри части сохраняется, поэтому результат совпадает
+ * с результатом {@link Prices#merge(Collection, Collection)} и на пересекающихся новых ценах,
+ * в том числе на необъединенных новых ценах с одинаковым началом срока действия.
+ *
+ * @author Valery Skavysh.
+ */
+final class ParallelPriceMerge
+{
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    private static final int MIN_CHUNK_SIZE = 4096;
+
+    private ParallelPriceMerge()
+    {
+    }
+
+    static Set<Price> merge(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices,
+            ForkJoinPool pool)
+    {
+        return pool.invoke(new MergeTask(
+                oldPrices.toArray(new Price[0]),
+                newPrices.toArray(new Price[0]),
+                pool.getParallelism() * PARTITIONS_PER_THREAD));
+    }
+
+    private static int partitionOf(
+            Price price,
+            int partitionCount)
+    {
+        return (PriceKey.of(price).hashCode() & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    private static List<PartitionTask> createPartitionTasks(
+            Price[] prices,
+            int partitionCount,
+            int chunkCount)
+    {
+        List<PartitionTask> tasks = new ArrayList<>(chunkCount);
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, (prices.length + chunkCount - 1) / chunkCount);
+        for (int from = 0; from < prices.length; from += chunkSize)
+        {
+            tasks.add(new PartitionTask(prices, from, Math.min(prices.length, from + chunkSize), partitionCount));
+        }
+
+        return tasks;
+    }
+
+    private static List<Price> gather(
+            List<PartitionTask> partitionTasks,
+            int partition)
+    {
+        int size = 0;
+        for (PartitionTask task : partitionTasks)
+        {
+            size += task.getRawResult().get(partition).size();
+        }
+
+        List<Price> prices = new ArrayList<>(size);
+        for (PartitionTask task : partitionTasks)
+        {
+            prices.addAll(task.getRawResult().get(partition));
+        }
+
+        return prices;
+    }
+
+    private static final class MergeTask
+    extends RecursiveTask<Set<Price>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Price[] oldPrices;
+
+        private final Price[] newPrices;
+
+        private final int partitionCount;
+
+        private MergeTask(
+                Price[] oldPrices,
+                Price[] newPrices,
+                int partitionCount)
+        {
+            this.oldPrices = oldPrices;
+            this.newPrices = newPrices;
+            this.partitionCount = partitionCount;
+        }
+
+        @Override
+        protected Set<Price> compute()
+        {
+            List<PartitionTask> oldPartitionTasks = createPartitionTasks(oldPrices, partitionCount, partitionCount);
+            List<PartitionTask> newPartitionTasks = createPartitionTasks(newPrices, partitionCount, partitionCount);
+
+            List<PartitionTask> partitionTasks = new ArrayList<>(oldPartitionTasks);
+            partitionTasks.addAll(newPartitionTasks);
+            invokeAll(partitionTasks);
+
+            List<PartitionMergeTask> mergeTasks = new ArrayList<>(partitionCount);
+            for (int partition = 0; partition < partitionCount; partition++)
+            {
+                mergeTasks.add(new PartitionMergeTask(oldPartitionTasks, newPartitionTasks, partition));
+            }
+            invokeAll(mergeTasks);
+
+            List<Set<Price>> partitionPrices = new ArrayList<>(partitionCount);
+            for (PartitionMergeTask task : mergeTasks)
+            {
+                partitionPrices.add(task.getRawResult());
+            }
+
+            return new ConcatenatedSet<>(partitionPrices);
+        }
+    }
+
+    private static final class PartitionTask
+    extends RecursiveTask<List<List<Price>>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Price[] prices;
+
+        private final int from;
+
+        private final int to;
+
+        private final int partitionCount;
+
+        private PartitionTask(
+                Price[] prices,
+                int from,
+                int to,
+                int partitionCount)
+        {
+            this.prices = prices;
+            this.from = from;
+            this.to = to;
+            this.partitionCount = partitionCount;
+        }
+
+        @Override
+        protected List<List<Price>> compute()
+        {
+            List<List<Price>> partitions = new ArrayList<>(partitionCount);
+            for (int partition = 0; partition < partitionCount; partition++)
+            {
+                partitions.add(new ArrayList<>());
+            }
+
+            for (int i = from; i < to; i++)
+            {
+                partitions.get(partitionOf(prices[i], partitionCount)).add(prices[i]);
+            }
+
+            return partitions;
+        }
+    }
+
+    private static final class PartitionMergeTask
+    extends RecursiveTask<Set<Price>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<PartitionTask> oldPartitionTasks;
+
+        private final List<PartitionTask> newPartitionTasks;
+
+        private final int partition;
+
+        private PartitionMergeTask(
+                List<PartitionTask> oldPartitionTasks,
+                List<PartitionTask> newPartitionTasks,
+                int partition)
+        {
+            this.oldPartitionTasks = oldPartitionTasks;
+            this.newPartitionTasks = newPartitionTasks;
+            this.partition = partition;
+        }
+
+        @Override
+        protected Set<Price> compute()
+        {
+            PriceBook priceBook = new PriceBook(gather(oldPartitionTasks, partition));
+            priceBook.apply(gather(newPartitionTasks, partition));
+
+            return priceBook.getPrices();
+        }
+    }
+}
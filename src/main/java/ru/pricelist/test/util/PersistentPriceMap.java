@@ -0,0 +1,416 @@
+package ru.pricelist.test.util;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Неизменяемая карта интервалов цен по ключам с общей структурой версий.
+ * <br>
+ * Карта - это префиксное дерево по хешу ключа (hash array mapped trie) с ветвлением 32:
+ * изменение ключа копирует только путь от корня к его листу, а остальные узлы и интервалы
+ * остальных ключей новая версия делит с прежней. Ключи с одинаковым хешем хранятся
+ * в узле коллизий.
+ * <br>
+ * Изменения выполняются через {@link Editor}: узлы, созданные одним редактором,
+ * изменяются им на месте, поэтому порция из многих ключей не копирует один путь многократно.
+ * Узлы, доступные из построенной карты, больше не изменяются.
+ *
+ * @author Valery Skavysh.
+ */
+final class PersistentPriceMap
+{
+    static final PersistentPriceMap EMPTY = new PersistentPriceMap(new BitmapNode(null, 0, new Object[0]), 0);
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentPriceMap(
+            Node root,
+            int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    PriceIntervals get(
+            PriceKey key)
+    {
+        return root.get(0, hash(key), key);
+    }
+
+    void forEach(
+            BiConsumer<PriceKey, PriceIntervals> action)
+    {
+        root.forEach(action);
+    }
+
+    /**
+     * Создает редактора новой версии карты на основе этой.
+     */
+    Editor edit()
+    {
+        return new Editor(this);
+    }
+
+    private static int hash(
+            PriceKey key)
+    {
+        int hash = key.hashCode();
+
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Редактор версии карты. Не является потокобезопасным.
+     */
+    static final class Editor
+    {
+        private Object edit = new Object();
+
+        private Node root;
+
+        private int size;
+
+        private final boolean[] addedLeaf = new boolean[1];
+
+        private Editor(
+                PersistentPriceMap map)
+        {
+            root = map.root;
+            size = map.size;
+        }
+
+        PriceIntervals get(
+                PriceKey key)
+        {
+            return root.get(0, hash(key), key);
+        }
+
+        /**
+         * Связывает ключ с интервалами.
+         *
+         * @param key
+         *        неизменяемый ключ; образцы поиска не допускаются.
+         * @param intervals
+         *        интервалы, которые больше не будут изменяться.
+         */
+        void put(
+                PriceKey key,
+                PriceIntervals intervals)
+        {
+            if (edit == null)
+            {
+                throw new IllegalStateException("Map editor is already built");
+            }
+
+            addedLeaf[0] = false;
+            root = root.put(edit, 0, hash(key), key, intervals, addedLeaf);
+            if (addedLeaf[0])
+            {
+                size++;
+            }
+        }
+
+        /**
+         * Завершает редактирование и возвращает новую версию карты.
+         */
+        PersistentPriceMap build()
+        {
+            edit = null;
+
+            return new PersistentPriceMap(root, size);
+        }
+    }
+
+    private abstract static class Node
+    {
+        /**
+         * Метка редактора, создавшего узел; только он может изменять узел на месте.
+         */
+        final Object edit;
+
+        Node(
+                Object edit)
+        {
+            this.edit = edit;
+        }
+
+        abstract PriceIntervals get(
+                int shift,
+                int hash,
+                PriceKey key);
+
+        abstract Node put(
+                Object edit,
+                int shift,
+                int hash,
+                PriceKey key,
+                PriceIntervals intervals,
+                boolean[] addedLeaf);
+
+        abstract void forEach(
+                BiConsumer<PriceKey, PriceIntervals> action);
+    }
+
+    /**
+     * Узел с битовой картой занятых ветвей и плотным массивом пар:
+     * ключ и интервалы либо {@code null} и дочерний узел.
+     */
+    private static final class BitmapNode
+    extends Node
+    {
+        private int bitmap;
+
+        private Object[] array;
+
+        private BitmapNode(
+                Object edit,
+                int bitmap,
+                Object[] array)
+        {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        PriceIntervals get(
+                int shift,
+                int hash,
+                PriceKey key)
+        {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+            {
+                return null;
+            }
+
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object keyOrNull = array[index];
+            Object valueOrNode = array[index + 1];
+            if (keyOrNull == null)
+            {
+                return ((Node) valueOrNode).get(shift + BITS, hash, key);
+            }
+
+            return key.equals(keyOrNull) ? (PriceIntervals) valueOrNode : null;
+        }
+
+        @Override
+        Node put(
+                Object edit,
+                int shift,
+                int hash,
+                PriceKey key,
+                PriceIntervals intervals,
+                boolean[] addedLeaf)
+        {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0)
+            {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = intervals;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+                addedLeaf[0] = true;
+
+                if (edit != null && edit == this.edit)
+                {
+                    bitmap |= bit;
+                    array = newArray;
+
+                    return this;
+                }
+
+                return new BitmapNode(edit, bitmap | bit, newArray);
+            }
+
+            Object keyOrNull = array[index];
+            Object valueOrNode = array[index + 1];
+            if (keyOrNull == null)
+            {
+                Node child = ((Node) valueOrNode).put(edit, shift + BITS, hash, key, intervals, addedLeaf);
+
+                return child == valueOrNode ? this : set(edit, index, null, child);
+            }
+
+            if (key.equals(keyOrNull))
+            {
+                return valueOrNode == intervals ? this : set(edit, index, keyOrNull, intervals);
+            }
+
+            addedLeaf[0] = true;
+
+            return set(edit, index, null, createNode(edit, shift + BITS,
+                    (PriceKey) keyOrNull, (PriceIntervals) valueOrNode, hash, key, intervals));
+        }
+
+        @Override
+        void forEach(
+                BiConsumer<PriceKey, PriceIntervals> action)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (array[i] == null)
+                {
+                    ((Node) array[i + 1]).forEach(action);
+                }
+                else
+                {
+                    action.accept((PriceKey) array[i], (PriceIntervals) array[i + 1]);
+                }
+            }
+        }
+
+        private BitmapNode set(
+                Object edit,
+                int index,
+                Object keyOrNull,
+                Object valueOrNode)
+        {
+            BitmapNode node = edit != null && edit == this.edit
+                    ? this
+                    : new BitmapNode(edit, bitmap, array.clone());
+            node.array[index] = keyOrNull;
+            node.array[index + 1] = valueOrNode;
+
+            return node;
+        }
+
+        private static Node createNode(
+                Object edit,
+                int shift,
+                PriceKey key1,
+                PriceIntervals intervals1,
+                int hash2,
+                PriceKey key2,
+                PriceIntervals intervals2)
+        {
+            int hash1 = hash(key1);
+            if (hash1 == hash2)
+            {
+                return new CollisionNode(edit, hash1, new Object[] {key1, intervals1, key2, intervals2});
+            }
+
+            boolean[] addedLeaf = new boolean[1];
+
+            return new BitmapNode(edit, 0, new Object[0])
+                    .put(edit, shift, hash1, key1, intervals1, addedLeaf)
+                    .put(edit, shift, hash2, key2, intervals2, addedLeaf);
+        }
+    }
+
+    /**
+     * Узел ключей с одинаковым хешем.
+     */
+    private static final class CollisionNode
+    extends Node
+    {
+        private final int hash;
+
+        private Object[] array;
+
+        private CollisionNode(
+                Object edit,
+                int hash,
+                Object[] array)
+        {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        PriceIntervals get(
+                int shift,
+                int hash,
+                PriceKey key)
+        {
+            int index = indexOf(key);
+
+            return index < 0 ? null : (PriceIntervals) array[index + 1];
+        }
+
+        @Override
+        Node put(
+                Object edit,
+                int shift,
+                int hash,
+                PriceKey key,
+                PriceIntervals intervals,
+                boolean[] addedLeaf)
+        {
+            if (hash != this.hash)
+            {
+                return new BitmapNode(edit, 1 << ((this.hash >>> shift) & MASK), new Object[] {null, this})
+                        .put(edit, shift, hash, key, intervals, addedLeaf);
+            }
+
+            int index = indexOf(key);
+            if (index >= 0)
+            {
+                if (array[index + 1] == intervals)
+                {
+                    return this;
+                }
+
+                CollisionNode node = edit != null && edit == this.edit
+                        ? this
+                        : new CollisionNode(edit, hash, array.clone());
+                node.array[index + 1] = intervals;
+
+                return node;
+            }
+
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = intervals;
+            addedLeaf[0] = true;
+
+            if (edit != null && edit == this.edit)
+            {
+                array = newArray;
+
+                return this;
+            }
+
+            return new CollisionNode(edit, hash, newArray);
+        }
+
+        @Override
+        void forEach(
+                BiConsumer<PriceKey, PriceIntervals> action)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                action.accept((PriceKey) array[i], (PriceIntervals) array[i + 1]);
+            }
+        }
+
+        private int indexOf(
+                PriceKey key)
+        {
+            for (int i = 0; i < array.length; i += 2)
+            {
+                if (key.equals(array[i]))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ru.pricelist.test.util;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Архив цен, вытесненных из книги {@link PriceBook} политикой хранения
+ * {@link PriceRetentionPolicy}.
+ * <br>
+ * Вызывается в потоке, изменяющем книгу, для каждой вытесненной цены. Та же цена может
+ * поступить в архив повторно, если ее снова прислали в книгу уже устаревшей.
+ *
+ * @author Valery Skavysh.
+ */
+@FunctionalInterface
+public interface PriceArchive
+{
+    /**
+     * Принимает цену, срок действия которой закончился не позже отметки хранения.
+     *
+     * @param price
+     *        вытесненная цена.
+     */
+    void archive(
+            Price price);
+}
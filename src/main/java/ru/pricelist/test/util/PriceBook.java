@@ -0,0 +1,1353 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен, хранящая деревья сроков действия цен между объединениями.
+ * <br>
+ * {@link Prices#merge(Collection, Collection)} на каждом вызове заново строит индекс
+ * по всем старым ценам. Книга строит его один раз, после чего применение порции
+ * из m новых цен стоит O(m · log n) вместо O(n · log n).
+ * <br>
+ * Правила разрешения конфликтов те же, что и у {@link Prices#merge(Collection, Collection)}:
+ * цены порции, которые не удалось объединить с имеющимися, попадают в книгу
+ * после обработки всей порции. Такая цена, начало срока действия которой совпало с началом
+ * цены дерева ключа, хранится рядом с деревом: как и в результате {@link Prices#merge(Collection, Collection)},
+ * она выдается среди цен книги, но в последующих объединениях и в поиске действующей цены
+ * не участвует.
+ * <br>
+ * Книга изменяет переданные ей экземпляры цен и не является потокобезопасной.
+ * В режиме копирования при записи переданные экземпляры не изменяются: цена, срок действия
+ * которой меняется, заменяется в книге копией, а неизмененные цены выдаются как есть.
+ * Изменения можно отслеживать слушателем {@link PriceMergeListener}, а исходы объединения
+ * и длительность этапов - статистикой {@link PriceMergeStatistics}.
+ * <br>
+ * Для каждого ключа книга поддерживает отпечаток содержимого - сумму отпечатков сроков
+ * действия и значений его цен, не зависящую от порядка цен. Если цены ключа не пересекаются,
+ * а новые цены ключа в порции совпадают с имеющимися по количеству и отпечатку, порция
+ * ничего не изменит, и ключ пропускается без объединения. Так повторная пересылка
+ * неизменного прейскуранта обходится одним проходом по порции.
+ * <br>
+ * С политикой хранения {@link PriceRetentionPolicy} книга вытесняет устаревшие цены,
+ * срок действия которых закончился не позже отметки хранения, после объединения: при применении
+ * порции - из деревьев затронутых ключей, так что новые цены объединяются с теми же ценами,
+ * что и без политики. Остальные ключи, в том числе после заполнения книги, очищаются методом
+ * {@link #prune()}. Для вытеснения каждое дерево ведет индекс своих цен по концу срока действия,
+ * и очистка ключа обходится просмотром только устаревших цен.
+ * <br>
+ * Для запросов по отделу и по номеру с отделом книга ведет индексы ключей, пополняемые
+ * при появлении ключа (см. {@link #pricesBetween(int, LocalDateTime, LocalDateTime)}),
+ * а для запросов предстоящих изменений - упорядоченный по времени индекс границ сроков
+ * действия всех ключей с точностью до часа (см. {@link #changesBetween(LocalDateTime, LocalDateTime)}).
+ * Объединение только отмечает ключи, цены которых изменились; индекс границ обновляется
+ * по отмеченным ключам при следующем запросе изменений, так что его ведение почти
+ * не замедляет объединение.
+ *
+ * @see Prices
+ *
+ * @author Valery Skavysh.
+ */
+public class PriceBook
+{
+    /**
+     * Упорядочивает цены дерева по началу срока действия.
+     * <br>
+     * Границы поиска сравниваются своим моментом, а цена с границей конца -
+     * концом срока действия. Сравнение не создает объектов. В режиме копирования
+     * при записи цены дерева сравниваются сроками действия их копий.
+     */
+    private final Comparator<Price> priceTreeComparator;
+
+    private final PriceKeyMap<KeyPrices> numberDepartPrices = new PriceKeyMap<>();
+
+    private final PriceMergeListener listener;
+
+    private final PriceMergeStatistics statistics;
+
+    /**
+     * Копии цен дерева с измененным сроком действия в режиме копирования при записи.
+     * <br>
+     * Дерево продолжает хранить исходный экземпляр, поэтому замена цены копией не меняет
+     * его структуру, а все чтения срока действия идут через {@link #current(Price)}.
+     * В обычном режиме - {@code null}.
+     */
+    private final IdentityHashMap<Price, Price> copies;
+
+    private final PriceRetentionPolicy retentionPolicy;
+
+    /**
+     * Деревья цен по отделу и по номеру с отделом ({@link #numberDepartKey(int, int)}).
+     */
+    private final HashMap<Integer, List<KeyPrices>> departIndex = new HashMap<>();
+
+    private final HashMap<Long, List<KeyPrices>> numberDepartIndex = new HashMap<>();
+
+    /**
+     * Индекс границ: деревья, в ценах которых есть граница срока действия в данном часе,
+     * по номеру часа от начала эпохи, и деревья, границы которых изменились после
+     * последнего обновления индекса.
+     */
+    private final TreeMap<Long, Set<KeyPrices>> boundaryHours = new TreeMap<>();
+
+    private final ArrayList<KeyPrices> changedTrees = new ArrayList<>();
+
+    private long skippedKeyCount;
+
+    private long prunedCount;
+
+    /**
+     * Многоразовые границы подмножества цен, пересекающихся с новой ценой.
+     */
+    private final PriceEndBound crossedPricesFrom = new PriceEndBound(null);
+
+    private final PriceBeginBound crossedPricesTo = new PriceBeginBound(null);
+
+    /**
+     * Создает пустую книгу цен.
+     */
+    public PriceBook()
+    {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * Создает книгу цен и заполняет ее имеющимися ценами.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public PriceBook(
+            Collection<Price> prices)
+    {
+        this(prices, null);
+    }
+
+    /**
+     * Создает книгу цен, заполняет ее имеющимися ценами и подключает слушателя изменений.
+     * <br>
+     * Имеющиеся цены, не попавшие в книгу из-за цены с тем же ключом и тем же началом
+     * срока действия, передаются слушателю как удаленные.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     * @param listener
+     *        слушатель изменений или {@code null}.
+     */
+    public PriceBook(
+            Collection<Price> prices,
+            PriceMergeListener listener)
+    {
+        this(prices, listener, null);
+    }
+
+    /**
+     * Создает книгу цен, заполняет ее имеющимися ценами, подключает слушателя изменений
+     * и статистику объединения.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     * @param listener
+     *        слушатель изменений или {@code null}.
+     * @param statistics
+     *        статистика объединения или {@code null}.
+     */
+    public PriceBook(
+            Collection<Price> prices,
+            PriceMergeListener listener,
+            PriceMergeStatistics statistics)
+    {
+        this(prices, listener, statistics, false);
+    }
+
+    /**
+     * Создает книгу цен, заполняет ее имеющимися ценами и выбирает режим изменения цен.
+     * <br>
+     * В режиме копирования при записи книга не изменяет ни имеющиеся, ни новые цены:
+     * слушатель и выдаваемые книгой цены получают копии цен, срок действия которых изменился.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     * @param listener
+     *        слушатель изменений или {@code null}.
+     * @param statistics
+     *        статистика объединения или {@code null}.
+     * @param copyOnWrite
+     *        признак режима копирования при записи.
+     */
+    public PriceBook(
+            Collection<Price> prices,
+            PriceMergeListener listener,
+            PriceMergeStatistics statistics,
+            boolean copyOnWrite)
+    {
+        this(prices, listener, statistics, copyOnWrite, null);
+    }
+
+    /**
+     * Создает книгу цен с политикой хранения истории и заполняет ее имеющимися ценами.
+     * <br>
+     * Устаревшие цены (см. {@link PriceRetentionPolicy}) вытесняются из книги после объединения
+     * с порциями новых цен или методом {@link #prune()} и передаются в архив политики; слушатель
+     * изменений о вытеснении не уведомляется.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     * @param listener
+     *        слушатель изменений или {@code null}.
+     * @param statistics
+     *        статистика объединения или {@code null}.
+     * @param copyOnWrite
+     *        признак режима копирования при записи.
+     * @param retentionPolicy
+     *        политика хранения или {@code null}, если история хранится полностью.
+     */
+    public PriceBook(
+            Collection<Price> prices,
+            PriceMergeListener listener,
+            PriceMergeStatistics statistics,
+            boolean copyOnWrite,
+            PriceRetentionPolicy retentionPolicy)
+    {
+        this.listener = listener;
+        this.statistics = statistics;
+        this.retentionPolicy = retentionPolicy;
+
+        if (copyOnWrite)
+        {
+            copies = new IdentityHashMap<>();
+            priceTreeComparator = (p1, p2) -> compare(current(p1), current(p2));
+        }
+        else
+        {
+            copies = null;
+            priceTreeComparator = PriceBook::compare;
+        }
+
+        long startNanos = statistics == null ? 0 : System.nanoTime();
+        for (Price price : prices)
+        {
+            KeyPrices pricesTree = getPricesTree(price);
+            if (pricesTree.add(price))
+            {
+                pricesTree.fingerprintAdded(price);
+            }
+            else
+            {
+                fireRemoved(price);
+
+                if (statistics != null)
+                {
+                    statistics.countDropped();
+                }
+            }
+        }
+
+        if (statistics != null)
+        {
+            statistics.recordGrouping(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Применяет к книге порцию новых цен.
+     * <br>
+     * Затрагиваются только деревья ключей, встречающихся в порции. Цены порции группируются
+     * по ключам с сохранением порядка; ключ, цены которого порция не изменит
+     * (см. {@link #getSkippedKeyCount()}), пропускается. С политикой хранения после
+     * объединения из деревьев затронутых ключей вытесняются устаревшие цены, а новые цены,
+     * не объединенные с имеющимися и уже устаревшие, сразу передаются в архив.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     *
+     * @see Prices#merge(Collection, Collection)
+     */
+    public void apply(
+            Collection<Price> newPrices)
+    {
+        long startNanos = statistics == null ? 0 : System.nanoTime();
+        LocalDateTime watermark = retentionPolicy == null ? null : retentionPolicy.getWatermark();
+
+        ArrayList<Price> nonMergedNewPrices = new ArrayList<>();
+        ArrayList<KeyPrices> batchTrees = new ArrayList<>();
+        Price[] batchPrices = new Price[newPrices.size()];
+        int[] batchNext = new int[newPrices.size()];
+        try
+        {
+            int batchSize = 0;
+            for (Price newPrice : newPrices)
+            {
+                KeyPrices pricesTree = numberDepartPrices.get(newPrice.getProductCode(), newPrice.getNumber(),
+                        newPrice.getDepart());
+                if (pricesTree == null)
+                {
+                    if (statistics != null)
+                    {
+                        statistics.recordOverlapWidth(0);
+                    }
+
+                    nonMergedNewPrices.add(newPrice);
+                    continue;
+                }
+
+                int index = batchSize++;
+                batchPrices[index] = newPrice;
+                batchNext[index] = -1;
+                if (pricesTree.batchHead < 0)
+                {
+                    pricesTree.batchHead = index;
+                    batchTrees.add(pricesTree);
+                }
+                else
+                {
+                    batchNext[pricesTree.batchTail] = index;
+                }
+                pricesTree.batchTail = index;
+                pricesTree.batchSize++;
+                pricesTree.batchFingerprint += fingerprint(newPrice);
+            }
+
+            for (KeyPrices pricesTree : batchTrees)
+            {
+                if (isBatchUnchanging(pricesTree))
+                {
+                    skippedKeyCount++;
+                    if (statistics != null)
+                    {
+                        statistics.countSkippedKey();
+                    }
+                    continue;
+                }
+
+                boundariesChanged(pricesTree);
+                for (int i = pricesTree.batchHead; i >= 0; i = batchNext[i])
+                {
+                    if (!mergeNewPrice(pricesTree, batchPrices[i]))
+                    {
+                        nonMergedNewPrices.add(batchPrices[i]);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (KeyPrices pricesTree : batchTrees)
+            {
+                pricesTree.clearBatch();
+            }
+        }
+
+        for (Price newPrice : nonMergedNewPrices)
+        {
+            if (watermark != null && PriceRetentionPolicy.isExpired(newPrice, watermark))
+            {
+                pruned(newPrice);
+                continue;
+            }
+
+            KeyPrices pricesTree = getPricesTree(newPrice);
+            if (pricesTree.add(newPrice))
+            {
+                pricesTree.fingerprintAdded(newPrice);
+            }
+            else
+            {
+                pricesTree.collidedAdded(newPrice);
+                boundariesChanged(pricesTree);
+            }
+            fireAdded(newPrice);
+        }
+
+        if (watermark != null)
+        {
+            for (KeyPrices pricesTree : batchTrees)
+            {
+                pruneExpired(pricesTree, watermark);
+            }
+        }
+
+        if (statistics != null)
+        {
+            statistics.countNewPrices(newPrices.size());
+            statistics.countNonMerged(nonMergedNewPrices.size());
+            statistics.recordMerging(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Возвращает количество ключей, пропущенных при применении порций
+     * из-за совпадения отпечатков.
+     *
+     * @return количество пропущенных ключей с создания книги.
+     */
+    public long getSkippedKeyCount()
+    {
+        return skippedKeyCount;
+    }
+
+    /**
+     * Вытесняет устаревшие цены из деревьев всех ключей по политике хранения.
+     * <br>
+     * Применение порции очищает только затронутые ключи; полный проход нужен для ключей,
+     * давно не получавших новых цен, например раз в сутки.
+     *
+     * @return количество вытесненных цен.
+     * @throws IllegalStateException
+     *         если у книги нет политики хранения.
+     */
+    public long prune()
+    {
+        if (retentionPolicy == null)
+        {
+            throw new IllegalStateException("Price book has no retention policy");
+        }
+
+        long startCount = prunedCount;
+        LocalDateTime watermark = retentionPolicy.getWatermark();
+        numberDepartPrices.forEachValue(pricesTree -> pruneExpired(pricesTree, watermark));
+
+        return prunedCount - startCount;
+    }
+
+    /**
+     * Возвращает количество цен, вытесненных политикой хранения.
+     *
+     * @return количество вытесненных цен с создания книги.
+     */
+    public long getPrunedCount()
+    {
+        return prunedCount;
+    }
+
+    /**
+     * Возвращает все цены книги.
+     *
+     * @return новое множество цен книги.
+     */
+    public Set<Price> getPrices()
+    {
+        long startNanos = statistics == null ? 0 : System.nanoTime();
+
+        Set<Price> prices = new HashSet<>();
+        if (copies == null || copies.isEmpty())
+        {
+            numberDepartPrices.forEachValue(pricesTree -> {
+                prices.addAll(pricesTree);
+                prices.addAll(pricesTree.collidedPrices);
+            });
+        }
+        else
+        {
+            numberDepartPrices.forEachValue(pricesTree -> {
+                for (Price price : pricesTree)
+                {
+                    prices.add(current(price));
+                }
+                prices.addAll(pricesTree.collidedPrices);
+            });
+        }
+
+        if (statistics != null)
+        {
+            statistics.recordCollecting(System.nanoTime() - startNanos);
+        }
+
+        return prices;
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     * <br>
+     * Цена действует с начала срока действия включительно до его конца исключительно.
+     * Рассматривается цена, начавшаяся последней не позже заданного момента; из цен
+     * с одинаковым началом это первая попавшая в книгу, остальные хранятся отдельно
+     * и в поиске не участвуют. Поиск выполняется за O(log n) по дереву цен ключа.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return цена книги или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        KeyPrices pricesTree = numberDepartPrices.get(productCode, number, depart);
+
+        return pricesTree == null ? null : priceAt(pricesTree, time);
+    }
+
+    /**
+     * Возвращает цены всех ключей, действующие в заданный момент.
+     *
+     * @param time
+     *        момент времени.
+     * @return новый список цен книги.
+     */
+    public List<Price> pricesAt(
+            LocalDateTime time)
+    {
+        List<Price> prices = new ArrayList<>();
+        numberDepartPrices.forEachValue(pricesTree -> {
+            Price price = priceAt(pricesTree, time);
+            if (price != null)
+            {
+                prices.add(price);
+            }
+        });
+
+        return prices;
+    }
+
+    /**
+     * Возвращает цены отдела, действующие в заданном промежутке времени.
+     * <br>
+     * Обходит только ключи отдела по индексу отделов; в каждом ключе цены, пересекающиеся
+     * с промежутком, находятся за O(log n).
+     *
+     * @param depart
+     *        отдел.
+     * @param from
+     *        начало промежутка включительно.
+     * @param to
+     *        конец промежутка исключительно.
+     * @return новый список цен книги.
+     */
+    public List<Price> pricesBetween(
+            int depart,
+            LocalDateTime from,
+            LocalDateTime to)
+    {
+        return pricesBetween(departIndex.get(depart), from, to);
+    }
+
+    /**
+     * Возвращает цены с заданными номером и отделом всех товаров, действующие в заданном
+     * промежутке времени.
+     *
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param from
+     *        начало промежутка включительно.
+     * @param to
+     *        конец промежутка исключительно.
+     * @return новый список цен книги.
+     */
+    public List<Price> pricesBetween(
+            int number,
+            int depart,
+            LocalDateTime from,
+            LocalDateTime to)
+    {
+        return pricesBetween(numberDepartIndex.get(numberDepartKey(number, depart)), from, to);
+    }
+
+    /**
+     * Возвращает цены, срок действия которых начинается или заканчивается в заданном
+     * промежутке времени, например изменения цен в ближайшие сутки.
+     * <br>
+     * Сначала обновляет индекс границ по ключам, измененным после предыдущего запроса,
+     * затем просматривает только ключи с границами в часах промежутка.
+     *
+     * @param from
+     *        начало промежутка включительно.
+     * @param to
+     *        конец промежутка исключительно.
+     * @return новый список цен книги, упорядоченный по их первой границе в промежутке.
+     */
+    public List<Price> changesBetween(
+            LocalDateTime from,
+            LocalDateTime to)
+    {
+        checkInterval(from, to);
+        updateBoundaries();
+
+        List<Price> prices = new ArrayList<>();
+        Set<KeyPrices> foundTrees = Collections.newSetFromMap(new IdentityHashMap<>());
+        PriceEndBound fromBound = new PriceEndBound(from);
+        PriceBeginBound toBound = new PriceBeginBound(to);
+        for (Set<KeyPrices> pricesTrees : boundaryHours.subMap(hour(from), true, hour(to), true).values())
+        {
+            for (KeyPrices pricesTree : pricesTrees)
+            {
+                if (!foundTrees.add(pricesTree))
+                {
+                    continue;
+                }
+
+                for (Price treePrice : pricesTree.subSet(fromBound, true, toBound, false))
+                {
+                    Price price = current(treePrice);
+                    if (!price.getBegin().isBefore(from) || price.getEnd().isBefore(to))
+                    {
+                        prices.add(price);
+                    }
+                }
+                for (Price price : pricesTree.collidedPrices)
+                {
+                    if (!price.getBegin().isBefore(from) && price.getBegin().isBefore(to)
+                            || !price.getEnd().isBefore(from) && price.getEnd().isBefore(to))
+                    {
+                        prices.add(price);
+                    }
+                }
+            }
+        }
+        prices.sort(Comparator.comparing(price -> price.getBegin().isBefore(from) ? price.getEnd() : price.getBegin()));
+
+        return prices;
+    }
+
+    private List<Price> pricesBetween(
+            List<KeyPrices> pricesTrees,
+            LocalDateTime from,
+            LocalDateTime to)
+    {
+        checkInterval(from, to);
+
+        List<Price> prices = new ArrayList<>();
+        if (pricesTrees != null)
+        {
+            PriceEndBound fromBound = new PriceEndBound(from);
+            PriceBeginBound toBound = new PriceBeginBound(to);
+            for (KeyPrices pricesTree : pricesTrees)
+            {
+                for (Price treePrice : pricesTree.subSet(fromBound, false, toBound, false))
+                {
+                    prices.add(current(treePrice));
+                }
+                for (Price price : pricesTree.collidedPrices)
+                {
+                    if (price.getEnd().isAfter(from) && price.getBegin().isBefore(to))
+                    {
+                        prices.add(price);
+                    }
+                }
+            }
+        }
+
+        return prices;
+    }
+
+    private static void checkInterval(
+            LocalDateTime from,
+            LocalDateTime to)
+    {
+        if (to.isBefore(from))
+        {
+            throw new IllegalArgumentException("Interval end " + to + " is before its begin " + from);
+        }
+    }
+
+    /**
+     * Обновляет индекс границ по измененным деревьям.
+     * <br>
+     * Прежние и текущие часы границ дерева сравниваются как упорядоченные множества, поэтому
+     * индекс затрагивают только появившиеся и исчезнувшие часы, а не все границы ключа.
+     */
+    private void updateBoundaries()
+    {
+        for (KeyPrices pricesTree : changedTrees)
+        {
+            long[] oldHours = pricesTree.boundaryHours;
+            long[] hours = collectBoundaryHours(pricesTree);
+            int i = 0;
+            int j = 0;
+            while (i < oldHours.length || j < hours.length)
+            {
+                if (j == hours.length || i < oldHours.length && oldHours[i] < hours[j])
+                {
+                    Set<KeyPrices> pricesTrees = boundaryHours.get(oldHours[i++]);
+                    pricesTrees.remove(pricesTree);
+                    if (pricesTrees.isEmpty())
+                    {
+                        boundaryHours.remove(oldHours[i - 1]);
+                    }
+                }
+                else if (i == oldHours.length || hours[j] < oldHours[i])
+                {
+                    boundaryHours.computeIfAbsent(hours[j++],
+                            h -> Collections.newSetFromMap(new IdentityHashMap<>())).add(pricesTree);
+                }
+                else
+                {
+                    i++;
+                    j++;
+                }
+            }
+
+            pricesTree.boundaryHours = hours;
+            pricesTree.boundariesChanged = false;
+        }
+
+        changedTrees.clear();
+    }
+
+    /**
+     * Возвращает упорядоченные различные часы границ сроков действия цен дерева.
+     */
+    private long[] collectBoundaryHours(
+            KeyPrices pricesTree)
+    {
+        long[] hours = new long[(pricesTree.size() + pricesTree.collidedPrices.size()) * 2];
+        int size = 0;
+        for (Price treePrice : pricesTree)
+        {
+            Price price = current(treePrice);
+            hours[size++] = hour(price.getBegin());
+            hours[size++] = hour(price.getEnd());
+        }
+        for (Price price : pricesTree.collidedPrices)
+        {
+            hours[size++] = hour(price.getBegin());
+            hours[size++] = hour(price.getEnd());
+        }
+        Arrays.sort(hours);
+
+        int distinctSize = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (distinctSize == 0 || hours[i] != hours[distinctSize - 1])
+            {
+                hours[distinctSize++] = hours[i];
+            }
+        }
+
+        return distinctSize == size ? hours : Arrays.copyOf(hours, distinctSize);
+    }
+
+    /**
+     * Возвращает номер часа от начала эпохи, в котором лежит момент времени.
+     */
+    private static long hour(
+            LocalDateTime time)
+    {
+        return Math.floorDiv(time.toEpochSecond(ZoneOffset.UTC), 3600);
+    }
+
+    /**
+     * Отмечает дерево для обновления индекса границ.
+     */
+    private void boundariesChanged(
+            KeyPrices pricesTree)
+    {
+        if (!pricesTree.boundariesChanged)
+        {
+            pricesTree.boundariesChanged = true;
+            changedTrees.add(pricesTree);
+        }
+    }
+
+    private static long numberDepartKey(
+            int number,
+            int depart)
+    {
+        return (long) number << 32 | (depart & 0xFFFFFFFFL);
+    }
+
+    private Price priceAt(
+            TreeSet<Price> pricesTree,
+            LocalDateTime time)
+    {
+        Price price = current(pricesTree.floor(new PriceBeginBound(time)));
+
+        return price != null && time.isBefore(price.getEnd()) ? price : null;
+    }
+
+    /**
+     * Возвращает действующий экземпляр цены дерева: копию в режиме копирования при записи,
+     * если срок действия цены менялся, иначе саму цену.
+     */
+    private Price current(
+            Price price)
+    {
+        if (copies == null || copies.isEmpty())
+        {
+            return price;
+        }
+
+        Price copy = copies.get(price);
+
+        return copy == null ? price : copy;
+    }
+
+    /**
+     * Изменяет срок действия цены дерева.
+     * <br>
+     * В режиме копирования при записи исходный экземпляр не изменяется: при первом
+     * изменении срока действия создается копия цены. Если срок действия не меняется,
+     * копия не создается.
+     *
+     * @return действующий экземпляр цены.
+     */
+    private Price setBounds(
+            KeyPrices pricesTree,
+            Price treePrice,
+            LocalDateTime begin,
+            LocalDateTime end)
+    {
+        Price price = current(treePrice);
+        if (price.getBegin().equals(begin) && price.getEnd().equals(end))
+        {
+            return price;
+        }
+
+        pricesTree.fingerprintRemoved(price);
+
+        if (copies != null && price == treePrice)
+        {
+            price = copy(treePrice);
+            copies.put(treePrice, price);
+        }
+
+        price.setBegin(begin);
+        price.setEnd(end);
+        pricesTree.fingerprintAdded(price);
+
+        return price;
+    }
+
+    /**
+     * Проверяет, что порция новых цен ключа не изменит его цены: цены ключа непусты
+     * и не пересекаются, а порция совпадает с ними по количеству и отпечатку.
+     * <br>
+     * Отпечаток порции накапливается при ее группировке по ключам, пока цены порции
+     * еще в кэше процессора.
+     * <br>
+     * Каждая такая новая цена совпадает с одной из имеющихся по сроку действия и значению
+     * и при объединении только продлевает ее на тот же срок. Совпадение отпечатков
+     * разных наборов цен маловероятно (порядка 2<sup>-64</sup>).
+     */
+    private boolean isBatchUnchanging(
+            KeyPrices pricesTree)
+    {
+        if (pricesTree.batchSize != pricesTree.size() || pricesTree.batchFingerprint != pricesTree.fingerprint)
+        {
+            return false;
+        }
+
+        if (pricesTree.disjoint == null)
+        {
+            LocalDateTime previousEnd = null;
+            boolean disjoint = true;
+            for (Price treePrice : pricesTree)
+            {
+                Price price = current(treePrice);
+                if (price.getBegin() == null || price.getEnd() == null || price.getValue() == null
+                        || !price.getBegin().isBefore(price.getEnd())
+                        || previousEnd != null && previousEnd.isAfter(price.getBegin()))
+                {
+                    disjoint = false;
+                    break;
+                }
+                previousEnd = price.getEnd();
+            }
+            pricesTree.disjoint = disjoint;
+        }
+
+        return pricesTree.disjoint;
+    }
+
+    /**
+     * Вычисляет отпечаток срока действия и значения цены.
+     */
+    private static long fingerprint(
+            Price price)
+    {
+        long hash = mix(epochNanos(price.getBegin()));
+        hash = mix(hash ^ epochNanos(price.getEnd()));
+
+        return mix(hash ^ (price.getValue() == null ? 0 : price.getValue()));
+    }
+
+    private static long epochNanos(
+            LocalDateTime time)
+    {
+        return time == null ? 0 : time.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + time.getNano();
+    }
+
+    /**
+     * Перемешивает биты значения (финализатор SplitMix64).
+     */
+    private static long mix(
+            long value)
+    {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+
+        return value ^ (value >>> 31);
+    }
+
+    private static Price copy(
+            Price price)
+    {
+        Price copy = new Price();
+        copy.setId(price.getId());
+        copy.setProductCode(price.getProductCode());
+        copy.setNumber(price.getNumber());
+        copy.setDepart(price.getDepart());
+        copy.setBegin(price.getBegin());
+        copy.setEnd(price.getEnd());
+        copy.setValue(price.getValue());
+
+        return copy;
+    }
+
+    private KeyPrices getPricesTree(
+            Price price)
+    {
+        return numberDepartPrices.computeIfAbsent(price.getProductCode(), price.getNumber(), price.getDepart(),
+                () -> createPricesTree(price.getNumber(), price.getDepart()));
+    }
+
+    /**
+     * Создает дерево цен нового ключа и добавляет его в индексы.
+     */
+    private KeyPrices createPricesTree(
+            int number,
+            int depart)
+    {
+        KeyPrices pricesTree = new KeyPrices(priceTreeComparator, retentionPolicy != null);
+        departIndex.computeIfAbsent(depart, d -> new ArrayList<>()).add(pricesTree);
+        numberDepartIndex.computeIfAbsent(numberDepartKey(number, depart), k -> new ArrayList<>()).add(pricesTree);
+        boundariesChanged(pricesTree);
+
+        return pricesTree;
+    }
+
+    private boolean mergeNewPrice(
+            KeyPrices pricesTree,
+            Price newPrice)
+    {
+        LocalDateTime newPriceBegin = newPrice.getBegin();
+        LocalDateTime newPriceEnd = newPrice.getEnd();
+        Long newPriceValue = newPrice.getValue();
+
+        crossedPricesFrom.setEnd(newPriceBegin);
+        crossedPricesTo.setBegin(newPriceEnd);
+
+        boolean newPriceMerged = false;
+        int crossedPriceCount = 0;
+        Iterator<Price> crossedPricesIterator = pricesTree
+                .subSet(crossedPricesFrom, false, crossedPricesTo, false)
+                .iterator();
+        while (crossedPricesIterator.hasNext())
+        {
+            Price treePrice = crossedPricesIterator.next();
+            Price crossedPrice = current(treePrice);
+            LocalDateTime crossedPriceBegin = crossedPrice.getBegin();
+            LocalDateTime crossedPriceEnd = crossedPrice.getEnd();
+            Long crossedPriceValue = crossedPrice.getValue();
+            crossedPriceCount++;
+
+            if (crossedPriceBegin.isBefore(newPriceBegin))
+            {
+                if (!crossedPriceEnd.isAfter(newPriceEnd))
+                {
+                    if (crossedPriceValue.equals(newPriceValue))
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, crossedPriceBegin, newPriceEnd);
+                        fireUpdated(PriceChangeEvent.Type.EXTENDED, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                        newPriceMerged = true;
+                        countMerged(crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                    }
+                    else
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, crossedPriceBegin, newPriceBegin);
+                        fireUpdated(PriceChangeEvent.Type.TRUNCATED, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                        countOutcome(PriceMergeStatistics.Outcome.TRUNCATED);
+                    }
+                }
+                else
+                {
+                    if (crossedPriceValue.equals(newPriceValue))
+                    {
+                        newPriceMerged = true;
+                        countOutcome(PriceMergeStatistics.Outcome.CONTAINED);
+                    }
+                    else
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, crossedPriceBegin, newPriceBegin);
+                        fireUpdated(PriceChangeEvent.Type.SPLIT, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                        countOutcome(PriceMergeStatistics.Outcome.SPLIT);
+
+                        Price remainingPartedPrice = new Price();
+                        remainingPartedPrice.setDepart(crossedPrice.getDepart());
+                        remainingPartedPrice.setNumber(crossedPrice.getNumber());
+                        remainingPartedPrice.setProductCode(crossedPrice.getProductCode());
+                        remainingPartedPrice.setValue(crossedPriceValue);
+                        remainingPartedPrice.setBegin(newPriceEnd);
+                        remainingPartedPrice.setEnd(crossedPriceEnd);
+
+                        if (pricesTree.add(remainingPartedPrice))
+                        {
+                            pricesTree.fingerprintAdded(remainingPartedPrice);
+                            fireAdded(remainingPartedPrice);
+                        }
+                    }
+                }
+            }
+            else
+            {
+                if (!crossedPriceEnd.isAfter(newPriceEnd))
+                {
+                    if (crossedPriceValue.equals(newPriceValue))
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, newPriceBegin, newPriceEnd);
+                        fireUpdated(PriceChangeEvent.Type.EXTENDED, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+
+                        newPriceMerged = true;
+                        countMerged(crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                    }
+                    else
+                    {
+                        crossedPricesIterator.remove();
+                        pricesTree.fingerprintRemoved(crossedPrice);
+                        if (copies != null)
+                        {
+                            copies.remove(treePrice);
+                        }
+
+                        fireRemoved(crossedPrice);
+                        countOutcome(PriceMergeStatistics.Outcome.REMOVED);
+                    }
+                }
+                else
+                {
+                    if (crossedPriceValue.equals(newPriceValue))
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, newPriceBegin, crossedPriceEnd);
+                        fireUpdated(PriceChangeEvent.Type.EXTENDED, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+
+                        newPriceMerged = true;
+                        countMerged(crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                    }
+                    else
+                    {
+                        crossedPrice = setBounds(pricesTree, treePrice, newPriceEnd, crossedPriceEnd);
+                        fireUpdated(PriceChangeEvent.Type.TRUNCATED, crossedPrice, crossedPriceBegin, crossedPriceEnd);
+                        countOutcome(PriceMergeStatistics.Outcome.TRUNCATED);
+                    }
+                }
+            }
+        }
+
+        if (statistics != null)
+        {
+            statistics.recordOverlapWidth(crossedPriceCount);
+        }
+
+        return newPriceMerged;
+    }
+
+    /**
+     * Вытесняет устаревшие цены из дерева и из цен, хранящихся рядом с ним.
+     * <br>
+     * Сроки действия цен дерева могут пересекаться, поэтому за неустаревшей ценой
+     * может идти устаревшая; цены выбираются по индексу концов сроков действия, начиная
+     * с самой ранней, до первой неустаревшей. Цены рядом с деревом просматриваются, только
+     * если самая ранняя из них устарела.
+     */
+    private void pruneExpired(
+            KeyPrices pricesTree,
+            LocalDateTime watermark)
+    {
+        while (!pricesTree.endIndex.isEmpty())
+        {
+            Price price = pricesTree.endIndex.first();
+            if (!PriceRetentionPolicy.isExpired(price, watermark))
+            {
+                break;
+            }
+
+            Price treePrice = pricesTree.ceiling(price);
+            pricesTree.remove(treePrice);
+            pricesTree.fingerprintRemoved(price);
+            if (copies != null)
+            {
+                copies.remove(treePrice);
+            }
+
+            boundariesChanged(pricesTree);
+            pruned(price);
+        }
+
+        if (pricesTree.collidedEnd == null || pricesTree.collidedEnd.isAfter(watermark))
+        {
+            return;
+        }
+
+        pricesTree.collidedEnd = null;
+        Iterator<Price> iterator = pricesTree.collidedPrices.iterator();
+        while (iterator.hasNext())
+        {
+            Price price = iterator.next();
+            if (PriceRetentionPolicy.isExpired(price, watermark))
+            {
+                iterator.remove();
+                boundariesChanged(pricesTree);
+                pruned(price);
+            }
+            else
+            {
+                pricesTree.collidedAdded(price);
+            }
+        }
+    }
+
+    private void pruned(
+            Price price)
+    {
+        prunedCount++;
+        if (statistics != null)
+        {
+            statistics.countPruned();
+        }
+
+        PriceArchive archive = retentionPolicy.getArchive();
+        if (archive != null)
+        {
+            archive.archive(price);
+        }
+    }
+
+    private void countOutcome(
+            PriceMergeStatistics.Outcome outcome)
+    {
+        if (statistics != null)
+        {
+            statistics.count(outcome);
+        }
+    }
+
+    /**
+     * Учитывает объединение новой цены с имеющейся ценой с тем же значением: продление,
+     * если срок действия имеющейся цены изменился, иначе поглощение новой цены.
+     */
+    private void countMerged(
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        countOutcome(price.getBegin().equals(oldBegin) && price.getEnd().equals(oldEnd)
+                ? PriceMergeStatistics.Outcome.CONTAINED
+                : PriceMergeStatistics.Outcome.EXTENDED);
+    }
+
+    private void fireAdded(
+            Price price)
+    {
+        if (listener != null)
+        {
+            listener.priceChanged(PriceChangeEvent.Type.INSERTED, price, null, null);
+        }
+    }
+
+    private void fireUpdated(
+            PriceChangeEvent.Type type,
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        if (listener != null && !(price.getBegin().equals(oldBegin) && price.getEnd().equals(oldEnd)))
+        {
+            listener.priceChanged(type, price, oldBegin, oldEnd);
+        }
+    }
+
+    private void fireRemoved(
+            Price price)
+    {
+        if (listener != null)
+        {
+            listener.priceChanged(PriceChangeEvent.Type.REMOVED, price, null, null);
+        }
+    }
+
+    private static int compare(
+            Price p1,
+            Price p2)
+    {
+        return comparedTime(p1, p2).compareTo(comparedTime(p2, p1));
+    }
+
+    private static LocalDateTime comparedTime(
+            Price price,
+            Price other)
+    {
+        if (price instanceof PriceBeginBound)
+        {
+            return price.getBegin();
+        }
+
+        if (price instanceof PriceEndBound)
+        {
+            return price.getEnd();
+        }
+
+        if (price.getClass() != Price.class)
+        {
+            throw new IllegalArgumentException("Unexpected price type: " + price.getClass());
+        }
+
+        return other instanceof PriceEndBound ? price.getEnd() : price.getBegin();
+    }
+
+    /**
+     * Дерево цен ключа с отпечатком своего содержимого.
+     */
+    private static final class KeyPrices
+    extends TreeSet<Price>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private static final Comparator<Price> END_ORDER = Comparator
+                .comparing(Price::getEnd)
+                .thenComparing(Price::getBegin);
+
+        /**
+         * Сумма отпечатков цен дерева; поддерживается при каждом изменении дерева.
+         */
+        private long fingerprint;
+
+        /**
+         * Признак того, что сроки действия цен дерева непусты и не пересекаются,
+         * или {@code null}, если дерево изменилось после проверки.
+         */
+        private Boolean disjoint;
+
+        /**
+         * Список новых цен ключа в применяемой порции (индексы первой и последней цены
+         * в массивах порции), их количество и сумма их отпечатков.
+         */
+        private int batchHead = -1;
+
+        private int batchTail = -1;
+
+        private int batchSize;
+
+        private long batchFingerprint;
+
+        /**
+         * Упорядоченные различные часы, под которыми дерево числится в индексе границ,
+         * и признак их изменения после последнего обновления индекса.
+         */
+        private long[] boundaryHours = new long[0];
+
+        private boolean boundariesChanged;
+
+        /**
+         * Не объединенные новые цены, начало срока действия которых совпало с началом
+         * цены дерева.
+         */
+        private final ArrayList<Price> collidedPrices = new ArrayList<>(0);
+
+        /**
+         * Самый ранний конец срока действия цен рядом с деревом или {@code null}, если ни одна
+         * из них не заканчивается.
+         */
+        private LocalDateTime collidedEnd;
+
+        /**
+         * Действующие экземпляры цен дерева с концом срока действия, упорядоченные по концу
+         * и началу срока действия, или {@code null} в книге без политики хранения.
+         */
+        private final TreeSet<Price> endIndex;
+
+        private KeyPrices(
+                Comparator<Price> comparator,
+                boolean endIndexed)
+        {
+            super(comparator);
+            endIndex = endIndexed ? new TreeSet<>(END_ORDER) : null;
+        }
+
+        private void clearBatch()
+        {
+            batchHead = -1;
+            batchTail = -1;
+            batchSize = 0;
+            batchFingerprint = 0;
+        }
+
+        private void fingerprintAdded(
+                Price price)
+        {
+            fingerprint += PriceBook.fingerprint(price);
+            disjoint = null;
+            if (endIndex != null && price.getEnd() != null)
+            {
+                endIndex.add(price);
+            }
+        }
+
+        private void fingerprintRemoved(
+                Price price)
+        {
+            fingerprint -= PriceBook.fingerprint(price);
+            disjoint = null;
+            if (endIndex != null && price.getEnd() != null)
+            {
+                endIndex.remove(price);
+            }
+        }
+
+        private void collidedAdded(
+                Price price)
+        {
+            collidedPrices.add(price);
+            if (price.getEnd() != null && (collidedEnd == null || price.getEnd().isBefore(collidedEnd)))
+            {
+                collidedEnd = price.getEnd();
+            }
+        }
+    }
+
+    //В общем-то костыль
+    private static final class PriceBeginBound
+    extends Price
+    {
+        private PriceBeginBound(
+                LocalDateTime begin)
+        {
+            setBegin(begin);
+        }
+    }
+
+    private static final class PriceEndBound
+    extends Price
+    {
+        private PriceEndBound(
+                LocalDateTime end)
+        {
+            setEnd(end);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Снимок версии книги {@link VersionedPriceBook}.
+ * <br>
+ * Все методы снимка читают одну и ту же неизменяемую версию, поэтому цены разных ключей
+ * согласованы между собой. Снимок можно читать из нескольких потоков;
+ * после закрытия чтение запрещено.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceBookSnapshot
+implements AutoCloseable
+{
+    private VersionedPriceBook.Version version;
+
+    private final AtomicInteger openSnapshotCount;
+
+    PriceBookSnapshot(
+            VersionedPriceBook.Version version,
+            AtomicInteger openSnapshotCount)
+    {
+        this.version = version;
+        this.openSnapshotCount = openSnapshotCount;
+    }
+
+    /**
+     * Возвращает номер версии книги, закрепленной снимком.
+     *
+     * @return номер версии.
+     */
+    public long getVersion()
+    {
+        return version().number;
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        PriceIntervals intervals = version().intervals.get(new PriceKey(productCode, number, depart));
+        if (intervals == null)
+        {
+            return CompactPriceBook.NO_VALUE;
+        }
+
+        int index = intervals.indexAt(epochMillis);
+
+        return index < 0 ? CompactPriceBook.NO_VALUE : intervals.getValue(index);
+    }
+
+    /**
+     * Возвращает цену, действующую в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return новый экземпляр цены или {@code null}, если цена не действует.
+     */
+    public Price priceAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        PriceKey key = new PriceKey(productCode, number, depart);
+        PriceIntervals intervals = version().intervals.get(key);
+        if (intervals == null)
+        {
+            return null;
+        }
+
+        int index = intervals.indexAt(PriceTimes.toEpochMillis(time));
+
+        return index < 0 ? null : CompactPriceBook.createPrice(key, intervals, index);
+    }
+
+    /**
+     * Возвращает цены всех ключей, действующие в заданный момент.
+     *
+     * @param time
+     *        момент времени.
+     * @return новый список цен.
+     */
+    public List<Price> pricesAt(
+            LocalDateTime time)
+    {
+        long epochMillis = PriceTimes.toEpochMillis(time);
+
+        List<Price> prices = new ArrayList<>();
+        version().intervals.forEach((key, intervals) -> {
+            int index = intervals.indexAt(epochMillis);
+            if (index >= 0)
+            {
+                prices.add(CompactPriceBook.createPrice(key, intervals, index));
+            }
+        });
+
+        return prices;
+    }
+
+    /**
+     * Возвращает все цены версии.
+     *
+     * @return новое множество цен.
+     */
+    public Set<Price> getPrices()
+    {
+        Set<Price> prices = new HashSet<>();
+        version().intervals.forEach((key, intervals) -> {
+            for (int i = 0; i < intervals.size(); i++)
+            {
+                prices.add(CompactPriceBook.createPrice(key, intervals, i));
+            }
+        });
+
+        return prices;
+    }
+
+    /**
+     * Открепляет версию книги. Повторное закрытие ничего не делает.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (version != null)
+        {
+            version = null;
+            openSnapshotCount.decrementAndGet();
+        }
+    }
+
+    PriceIntervals getIntervals(
+            PriceKey key)
+    {
+        return version().intervals.get(key);
+    }
+
+    private VersionedPriceBook.Version version()
+    {
+        VersionedPriceBook.Version version = this.version;
+        if (version == null)
+        {
+            throw new IllegalStateException("Price book snapshot is closed");
+        }
+
+        return version;
+    }
+}
@@ -0,0 +1,163 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Событие изменения цены книги в потоке {@link PriceChangeStream}.
+ * <br>
+ * Экземпляры событий принадлежат кольцевому буферу потока и переиспользуются: событие
+ * действительно только во время вызова обработчика, и сохранять его нельзя. Поля события
+ * копируются из цены в момент изменения, поэтому последующие изменения цены книгой
+ * на событие не влияют.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceChangeEvent
+{
+    private Type type;
+
+    private String productCode;
+
+    private Integer number;
+
+    private Integer depart;
+
+    private LocalDateTime begin;
+
+    private LocalDateTime end;
+
+    private Long value;
+
+    private LocalDateTime oldBegin;
+
+    private LocalDateTime oldEnd;
+
+    PriceChangeEvent()
+    {
+    }
+
+    /**
+     * Возвращает вид изменения.
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    public String getProductCode()
+    {
+        return productCode;
+    }
+
+    public Integer getNumber()
+    {
+        return number;
+    }
+
+    public Integer getDepart()
+    {
+        return depart;
+    }
+
+    /**
+     * Возвращает начало срока действия цены после изменения;
+     * для удаленной цены - начало ее срока действия на момент удаления.
+     */
+    public LocalDateTime getBegin()
+    {
+        return begin;
+    }
+
+    /**
+     * Возвращает конец срока действия цены после изменения;
+     * для удаленной цены - конец ее срока действия на момент удаления.
+     */
+    public LocalDateTime getEnd()
+    {
+        return end;
+    }
+
+    public Long getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Возвращает прежнее начало срока действия или {@code null} для добавленной и удаленной цены.
+     */
+    public LocalDateTime getOldBegin()
+    {
+        return oldBegin;
+    }
+
+    /**
+     * Возвращает прежний конец срока действия или {@code null} для добавленной и удаленной цены.
+     */
+    public LocalDateTime getOldEnd()
+    {
+        return oldEnd;
+    }
+
+    @Override
+    public String toString()
+    {
+        return type + " " + productCode + "/" + number + "/" + depart + " [" + begin + ", " + end + ") = " + value
+                + (oldBegin == null ? "" : " was [" + oldBegin + ", " + oldEnd + ")");
+    }
+
+    /**
+     * Заполняет событие, не создавая объектов.
+     */
+    void set(
+            Type type,
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        this.type = type;
+        this.productCode = price.getProductCode();
+        this.number = price.getNumber();
+        this.depart = price.getDepart();
+        this.begin = price.getBegin();
+        this.end = price.getEnd();
+        this.value = price.getValue();
+        this.oldBegin = oldBegin;
+        this.oldEnd = oldEnd;
+    }
+
+    /**
+     * Вид изменения цены книги.
+     */
+    public enum Type
+    {
+        /**
+         * Срок действия цены увеличен новой ценой с тем же значением.
+         */
+        EXTENDED,
+
+        /**
+         * Срок действия цены уменьшен с одной стороны новой ценой с другим значением.
+         */
+        TRUNCATED,
+
+        /**
+         * Цена разорвана новой ценой с другим значением: ее срок действия уменьшен до части
+         * перед новой ценой, а часть после новой цены добавлена отдельной ценой ({@link #INSERTED}).
+         */
+        SPLIT,
+
+        /**
+         * Цена удалена: полностью перекрыта новой ценой с другим значением или не попала
+         * в книгу из-за цены с тем же ключом и тем же началом срока действия.
+         */
+        REMOVED,
+
+        /**
+         * Цена добавлена: новая цена, не объединенная с имеющимися, или оставшаяся часть
+         * разорванной цены.
+         */
+        INSERTED
+    }
+}
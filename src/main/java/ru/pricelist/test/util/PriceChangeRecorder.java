@@ -0,0 +1,106 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Слушатель, сводящий изменения цен книги в {@link PriceChangeSet}.
+ * <br>
+ * Изменения одного экземпляра цены схлопываются: добавленная и затем измененная цена
+ * остается добавленной, добавленная и затем удаленная цена исчезает из изменений,
+ * у многократно измененной цены запоминается первоначальный срок действия.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceChangeRecorder
+implements PriceMergeListener
+{
+    private final IdentityHashMap<Price, Change> changes = new IdentityHashMap<>();
+
+    private final List<Price> changedPrices = new ArrayList<>();
+
+    @Override
+    public void priceAdded(
+            Price price)
+    {
+        change(price).inserted = true;
+    }
+
+    @Override
+    public void priceUpdated(
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        Change change = change(price);
+        if (!change.inserted && change.oldBegin == null)
+        {
+            change.oldBegin = oldBegin;
+            change.oldEnd = oldEnd;
+        }
+    }
+
+    @Override
+    public void priceRemoved(
+            Price price)
+    {
+        change(price).deleted = true;
+    }
+
+    PriceChangeSet toChangeSet()
+    {
+        List<Price> inserted = new ArrayList<>();
+        List<PriceChangeSet.Update> updated = new ArrayList<>();
+        List<Price> deleted = new ArrayList<>();
+        for (Price price : changedPrices)
+        {
+            Change change = changes.get(price);
+            if (change.inserted)
+            {
+                if (!change.deleted)
+                {
+                    inserted.add(price);
+                }
+            }
+            else if (change.deleted)
+            {
+                deleted.add(price);
+            }
+            else if (!(price.getBegin().equals(change.oldBegin) && price.getEnd().equals(change.oldEnd)))
+            {
+                updated.add(new PriceChangeSet.Update(price, change.oldBegin, change.oldEnd));
+            }
+        }
+
+        return new PriceChangeSet(inserted, updated, deleted);
+    }
+
+    private Change change(
+            Price price)
+    {
+        Change change = changes.get(price);
+        if (change == null)
+        {
+            change = new Change();
+            changes.put(price, change);
+            changedPrices.add(price);
+        }
+
+        return change;
+    }
+
+    private static final class Change
+    {
+        private boolean inserted;
+
+        private boolean deleted;
+
+        private LocalDateTime oldBegin;
+
+        private LocalDateTime oldEnd;
+    }
+}
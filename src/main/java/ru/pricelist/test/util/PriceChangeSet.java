@@ -0,0 +1,148 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Изменения, которые объединение внесло в множество старых цен.
+ * <br>
+ * Применение изменений к старым ценам дает тот же результат, что и
+ * {@link Prices#merge(java.util.Collection, java.util.Collection)}: добавленные цены вставляются,
+ * у измененных цен обновляется срок действия, удаленные цены удаляются.
+ * Измененные и удаленные цены - это экземпляры старых цен, поэтому строки
+ * хранилища определяются по их {@link Price#getId()}. Цены, которые объединение
+ * не затронуло или вернуло к прежнему сроку действия, в изменения не попадают.
+ *
+ * @see Prices#mergeChanges(java.util.Collection, java.util.Collection)
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceChangeSet
+{
+    private final List<Price> inserted;
+
+    private final List<Update> updated;
+
+    private final List<Price> deleted;
+
+    PriceChangeSet(
+            List<Price> inserted,
+            List<Update> updated,
+            List<Price> deleted)
+    {
+        this.inserted = Collections.unmodifiableList(inserted);
+        this.updated = Collections.unmodifiableList(updated);
+        this.deleted = Collections.unmodifiableList(deleted);
+    }
+
+    /**
+     * Возвращает добавленные цены: новые цены, не объединенные с имеющимися,
+     * и оставшиеся части разорванных старых цен.
+     *
+     * @return неизменяемый список цен.
+     */
+    public List<Price> getInserted()
+    {
+        return inserted;
+    }
+
+    /**
+     * Возвращает старые цены с измененным сроком действия.
+     *
+     * @return неизменяемый список изменений.
+     */
+    public List<Update> getUpdated()
+    {
+        return updated;
+    }
+
+    /**
+     * Возвращает удаленные старые цены.
+     *
+     * @return неизменяемый список цен.
+     */
+    public List<Price> getDeleted()
+    {
+        return deleted;
+    }
+
+    /**
+     * Проверяет отсутствие изменений.
+     *
+     * @return {@code true}, если объединение не изменило старые цены.
+     */
+    public boolean isEmpty()
+    {
+        return inserted.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("PriceChangeSet{inserted: %d, updated: %d, deleted: %d}",
+                inserted.size(), updated.size(), deleted.size());
+    }
+
+    /**
+     * Изменение срока действия старой цены.
+     */
+    public static final class Update
+    {
+        private final Price price;
+
+        private final LocalDateTime oldBegin;
+
+        private final LocalDateTime oldEnd;
+
+        Update(
+                Price price,
+                LocalDateTime oldBegin,
+                LocalDateTime oldEnd)
+        {
+            this.price = price;
+            this.oldBegin = oldBegin;
+            this.oldEnd = oldEnd;
+        }
+
+        /**
+         * Возвращает цену с новым сроком действия.
+         */
+        public Price getPrice()
+        {
+            return price;
+        }
+
+        /**
+         * Возвращает идентификатор цены.
+         */
+        public Long getId()
+        {
+            return price.getId();
+        }
+
+        /**
+         * Возвращает прежнее начало срока действия.
+         */
+        public LocalDateTime getOldBegin()
+        {
+            return oldBegin;
+        }
+
+        /**
+         * Возвращает прежний конец срока действия.
+         */
+        public LocalDateTime getOldEnd()
+        {
+            return oldEnd;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s{old begin: %s, old end: %s}", price, oldBegin, oldEnd);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Поток событий изменения цен книги для внешних получателей.
+ * <br>
+ * Поток подключается к книге {@link PriceBook} как слушатель и публикует каждое изменение цены
+ * ({@link PriceMergeListener#priceChanged}) в кольцевой буфер заранее созданных событий
+ * {@link PriceChangeEvent}. Публикация копирует поля цены в очередное событие буфера
+ * и продвигает счетчик опубликованных событий, не создавая объектов и не блокируясь,
+ * пока в буфере есть место.
+ * <br>
+ * Получатели подписываются методом {@link #subscribe(Handler)} и читают события в своих потоках
+ * пачками: подписка обрабатывает все опубликованные к этому моменту события (не больше размера
+ * пачки) и сообщает о прочтении один раз за пачку. Медленный получатель не задерживает
+ * объединение, пока отстает меньше чем на емкость буфера; когда буфер заполнен, публикация
+ * ждет самого отстающего получателя (обратное давление), так что события не теряются.
+ * Подписка, обработчик которой выбросил исключение, отключается и больше не задерживает публикацию.
+ * <br>
+ * Публиковать события может только один поток - поток, изменяющий книгу; получателей
+ * может быть сколько угодно, каждый получает все события, опубликованные после подписки,
+ * в порядке публикации.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceChangeStream
+implements PriceMergeListener
+{
+    /**
+     * Емкость буфера по умолчанию.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+
+    /**
+     * Размер пачки по умолчанию.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final long WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final PriceChangeEvent[] events;
+
+    private final int mask;
+
+    /**
+     * Номер последнего опубликованного события.
+     */
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+
+    /**
+     * Номер события, прочитанного всеми получателями, по последней проверке публикатора.
+     */
+    private long gatingSequence = -1;
+
+    private long backPressureCount;
+
+    /**
+     * Создает поток с емкостью буфера по умолчанию.
+     */
+    public PriceChangeStream()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Создает поток.
+     *
+     * @param capacity
+     *        емкость буфера; должна быть степенью двойки.
+     */
+    public PriceChangeStream(
+            int capacity)
+    {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+        {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+
+        events = new PriceChangeEvent[capacity];
+        for (int i = 0; i < capacity; i++)
+        {
+            events[i] = new PriceChangeEvent();
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Подписывает получателя с размером пачки по умолчанию.
+     *
+     * @param handler
+     *        обработчик событий.
+     * @return подписка.
+     *
+     * @see #subscribe(Handler, int)
+     */
+    public Subscription subscribe(
+            Handler handler)
+    {
+        return subscribe(handler, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Подписывает получателя на события, опубликованные после подписки.
+     * <br>
+     * События читаются вызовами {@link Subscription#poll()} либо в отдельном потоке,
+     * выполняющем {@link Subscription#run()}.
+     *
+     * @param handler
+     *        обработчик событий.
+     * @param batchSize
+     *        наибольшее количество событий в пачке.
+     * @return подписка.
+     */
+    public synchronized Subscription subscribe(
+            Handler handler,
+            int batchSize)
+    {
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+
+        Subscription subscription = new Subscription(handler, batchSize, cursor.get());
+        Subscription[] current = subscriptions;
+        Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscription;
+        subscriptions = updated;
+
+        return subscription;
+    }
+
+    @Override
+    public void priceChanged(
+            PriceChangeEvent.Type type,
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        long sequence = cursor.get() + 1;
+        long wrapSequence = sequence - events.length;
+        if (wrapSequence > gatingSequence)
+        {
+            awaitConsumers(wrapSequence);
+        }
+
+        events[(int) sequence & mask].set(type, price, oldBegin, oldEnd);
+        cursor.lazySet(sequence);
+    }
+
+    /**
+     * Возвращает количество опубликованных событий.
+     */
+    public long getPublishedCount()
+    {
+        return cursor.get() + 1;
+    }
+
+    /**
+     * Возвращает количество публикаций, ожидавших освобождения места в буфере.
+     * <br>
+     * Значение изменяет поток публикации; из других потоков оно может быть устаревшим.
+     */
+    public long getBackPressureCount()
+    {
+        return backPressureCount;
+    }
+
+    /**
+     * Возвращает количество действующих подписок.
+     */
+    public int getSubscriptionCount()
+    {
+        return subscriptions.length;
+    }
+
+    /**
+     * Ждет, пока все получатели прочитают событие с заданным номером.
+     */
+    private void awaitConsumers(
+            long wrapSequence)
+    {
+        boolean waited = false;
+        while (true)
+        {
+            long minimum = cursor.get();
+            for (Subscription subscription : subscriptions)
+            {
+                minimum = Math.min(minimum, subscription.sequence.get());
+            }
+
+            if (minimum >= wrapSequence)
+            {
+                gatingSequence = minimum;
+                return;
+            }
+
+            if (!waited)
+            {
+                waited = true;
+                backPressureCount++;
+            }
+            LockSupport.parkNanos(WAIT_NANOS);
+        }
+    }
+
+    private synchronized void unsubscribe(
+            Subscription subscription)
+    {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == subscription)
+            {
+                Subscription[] updated = Arrays.copyOf(current, current.length - 1);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Обработчик событий подписки.
+     */
+    @FunctionalInterface
+    public interface Handler
+    {
+        /**
+         * Обрабатывает событие.
+         *
+         * @param event
+         *        событие; действительно только во время вызова.
+         * @param sequence
+         *        номер события в потоке.
+         * @param endOfBatch
+         *        признак последнего события пачки.
+         */
+        void onEvent(
+                PriceChangeEvent event,
+                long sequence,
+                boolean endOfBatch);
+    }
+
+    /**
+     * Подписка получателя на события потока.
+     * <br>
+     * Подписку читает один поток: вызывающий {@link #poll()} или выполняющий {@link #run()}.
+     */
+    public final class Subscription
+    implements Runnable, AutoCloseable
+    {
+        private final Handler handler;
+
+        private final int batchSize;
+
+        /**
+         * Номер последнего прочитанного события.
+         */
+        private final AtomicLong sequence;
+
+        private volatile boolean closed;
+
+        private Subscription(
+                Handler handler,
+                int batchSize,
+                long sequence)
+        {
+            this.handler = handler;
+            this.batchSize = batchSize;
+            this.sequence = new AtomicLong(sequence);
+        }
+
+        /**
+         * Обрабатывает пачку опубликованных событий, не дожидаясь новых.
+         * <br>
+         * Если обработчик выбросил исключение, подписка отключается, а исключение пробрасывается.
+         *
+         * @return количество обработанных событий.
+         */
+        public int poll()
+        {
+            if (closed)
+            {
+                return 0;
+            }
+
+            long next = sequence.get() + 1;
+            long last = Math.min(cursor.get(), next + batchSize - 1);
+            long processed = next - 1;
+            try
+            {
+                for (long s = next; s <= last; s++)
+                {
+                    handler.onEvent(events[(int) s & mask], s, s == last);
+                    processed = s;
+                }
+            }
+            catch (RuntimeException | Error e)
+            {
+                close();
+                throw e;
+            }
+            finally
+            {
+                sequence.lazySet(processed);
+            }
+
+            return (int) (processed - next + 1);
+        }
+
+        /**
+         * Читает события, пока подписка не закрыта или поток не прерван.
+         */
+        @Override
+        public void run()
+        {
+            while (!closed && !Thread.currentThread().isInterrupted())
+            {
+                if (poll() == 0)
+                {
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+        }
+
+        /**
+         * Возвращает количество опубликованных, но еще не прочитанных событий.
+         */
+        public long getLag()
+        {
+            return cursor.get() - sequence.get();
+        }
+
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Отключает подписку; публикация больше не ждет ее.
+         */
+        @Override
+        public void close()
+        {
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package ru.pricelist.test.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Разобранная часть текстового файла цен в колоночном примитивном представлении.
+ * <br>
+ * Разбор не создает объектов на запись: числа и моменты времени переводятся в примитивы
+ * прямо из байтов, а каждый код товара превращается в строку один раз на часть
+ * и дальше хранится номером в словаре части.
+ *
+ * @see PriceFeeds
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceFeedChunk
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final long DAYS_0000_TO_1970 = 719528;
+
+    private int[] productIds = new int[INITIAL_CAPACITY];
+
+    private int[] numbers = new int[INITIAL_CAPACITY];
+
+    private int[] departs = new int[INITIAL_CAPACITY];
+
+    private long[] begins = new long[INITIAL_CAPACITY];
+
+    private long[] ends = new long[INITIAL_CAPACITY];
+
+    private long[] values = new long[INITIAL_CAPACITY];
+
+    private int size;
+
+    private String[] productCodes = new String[16];
+
+    private byte[][] productCodeBytes = new byte[16][];
+
+    private int productCodeCount;
+
+    /**
+     * Открытая адресация по байтам кода: номер кода в словаре, увеличенный на единицу.
+     */
+    private int[] productCodeTable = new int[32];
+
+    private final byte separator;
+
+    /**
+     * Смещение начала буфера в файле, для сообщений об ошибках.
+     */
+    private final long fileOffset;
+
+    private PriceFeedChunk(
+            byte separator,
+            long fileOffset)
+    {
+        this.separator = separator;
+        this.fileOffset = fileOffset;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    String getProductCode(
+            int index)
+    {
+        return productCodes[productIds[index]];
+    }
+
+    int getNumber(
+            int index)
+    {
+        return numbers[index];
+    }
+
+    int getDepart(
+            int index)
+    {
+        return departs[index];
+    }
+
+    long getBegin(
+            int index)
+    {
+        return begins[index];
+    }
+
+    long getEnd(
+            int index)
+    {
+        return ends[index];
+    }
+
+    long getValue(
+            int index)
+    {
+        return values[index];
+    }
+
+    /**
+     * Разбирает строки буфера, начинающиеся в заданном диапазоне.
+     * <br>
+     * Строка, начавшаяся в диапазоне, разбирается целиком, даже если продолжается за его концом.
+     *
+     * @param bytes
+     *        буфер.
+     * @param from
+     *        начало первой строки в буфере.
+     * @param to
+     *        граница начала строк в буфере.
+     * @param length
+     *        длина данных в буфере.
+     * @param complete
+     *        признак того, что данные буфера доходят до конца файла.
+     * @param separator
+     *        разделитель полей.
+     * @param fileOffset
+     *        смещение начала буфера в файле.
+     * @return разобранная часть.
+     * @throws IOException
+     *         если строка не является записью цены.
+     */
+    static PriceFeedChunk parse(
+            byte[] bytes,
+            int from,
+            int to,
+            int length,
+            boolean complete,
+            byte separator,
+            long fileOffset)
+            throws IOException
+    {
+        PriceFeedChunk chunk = new PriceFeedChunk(separator, fileOffset);
+
+        int lineBegin = from;
+        while (lineBegin < to)
+        {
+            int lineEnd = lineBegin;
+            while (lineEnd < length && bytes[lineEnd] != '\n')
+            {
+                lineEnd++;
+            }
+
+            if (lineEnd == length && !complete)
+            {
+                throw chunk.error(lineBegin, "line is longer than " + PriceFeeds.MAX_LINE_LENGTH + " bytes");
+            }
+
+            int recordEnd = lineEnd > lineBegin && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (recordEnd > lineBegin)
+            {
+                chunk.parseRecord(bytes, lineBegin, recordEnd);
+            }
+
+            lineBegin = lineEnd + 1;
+        }
+
+        return chunk;
+    }
+
+    private void parseRecord(
+            byte[] bytes,
+            int from,
+            int to)
+            throws IOException
+    {
+        if (size == productIds.length)
+        {
+            int capacity = size << 1;
+            productIds = Arrays.copyOf(productIds, capacity);
+            numbers = Arrays.copyOf(numbers, capacity);
+            departs = Arrays.copyOf(departs, capacity);
+            begins = Arrays.copyOf(begins, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        int fieldEnd = fieldEnd(bytes, from, to, from);
+        productIds[size] = productId(bytes, from, fieldEnd);
+
+        int fieldBegin = fieldEnd + 1;
+        fieldEnd = fieldEnd(bytes, fieldBegin, to, from);
+        numbers[size] = parseInt(bytes, fieldBegin, fieldEnd, "number");
+
+        fieldBegin = fieldEnd + 1;
+        fieldEnd = fieldEnd(bytes, fieldBegin, to, from);
+        departs[size] = parseInt(bytes, fieldBegin, fieldEnd, "depart");
+
+        fieldBegin = fieldEnd + 1;
+        fieldEnd = fieldEnd(bytes, fieldBegin, to, from);
+        begins[size] = parseTime(bytes, fieldBegin, fieldEnd, "begin");
+
+        fieldBegin = fieldEnd + 1;
+        fieldEnd = fieldEnd(bytes, fieldBegin, to, from);
+        ends[size] = parseTime(bytes, fieldBegin, fieldEnd, "end");
+
+        fieldBegin = fieldEnd + 1;
+        for (int i = fieldBegin; i < to; i++)
+        {
+            if (bytes[i] == separator)
+            {
+                throw error(from, "too many fields");
+            }
+        }
+        values[size] = parseLong(bytes, fieldBegin, to, "value");
+
+        size++;
+    }
+
+    private int fieldEnd(
+            byte[] bytes,
+            int from,
+            int to,
+            int recordBegin)
+            throws IOException
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (bytes[i] == separator)
+            {
+                return i;
+            }
+        }
+
+        throw error(recordBegin, "too few fields");
+    }
+
+    private int productId(
+            byte[] bytes,
+            int from,
+            int to)
+    {
+        int hash = 0;
+        for (int i = from; i < to; i++)
+        {
+            hash = 31 * hash + bytes[i];
+        }
+
+        int mask = productCodeTable.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (productCodeTable[slot] != 0)
+        {
+            int id = productCodeTable[slot] - 1;
+            byte[] codeBytes = productCodeBytes[id];
+            if (codeBytes.length == to - from && rangeEquals(codeBytes, bytes, from))
+            {
+                return id;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        if (productCodeCount == productCodes.length)
+        {
+            productCodes = Arrays.copyOf(productCodes, productCodeCount << 1);
+            productCodeBytes = Arrays.copyOf(productCodeBytes, productCodeCount << 1);
+        }
+
+        int id = productCodeCount++;
+        productCodeBytes[id] = Arrays.copyOfRange(bytes, from, to);
+        productCodes[id] = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        productCodeTable[slot] = id + 1;
+
+        if (productCodeCount * 2 > productCodeTable.length)
+        {
+            rehashProductCodes();
+        }
+
+        return id;
+    }
+
+    private void rehashProductCodes()
+    {
+        productCodeTable = new int[productCodeTable.length << 1];
+        int mask = productCodeTable.length - 1;
+        for (int id = 0; id < productCodeCount; id++)
+        {
+            int hash = 0;
+            for (byte b : productCodeBytes[id])
+            {
+                hash = 31 * hash + b;
+            }
+
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (productCodeTable[slot] != 0)
+            {
+                slot = (slot + 1) & mask;
+            }
+            productCodeTable[slot] = id + 1;
+        }
+    }
+
+    private static boolean rangeEquals(
+            byte[] codeBytes,
+            byte[] bytes,
+            int from)
+    {
+        for (int i = 0; i < codeBytes.length; i++)
+        {
+            if (codeBytes[i] != bytes[from + i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int parseInt(
+            byte[] bytes,
+            int from,
+            int to,
+            String field)
+            throws IOException
+    {
+        long value = parseLong(bytes, from, to, field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+        {
+            throw error(from, "field '" + field + "' is out of range");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Разбирает целое число так же, как {@link Long#parseLong(String)}: накапливает его
+     * отрицательным, чтобы без переполнения принять {@link Long#MIN_VALUE}.
+     */
+    private long parseLong(
+            byte[] bytes,
+            int from,
+            int to,
+            String field)
+            throws IOException
+    {
+        boolean negative = from < to && bytes[from] == '-';
+        int i = negative || from < to && bytes[from] == '+' ? from + 1 : from;
+        if (i == to)
+        {
+            throw error(from, "field '" + field + "' is not a number");
+        }
+
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplicationLimit = limit / 10;
+        long result = 0;
+        for (; i < to; i++)
+        {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                throw error(from, "field '" + field + "' is not a number");
+            }
+
+            if (result < multiplicationLimit || result * 10 < limit + digit)
+            {
+                throw error(from, "field '" + field + "' is out of range");
+            }
+            result = result * 10 - digit;
+        }
+
+        return negative ? result : -result;
+    }
+
+    /**
+     * Разбирает момент времени {@code yyyy-MM-ddTHH:mm[:ss[.SSS...]]}, где вместо {@code T}
+     * допускается пробел, и переводит его в миллисекунды от начала эпохи так же,
+     * как {@link PriceTimes#toEpochMillis(java.time.LocalDateTime)}.
+     */
+    private long parseTime(
+            byte[] bytes,
+            int from,
+            int to,
+            String field)
+            throws IOException
+    {
+        int length = to - from;
+        if (length < 16
+                || bytes[from + 4] != '-' || bytes[from + 7] != '-'
+                || bytes[from + 10] != 'T' && bytes[from + 10] != ' '
+                || bytes[from + 13] != ':')
+        {
+            throw error(from, "field '" + field + "' is not a date-time");
+        }
+
+        int year = digits(bytes, from, 4, field);
+        int month = digits(bytes, from + 5, 2, field);
+        int day = digits(bytes, from + 8, 2, field);
+        int hour = digits(bytes, from + 11, 2, field);
+        int minute = digits(bytes, from + 14, 2, field);
+        int second = 0;
+        int millis = 0;
+        if (length > 16)
+        {
+            if (length < 19 || bytes[from + 16] != ':')
+            {
+                throw error(from, "field '" + field + "' is not a date-time");
+            }
+            second = digits(bytes, from + 17, 2, field);
+
+            if (length > 19)
+            {
+                if (length == 20 || length > 29 || bytes[from + 19] != '.')
+                {
+                    throw error(from, "field '" + field + "' is not a date-time");
+                }
+
+                for (int i = 0; i < 3; i++)
+                {
+                    millis = millis * 10 + (20 + i < length ? digits(bytes, from + 20 + i, 1, field) : 0);
+                }
+                for (int i = 23; i < length; i++)
+                {
+                    digits(bytes, from + i, 1, field);
+                }
+            }
+        }
+
+        if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59)
+        {
+            throw error(from, "field '" + field + "' is not a valid date-time");
+        }
+
+        long epochSecond = epochDay(year, month, day) * 86400 + hour * 3600 + minute * 60 + second;
+
+        return epochSecond * 1000 + millis;
+    }
+
+    private int digits(
+            byte[] bytes,
+            int from,
+            int count,
+            String field)
+            throws IOException
+    {
+        int result = 0;
+        for (int i = from; i < from + count; i++)
+        {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+            {
+                throw error(from, "field '" + field + "' is not a date-time");
+            }
+            result = result * 10 + digit;
+        }
+
+        return result;
+    }
+
+    private static int lengthOfMonth(
+            int year,
+            int month)
+    {
+        switch (month)
+        {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(
+            long year)
+    {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * Повторяет {@link java.time.LocalDate#toEpochDay()} для годов от 0 до 9999.
+     */
+    private static long epochDay(
+            int year,
+            int month,
+            int day)
+    {
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if (month > 2)
+        {
+            total--;
+            if (!isLeapYear(year))
+            {
+                total--;
+            }
+        }
+
+        return total - DAYS_0000_TO_1970;
+    }
+
+    private IOException error(
+            int position,
+            String reason)
+    {
+        return new IOException("Malformed price record at byte " + (fileOffset + position) + ": " + reason);
+    }
+}
@@ -0,0 +1,238 @@
+package ru.pricelist.test.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Утилитный класс для загрузки цен из текстовых файлов с разделителями (CSV, TSV).
+ * <br>
+ * Каждая строка файла - одна цена из шести полей:
+ * <pre>
+ * код товара, номер цены, отдел, начало срока действия, конец срока действия, значение
+ * </pre>
+ * Моменты времени записываются как {@code yyyy-MM-ddTHH:mm[:ss[.SSS]]} (вместо {@code T}
+ * допускается пробел), пустые строки пропускаются, кавычки и экранирование
+ * разделителя не поддерживаются.
+ * <br>
+ * Файл делится на части фиксированного размера по границам строк. Части читаются
+ * и разбираются параллельно без создания экземпляров {@link ru.pricelist.test.api.Price},
+ * а разобранные части применяются к книге {@link CompactPriceBook} в порядке файла,
+ * каждая как отдельная порция новых цен. Одновременно разбирается не больше двух частей
+ * на поток пула, поэтому занятая память не зависит от размера файла.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceFeeds
+{
+    /**
+     * Наибольшая длина строки файла в байтах.
+     */
+    static final int MAX_LINE_LENGTH = 1 << 16;
+
+    static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private PriceFeeds()
+    {
+    }
+
+    /**
+     * Загружает цены файла в книгу в общем пуле {@link ForkJoinPool#commonPool()}.
+     *
+     * @param path
+     *        путь к файлу.
+     * @param separator
+     *        разделитель полей, например {@code ','} или {@code '\t'}.
+     * @param header
+     *        признак того, что первая строка файла - заголовок.
+     * @param priceBook
+     *        книга цен.
+     * @return количество загруженных записей.
+     * @throws IOException
+     *         если файл не удалось прочитать или строка файла не является записью цены.
+     *
+     * @see #importFile(Path, char, boolean, CompactPriceBook, ForkJoinPool)
+     */
+    public static long importFile(
+            Path path,
+            char separator,
+            boolean header,
+            CompactPriceBook priceBook)
+            throws IOException
+    {
+        return importFile(path, separator, header, priceBook, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Загружает цены файла в книгу.
+     * <br>
+     * Результат совпадает с последовательным применением к книге частей файла
+     * методом {@link CompactPriceBook#apply(java.util.Collection)}. Если загрузка прервана
+     * исключением, в книге остаются уже примененные части.
+     *
+     * @param path
+     *        путь к файлу.
+     * @param separator
+     *        разделитель полей, например {@code ','} или {@code '\t'}.
+     * @param header
+     *        признак того, что первая строка файла - заголовок.
+     * @param priceBook
+     *        книга цен.
+     * @param pool
+     *        пул потоков для разбора.
+     * @return количество загруженных записей.
+     * @throws IOException
+     *         если файл не удалось прочитать или строка файла не является записью цены.
+     */
+    public static long importFile(
+            Path path,
+            char separator,
+            boolean header,
+            CompactPriceBook priceBook,
+            ForkJoinPool pool)
+            throws IOException
+    {
+        return importFile(path, separator, header, priceBook, pool, DEFAULT_CHUNK_SIZE);
+    }
+
+    static long importFile(
+            Path path,
+            char separator,
+            boolean header,
+            CompactPriceBook priceBook,
+            ForkJoinPool pool,
+            int chunkSize)
+            throws IOException
+    {
+        if (separator > 0x7F || separator == '\n' || separator == '\r')
+        {
+            throw new IllegalArgumentException("Unsupported separator: " + (int) separator);
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long fileSize = channel.size();
+            long chunkCount = (fileSize + chunkSize - 1) / chunkSize;
+            int window = Math.max(1, pool.getParallelism() * CHUNKS_PER_THREAD);
+
+            ArrayDeque<ForkJoinTask<PriceFeedChunk>> tasks = new ArrayDeque<>();
+            long submittedChunks = 0;
+            long records = 0;
+            try
+            {
+                while (submittedChunks < chunkCount || !tasks.isEmpty())
+                {
+                    while (submittedChunks < chunkCount && tasks.size() < window)
+                    {
+                        long start = submittedChunks * chunkSize;
+                        long end = Math.min(fileSize, start + chunkSize);
+                        tasks.add(pool.submit(() -> readChunk(channel, fileSize, start, end, (byte) separator,
+                                header && start == 0)));
+                        submittedChunks++;
+                    }
+
+                    PriceFeedChunk chunk = join(tasks.poll());
+                    priceBook.apply(chunk);
+                    records += chunk.size();
+                }
+            }
+            finally
+            {
+                for (ForkJoinTask<PriceFeedChunk> task : tasks)
+                {
+                    task.cancel(false);
+                }
+            }
+
+            return records;
+        }
+    }
+
+    private static PriceFeedChunk join(
+            ForkJoinTask<PriceFeedChunk> task)
+            throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Price feed import was interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof UncheckedIOException)
+            {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Читает и разбирает строки, начинающиеся в диапазоне [start, end) файла.
+     * <br>
+     * Чтение начинается на байт раньше диапазона, чтобы узнать, начинается ли
+     * с его первого байта новая строка, и захватывает до {@link #MAX_LINE_LENGTH}
+     * байтов после диапазона, чтобы дочитать последнюю строку.
+     */
+    private static PriceFeedChunk readChunk(
+            FileChannel channel,
+            long fileSize,
+            long start,
+            long end,
+            byte separator,
+            boolean skipHeader)
+    {
+        try
+        {
+            long readStart = Math.max(0, start - 1);
+            long readEnd = Math.min(fileSize, end + MAX_LINE_LENGTH);
+            byte[] bytes = new byte[(int) (readEnd - readStart)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, readStart + buffer.position()) < 0)
+                {
+                    throw new EOFException("Price feed was truncated while reading");
+                }
+            }
+
+            int from = 0;
+            if (start > 0 || skipHeader)
+            {
+                while (from < bytes.length && bytes[from] != '\n')
+                {
+                    from++;
+                }
+                from++;
+            }
+
+            return PriceFeedChunk.parse(bytes, from, (int) (end - readStart), bytes.length, readEnd == fileSize,
+                    separator, readStart);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
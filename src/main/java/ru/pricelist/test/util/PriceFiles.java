@@ -0,0 +1,280 @@
+package ru.pricelist.test.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Утилитный класс для хранения цен в двоичном файле фиксированного формата.
+ * <br>
+ * Файл состоит из заголовка, словаря кодов товаров и записей фиксированной длины.
+ * Все числа записываются в порядке big-endian:
+ * <pre>
+ * заголовок (32 байта):
+ *     int  0x50524346 ("PRCF")
+ *     int  версия формата
+ *     long количество записей
+ *     int  количество кодов товаров
+ *     int  размер словаря в байтах
+ *     long количество записей, хранящихся отдельно
+ * словарь, коды товаров по возрастанию:
+ *     int  длина кода в байтах UTF-8
+ *     byte[] код
+ * записи (36 байт), по возрастанию ключа и начала срока действия,
+ * а за ними - записи, хранящиеся отдельно, по возрастанию ключа:
+ *     int  номер кода товара в словаре
+ *     int  номер цены
+ *     int  отдел
+ *     long начало срока действия
+ *     long конец срока действия
+ *     long значение
+ * </pre>
+ * Сроки действия хранятся в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+ * Отдельно хранятся необъединенные новые цены, начало которых совпало с началом
+ * другой цены ключа (см. {@link CompactPriceBook}): в поиске действующей цены они
+ * не участвуют. Количество записей в заголовке включает и их. Файлы версии 1 заголовка
+ * из 24 байт без последнего поля и таких записей не содержат и по-прежнему читаются.
+ *
+ * @see MappedPriceFile
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceFiles
+{
+    static final int MAGIC = 0x50524346;
+
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int VERSION_1_HEADER_SIZE = 24;
+
+    static final int RECORD_SIZE = 36;
+
+    static final int PRODUCT_ID_OFFSET = 0;
+
+    static final int NUMBER_OFFSET = 4;
+
+    static final int DEPART_OFFSET = 8;
+
+    static final int BEGIN_OFFSET = 12;
+
+    static final int END_OFFSET = 20;
+
+    static final int VALUE_OFFSET = 28;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private static final Comparator<PriceKey> KEY_ORDER = Comparator
+            .comparing(PriceKey::getProductCode)
+            .thenComparingInt(PriceKey::getNumber)
+            .thenComparingInt(PriceKey::getDepart);
+
+    private PriceFiles()
+    {
+    }
+
+    /**
+     * Отображает файл цен в память.
+     * <br>
+     * Отображение освобождается методом {@link MappedPriceFile#close()}.
+     *
+     * @param path
+     *        путь к файлу.
+     * @return отображенный файл цен.
+     * @throws IOException
+     *         если файл не удалось прочитать или он не является файлом цен.
+     */
+    public static MappedPriceFile map(
+            Path path)
+            throws IOException
+    {
+        return MappedPriceFile.map(path);
+    }
+
+    /**
+     * Записывает цены в файл.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия записывается первая.
+     *
+     * @param path
+     *        путь к файлу.
+     * @param prices
+     *        коллекция цен.
+     * @throws IOException
+     *         если файл не удалось записать.
+     *
+     * @see #write(Path, CompactPriceBook)
+     */
+    public static void write(
+            Path path,
+            Collection<Price> prices)
+            throws IOException
+    {
+        write(path, new CompactPriceBook(prices));
+    }
+
+    /**
+     * Записывает цены книги в файл.
+     * <br>
+     * Файл сначала пишется рядом с целевым, сбрасывается на диск и затем атомарно
+     * заменяет целевой, поэтому читатели никогда не видят наполовину записанный файл.
+     *
+     * @param path
+     *        путь к файлу.
+     * @param priceBook
+     *        книга цен; коды товаров не должны быть {@code null}.
+     * @throws IOException
+     *         если файл не удалось записать.
+     */
+    public static void write(
+            Path path,
+            CompactPriceBook priceBook)
+            throws IOException
+    {
+        List<Map.Entry<PriceKey, PriceIntervals>> entries = new ArrayList<>();
+        priceBook.forEachIntervals((key, intervals) ->
+        {
+            if (key.getProductCode() == null)
+            {
+                throw new IllegalArgumentException("Product code must not be null: " + key);
+            }
+
+            if (intervals.size() > 0)
+            {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(key, intervals));
+            }
+        });
+        entries.sort(Map.Entry.comparingByKey(KEY_ORDER));
+
+        List<PriceKey> keys = new ArrayList<>(entries.size());
+        long size = 0;
+        long collidedSize = 0;
+        for (Map.Entry<PriceKey, PriceIntervals> entry : entries)
+        {
+            keys.add(entry.getKey());
+            size += entry.getValue().size();
+            collidedSize += entry.getValue().getCollidedCount();
+        }
+
+        List<byte[]> productCodes = new ArrayList<>();
+        int[] productIds = new int[keys.size()];
+        int dictionarySize = 0;
+        String productCode = null;
+        for (int i = 0; i < keys.size(); i++)
+        {
+            if (!keys.get(i).getProductCode().equals(productCode))
+            {
+                productCode = keys.get(i).getProductCode();
+                byte[] bytes = productCode.getBytes(StandardCharsets.UTF_8);
+                productCodes.add(bytes);
+                dictionarySize += Integer.BYTES + bytes.length;
+            }
+            productIds[i] = productCodes.size() - 1;
+        }
+
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(size);
+            buffer.putInt(productCodes.size());
+            buffer.putInt(dictionarySize);
+            buffer.putLong(collidedSize);
+
+            for (byte[] bytes : productCodes)
+            {
+                ensureRemaining(channel, buffer, Integer.BYTES);
+                buffer.putInt(bytes.length);
+                for (int offset = 0; offset < bytes.length; )
+                {
+                    ensureRemaining(channel, buffer, 1);
+                    int length = Math.min(bytes.length - offset, buffer.remaining());
+                    buffer.put(bytes, offset, length);
+                    offset += length;
+                }
+            }
+
+            for (int i = 0; i < keys.size(); i++)
+            {
+                PriceIntervals intervals = entries.get(i).getValue();
+                writeRecords(channel, buffer, productIds[i], keys.get(i), intervals,
+                        0, intervals.size() - intervals.getCollidedCount());
+            }
+            for (int i = 0; i < keys.size(); i++)
+            {
+                PriceIntervals intervals = entries.get(i).getValue();
+                writeRecords(channel, buffer, productIds[i], keys.get(i), intervals,
+                        intervals.size() - intervals.getCollidedCount(), intervals.size());
+            }
+
+            flush(channel, buffer);
+            channel.force(true);
+        }
+
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecords(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int productId,
+            PriceKey key,
+            PriceIntervals intervals,
+            int from,
+            int to)
+            throws IOException
+    {
+        for (int j = from; j < to; j++)
+        {
+            ensureRemaining(channel, buffer, RECORD_SIZE);
+            buffer.putInt(productId);
+            buffer.putInt(key.getNumber());
+            buffer.putInt(key.getDepart());
+            buffer.putLong(intervals.getBegin(j));
+            buffer.putLong(intervals.getEnd(j));
+            buffer.putLong(intervals.getValue(j));
+        }
+    }
+
+    private static void ensureRemaining(
+            FileChannel channel,
+            ByteBuffer buffer,
+            int length)
+            throws IOException
+    {
+        if (buffer.remaining() < length)
+        {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(
+            FileChannel channel,
+            ByteBuffer buffer)
+            throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
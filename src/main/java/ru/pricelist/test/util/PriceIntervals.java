@@ -0,0 +1,714 @@
+package ru.pricelist.test.util;
+
+import java.util.Arrays;
+
+/**
+ * Сроки действия и значения цен одного ключа в колоночном примитивном представлении.
+ * <br>
+ * Интервалы хранятся в параллельных массивах, упорядоченных по началу срока действия;
+ * моменты времени - в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+ * Операции повторяют поведение дерева цен {@link PriceBook}, включая отказ
+ * от вставки имеющейся цены или остатка разорванного интервала с уже имеющимся началом.
+ * Необъединенная новая цена с таким началом, как и в {@link Prices#merge(java.util.Collection, java.util.Collection)},
+ * не отбрасывается, а хранится отдельно от остальных интервалов, как в {@link PriceBook}:
+ * она входит в {@link #size()} последней, но в последующих объединениях и в поиске
+ * действующей цены не участвует.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceIntervals
+{
+    private static final int INITIAL_CAPACITY = 2;
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * Наименьший размер порции цен ключа, объединяемой линейным проходом.
+     */
+    static final int SWEEP_THRESHOLD = 4;
+
+    private long[] begins;
+
+    private long[] ends;
+
+    private long[] values;
+
+    private int size;
+
+    /**
+     * Необъединенные новые цены, начало которых совпало с началом интервала, в порядке добавления.
+     */
+    private long[] collidedBegins = EMPTY;
+
+    private long[] collidedEnds = EMPTY;
+
+    private long[] collidedValues = EMPTY;
+
+    private int collidedSize;
+
+    /**
+     * Признак поглощения новой цены последним вызовом {@link #cross}.
+     */
+    private boolean newPriceMerged;
+
+    /**
+     * Признак разрыва интервала последним вызовом {@link #cross}
+     * и срок действия и значение оставшейся части разорванного интервала.
+     * Если разорваны несколько пересекающихся интервалов, как и в {@link PriceBook},
+     * сохраняется остаток первого: остатки начинаются одновременно, и следующие
+     * не добавились бы.
+     */
+    private boolean parted;
+
+    private long remainingEnd;
+
+    private long remainingValue;
+
+    /**
+     * Служебные поля группировки порции новых цен по ключам в {@link CompactPriceBook}.
+     */
+    int batchHead = -1;
+
+    int batchTail = -1;
+
+    PriceIntervals()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    PriceIntervals(
+            int capacity)
+    {
+        begins = new long[capacity];
+        ends = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Создает копию интервалов для изменения без влияния на исходные.
+     */
+    PriceIntervals copy()
+    {
+        PriceIntervals copy = new PriceIntervals(Math.max(size, INITIAL_CAPACITY));
+        System.arraycopy(begins, 0, copy.begins, 0, size);
+        System.arraycopy(ends, 0, copy.ends, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+
+        if (collidedSize > 0)
+        {
+            copy.collidedBegins = Arrays.copyOf(collidedBegins, collidedSize);
+            copy.collidedEnds = Arrays.copyOf(collidedEnds, collidedSize);
+            copy.collidedValues = Arrays.copyOf(collidedValues, collidedSize);
+            copy.collidedSize = collidedSize;
+        }
+
+        return copy;
+    }
+
+    /**
+     * Возвращает количество всех интервалов, включая хранящиеся отдельно.
+     */
+    int size()
+    {
+        return size + collidedSize;
+    }
+
+    /**
+     * Возвращает количество интервалов, хранящихся отдельно; их индексы - последние.
+     */
+    int getCollidedCount()
+    {
+        return collidedSize;
+    }
+
+    /**
+     * Удаляет все интервалы, сохраняя массивы для повторного заполнения.
+     */
+    void clear()
+    {
+        size = 0;
+        collidedSize = 0;
+    }
+
+    long getBegin(
+            int index)
+    {
+        return index < size ? begins[index] : collidedBegins[index - size];
+    }
+
+    long getEnd(
+            int index)
+    {
+        return index < size ? ends[index] : collidedEnds[index - size];
+    }
+
+    long getValue(
+            int index)
+    {
+        return index < size ? values[index] : collidedValues[index - size];
+    }
+
+    /**
+     * Находит интервал, действующий в заданный момент.
+     * <br>
+     * Интервал действует с начала включительно до конца исключительно.
+     * Рассматривается интервал, начавшийся последним не позже заданного момента, а из
+     * начавшихся одновременно - первый по порядку хранения, как и в {@link PriceBook}.
+     * Интервалы, хранящиеся отдельно, не рассматриваются.
+     *
+     * @return индекс интервала или {@code -1}, если в этот момент цена не действует.
+     */
+    int indexAt(
+            long time)
+    {
+        int index = firstBeginAfter(begins, 0, size, time) - 1;
+        while (index > 0 && begins[index - 1] == begins[index])
+        {
+            index--;
+        }
+
+        if (index >= 0 && time < ends[index])
+        {
+            return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Добавляет интервал с сохранением порядка.
+     *
+     * @return {@code false}, если интервал с таким началом уже есть.
+     */
+    boolean add(
+            long begin,
+            long end,
+            long value)
+    {
+        int index = Arrays.binarySearch(begins, 0, size, begin);
+        if (index >= 0)
+        {
+            return false;
+        }
+
+        insert(-index - 1, begin, end, value);
+
+        return true;
+    }
+
+    /**
+     * Добавляет необъединенную новую цену.
+     * <br>
+     * В отличие от {@link #add(long, long, long)} цена не отбрасывается, если интервал
+     * с таким началом уже есть, а хранится отдельно (см. {@link #appendCollided(long, long, long)}).
+     */
+    void addNonMerged(
+            long begin,
+            long end,
+            long value)
+    {
+        if (!add(begin, end, value))
+        {
+            appendCollided(begin, end, value);
+        }
+    }
+
+    /**
+     * Добавляет интервал к хранящимся отдельно.
+     * <br>
+     * Служит и для восстановления сохраненного состояния (см. {@link #getCollidedCount()}).
+     */
+    void appendCollided(
+            long begin,
+            long end,
+            long value)
+    {
+        if (collidedSize == collidedBegins.length)
+        {
+            int capacity = Math.max(INITIAL_CAPACITY, collidedSize << 1);
+            collidedBegins = Arrays.copyOf(collidedBegins, capacity);
+            collidedEnds = Arrays.copyOf(collidedEnds, capacity);
+            collidedValues = Arrays.copyOf(collidedValues, capacity);
+        }
+
+        collidedBegins[collidedSize] = begin;
+        collidedEnds[collidedSize] = end;
+        collidedValues[collidedSize] = value;
+        collidedSize++;
+    }
+
+    /**
+     * Добавляет интервал в конец без поиска.
+     * <br>
+     * Служит для восстановления интервалов, сохраненных в том порядке, в котором их хранил
+     * этот класс. Объединение пересекающихся цен может оставить у ключа интервалы с одинаковым
+     * началом и нарушить порядок начал, поэтому сохраненное состояние восстанавливается как есть.
+     */
+    void append(
+            long begin,
+            long end,
+            long value)
+    {
+        insert(size, begin, end, value);
+    }
+
+    /**
+     * Объединяет новую цену с пересекающимися интервалами
+     * по правилам {@link Prices#merge(java.util.Collection, java.util.Collection)}.
+     *
+     * @return {@code true}, если новая цена поглощена одним из имеющихся интервалов
+     *         и не должна добавляться отдельно.
+     */
+    boolean merge(
+            long newBegin,
+            long newEnd,
+            long newValue)
+    {
+        if (newBegin > newEnd)
+        {
+            throw new IllegalArgumentException("Price begin is after its end");
+        }
+
+        int from = firstEndAfter(ends, 0, size, newBegin);
+        int to = firstBeginNotBefore(begins, from, size, newEnd);
+
+        int write = cross(begins, ends, values, from, to, newBegin, newEnd, newValue);
+        if (write < to)
+        {
+            remove(write, to);
+        }
+
+        if (parted)
+        {
+            add(newEnd, remainingEnd, remainingValue);
+        }
+
+        return newPriceMerged;
+    }
+
+    /**
+     * Объединяет порцию новых цен этого ключа.
+     * <br>
+     * Результат совпадает с последовательным объединением цен порции в исходном порядке
+     * с добавлением необъединенных цен после обработки всей порции. Если цены порции
+     * не пересекаются друг с другом, а имеющиеся интервалы - между собой, порция упорядочивается
+     * по началу срока действия и, как правило, объединяется за один линейный проход по интервалам,
+     * иначе - последовательно.
+     *
+     * @param batch
+     *        новые цены ключа в исходном порядке.
+     * @param scratch
+     *        временный буфер.
+     * @param sweepBuffer
+     *        временный буфер результата линейного прохода.
+     */
+    void mergeBatch(
+            IntervalBuffer batch,
+            IntervalBuffer scratch,
+            IntervalBuffer sweepBuffer)
+    {
+        IntervalBuffer sortedBatch = null;
+        if (batch.size() >= SWEEP_THRESHOLD)
+        {
+            if (batch.isSortedDisjoint())
+            {
+                sortedBatch = batch;
+            }
+            else
+            {
+                scratch.copyFrom(batch);
+                scratch.sortByBegin();
+                if (scratch.isSortedDisjoint())
+                {
+                    sortedBatch = scratch;
+                }
+            }
+        }
+
+        if (sortedBatch == null || !sweep(sortedBatch, sweepBuffer))
+        {
+            mergeSequentially(batch, scratch);
+        }
+    }
+
+    private void mergeSequentially(
+            IntervalBuffer batch,
+            IntervalBuffer nonMerged)
+    {
+        nonMerged.clear();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (!merge(batch.getBegin(i), batch.getEnd(i), batch.getValue(i)))
+            {
+                nonMerged.append(batch.getBegin(i), batch.getEnd(i), batch.getValue(i));
+            }
+        }
+
+        for (int i = 0; i < nonMerged.size(); i++)
+        {
+            addNonMerged(nonMerged.getBegin(i), nonMerged.getEnd(i), nonMerged.getValue(i));
+        }
+    }
+
+    /**
+     * Объединяет упорядоченную порцию непересекающихся непустых цен за один проход.
+     * <br>
+     * Имеющиеся интервалы переносятся во временный буфер по мере продвижения по порции;
+     * каждая новая цена обрабатывается тем же разбором случаев, что и в {@link #merge(long, long, long)},
+     * но только на хвосте уже перенесенных интервалов. Необъединенная цена сразу
+     * встает на свое место после интервалов, начавшихся раньше нее: последующие
+     * цены порции ее не пересекают.
+     * <br>
+     * Порядок обработки цен порции не влияет на результат, только пока интервалы не пересекаются
+     * друг с другом: новая цена, продлевающая два интервала со своим значением, делает
+     * их пересекающимися, и дальнейший результат зависит от порядка. Поэтому проход
+     * выполняется только над непересекающимися интервалами и прерывается на такой цене,
+     * как и на необъединенной цене с уже имеющимся началом, не изменив интервалов.
+     * <br>
+     * Результат копируется обратно в массивы интервалов, которые растут только
+     * при увеличении количества интервалов, поэтому повторные проходы не создают объектов.
+     *
+     * @return {@code false}, если проход неприменим и порцию нужно объединить последовательно.
+     */
+    private boolean sweep(
+            IntervalBuffer sortedBatch,
+            IntervalBuffer sweepBuffer)
+    {
+        if (!isSortedDisjoint(begins, ends, size))
+        {
+            return false;
+        }
+
+        int count = sortedBatch.size();
+        sweepBuffer.ensureCapacity(size + 2 * count);
+        long[] outBegins = sweepBuffer.getBegins();
+        long[] outEnds = sweepBuffer.getEnds();
+        long[] outValues = sweepBuffer.getValues();
+
+        int read = 0;
+        int write = 0;
+        int from = 0;
+        for (int i = 0; i < count; i++)
+        {
+            long newBegin = sortedBatch.getBegin(i);
+            long newEnd = sortedBatch.getEnd(i);
+            long newValue = sortedBatch.getValue(i);
+
+            while (read < size && begins[read] < newEnd)
+            {
+                outBegins[write] = begins[read];
+                outEnds[write] = ends[read];
+                outValues[write] = values[read];
+                write++;
+                read++;
+            }
+
+            from = firstEndAfter(outEnds, from, write, newBegin);
+            if (countValue(outValues, from, write, newValue) > 1)
+            {
+                return false;
+            }
+
+            write = cross(outBegins, outEnds, outValues, from, write, newBegin, newEnd, newValue);
+
+            if (parted)
+            {
+                outBegins[write] = newEnd;
+                outEnds[write] = remainingEnd;
+                outValues[write] = remainingValue;
+                write++;
+            }
+
+            if (!newPriceMerged)
+            {
+                int position = firstBeginAfter(outBegins, from, write, newBegin);
+                if (position > from && outBegins[position - 1] == newBegin)
+                {
+                    return false;
+                }
+
+                int tail = write - position;
+                System.arraycopy(outBegins, position, outBegins, position + 1, tail);
+                System.arraycopy(outEnds, position, outEnds, position + 1, tail);
+                System.arraycopy(outValues, position, outValues, position + 1, tail);
+
+                outBegins[position] = newBegin;
+                outEnds[position] = newEnd;
+                outValues[position] = newValue;
+                write++;
+            }
+        }
+
+        int tail = size - read;
+        int outSize = write + tail;
+        if (outSize > begins.length)
+        {
+            int capacity = Math.max(outSize, size + (size >> 1) + 1);
+            begins = Arrays.copyOf(begins, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        System.arraycopy(begins, read, begins, outSize - tail, tail);
+        System.arraycopy(ends, read, ends, outSize - tail, tail);
+        System.arraycopy(values, read, values, outSize - tail, tail);
+
+        System.arraycopy(outBegins, 0, begins, 0, write);
+        System.arraycopy(outEnds, 0, ends, 0, write);
+        System.arraycopy(outValues, 0, values, 0, write);
+        size = outSize;
+
+        return true;
+    }
+
+    private static boolean isSortedDisjoint(
+            long[] begins,
+            long[] ends,
+            int size)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (begins[i] >= ends[i] || i > 0 && ends[i - 1] > begins[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int countValue(
+            long[] values,
+            int from,
+            int to,
+            long value)
+    {
+        int count = 0;
+        for (int i = from; i < to; i++)
+        {
+            if (values[i] == value)
+            {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Применяет правила объединения новой цены к интервалам {@code [from, to)}.
+     * <br>
+     * Удаленные интервалы вытесняются к концу диапазона; признаки поглощения новой цены
+     * и разрыва интервала сохраняются в полях объекта.
+     *
+     * @return граница оставшихся интервалов диапазона.
+     */
+    private int cross(
+            long[] begins,
+            long[] ends,
+            long[] values,
+            int from,
+            int to,
+            long newBegin,
+            long newEnd,
+            long newValue)
+    {
+        newPriceMerged = false;
+        parted = false;
+
+        int write = from;
+        for (int read = from; read < to; read++)
+        {
+            long crossedBegin = begins[read];
+            long crossedEnd = ends[read];
+            long crossedValue = values[read];
+
+            if (crossedBegin < newBegin)
+            {
+                if (crossedEnd <= newEnd)
+                {
+                    if (crossedValue == newValue)
+                    {
+                        crossedEnd = newEnd;
+                        newPriceMerged = true;
+                    }
+                    else
+                    {
+                        crossedEnd = newBegin;
+                    }
+                }
+                else
+                {
+                    if (crossedValue == newValue)
+                    {
+                        newPriceMerged = true;
+                    }
+                    else
+                    {
+                        if (!parted)
+                        {
+                            parted = true;
+                            remainingEnd = crossedEnd;
+                            remainingValue = crossedValue;
+                        }
+
+                        crossedEnd = newBegin;
+                    }
+                }
+            }
+            else
+            {
+                if (crossedEnd <= newEnd)
+                {
+                    if (crossedValue == newValue)
+                    {
+                        crossedBegin = newBegin;
+                        crossedEnd = newEnd;
+
+                        newPriceMerged = true;
+                    }
+                    else
+                    {
+                        continue;
+                    }
+                }
+                else
+                {
+                    if (crossedValue == newValue)
+                    {
+                        crossedBegin = newBegin;
+
+                        newPriceMerged = true;
+                    }
+                    else
+                    {
+                        crossedBegin = newEnd;
+                    }
+                }
+            }
+
+            begins[write] = crossedBegin;
+            ends[write] = crossedEnd;
+            values[write] = crossedValue;
+            write++;
+        }
+
+        return write;
+    }
+
+    private static int firstEndAfter(
+            long[] ends,
+            int from,
+            int to,
+            long time)
+    {
+        int low = from;
+        int high = to;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] > time)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static int firstBeginAfter(
+            long[] begins,
+            int from,
+            int to,
+            long time)
+    {
+        int low = from;
+        int high = to;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (begins[middle] > time)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static int firstBeginNotBefore(
+            long[] begins,
+            int from,
+            int to,
+            long time)
+    {
+        int low = from;
+        int high = to;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (begins[middle] >= time)
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private void insert(
+            int index,
+            long begin,
+            long end,
+            long value)
+    {
+        if (size == begins.length)
+        {
+            int capacity = size + (size >> 1) + 1;
+            begins = Arrays.copyOf(begins, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        int tail = size - index;
+        if (tail > 0)
+        {
+            System.arraycopy(begins, index, begins, index + 1, tail);
+            System.arraycopy(ends, index, ends, index + 1, tail);
+            System.arraycopy(values, index, values, index + 1, tail);
+        }
+
+        begins[index] = begin;
+        ends[index] = end;
+        values[index] = value;
+        size++;
+    }
+
+    private void remove(
+            int from,
+            int to)
+    {
+        int tail = size - to;
+        if (tail > 0)
+        {
+            System.arraycopy(begins, to, begins, from, tail);
+            System.arraycopy(ends, to, ends, from, tail);
+            System.arraycopy(values, to, values, from, tail);
+        }
+
+        size -= to - from;
+    }
+}
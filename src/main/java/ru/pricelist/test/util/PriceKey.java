@@ -0,0 +1,80 @@
+package ru.pricelist.test.util;
+
+import java.util.Objects;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Ключ группировки цен: код товара, номер цены и отдел.
+ * <br>
+ * Сроки действия цен с одинаковым ключом не должны пересекаться.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceKey
+{
+    private final String productCode;
+
+    private final int number;
+
+    private final int depart;
+
+    PriceKey(
+            String productCode,
+            int number,
+            int depart)
+    {
+        this.productCode = productCode;
+        this.number = number;
+        this.depart = depart;
+    }
+
+    static PriceKey of(
+            Price price)
+    {
+        return new PriceKey(price.getProductCode(), price.getNumber(), price.getDepart());
+    }
+
+    String getProductCode()
+    {
+        return productCode;
+    }
+
+    int getNumber()
+    {
+        return number;
+    }
+
+    int getDepart()
+    {
+        return depart;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (31 * Objects.hashCode(productCode) + number) * 31 + depart;
+    }
+
+    @Override
+    public boolean equals(
+            Object obj)
+    {
+        if (obj instanceof PriceKey)
+        {
+            PriceKey that = (PriceKey) obj;
+
+            return number == that.number
+                    && depart == that.depart
+                    && Objects.equals(productCode, that.productCode);
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("product_code_%s{number: %d, depart: %d}", productCode, number, depart);
+    }
+}
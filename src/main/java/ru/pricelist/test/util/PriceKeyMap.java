@@ -0,0 +1,140 @@
+package ru.pricelist.test.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Карта значений по ключу цены (код товара, номер цены, отдел) без объектов-ключей.
+ * <br>
+ * Коды товаров кодируются словарем {@link ProductCodes}, ключ упаковывается
+ * в {@code long} ({@link PackedPriceKeys}) и хранится в {@link LongObjectHashMap}.
+ * Поиск и вставка существующего ключа не создают объектов. Редкие ключи,
+ * не помещающиеся в упакованное представление (код {@code null}, слишком большие
+ * номер цены или отдел, слишком много кодов), хранятся в обычной карте по {@link PriceKey}.
+ * <br>
+ * Карта не является потокобезопасной.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceKeyMap<V>
+{
+    private final ProductCodes productCodes = new ProductCodes();
+
+    private final LongObjectHashMap<V> packedValues = new LongObjectHashMap<>();
+
+    private HashMap<PriceKey, V> unpackedValues;
+
+    V get(
+            String productCode,
+            int number,
+            int depart)
+    {
+        if (productCode != null && PackedPriceKeys.fits(number, depart))
+        {
+            int productId = productCodes.find(productCode);
+            if (productId >= 0)
+            {
+                return packedValues.get(PackedPriceKeys.pack(productId, number, depart));
+            }
+
+            if (productCodes.size() <= PackedPriceKeys.MAX_PRODUCT_ID)
+            {
+                return null;
+            }
+        }
+
+        return unpackedValues == null ? null : unpackedValues.get(new PriceKey(productCode, number, depart));
+    }
+
+    /**
+     * Возвращает значение ключа, создавая его при отсутствии.
+     */
+    V computeIfAbsent(
+            String productCode,
+            int number,
+            int depart,
+            Supplier<V> valueFactory)
+    {
+        if (productCode != null && PackedPriceKeys.fits(number, depart))
+        {
+            int productId = productCodes.find(productCode);
+            if (productId < 0 && productCodes.size() <= PackedPriceKeys.MAX_PRODUCT_ID)
+            {
+                productId = productCodes.intern(productCode);
+            }
+
+            if (productId >= 0)
+            {
+                long key = PackedPriceKeys.pack(productId, number, depart);
+                V value = packedValues.get(key);
+                if (value == null)
+                {
+                    value = valueFactory.get();
+                    packedValues.put(key, value);
+                }
+
+                return value;
+            }
+        }
+
+        if (unpackedValues == null)
+        {
+            unpackedValues = new HashMap<>();
+        }
+
+        return unpackedValues.computeIfAbsent(new PriceKey(productCode, number, depart), k -> valueFactory.get());
+    }
+
+    int size()
+    {
+        return packedValues.size() + (unpackedValues == null ? 0 : unpackedValues.size());
+    }
+
+    /**
+     * Обходит все ключи и значения; ключи создаются при обходе.
+     */
+    void forEach(
+            BiConsumer<PriceKey, V> action)
+    {
+        for (int slot = 0; slot < packedValues.capacity(); slot++)
+        {
+            long key = packedValues.keyAt(slot);
+            if (key != 0)
+            {
+                action.accept(new PriceKey(productCodes.getCode(PackedPriceKeys.productId(key)),
+                        PackedPriceKeys.number(key), PackedPriceKeys.depart(key)), packedValues.valueAt(slot));
+            }
+        }
+
+        if (unpackedValues != null)
+        {
+            for (Map.Entry<PriceKey, V> entry : unpackedValues.entrySet())
+            {
+                action.accept(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Обходит все значения без создания ключей.
+     */
+    void forEachValue(
+            Consumer<V> action)
+    {
+        for (int slot = 0; slot < packedValues.capacity(); slot++)
+        {
+            if (packedValues.keyAt(slot) != 0)
+            {
+                action.accept(packedValues.valueAt(slot));
+            }
+        }
+
+        if (unpackedValues != null)
+        {
+            unpackedValues.values().forEach(action);
+        }
+    }
+}
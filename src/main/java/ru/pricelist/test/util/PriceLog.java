@@ -0,0 +1,407 @@
+package ru.pricelist.test.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Сегмент журнала предзаписи книги {@link DurablePriceBook}.
+ * <br>
+ * Сегмент начинается заголовком и содержит порции новых цен с последовательными номерами.
+ * Все числа записываются в порядке big-endian:
+ * <pre>
+ * заголовок (16 байт):
+ *     int  0x50524357 ("PRCW")
+ *     int  версия формата
+ *     long номер первой порции сегмента
+ * порция:
+ *     int  длина тела в байтах
+ *     int  CRC32 тела
+ *     тело:
+ *         long номер порции
+ *         int  количество цен
+ *         цены:
+ *             int    длина кода товара в байтах UTF-8
+ *             byte[] код товара
+ *             int    номер цены
+ *             int    отдел
+ *             long   начало срока действия
+ *             long   конец срока действия
+ *             long   значение
+ * </pre>
+ * Порция, не дописанная до конца или с неверной контрольной суммой, считается оборванной:
+ * чтение сегмента на ней заканчивается, а сегмент обрезается до последней целой порции.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceLog
+implements Closeable
+{
+    static final int MAGIC = 0x50524357;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 16;
+
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final int BATCH_HEADER_SIZE = 12;
+
+    private static final int PRICE_SIZE = 36;
+
+    private final FileChannel channel;
+
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    private long size;
+
+    /**
+     * Размер сегмента до последней дописанной порции.
+     */
+    private long lastFrameStart;
+
+    /**
+     * Признак того, что неудачную запись не удалось откатить и сегмент испорчен.
+     */
+    private boolean broken;
+
+    private PriceLog(
+            FileChannel channel,
+            long size)
+    {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /**
+     * Создает новый сегмент.
+     *
+     * @param path
+     *        путь к сегменту; файла не должно существовать.
+     * @param firstSequence
+     *        номер первой порции сегмента.
+     * @return сегмент, открытый для записи.
+     * @throws IOException
+     *         если сегмент не удалось создать.
+     */
+    static PriceLog create(
+            Path path,
+            long firstSequence)
+            throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(firstSequence);
+            header.flip();
+            while (header.hasRemaining())
+            {
+                channel.write(header);
+            }
+            channel.force(true);
+
+            return new PriceLog(channel, HEADER_SIZE);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Дописывает порцию в сегмент без сброса на диск.
+     * <br>
+     * Порция сначала целиком кодируется в буфер, поэтому неверная цена не оставляет
+     * в сегменте следов. Если запись не удалась, сегмент обрезается до прежнего размера.
+     *
+     * @param sequence
+     *        номер порции.
+     * @param prices
+     *        цены порции; коды товаров, сроки действия и значения не должны быть {@code null},
+     *        а начало срока действия не должно быть позже его конца.
+     * @throws IllegalArgumentException
+     *         если в порции есть неверная цена.
+     * @throws IOException
+     *         если порцию не удалось записать.
+     */
+    void append(
+            long sequence,
+            Collection<Price> prices)
+            throws IOException
+    {
+        if (broken)
+        {
+            throw new IOException("Price log is broken by a failed write");
+        }
+
+        encode(sequence, prices);
+
+        try
+        {
+            long position = size;
+            while (buffer.hasRemaining())
+            {
+                position += channel.write(buffer, position);
+            }
+            lastFrameStart = size;
+            size = position;
+        }
+        catch (IOException e)
+        {
+            try
+            {
+                channel.truncate(size);
+            }
+            catch (IOException truncateException)
+            {
+                broken = true;
+                e.addSuppressed(truncateException);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Отрезает последнюю дописанную порцию, например, если ее не удалось применить.
+     * <br>
+     * Если сегмент не удалось обрезать, он считается испорченным и больше не принимает порций.
+     *
+     * @throws IOException
+     *         если сегмент не удалось обрезать.
+     */
+    void discardLast()
+            throws IOException
+    {
+        try
+        {
+            channel.truncate(lastFrameStart);
+            size = lastFrameStart;
+        }
+        catch (IOException e)
+        {
+            broken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Сбрасывает записанные порции на диск.
+     */
+    void sync()
+            throws IOException
+    {
+        channel.force(false);
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        channel.close();
+    }
+
+    private void encode(
+            long sequence,
+            Collection<Price> prices)
+    {
+        buffer.clear();
+        buffer.position(FRAME_HEADER_SIZE);
+        ensureRemaining(BATCH_HEADER_SIZE);
+        buffer.putLong(sequence);
+        buffer.putInt(prices.size());
+        for (Price price : prices)
+        {
+            if (price.getProductCode() == null)
+            {
+                throw new IllegalArgumentException("Product code must not be null: " + price);
+            }
+
+            byte[] productCode = price.getProductCode().getBytes(StandardCharsets.UTF_8);
+            long begin = PriceTimes.toEpochMillis(price.getBegin());
+            long end = PriceTimes.toEpochMillis(price.getEnd());
+            long value = price.getValue();
+            if (begin > end)
+            {
+                throw new IllegalArgumentException("Price begin is after its end: " + price);
+            }
+
+            ensureRemaining(productCode.length + PRICE_SIZE);
+            buffer.putInt(productCode.length);
+            buffer.put(productCode);
+            buffer.putInt(price.getNumber());
+            buffer.putInt(price.getDepart());
+            buffer.putLong(begin);
+            buffer.putLong(end);
+            buffer.putLong(value);
+        }
+
+        int payloadLength = buffer.position() - FRAME_HEADER_SIZE;
+        crc.reset();
+        crc.update(buffer.array(), FRAME_HEADER_SIZE, payloadLength);
+        buffer.putInt(0, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+    }
+
+    private void ensureRemaining(
+            int length)
+    {
+        if (buffer.remaining() < length)
+        {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Читает порции сегмента и передает их получателю.
+     * <br>
+     * Порции с номерами не больше {@code lastSequence} пропускаются, следующие должны идти
+     * подряд. Оборванный хвост сегмента отрезается.
+     *
+     * @param path
+     *        путь к сегменту.
+     * @param lastSequence
+     *        номер последней уже примененной порции.
+     * @param consumer
+     *        получатель цен порции.
+     * @return номер последней примененной порции.
+     * @throws IOException
+     *         если сегмент не удалось прочитать или в номерах порций есть пропуск.
+     */
+    static long replay(
+            Path path,
+            long lastSequence,
+            Consumer<List<Price>> consumer)
+            throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            {
+                throw new IOException("Not a price log: " + path);
+            }
+
+            CRC32 crc = new CRC32();
+            ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+            long position = HEADER_SIZE;
+            while (position < fileSize)
+            {
+                frameHeader.clear();
+                readFully(channel, frameHeader, position);
+                int payloadLength = frameHeader.getInt(0);
+                if (frameHeader.hasRemaining() || payloadLength < BATCH_HEADER_SIZE
+                        || payloadLength > fileSize - position - FRAME_HEADER_SIZE)
+                {
+                    break;
+                }
+
+                ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+                readFully(channel, payload, position + FRAME_HEADER_SIZE);
+                crc.reset();
+                crc.update(payload.array(), 0, payloadLength);
+                if (payload.hasRemaining() || (int) crc.getValue() != frameHeader.getInt(4))
+                {
+                    break;
+                }
+
+                payload.flip();
+                long sequence = payload.getLong();
+                if (sequence > lastSequence + 1)
+                {
+                    throw new IOException("Price log " + path + " skips batches " + (lastSequence + 1)
+                            + " to " + (sequence - 1));
+                }
+
+                if (sequence == lastSequence + 1)
+                {
+                    consumer.accept(decode(payload, path));
+                    lastSequence = sequence;
+                }
+
+                position += FRAME_HEADER_SIZE + payloadLength;
+            }
+
+            if (position < fileSize)
+            {
+                channel.truncate(position);
+                channel.force(true);
+            }
+
+            return lastSequence;
+        }
+    }
+
+    private static List<Price> decode(
+            ByteBuffer payload,
+            Path path)
+            throws IOException
+    {
+        try
+        {
+            int count = payload.getInt();
+            List<Price> prices = new ArrayList<>(Math.min(count, payload.remaining() / PRICE_SIZE));
+            for (int i = 0; i < count; i++)
+            {
+                byte[] productCode = new byte[payload.getInt()];
+                payload.get(productCode);
+
+                Price price = new Price();
+                price.setProductCode(new String(productCode, StandardCharsets.UTF_8));
+                price.setNumber(payload.getInt());
+                price.setDepart(payload.getInt());
+                price.setBegin(PriceTimes.fromEpochMillis(payload.getLong()));
+                price.setEnd(PriceTimes.fromEpochMillis(payload.getLong()));
+                price.setValue(payload.getLong());
+                prices.add(price);
+            }
+
+            return prices;
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException e)
+        {
+            throw new IOException("Corrupted price log batch: " + path, e);
+        }
+    }
+
+    private static void readFully(
+            FileChannel channel,
+            ByteBuffer buffer,
+            long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+            {
+                return;
+            }
+            position += read;
+        }
+    }
+}
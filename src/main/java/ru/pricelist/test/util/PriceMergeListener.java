@@ -0,0 +1,99 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Слушатель изменений цен книги {@link PriceBook}.
+ * <br>
+ * Получает каждое изменение в момент, когда книга его выполняет: изменение срока действия
+ * имеющейся цены, удаление цены и добавление цены, в том числе оставшейся части
+ * разорванной цены. Вызывается в потоке, изменяющем книгу.
+ * <br>
+ * Книга сообщает каждое изменение один раз - методом {@link #priceChanged}; его реализация
+ * по умолчанию передает изменение одному из методов {@link #priceAdded}, {@link #priceUpdated}
+ * и {@link #priceRemoved}. Слушатель реализует либо эти методы, либо {@link #priceChanged}.
+ *
+ * @author Valery Skavysh.
+ */
+public interface PriceMergeListener
+{
+    /**
+     * Вызывается после добавления цены в книгу.
+     *
+     * @param price
+     *        добавленная цена: новая цена, не объединенная с имеющимися,
+     *        или оставшаяся часть разорванной цены.
+     */
+    default void priceAdded(
+            Price price)
+    {
+    }
+
+    /**
+     * Вызывается после изменения срока действия цены книги.
+     *
+     * @param price
+     *        цена с уже измененным сроком действия.
+     * @param oldBegin
+     *        прежнее начало срока действия.
+     * @param oldEnd
+     *        прежний конец срока действия.
+     */
+    default void priceUpdated(
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+    }
+
+    /**
+     * Вызывается после удаления цены из книги.
+     *
+     * @param price
+     *        удаленная цена: цена, полностью перекрытая новой ценой с другим значением,
+     *        или имеющаяся цена, не попавшая в книгу из-за цены с тем же ключом
+     *        и тем же началом срока действия.
+     */
+    default void priceRemoved(
+            Price price)
+    {
+    }
+
+    /**
+     * Вызывается после каждого изменения цены книги и сообщает вид изменения.
+     * <br>
+     * Продление цены на тот же срок, не изменяющее ее, не сообщается. Реализация
+     * по умолчанию передает добавление цены методу {@link #priceAdded}, удаление -
+     * методу {@link #priceRemoved}, а остальные изменения - методу {@link #priceUpdated}.
+     *
+     * @param type
+     *        вид изменения.
+     * @param price
+     *        измененная, добавленная или удаленная цена.
+     * @param oldBegin
+     *        прежнее начало срока действия или {@code null} для добавленной и удаленной цены.
+     * @param oldEnd
+     *        прежний конец срока действия или {@code null} для добавленной и удаленной цены.
+     */
+    default void priceChanged(
+            PriceChangeEvent.Type type,
+            Price price,
+            LocalDateTime oldBegin,
+            LocalDateTime oldEnd)
+    {
+        switch (type)
+        {
+            case INSERTED:
+                priceAdded(price);
+                break;
+            case REMOVED:
+                priceRemoved(price);
+                break;
+            default:
+                priceUpdated(price, oldBegin, oldEnd);
+                break;
+        }
+    }
+}
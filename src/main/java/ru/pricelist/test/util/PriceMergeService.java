@@ -0,0 +1,593 @@
+package ru.pricelist.test.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Асинхронное объединение частых небольших порций новых цен с книгой {@link PriceBook}.
+ * <br>
+ * Порции, переданные методом {@link #submit(Collection)} из любых потоков, накапливаются
+ * в очереди и применяются к книге одной задачей исполнителя: задача ждет окончания окна
+ * накопления, отсчитанного от поступления первой порции, или набора заданного количества цен,
+ * забирает накопленные порции и применяет их к книге вместе. Пока порции применяются,
+ * следующие накапливаются, поэтому с ростом нагрузки порции книги укрупняются, а не выстраиваются
+ * в очередь на блокировке.
+ * <br>
+ * Результат совпадает с применением порций по одной в порядке поступления. Для этого цены
+ * накопленных порций раскладываются по ключам в раунды: цены ключа из первой затрагивающей его
+ * порции попадают в первый раунд, из следующей - во второй, и каждый раунд применяется одним
+ * {@link PriceBook#apply(Collection)}. Обычно ключи порций не повторяются, и раунд один.
+ * <br>
+ * Будущий результат каждой порции завершается после ее применения в потоке исполнителя
+ * либо исключением, если применение не удалось; в последнем случае книга может остаться
+ * частично измененной.
+ * <br>
+ * Служба не удерживает поток исполнителя между порциями и ждет в блокировках
+ * {@link ReentrantLock}, поэтому подходит и для исполнителя виртуальных потоков. По умолчанию
+ * используется исполнитель виртуальных потоков, если он есть в JDK, иначе отдельный поток-демон.
+ *
+ * @author Valery Skavysh.
+ */
+public class PriceMergeService
+implements AutoCloseable
+{
+    /**
+     * Окно накопления по умолчанию в микросекундах.
+     */
+    public static final long DEFAULT_WINDOW_MICROS = 500;
+
+    /**
+     * Количество цен, при котором накопление прекращается досрочно, по умолчанию.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1 << 14;
+
+    private final PriceBook priceBook;
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    private final Executor executor;
+
+    /**
+     * Исполнитель, созданный службой и закрываемый вместе с ней.
+     */
+    private final ExecutorService ownExecutor;
+
+    /**
+     * Блокировка очереди порций и состояния задачи применения.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition batchReady = lock.newCondition();
+
+    private final Condition idle = lock.newCondition();
+
+    /**
+     * Блокировка книги и номера ее порции.
+     */
+    private final ReentrantLock bookLock = new ReentrantLock();
+
+    private final ArrayDeque<Submission> pending = new ArrayDeque<>();
+
+    private int pendingPriceCount;
+
+    private boolean drainScheduled;
+
+    private boolean closed;
+
+    private long batchSequence;
+
+    /**
+     * Создает службу с окном накопления, размером порции и исполнителем по умолчанию.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public PriceMergeService(
+            Collection<Price> prices)
+    {
+        this(prices, DEFAULT_WINDOW_MICROS, TimeUnit.MICROSECONDS, DEFAULT_MAX_BATCH_SIZE, null);
+    }
+
+    /**
+     * Создает службу.
+     *
+     * @param prices
+     *        коллекция имеющихся цен; служба изменяет переданные экземпляры, как и {@link PriceBook}.
+     * @param window
+     *        окно накопления порций; 0 - применять накопленное без ожидания.
+     * @param unit
+     *        единица окна накопления.
+     * @param maxBatchSize
+     *        количество цен, при котором накопление прекращается досрочно.
+     * @param executor
+     *        исполнитель задачи применения или {@code null} для исполнителя по умолчанию.
+     */
+    public PriceMergeService(
+            Collection<Price> prices,
+            long window,
+            TimeUnit unit,
+            int maxBatchSize,
+            Executor executor)
+    {
+        if (window < 0)
+        {
+            throw new IllegalArgumentException("Window must not be negative: " + window);
+        }
+        if (maxBatchSize <= 0)
+        {
+            throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+        }
+
+        this.priceBook = new PriceBook(prices);
+        this.windowNanos = unit.toNanos(window);
+        this.maxBatchSize = maxBatchSize;
+        this.ownExecutor = executor == null ? createDefaultExecutor() : null;
+        this.executor = executor == null ? ownExecutor : executor;
+    }
+
+    /**
+     * Ставит порцию новых цен в очередь на применение.
+     * <br>
+     * Служба изменяет переданные экземпляры цен, как и {@link PriceBook}; передавать их
+     * в другие порции и изменять после вызова нельзя.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return будущий результат применения порции.
+     * @throws IllegalStateException
+     *         если служба закрыта.
+     */
+    public CompletableFuture<MergeResult> submit(
+            Collection<Price> newPrices)
+    {
+        Submission submission = new Submission(new ArrayList<>(newPrices));
+        boolean schedule;
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                throw new IllegalStateException("Price merge service is closed");
+            }
+
+            if (pending.isEmpty())
+            {
+                submission.arrivalNanos = System.nanoTime();
+            }
+            pending.add(submission);
+            pendingPriceCount += submission.prices.size();
+
+            schedule = !drainScheduled;
+            drainScheduled = true;
+            if (!schedule && pendingPriceCount >= maxBatchSize)
+            {
+                batchReady.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (schedule)
+        {
+            scheduleDrain();
+        }
+
+        return submission.future;
+    }
+
+    /**
+     * Возвращает копии всех цен книги с учетом всех порций, результат которых уже завершен.
+     *
+     * @return новое множество копий цен.
+     */
+    public Set<Price> getPrices()
+    {
+        bookLock.lock();
+        try
+        {
+            Set<Price> prices = new HashSet<>();
+            for (Price price : priceBook.getPrices())
+            {
+                Price copy = new Price();
+                copy.setId(price.getId());
+                copy.setProductCode(price.getProductCode());
+                copy.setNumber(price.getNumber());
+                copy.setDepart(price.getDepart());
+                copy.setBegin(price.getBegin());
+                copy.setEnd(price.getEnd());
+                copy.setValue(price.getValue());
+                prices.add(copy);
+            }
+
+            return prices;
+        }
+        finally
+        {
+            bookLock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает количество примененных порций книги.
+     */
+    public long getBatchCount()
+    {
+        bookLock.lock();
+        try
+        {
+            return batchSequence;
+        }
+        finally
+        {
+            bookLock.unlock();
+        }
+    }
+
+    /**
+     * Прекращает прием порций, дожидается применения поставленных в очередь
+     * и закрывает исполнитель по умолчанию.
+     * <br>
+     * Прерванный поток прекращает ожидание с сохранением признака прерывания,
+     * но поставленные в очередь порции все равно применяются.
+     */
+    @Override
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            batchReady.signal();
+            while (drainScheduled)
+            {
+                idle.await();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (ownExecutor != null)
+        {
+            ownExecutor.shutdown();
+        }
+    }
+
+    private void scheduleDrain()
+    {
+        try
+        {
+            executor.execute(this::drain);
+        }
+        catch (RejectedExecutionException e)
+        {
+            failPending(e);
+        }
+    }
+
+    /**
+     * Завершает ошибкой все ожидающие порции и снимает признак запланированного применения.
+     */
+    private void failPending(
+            Throwable failure)
+    {
+        List<Submission> failed;
+        lock.lock();
+        try
+        {
+            failed = new ArrayList<>(pending);
+            pending.clear();
+            pendingPriceCount = 0;
+            drainScheduled = false;
+            idle.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        for (Submission submission : failed)
+        {
+            submission.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Применяет накопленные порции (см. {@link #drainBatch()}).
+     * <br>
+     * Ошибка {@link Error} завершает ошибкой и применяемые, и все ожидающие порции, иначе
+     * их {@link CompletableFuture#get()} и {@link #close()} ждали бы вечно, и пробрасывается
+     * исполнителю.
+     */
+    private void drain()
+    {
+        try
+        {
+            drainBatch();
+        }
+        catch (Throwable e)
+        {
+            failPending(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Дожидается окна накопления, применяет накопленные порции и, если за это время
+     * поступили новые, ставит себя в очередь исполнителя снова.
+     * <br>
+     * Исключение при разборе или применении порций завершает ошибкой только применяемые
+     * порции, ошибка {@link Error} после этого пробрасывается.
+     */
+    private void drainBatch()
+    {
+        List<Submission> batch = takeBatch();
+
+        MergeResult result = null;
+        Throwable failure = null;
+        bookLock.lock();
+        try
+        {
+            int priceCount = 0;
+            for (List<Price> round : splitRounds(batch))
+            {
+                priceBook.apply(round);
+                priceCount += round.size();
+            }
+            result = new MergeResult(++batchSequence, batch.size(), priceCount);
+        }
+        catch (Throwable e)
+        {
+            failure = e;
+        }
+        finally
+        {
+            bookLock.unlock();
+        }
+
+        for (Submission submission : batch)
+        {
+            if (failure == null)
+            {
+                submission.future.complete(result);
+            }
+            else
+            {
+                submission.future.completeExceptionally(failure);
+            }
+        }
+
+        if (failure instanceof Error)
+        {
+            throw (Error) failure;
+        }
+
+        boolean schedule;
+        lock.lock();
+        try
+        {
+            schedule = !pending.isEmpty();
+            if (!schedule)
+            {
+                drainScheduled = false;
+                idle.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (schedule)
+        {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Ждет окончания окна накопления первой порции очереди и забирает порции
+     * общим размером не меньше {@link #maxBatchSize} цен либо все.
+     * <br>
+     * Прерванный поток исполнителя прекращает ожидание, но накопленные порции применяются.
+     */
+    private List<Submission> takeBatch()
+    {
+        lock.lock();
+        try
+        {
+            long remainingNanos = pending.peek().arrivalNanos + windowNanos - System.nanoTime();
+            try
+            {
+                while (remainingNanos > 0 && pendingPriceCount < maxBatchSize && !closed)
+                {
+                    remainingNanos = batchReady.awaitNanos(remainingNanos);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            List<Submission> batch = new ArrayList<>();
+            int priceCount = 0;
+            while (!pending.isEmpty() && priceCount < maxBatchSize)
+            {
+                Submission submission = pending.poll();
+                batch.add(submission);
+                priceCount += submission.prices.size();
+            }
+            pendingPriceCount -= priceCount;
+
+            Submission next = pending.peek();
+            if (next != null)
+            {
+                next.arrivalNanos = System.nanoTime() - windowNanos;
+            }
+
+            return batch;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Раскладывает цены накопленных порций по ключам: цены ключа из первой затрагивающей его
+     * порции попадают в первый раунд, из второй - во второй и так далее.
+     * <br>
+     * Ключи объединяются в книге независимо друг от друга, поэтому последовательное применение
+     * раундов дает тот же результат, что и применение порций по одной в порядке поступления.
+     */
+    private static List<List<Price>> splitRounds(
+            List<Submission> batch)
+    {
+        List<List<Price>> rounds = new ArrayList<>();
+        PriceKeyMap<KeyRound> keyRounds = new PriceKeyMap<>();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            for (Price price : batch.get(i).prices)
+            {
+                KeyRound keyRound = keyRounds.computeIfAbsent(price.getProductCode(), price.getNumber(),
+                        price.getDepart(), KeyRound::new);
+                if (keyRound.submission != i)
+                {
+                    keyRound.round = keyRound.submission < 0 ? 0 : keyRound.round + 1;
+                    keyRound.submission = i;
+                    if (keyRound.round == rounds.size())
+                    {
+                        rounds.add(new ArrayList<>());
+                    }
+                }
+                rounds.get(keyRound.round).add(price);
+            }
+        }
+
+        return rounds;
+    }
+
+    /**
+     * Создает исполнитель виртуальных потоков, если он есть в JDK, иначе однопоточный
+     * исполнитель с потоком-демоном.
+     */
+    private static ExecutorService createDefaultExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "price-merge-service");
+                thread.setDaemon(true);
+
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Номер раунда ключа и последняя порция, в которой ключ встретился.
+     */
+    private static final class KeyRound
+    {
+        private int submission = -1;
+
+        private int round;
+    }
+
+    /**
+     * Порция, поставленная в очередь.
+     */
+    private static final class Submission
+    {
+        private final List<Price> prices;
+
+        private final CompletableFuture<MergeResult> future = new CompletableFuture<>();
+
+        /**
+         * Момент поступления, от которого отсчитывается окно накопления;
+         * задается первой порции очереди.
+         */
+        private long arrivalNanos;
+
+        private Submission(
+                List<Price> prices)
+        {
+            this.prices = prices;
+        }
+    }
+
+    /**
+     * Результат применения порции новых цен.
+     */
+    public static final class MergeResult
+    {
+        private final long batchSequence;
+
+        private final int submissionCount;
+
+        private final int priceCount;
+
+        MergeResult(
+                long batchSequence,
+                int submissionCount,
+                int priceCount)
+        {
+            this.batchSequence = batchSequence;
+            this.submissionCount = submissionCount;
+            this.priceCount = priceCount;
+        }
+
+        /**
+         * Возвращает номер порции книги, в составе которой применена порция.
+         */
+        public long getBatchSequence()
+        {
+            return batchSequence;
+        }
+
+        /**
+         * Возвращает количество порций, примененных вместе в порции книги.
+         */
+        public int getSubmissionCount()
+        {
+            return submissionCount;
+        }
+
+        /**
+         * Возвращает количество цен в порции книги.
+         */
+        public int getPriceCount()
+        {
+            return priceCount;
+        }
+    }
+}
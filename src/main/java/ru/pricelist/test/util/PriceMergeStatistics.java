@@ -0,0 +1,327 @@
+package ru.pricelist.test.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Статистика объединения цен книгой {@link PriceBook}.
+ * <br>
+ * Считает исходы объединения новых цен с имеющимися (продление, усечение, разрыв
+ * и удаление имеющейся цены, поглощение новой цены имеющейся, новые цены,
+ * не объединенные ни с одной имеющейся),
+ * строит гистограммы длительности этапов (построение деревьев по старым ценам,
+ * объединение порции, сбор результата) и ширины пересечения - количества имеющихся
+ * цен ключа, с которыми пересеклась новая цена.
+ * <br>
+ * Счетчики основаны на {@link LongAdder}, поэтому один экземпляр можно передавать
+ * книгам, работающим в разных потоках. Книга без статистики не замеряет время
+ * и не считает исходы. Статистику можно зарегистрировать в JMX как стандартный MBean:
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+ *         new ObjectName("ru.pricelist.test:type=PriceMergeStatistics"));
+ * </pre>
+ *
+ * @see Prices#merge(Collection, Collection, PriceMergeStatistics)
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceMergeStatistics
+implements PriceMergeStatisticsMBean
+{
+    private final LongAdder newPriceCount = new LongAdder();
+
+    private final LongAdder nonMergedCount = new LongAdder();
+
+    private final LongAdder extendedCount = new LongAdder();
+
+    private final LongAdder truncatedCount = new LongAdder();
+
+    private final LongAdder splitCount = new LongAdder();
+
+    private final LongAdder removedCount = new LongAdder();
+
+    private final LongAdder containedCount = new LongAdder();
+
+    private final LongAdder droppedCount = new LongAdder();
+
+    private final LongAdder skippedKeyCount = new LongAdder();
+
+    private final LongAdder prunedCount = new LongAdder();
+
+    private final Log2Histogram groupingNanos = new Log2Histogram();
+
+    private final Log2Histogram mergingNanos = new Log2Histogram();
+
+    private final Log2Histogram collectingNanos = new Log2Histogram();
+
+    private final Log2Histogram overlapWidth = new Log2Histogram();
+
+    /**
+     * Возвращает количество новых цен, переданных книгам.
+     */
+    @Override
+    public long getNewPriceCount()
+    {
+        return newPriceCount.sum();
+    }
+
+    /**
+     * Возвращает количество новых цен, не объединенных ни с одной имеющейся ценой
+     * и добавленных в книгу отдельно.
+     */
+    @Override
+    public long getNonMergedCount()
+    {
+        return nonMergedCount.sum();
+    }
+
+    /**
+     * Возвращает количество имеющихся цен, срок действия которых продлила пересекающаяся
+     * новая цена с тем же значением.
+     */
+    @Override
+    public long getExtendedCount()
+    {
+        return extendedCount.sum();
+    }
+
+    /**
+     * Возвращает количество имеющихся цен, срок действия которых уменьшила новая цена
+     * с другим значением.
+     */
+    @Override
+    public long getTruncatedCount()
+    {
+        return truncatedCount.sum();
+    }
+
+    /**
+     * Возвращает количество имеющихся цен, разорванных новой ценой с другим значением
+     * на две части.
+     */
+    @Override
+    public long getSplitCount()
+    {
+        return splitCount.sum();
+    }
+
+    /**
+     * Возвращает количество имеющихся цен, полностью перекрытых новой ценой с другим значением.
+     */
+    @Override
+    public long getRemovedCount()
+    {
+        return removedCount.sum();
+    }
+
+    /**
+     * Возвращает количество новых цен, срок действия которых целиком входит в срок действия
+     * имеющейся цены с тем же значением; имеющаяся цена при этом не изменяется.
+     */
+    @Override
+    public long getContainedCount()
+    {
+        return containedCount.sum();
+    }
+
+    /**
+     * Возвращает количество старых цен, не попавших в книгу из-за цены с тем же ключом
+     * и тем же началом срока действия.
+     */
+    @Override
+    public long getDroppedCount()
+    {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Возвращает количество ключей, пропущенных без объединения, потому что их новые цены
+     * совпали с имеющимися по отпечатку.
+     */
+    @Override
+    public long getSkippedKeyCount()
+    {
+        return skippedKeyCount.sum();
+    }
+
+    /**
+     * Возвращает количество цен, вытесненных политикой хранения {@link PriceRetentionPolicy}.
+     */
+    @Override
+    public long getPrunedCount()
+    {
+        return prunedCount.sum();
+    }
+
+    @Override
+    public long[] getGroupingNanosHistogram()
+    {
+        return groupingNanos.getCounts();
+    }
+
+    @Override
+    public long[] getMergingNanosHistogram()
+    {
+        return mergingNanos.getCounts();
+    }
+
+    @Override
+    public long[] getCollectingNanosHistogram()
+    {
+        return collectingNanos.getCounts();
+    }
+
+    @Override
+    public long[] getOverlapWidthHistogram()
+    {
+        return overlapWidth.getCounts();
+    }
+
+    /**
+     * Возвращает суммарную длительность построения книг по старым ценам в наносекундах.
+     */
+    @Override
+    public long getGroupingNanos()
+    {
+        return groupingNanos.getSum();
+    }
+
+    /**
+     * Возвращает суммарную длительность применения порций новых цен в наносекундах.
+     */
+    @Override
+    public long getMergingNanos()
+    {
+        return mergingNanos.getSum();
+    }
+
+    /**
+     * Возвращает суммарную длительность сбора цен книг в наносекундах.
+     */
+    @Override
+    public long getCollectingNanos()
+    {
+        return collectingNanos.getSum();
+    }
+
+    /**
+     * Возвращает наибольшее количество имеющихся цен, пересекшихся с одной новой ценой.
+     */
+    @Override
+    public long getMaxOverlapWidth()
+    {
+        return overlapWidth.getMax();
+    }
+
+    /**
+     * Обнуляет все счетчики и гистограммы.
+     * <br>
+     * Обнуление не атомарно относительно одновременно работающих книг.
+     */
+    @Override
+    public void reset()
+    {
+        newPriceCount.reset();
+        nonMergedCount.reset();
+        extendedCount.reset();
+        truncatedCount.reset();
+        splitCount.reset();
+        removedCount.reset();
+        containedCount.reset();
+        droppedCount.reset();
+        skippedKeyCount.reset();
+        prunedCount.reset();
+        groupingNanos.reset();
+        mergingNanos.reset();
+        collectingNanos.reset();
+        overlapWidth.reset();
+    }
+
+    void countNewPrices(
+            int count)
+    {
+        newPriceCount.add(count);
+    }
+
+    void countNonMerged(
+            int count)
+    {
+        nonMergedCount.add(count);
+    }
+
+    void count(
+            Outcome outcome)
+    {
+        switch (outcome)
+        {
+            case EXTENDED:
+                extendedCount.increment();
+                break;
+            case TRUNCATED:
+                truncatedCount.increment();
+                break;
+            case SPLIT:
+                splitCount.increment();
+                break;
+            case REMOVED:
+                removedCount.increment();
+                break;
+            case CONTAINED:
+                containedCount.increment();
+                break;
+            default:
+                throw new IllegalArgumentException("Unexpected outcome: " + outcome);
+        }
+    }
+
+    void countDropped()
+    {
+        droppedCount.increment();
+    }
+
+    void countSkippedKey()
+    {
+        skippedKeyCount.increment();
+    }
+
+    void countPruned()
+    {
+        prunedCount.increment();
+    }
+
+    void recordGrouping(
+            long nanos)
+    {
+        groupingNanos.record(nanos);
+    }
+
+    void recordMerging(
+            long nanos)
+    {
+        mergingNanos.record(nanos);
+    }
+
+    void recordCollecting(
+            long nanos)
+    {
+        collectingNanos.record(nanos);
+    }
+
+    void recordOverlapWidth(
+            int width)
+    {
+        overlapWidth.record(width);
+    }
+
+    /**
+     * Исход объединения новой цены с одной пересекающейся имеющейся ценой.
+     */
+    enum Outcome
+    {
+        EXTENDED,
+        TRUNCATED,
+        SPLIT,
+        REMOVED,
+        CONTAINED
+    }
+}
@@ -0,0 +1,50 @@
+package ru.pricelist.test.util;
+
+/**
+ * JMX-интерфейс статистики объединения цен {@link PriceMergeStatistics}.
+ * <br>
+ * Гистограммы возвращаются массивами количеств по корзинам: корзина 0 считает нули,
+ * корзина i &gt; 0 - значения от 2<sup>i-1</sup> до 2<sup>i</sup> - 1.
+ *
+ * @author Valery Skavysh.
+ */
+public interface PriceMergeStatisticsMBean
+{
+    long getNewPriceCount();
+
+    long getNonMergedCount();
+
+    long getExtendedCount();
+
+    long getTruncatedCount();
+
+    long getSplitCount();
+
+    long getRemovedCount();
+
+    long getContainedCount();
+
+    long getDroppedCount();
+
+    long getSkippedKeyCount();
+
+    long getPrunedCount();
+
+    long[] getGroupingNanosHistogram();
+
+    long[] getMergingNanosHistogram();
+
+    long[] getCollectingNanosHistogram();
+
+    long[] getOverlapWidthHistogram();
+
+    long getGroupingNanos();
+
+    long getMergingNanos();
+
+    long getCollectingNanos();
+
+    long getMaxOverlapWidth();
+
+    void reset();
+}
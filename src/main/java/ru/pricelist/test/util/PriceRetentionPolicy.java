@@ -0,0 +1,129 @@
+package ru.pricelist.test.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Политика хранения истории цен книги {@link PriceBook}.
+ * <br>
+ * Задает отметку хранения: цены, срок действия которых закончился не позже отметки,
+ * считаются устаревшими и вытесняются из книги. Отметка либо постоянна, либо отстоит
+ * на заданный срок истории от текущего момента часов и вычисляется заново при каждом
+ * применении порции. Действующие цены и цены, заканчивающиеся после отметки, вытеснение
+ * не разрывает и не изменяет.
+ * <br>
+ * Вытесненные цены можно передавать в архив {@link PriceArchive}. Политика неизменяема.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceRetentionPolicy
+{
+    private final Duration history;
+
+    private final Clock clock;
+
+    private final LocalDateTime watermark;
+
+    private final PriceArchive archive;
+
+    private PriceRetentionPolicy(
+            Duration history,
+            Clock clock,
+            LocalDateTime watermark,
+            PriceArchive archive)
+    {
+        this.history = history;
+        this.clock = clock;
+        this.watermark = watermark;
+        this.archive = archive;
+    }
+
+    /**
+     * Создает политику, хранящую историю цен за заданный срок до текущего момента
+     * системных часов в часовом поясе по умолчанию.
+     *
+     * @param history
+     *        срок хранения истории, например {@code Duration.ofDays(90)}.
+     */
+    public static PriceRetentionPolicy keepHistory(
+            Duration history)
+    {
+        return keepHistory(history, Clock.systemDefaultZone());
+    }
+
+    /**
+     * Создает политику, хранящую историю цен за заданный срок до текущего момента часов.
+     *
+     * @param history
+     *        срок хранения истории.
+     * @param clock
+     *        часы, по которым вычисляется отметка хранения.
+     */
+    public static PriceRetentionPolicy keepHistory(
+            Duration history,
+            Clock clock)
+    {
+        if (history.isNegative())
+        {
+            throw new IllegalArgumentException("History must not be negative: " + history);
+        }
+
+        return new PriceRetentionPolicy(history, Objects.requireNonNull(clock, "clock"), null, null);
+    }
+
+    /**
+     * Создает политику, хранящую только цены, заканчивающиеся после заданной отметки.
+     *
+     * @param watermark
+     *        отметка хранения.
+     */
+    public static PriceRetentionPolicy keepEndingAfter(
+            LocalDateTime watermark)
+    {
+        return new PriceRetentionPolicy(null, null, Objects.requireNonNull(watermark, "watermark"), null);
+    }
+
+    /**
+     * Возвращает политику с той же отметкой хранения, передающую вытесненные цены в архив.
+     *
+     * @param archive
+     *        архив вытесненных цен или {@code null}, если цены архивировать не нужно.
+     */
+    public PriceRetentionPolicy archiveTo(
+            PriceArchive archive)
+    {
+        return new PriceRetentionPolicy(history, clock, watermark, archive);
+    }
+
+    /**
+     * Возвращает текущую отметку хранения.
+     */
+    public LocalDateTime getWatermark()
+    {
+        return watermark != null ? watermark : LocalDateTime.now(clock).minus(history);
+    }
+
+    /**
+     * Возвращает архив вытесненных цен или {@code null}.
+     */
+    public PriceArchive getArchive()
+    {
+        return archive;
+    }
+
+    /**
+     * Проверяет, что срок действия цены закончился не позже отметки хранения.
+     * <br>
+     * Цена без конца срока действия не устаревает.
+     */
+    static boolean isExpired(
+            Price price,
+            LocalDateTime watermark)
+    {
+        return price.getEnd() != null && !price.getEnd().isAfter(watermark);
+    }
+}
@@ -0,0 +1,224 @@
+package ru.pricelist.test.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Файл последовательных записей цен для внешнего объединения {@link ExternalPriceMerge}.
+ * <br>
+ * Записи читаются только подряд, поэтому файл не содержит ни заголовка, ни словаря:
+ * <pre>
+ * запись:
+ *     byte   признак новой цены
+ *     long   порядковый номер цены в своей коллекции
+ *     UTF    код товара (см. {@link DataOutputStream#writeUTF(String)})
+ *     int    номер цены
+ *     int    отдел
+ *     long   начало срока действия, секунды от начала эпохи
+ *     int    начало срока действия, наносекунды
+ *     long   конец срока действия, секунды от начала эпохи
+ *     int    конец срока действия, наносекунды
+ *     long   значение
+ *     byte   признак идентификатора
+ *     long   идентификатор, если признак не 0
+ * </pre>
+ * Сроки действия хранятся без потери точности, так что цены читаются такими же, какими были записаны.
+ *
+ * @author Valery Skavysh.
+ */
+final class PriceRunFile
+{
+    /**
+     * Порядок записей отрезка: по ключу, затем старые цены перед новыми,
+     * затем по порядковому номеру.
+     */
+    static final Comparator<Record> RECORD_ORDER = Comparator
+            .comparing((Record record) -> record.price.getProductCode())
+            .thenComparingInt(record -> record.price.getNumber())
+            .thenComparingInt(record -> record.price.getDepart())
+            .thenComparing(record -> record.newPrice)
+            .thenComparingLong(record -> record.sequence);
+
+    /**
+     * Размер буфера чтения или записи одного файла.
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private PriceRunFile()
+    {
+    }
+
+    /**
+     * Запись файла: цена, признак новой цены и порядковый номер цены в своей коллекции.
+     */
+    static final class Record
+    {
+        final Price price;
+
+        final boolean newPrice;
+
+        final long sequence;
+
+        Record(
+                Price price,
+                boolean newPrice,
+                long sequence)
+        {
+            this.price = price;
+            this.newPrice = newPrice;
+            this.sequence = sequence;
+        }
+
+        boolean hasSameKey(
+                Record record)
+        {
+            return price.getProductCode().equals(record.price.getProductCode())
+                    && price.getNumber().equals(record.price.getNumber())
+                    && price.getDepart().equals(record.price.getDepart());
+        }
+    }
+
+    /**
+     * Пишет записи в файл подряд.
+     */
+    static final class Writer
+    implements Closeable
+    {
+        private final DataOutputStream output;
+
+        private long count;
+
+        Writer(
+                Path path)
+                throws IOException
+        {
+            output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+        }
+
+        void write(
+                Record record)
+                throws IOException
+        {
+            Price price = record.price;
+            output.writeBoolean(record.newPrice);
+            output.writeLong(record.sequence);
+            output.writeUTF(price.getProductCode());
+            output.writeInt(price.getNumber());
+            output.writeInt(price.getDepart());
+            writeTime(price.getBegin());
+            writeTime(price.getEnd());
+            output.writeLong(price.getValue());
+            output.writeBoolean(price.getId() != null);
+            if (price.getId() != null)
+            {
+                output.writeLong(price.getId());
+            }
+            count++;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            output.close();
+        }
+
+        private void writeTime(
+                LocalDateTime time)
+                throws IOException
+        {
+            output.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            output.writeInt(time.getNano());
+        }
+    }
+
+    /**
+     * Читает записи файла подряд.
+     */
+    static final class Reader
+    implements Closeable
+    {
+        private final Path path;
+
+        private final DataInputStream input;
+
+        Reader(
+                Path path)
+                throws IOException
+        {
+            this.path = path;
+            input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+        }
+
+        /**
+         * Читает следующую запись.
+         *
+         * @return запись или {@code null}, если файл закончился.
+         * @throws IOException
+         *         если файл не удалось прочитать или он оборван посреди записи.
+         */
+        Record read()
+                throws IOException
+        {
+            int newPrice = input.read();
+            if (newPrice < 0)
+            {
+                return null;
+            }
+
+            try
+            {
+                long sequence = input.readLong();
+                Price price = new Price();
+                price.setProductCode(input.readUTF());
+                price.setNumber(input.readInt());
+                price.setDepart(input.readInt());
+                price.setBegin(readTime());
+                price.setEnd(readTime());
+                price.setValue(input.readLong());
+                if (input.readBoolean())
+                {
+                    price.setId(input.readLong());
+                }
+
+                return new Record(price, newPrice != 0, sequence);
+            }
+            catch (EOFException e)
+            {
+                throw new IOException("Truncated price run: " + path, e);
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            input.close();
+        }
+
+        private LocalDateTime readTime()
+                throws IOException
+        {
+            long epochSecond = input.readLong();
+
+            return LocalDateTime.ofEpochSecond(epochSecond, input.readInt(), ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Неизменяемый индекс цен, скомпилированный для быстрого поиска действующего значения.
+ * <br>
+ * Цены каждого ключа разворачиваются в ступенчатую функцию времени: упорядоченные границы
+ * ступеней и значения, действующие от границы до следующей. Промежутки без цены получают
+ * значение {@link CompactPriceBook#NO_VALUE}, а соседние ступени с одинаковым значением
+ * склеиваются. Ступени всех ключей лежат подряд в двух общих массивах примитивов,
+ * так что поиск значения - это поиск ключа и двоичный поиск без ветвлений
+ * по отрезку массива границ.
+ * <br>
+ * Значение в момент определяется так же, как у {@link CompactPriceBook}: из цен ключа
+ * выбирается начавшаяся позже всех до этого момента, и значение есть, если момент раньше
+ * ее конца. Из цен с одинаковым началом выбирается первая: в списке - по порядку списка,
+ * как цены попадали в книгу, в остальных коллекциях, порядок обхода которых не определен, -
+ * с наименьшим концом срока действия, а при равных концах - с наименьшим значением.
+ * Индекс строится один раз методом {@link #compile(Collection)}, например
+ * по результату {@link Prices#merge(Collection, Collection)}, и подходит для узлов,
+ * где объединения редки, а поиски часты: после склейки исходные сроки действия цен
+ * не восстанавливаются, поэтому индекс выдает только значения.
+ * <br>
+ * Индекс потокобезопасен: после построения он не изменяется.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceTimeline
+{
+    private static final Comparator<Price> BEGIN_ORDER = Comparator.comparing(Price::getBegin);
+
+    /**
+     * Порядок цен коллекции, не являющейся списком: не зависит от порядка обхода коллекции.
+     */
+    private static final Comparator<Price> TOTAL_ORDER = BEGIN_ORDER
+            .thenComparing(Price::getEnd)
+            .thenComparing(Price::getValue);
+
+    /**
+     * Номера ключей в {@link #offsets}.
+     */
+    private final PriceKeyMap<Integer> keys;
+
+    /**
+     * Начало отрезка ступеней ключа в {@link #boundaries} и {@link #values}; отрезок
+     * ключа с номером k занимает индексы от {@code offsets[k]} до {@code offsets[k + 1]}.
+     */
+    private final int[] offsets;
+
+    private final long[] boundaries;
+
+    private final long[] values;
+
+    private PriceTimeline(
+            PriceKeyMap<Integer> keys,
+            int[] offsets,
+            long[] boundaries,
+            long[] values)
+    {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.boundaries = boundaries;
+        this.values = values;
+    }
+
+    /**
+     * Компилирует индекс по ценам.
+     * <br>
+     * Переданные цены не изменяются и не удерживаются индексом.
+     *
+     * @param prices
+     *        коллекция цен; сроки действия и значения не должны быть {@code null}.
+     * @return индекс цен.
+     */
+    public static PriceTimeline compile(
+            Collection<Price> prices)
+    {
+        PriceKeyMap<List<Price>> keyPrices = new PriceKeyMap<>();
+        for (Price price : prices)
+        {
+            keyPrices.computeIfAbsent(price.getProductCode(), price.getNumber(), price.getDepart(),
+                    ArrayList::new).add(price);
+        }
+
+        Comparator<Price> order = prices instanceof List ? BEGIN_ORDER : TOTAL_ORDER;
+        PriceKeyMap<Integer> keys = new PriceKeyMap<>();
+        int[] offsets = new int[keyPrices.size() + 1];
+        IntervalBuffer steps = new IntervalBuffer(Math.max(prices.size(), 1));
+        keyPrices.forEach((key, pricesOfKey) -> {
+            int keyIndex = keys.size();
+            keys.computeIfAbsent(key.getProductCode(), key.getNumber(), key.getDepart(), () -> keyIndex);
+            offsets[keyIndex] = steps.size();
+
+            pricesOfKey.sort(order);
+            appendSteps(pricesOfKey, steps);
+            offsets[keyIndex + 1] = steps.size();
+        });
+
+        long[] boundaries = new long[steps.size()];
+        long[] values = new long[steps.size()];
+        for (int i = 0; i < steps.size(); i++)
+        {
+            boundaries[i] = steps.getBegin(i);
+            values[i] = steps.getValue(i);
+        }
+
+        return new PriceTimeline(keys, offsets, boundaries, values);
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     * <br>
+     * Не создает объектов.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param epochMillis
+     *        момент времени в миллисекундах от начала эпохи (см. {@link PriceTimes}).
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            long epochMillis)
+    {
+        Integer keyIndex = keys.get(productCode, number, depart);
+        if (keyIndex == null)
+        {
+            return CompactPriceBook.NO_VALUE;
+        }
+
+        int base = offsets[keyIndex];
+        int length = offsets[keyIndex + 1] - base;
+        if (length == 0)
+        {
+            return CompactPriceBook.NO_VALUE;
+        }
+
+        while (length > 1)
+        {
+            int half = length >>> 1;
+            base = boundaries[base + half] <= epochMillis ? base + half : base;
+            length -= half;
+        }
+
+        return boundaries[base] <= epochMillis ? values[base] : CompactPriceBook.NO_VALUE;
+    }
+
+    /**
+     * Возвращает значение цены, действующей в заданный момент.
+     *
+     * @param productCode
+     *        код товара.
+     * @param number
+     *        номер цены.
+     * @param depart
+     *        отдел.
+     * @param time
+     *        момент времени.
+     * @return значение цены или {@link CompactPriceBook#NO_VALUE}, если цена не действует.
+     */
+    public long valueAt(
+            String productCode,
+            int number,
+            int depart,
+            LocalDateTime time)
+    {
+        return valueAt(productCode, number, depart, PriceTimes.toEpochMillis(time));
+    }
+
+    /**
+     * Возвращает количество ключей индекса.
+     */
+    public int getKeyCount()
+    {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Возвращает общее количество ступеней всех ключей, включая промежутки без цены.
+     */
+    public int getStepCount()
+    {
+        return boundaries.length;
+    }
+
+    /**
+     * Дописывает ступени ключа по его ценам, упорядоченным по началу срока действия.
+     * <br>
+     * Из цен с одинаковым началом действует первая, как и в {@link PriceIntervals#indexAt(long)}.
+     * Ступень без цены до первой цены не нужна, соседние ступени с одинаковым значением
+     * склеиваются.
+     */
+    private static void appendSteps(
+            List<Price> prices,
+            IntervalBuffer steps)
+    {
+        int first = steps.size();
+        int next = 0;
+        while (next < prices.size())
+        {
+            Price price = prices.get(next);
+            long begin = PriceTimes.toEpochMillis(price.getBegin());
+            long end = PriceTimes.toEpochMillis(price.getEnd());
+
+            long nextBegin = Long.MAX_VALUE;
+            while (++next < prices.size())
+            {
+                nextBegin = PriceTimes.toEpochMillis(prices.get(next).getBegin());
+                if (nextBegin != begin)
+                {
+                    break;
+                }
+                nextBegin = Long.MAX_VALUE;
+            }
+
+            long stepEnd = Math.min(end, nextBegin);
+            if (begin < stepEnd)
+            {
+                appendStep(steps, first, begin, price.getValue());
+            }
+
+            if (stepEnd < nextBegin)
+            {
+                appendStep(steps, first, Math.max(begin, stepEnd), CompactPriceBook.NO_VALUE);
+            }
+        }
+    }
+
+    private static void appendStep(
+            IntervalBuffer steps,
+            int first,
+            long boundary,
+            long value)
+    {
+        int last = steps.size() - 1;
+        long previousValue = last >= first ? steps.getValue(last) : CompactPriceBook.NO_VALUE;
+        if (value != previousValue)
+        {
+            steps.append(boundary, boundary, value);
+        }
+    }
+}
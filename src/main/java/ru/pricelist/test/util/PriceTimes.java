@@ -0,0 +1,76 @@
+package ru.pricelist.test.util;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Утилитный класс для перевода сроков действия цен в примитивное представление и обратно.
+ * <br>
+ * Сроки действия хранятся как миллисекунды от начала эпохи без учета часового пояса.
+ * Доли миллисекунды отбрасываются, а моменты, не представимые в миллисекундах
+ * (например, {@link LocalDateTime#MAX}), насыщаются до {@link Long#MAX_VALUE}
+ * и {@link Long#MIN_VALUE} и переводятся обратно в {@link LocalDateTime#MAX}
+ * и {@link LocalDateTime#MIN}.
+ *
+ * @author Valery Skavysh.
+ */
+public final class PriceTimes
+{
+    private static final long MAX_EPOCH_SECOND = Long.MAX_VALUE / 1000;
+
+    private static final long MIN_EPOCH_SECOND = Long.MIN_VALUE / 1000;
+
+    private PriceTimes()
+    {
+    }
+
+    /**
+     * Переводит момент времени в миллисекунды от начала эпохи.
+     * <br>
+     * Не создает объектов.
+     *
+     * @param time
+     *        момент времени.
+     * @return миллисекунды от начала эпохи.
+     */
+    public static long toEpochMillis(
+            LocalDateTime time)
+    {
+        long epochSecond = time.toEpochSecond(ZoneOffset.UTC);
+        if (epochSecond >= MAX_EPOCH_SECOND)
+        {
+            return Long.MAX_VALUE;
+        }
+
+        if (epochSecond <= MIN_EPOCH_SECOND)
+        {
+            return Long.MIN_VALUE;
+        }
+
+        return epochSecond * 1000 + time.getNano() / 1_000_000;
+    }
+
+    /**
+     * Переводит миллисекунды от начала эпохи в момент времени.
+     *
+     * @param epochMillis
+     *        миллисекунды от начала эпохи.
+     * @return момент времени.
+     */
+    public static LocalDateTime fromEpochMillis(
+            long epochMillis)
+    {
+        if (epochMillis == Long.MAX_VALUE)
+        {
+            return LocalDateTime.MAX;
+        }
+
+        if (epochMillis == Long.MIN_VALUE)
+        {
+            return LocalDateTime.MIN;
+        }
+
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000L),
+                (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+}
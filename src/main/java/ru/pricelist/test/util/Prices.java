@@ -1,17 +1,8 @@
 package ru.pricelist.test.util;
 
-import java.time.LocalDateTime;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
 
 import ru.pricelist.test.api.Price;
 
@@ -19,74 +10,12 @@ import ru.pricelist.test.api.Price;
  * Утилитный класс для работы с ценами.
  *
  * @see Price
+ * @see PriceBook
  *
  * @author Valery Skavysh.
  */
 public class Prices
 {
-    static private Comparator<Price> priceTreeComparator;
-
-    static {
-        //В общем-то костыль
-        priceTreeComparator = (p1, p2) -> {
-            Function<Price, IllegalArgumentException> illegalPriceTypeExceptionCreator = p ->
-                    new IllegalArgumentException("Unexpected price type: " + p.getClass());
-
-            if (p1.getClass().isAssignableFrom(Price.class)
-                    && p2.getClass().isAssignableFrom(Price.class))
-            {
-                return p1.getBegin().compareTo(p2.getBegin());
-            }
-
-            if (p1.getClass().isAssignableFrom(Price.class))
-            {
-                if (p2 instanceof PriceBeginBound)
-                {
-                    return p1.getBegin().compareTo(p2.getBegin());
-                }
-
-                if (p2 instanceof PriceEndBound)
-                {
-                    return p1.getEnd().compareTo(p2.getEnd());
-                }
-
-                throw illegalPriceTypeExceptionCreator.apply(p2);
-            }
-
-            if (p1 instanceof PriceBeginBound)
-            {
-                if (p2.getClass().isAssignableFrom(Price.class) || p2 instanceof PriceBeginBound)
-                {
-                    return p1.getBegin().compareTo(p2.getBegin());
-                }
-
-                if (p2 instanceof PriceEndBound)
-                {
-                    return p1.getBegin().compareTo(p2.getEnd());
-                }
-
-                throw illegalPriceTypeExceptionCreator.apply(p2);
-            }
-
-            if (p1 instanceof PriceEndBound)
-            {
-                if (p2.getClass().isAssignableFrom(Price.class) || p2 instanceof PriceEndBound)
-                {
-                    return p1.getEnd().compareTo(p2.getEnd());
-                }
-
-                if (p2 instanceof PriceBeginBound)
-                {
-                    return p1.getEnd().compareTo(p2.getBegin());
-                }
-
-                throw illegalPriceTypeExceptionCreator.apply(p2);
-            }
-
-            throw illegalPriceTypeExceptionCreator.apply(p1);
-        };
-    }
-
     private Prices()
     {
     }
@@ -102,6 +31,9 @@ public class Prices
      *      <li>если значения цен отличаются, добавляется новая цена,
      *      а период действия старой цены уменьшается согласно периоду новой цены.</li>
      *  </ul>
+     * <br>
+     * При регулярном применении небольших порций новых цен к одному и тому же
+     * множеству старых цен следует использовать {@link PriceBook}.
      *
      * @param oldPrices
      *        коллекция старых цен.
@@ -113,198 +45,150 @@ public class Prices
             Collection<Price> oldPrices,
             Collection<Price> newPrices)
     {
-        HashMap<PriceKey, TreeSet<Price>> numberDepartPrices = new HashMap<>();
-        for (Price price : oldPrices)
-        {
-            PriceKey key = new PriceKey(price.getProductCode(), price.getNumber(), price.getDepart());
-            TreeSet<Price> pricesTree;
-            if (numberDepartPrices.containsKey(key))
-            {
-                pricesTree = numberDepartPrices.get(key);
-            }
-            else
-            {
-                pricesTree = new TreeSet<>(priceTreeComparator);
-                numberDepartPrices.put(key, pricesTree);
-            }
+        PriceBook priceBook = new PriceBook(oldPrices);
+        priceBook.apply(newPrices);
 
-            pricesTree.add(price);
-        }
-
-        LinkedList<Price> nonMergedNewPrices = new LinkedList<>();
-        for (Price newPrice: newPrices)
-        {
-            PriceKey key = new PriceKey(newPrice.getProductCode(), newPrice.getNumber(), newPrice.getDepart());
-            TreeSet<Price> pricesTree = numberDepartPrices.get(key);
-            if (pricesTree == null)
-            {
-                nonMergedNewPrices.add(newPrice);
-            }
-            else
-            {
-                if (!mergeNewPrice(pricesTree, newPrice))
-                {
-                    nonMergedNewPrices.add(newPrice);
-                }
-            }
-        }
-
-        return Stream
-                .concat(
-                    numberDepartPrices.values().stream()
-                        .flatMap(TreeSet::stream),
-                    nonMergedNewPrices.stream())
-                .collect(Collectors.toSet());
+        return priceBook.getPrices();
     }
 
-    private static boolean mergeNewPrice(
-            TreeSet<Price> pricesTree,
-            Price newPrice)
+    /**
+     * Объединяет множество старых цен с новыми и учитывает объединение в статистике.
+     * <br>
+     * Объединение выполняется по тем же правилам, что и {@link #merge(Collection, Collection)}.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @param statistics
+     *        статистика объединения.
+     * @return объединенная коллекция старых и новых цен.
+     */
+    public static Set<Price> merge(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices,
+            PriceMergeStatistics statistics)
     {
-        LocalDateTime newPriceBegin = newPrice.getBegin();
-        LocalDateTime newPriceEnd = newPrice.getEnd();
-        Long newPriceValue = newPrice.getValue();
-
-        boolean newPriceMerged = false;
-        Iterator<Price> crossedPricesIterator = pricesTree
-                .subSet(new PriceEndBound(newPriceBegin), false, new PriceBeginBound(newPriceEnd), false)
-                .iterator();
-        while (crossedPricesIterator.hasNext())
-        {
-            Price crossedPrice = crossedPricesIterator.next();
-            LocalDateTime crossedPriceBegin = crossedPrice.getBegin();
-            LocalDateTime crossedPriceEnd = crossedPrice.getEnd();
-            Long crossedPriceValue = crossedPrice.getValue();
-
-            if (crossedPriceBegin.isBefore(newPriceBegin))
-            {
-                if (!crossedPriceEnd.isAfter(newPriceEnd))
-                {
-                    if (crossedPriceValue.equals(newPriceValue))
-                    {
-                        crossedPrice.setEnd(newPriceEnd);
-                        newPriceMerged = true;
-                    }
-                    else
-                    {
-                        crossedPrice.setEnd(newPriceBegin);
-                    }
-                }
-                else
-                {
-                    if (crossedPriceValue.equals(newPriceValue))
-                    {
-                        newPriceMerged = true;
-                    }
-                    else
-                    {
-                        crossedPrice.setEnd(newPriceBegin);
-
-                        Price remainingPartedPrice = new Price();
-                        remainingPartedPrice.setDepart(crossedPrice.getDepart());
-                        remainingPartedPrice.setNumber(crossedPrice.getNumber());
-                        remainingPartedPrice.setProductCode(crossedPrice.getProductCode());
-                        remainingPartedPrice.setValue(crossedPriceValue);
-                        remainingPartedPrice.setBegin(newPriceEnd);
-                        remainingPartedPrice.setEnd(crossedPriceEnd);
-
-                        pricesTree.add(remainingPartedPrice);
-                    }
-                }
-            }
-            else
-            {
-                if (!crossedPriceEnd.isAfter(newPriceEnd))
-                {
-                    if (crossedPriceValue.equals(newPriceValue))
-                    {
-                        crossedPrice.setBegin(newPriceBegin);
-                        crossedPrice.setEnd(newPriceEnd);
-
-                        newPriceMerged = true;
-                    }
-                    else
-                    {
-                        crossedPricesIterator.remove();
-                    }
-                }
-                else
-                {
-                    if (crossedPriceValue.equals(newPriceValue))
-                    {
-                        crossedPrice.setBegin(newPriceBegin);
-
-                        newPriceMerged = true;
-                    }
-                    else
-                    {
-                        crossedPrice.setBegin(newPriceEnd);
-                    }
-                }
-            }
-        }
+        PriceBook priceBook = new PriceBook(oldPrices, null, statistics);
+        priceBook.apply(newPrices);
 
-        return newPriceMerged;
+        return priceBook.getPrices();
     }
 
-    private static class PriceKey
+    /**
+     * Объединяет множество старых цен с новыми, вытесняя устаревшую историю.
+     * <br>
+     * Объединение выполняется по тем же правилам, что и {@link #merge(Collection, Collection)},
+     * а затем цены, срок действия которых закончился не позже отметки хранения, исключаются
+     * из результата и передаются в архив политики.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @param retentionPolicy
+     *        политика хранения истории.
+     * @return объединенная коллекция неустаревших старых и новых цен.
+     */
+    public static Set<Price> merge(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices,
+            PriceRetentionPolicy retentionPolicy)
     {
-        private String productCode;
-
-        private int number;
+        PriceBook priceBook = new PriceBook(oldPrices, null, null, false, retentionPolicy);
+        priceBook.apply(newPrices);
+        priceBook.prune();
 
-        private int depart;
-
-        private PriceKey(
-                String productCode,
-                int number,
-                int depart)
-        {
-            this.productCode = productCode;
-            this.number = number;
-            this.depart = depart;
-        }
+        return priceBook.getPrices();
+    }
 
-        @Override
-        public int hashCode()
-        {
-            return Objects.hash(productCode, number, depart);
-        }
+    /**
+     * Объединяет множество старых цен с новыми, не изменяя переданные экземпляры цен.
+     * <br>
+     * Объединение выполняется по тем же правилам, что и {@link #merge(Collection, Collection)}.
+     * Старые и новые цены, срок действия которых не изменился, входят в результат теми же
+     * экземплярами, а для цен с измененным сроком действия создаются копии, поэтому
+     * исходные коллекции можно продолжать использовать после объединения.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return объединенная коллекция старых и новых цен.
+     */
+    public static Set<Price> mergeCopyOnWrite(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices)
+    {
+        PriceBook priceBook = new PriceBook(oldPrices, null, null, true);
+        priceBook.apply(newPrices);
 
-        @Override
-        public boolean equals(
-                Object obj)
-        {
-            if (obj instanceof PriceKey)
-            {
-                PriceKey that = (PriceKey) obj;
+        return priceBook.getPrices();
+    }
 
-                return Objects.equals(productCode, that.productCode)
-                        && Objects.equals(number, that.number)
-                        && Objects.equals(depart, that.depart);
-            }
+    /**
+     * Объединяет множество старых цен с новыми и возвращает только внесенные изменения.
+     * <br>
+     * Объединение выполняется по тем же правилам, что и {@link #merge(Collection, Collection)},
+     * но вместо всех цен результата возвращаются добавленные цены, старые цены с измененным
+     * сроком действия и удаленные старые цены, так что в хранилище достаточно записать
+     * только затронутые строки.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return изменения старых цен.
+     */
+    public static PriceChangeSet mergeChanges(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices)
+    {
+        PriceChangeRecorder recorder = new PriceChangeRecorder();
+        PriceBook priceBook = new PriceBook(oldPrices, recorder);
+        priceBook.apply(newPrices);
 
-            return false;
-        }
+        return recorder.toChangeSet();
     }
 
-    private static final class PriceBeginBound
-    extends Price
+    /**
+     * Объединяет множество старых цен с новыми в общем пуле {@link ForkJoinPool#commonPool()}.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return неизменяемая объединенная коллекция старых и новых цен.
+     *
+     * @see #mergeParallel(Collection, Collection, ForkJoinPool)
+     */
+    public static Set<Price> mergeParallel(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices)
     {
-        private PriceBeginBound(
-                LocalDateTime begin)
-        {
-            setBegin(begin);
-        }
+        return mergeParallel(oldPrices, newPrices, ForkJoinPool.commonPool());
     }
 
-    private static final class PriceEndBound
-    extends Price
+    /**
+     * Объединяет множество старых цен с новыми параллельно.
+     * <br>
+     * Цены разбиваются на части по ключу (код товара, номер, отдел), части объединяются
+     * независимо в заданном пуле, а их результаты не копируются в общее множество.
+     * Результат совпадает с результатом {@link #merge(Collection, Collection)}.
+     *
+     * @param oldPrices
+     *        коллекция старых цен.
+     * @param newPrices
+     *        коллекция новых цен.
+     * @param pool
+     *        пул потоков для объединения.
+     * @return неизменяемая объединенная коллекция старых и новых цен.
+     */
+    public static Set<Price> mergeParallel(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices,
+            ForkJoinPool pool)
     {
-        private PriceEndBound(
-                LocalDateTime end)
-        {
-            setEnd(end);
-        }
+        return ParallelPriceMerge.merge(oldPrices, newPrices, pool);
     }
 }
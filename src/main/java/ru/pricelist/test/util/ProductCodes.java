@@ -0,0 +1,64 @@
+package ru.pricelist.test.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Словарь кодов товаров, назначающий кодам плотные номера в порядке первого появления.
+ * <br>
+ * Каждый код хранится в словаре в одном экземпляре, и цены, создаваемые по номеру,
+ * ссылаются на него же. Словарь не является потокобезопасным.
+ *
+ * @author Valery Skavysh.
+ */
+final class ProductCodes
+{
+    private final HashMap<String, Integer> ids = new HashMap<>();
+
+    private final ArrayList<String> codes = new ArrayList<>();
+
+    /**
+     * Возвращает номер кода, добавляя код в словарь при отсутствии.
+     *
+     * @param productCode
+     *        код товара, не {@code null}.
+     * @return номер кода.
+     */
+    int intern(
+            String productCode)
+    {
+        Integer id = ids.get(productCode);
+        if (id == null)
+        {
+            id = codes.size();
+            ids.put(productCode, id);
+            codes.add(productCode);
+        }
+
+        return id;
+    }
+
+    /**
+     * Возвращает номер кода без добавления в словарь.
+     *
+     * @return номер кода или {@code -1}, если кода нет в словаре.
+     */
+    int find(
+            String productCode)
+    {
+        Integer id = ids.get(productCode);
+
+        return id == null ? -1 : id;
+    }
+
+    String getCode(
+            int id)
+    {
+        return codes.get(id);
+    }
+
+    int size()
+    {
+        return codes.size();
+    }
+}
@@ -0,0 +1,162 @@
+package ru.pricelist.test.util;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ru.pricelist.test.api.Price;
+
+/**
+ * Книга цен с версиями и согласованными снимками для чтения.
+ * <br>
+ * Каждое применение порции новых цен создает новую версию книги. Версии неизменяемы
+ * и делят между собой все, что порция не затронула: интервалы каждого ключа хранятся
+ * так же, как в {@link CompactPriceBook}, и копируются только для ключей порции,
+ * а карта ключей - неизменяемое префиксное дерево ({@link PersistentPriceMap}),
+ * в котором копируется только путь к измененному ключу.
+ * <br>
+ * Читатель закрепляет текущую версию за O(1) методом {@link #snapshot()} и видит все ключи
+ * в одном и том же состоянии, сколько бы порций ни было применено после этого.
+ * После закрытия снимка его версия, если она не текущая и не закреплена другими
+ * снимками, освобождается сборщиком мусора.
+ * <br>
+ * Писатели выполняются по очереди, читатели не блокируются.
+ *
+ * @author Valery Skavysh.
+ */
+public class VersionedPriceBook
+{
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private final AtomicInteger openSnapshotCount = new AtomicInteger();
+
+    private final IntervalBuffer scratch = new IntervalBuffer();
+
+    private final IntervalBuffer sweepBuffer = new IntervalBuffer();
+
+    private volatile Version current;
+
+    /**
+     * Создает пустую книгу цен.
+     */
+    public VersionedPriceBook()
+    {
+        current = new Version(0, PersistentPriceMap.EMPTY);
+    }
+
+    /**
+     * Создает книгу цен, первая версия которой содержит имеющиеся цены.
+     * <br>
+     * Из цен с одинаковым ключом и одинаковым началом срока действия в книгу попадает первая.
+     *
+     * @param prices
+     *        коллекция имеющихся цен.
+     */
+    public VersionedPriceBook(
+            Collection<Price> prices)
+    {
+        PersistentPriceMap.Editor editor = PersistentPriceMap.EMPTY.edit();
+        new CompactPriceBook(prices).forEachIntervals(editor::put);
+
+        current = new Version(0, editor.build());
+    }
+
+    /**
+     * Применяет к книге порцию новых цен и публикует новую версию.
+     * <br>
+     * Правила объединения те же, что и у {@link CompactPriceBook#apply(Collection)}.
+     * Если порция не применилась из-за исключения, текущая версия не изменяется.
+     *
+     * @param newPrices
+     *        коллекция новых цен.
+     * @return номер новой версии.
+     */
+    public long apply(
+            Collection<Price> newPrices)
+    {
+        Map<PriceKey, IntervalBuffer> keyBatches = new LinkedHashMap<>();
+        for (Price newPrice : newPrices)
+        {
+            keyBatches.computeIfAbsent(PriceKey.of(newPrice), k -> new IntervalBuffer(4)).append(
+                    PriceTimes.toEpochMillis(newPrice.getBegin()), PriceTimes.toEpochMillis(newPrice.getEnd()),
+                    newPrice.getValue());
+        }
+
+        writeLock.lock();
+        try
+        {
+            Version version = current;
+            PersistentPriceMap.Editor editor = version.intervals.edit();
+            for (Map.Entry<PriceKey, IntervalBuffer> entry : keyBatches.entrySet())
+            {
+                PriceIntervals intervals = editor.get(entry.getKey());
+                PriceIntervals mergedIntervals = intervals == null ? new PriceIntervals() : intervals.copy();
+                mergedIntervals.mergeBatch(entry.getValue(), scratch, sweepBuffer);
+
+                editor.put(entry.getKey(), mergedIntervals);
+            }
+
+            current = new Version(version.number + 1, editor.build());
+
+            return version.number + 1;
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Закрепляет текущую версию книги для чтения.
+     * <br>
+     * Снимок следует закрыть после использования, например в {@code try}-with-resources.
+     *
+     * @return снимок текущей версии.
+     */
+    public PriceBookSnapshot snapshot()
+    {
+        openSnapshotCount.incrementAndGet();
+
+        return new PriceBookSnapshot(current, openSnapshotCount);
+    }
+
+    /**
+     * Возвращает номер текущей версии.
+     *
+     * @return номер версии; у книги, созданной конструктором, номер версии 0.
+     */
+    public long getVersion()
+    {
+        return current.number;
+    }
+
+    /**
+     * Возвращает количество незакрытых снимков книги.
+     *
+     * @return количество снимков.
+     */
+    public int getOpenSnapshotCount()
+    {
+        return openSnapshotCount.get();
+    }
+
+    /**
+     * Неизменяемая версия книги.
+     */
+    static final class Version
+    {
+        final long number;
+
+        final PersistentPriceMap intervals;
+
+        private Version(
+                long number,
+                PersistentPriceMap intervals)
+        {
+            this.number = number;
+            this.intervals = intervals;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class CachedPriceBookTest
+{
+    private static String PRODUCT_CODE = "122856";
+
+    private static LocalDateTime BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testMatchesUncachedBookAcrossMerges()
+    {
+        RandomPrices randomPrices = new RandomPrices(18);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        ConcurrentPriceBook expectedPriceBook = new ConcurrentPriceBook(RandomPrices.copy(oldPrices));
+        CachedPriceBook priceBook = new CachedPriceBook(new ConcurrentPriceBook(RandomPrices.copy(oldPrices)),
+                256, CachedPriceBook.DEFAULT_MAX_MEMORY);
+
+        Random random = new Random(18);
+        for (int batch = 0; batch < 20; batch++)
+        {
+            for (int query = 0; query < 2000; query++)
+            {
+                Price price = oldPrices.get(random.nextInt(oldPrices.size()));
+                LocalDateTime time = BEGIN.plusHours(random.nextInt(64) * 8);
+
+                Assert.assertEquals(expectedPriceBook.valueAt(price.getProductCode(), price.getNumber(),
+                        price.getDepart(), PriceTimes.toEpochMillis(time)),
+                        priceBook.valueAt(price.getProductCode(), price.getNumber(), price.getDepart(),
+                                PriceTimes.toEpochMillis(time)));
+                ReflectionAssert.assertReflectionEquals(expectedPriceBook.priceAt(price.getProductCode(),
+                        price.getNumber(), price.getDepart(), time),
+                        priceBook.priceAt(price.getProductCode(), price.getNumber(), price.getDepart(), time));
+            }
+
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(10, 2, 400, 10);
+            expectedPriceBook.apply(RandomPrices.copy(newPrices));
+            priceBook.apply(newPrices);
+        }
+
+        Assert.assertTrue(priceBook.getHitCount() > priceBook.getMissCount());
+        Assert.assertTrue(priceBook.getInvalidationCount() > 0);
+        Assert.assertTrue(priceBook.size() <= 256);
+    }
+
+    @Test
+    public void testApplyInvalidatesOnlyTouchedKeys()
+    {
+        CachedPriceBook priceBook = new CachedPriceBook(new ConcurrentPriceBook(), 4, 1 << 20);
+        priceBook.apply(Collections.singletonList(RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000,
+                BEGIN, BEGIN.plusDays(10))));
+        priceBook.apply(Collections.singletonList(RandomPrices.createPrice(PRODUCT_CODE, 2, 1, 12000,
+                BEGIN, BEGIN.plusDays(10))));
+
+        long time = PriceTimes.toEpochMillis(BEGIN.plusDays(1));
+        Assert.assertEquals(11000, priceBook.valueAt(PRODUCT_CODE, 1, 1, time));
+        Assert.assertEquals(12000, priceBook.valueAt(PRODUCT_CODE, 2, 1, time));
+        Assert.assertEquals(2, priceBook.size());
+
+        priceBook.apply(Collections.singletonList(RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 13000,
+                BEGIN, BEGIN.plusDays(5))));
+
+        Assert.assertEquals(1, priceBook.size());
+        Assert.assertEquals(1, priceBook.getInvalidationCount());
+        Assert.assertEquals(13000, priceBook.valueAt(PRODUCT_CODE, 1, 1, time));
+        Assert.assertEquals(12000, priceBook.valueAt(PRODUCT_CODE, 2, 1, time));
+        Assert.assertEquals(1, priceBook.getHitCount());
+        Assert.assertEquals(3, priceBook.getMissCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed()
+    {
+        CachedPriceBook priceBook = new CachedPriceBook(new ConcurrentPriceBook(Collections.singletonList(
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, BEGIN, BEGIN.plusDays(10)))), 2, 1 << 20);
+
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 1);
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 2);
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 1);
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 3);
+        Assert.assertEquals(1, priceBook.getEvictionCount());
+
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 1);
+        Assert.assertEquals(2, priceBook.getHitCount());
+
+        priceBook.valueAt(PRODUCT_CODE, 1, 1, 2);
+        Assert.assertEquals(2, priceBook.getHitCount());
+        Assert.assertEquals(2, priceBook.size());
+    }
+}
@@ -0,0 +1,321 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+import org.unitils.reflectionassert.ReflectionComparatorMode;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+public class CompactPriceBookTest
+{
+    private static LocalDateTime PRICE_BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    private static LocalDateTime PRICE_END = LocalDateTime.parse("2013-01-31T23:59:59");
+
+    @Test
+    public void testEmptyPriceBook()
+    {
+        CompactPriceBook priceBook = new CompactPriceBook(Collections.emptyList());
+        priceBook.apply(Collections.emptyList());
+
+        Assert.assertTrue(priceBook.getPrices().isEmpty());
+        Assert.assertEquals(0, priceBook.size());
+    }
+
+    @Test
+    public void testSplitPrice()
+    {
+        CompactPriceBook priceBook = new CompactPriceBook(Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_END)));
+        priceBook.apply(Collections.singletonList(RandomPrices.createPrice("122856", 1, 1, 110,
+                PRICE_BEGIN.plusMinutes(10), PRICE_END.minusMinutes(10))));
+
+        List<Price> expectedPrices = new ArrayList<>();
+        expectedPrices.add(RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusMinutes(10)));
+        expectedPrices.add(RandomPrices.createPrice("122856", 1, 1, 110,
+                PRICE_BEGIN.plusMinutes(10), PRICE_END.minusMinutes(10)));
+        expectedPrices.add(RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_END.minusMinutes(10), PRICE_END));
+
+        ReflectionAssert.assertReflectionEquals(expectedPrices, priceBook.getPrices(),
+                ReflectionComparatorMode.LENIENT_ORDER);
+        Assert.assertEquals(3, priceBook.size());
+    }
+
+    @Test
+    public void testUnboundedPrice()
+    {
+        CompactPriceBook priceBook = new CompactPriceBook(Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, LocalDateTime.MIN, LocalDateTime.MAX)));
+
+        ReflectionAssert.assertReflectionEquals(
+                Collections.singletonList(RandomPrices.createPrice("122856", 1, 1, 11000,
+                        LocalDateTime.MIN, LocalDateTime.MAX)),
+                priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testSweepOverAdjacentEqualValuesMatchesMerge()
+    {
+        List<Price> oldPrices = new ArrayList<>();
+        oldPrices.add(createHourPrice(0, 3, 1));
+        oldPrices.add(createHourPrice(3, 5, 1));
+
+        List<Price> newPrices = new ArrayList<>();
+        newPrices.add(createHourPrice(11, 14, 2));
+        newPrices.add(createHourPrice(2, 6, 1));
+        newPrices.add(createHourPrice(1, 2, 2));
+        newPrices.add(createHourPrice(6, 10, 2));
+
+        List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+        Assert.assertEquals(5, expectedDescription.size());
+
+        CompactPriceBook compactPriceBook = new CompactPriceBook(RandomPrices.copy(oldPrices));
+        compactPriceBook.apply(RandomPrices.copy(newPrices));
+        Assert.assertEquals(expectedDescription, RandomPrices.describe(compactPriceBook.getPrices()));
+
+        ConcurrentPriceBook concurrentPriceBook = new ConcurrentPriceBook(RandomPrices.copy(oldPrices));
+        concurrentPriceBook.apply(RandomPrices.copy(newPrices));
+        Assert.assertEquals(expectedDescription, RandomPrices.describe(concurrentPriceBook.getPrices()));
+
+        VersionedPriceBook versionedPriceBook = new VersionedPriceBook(RandomPrices.copy(oldPrices));
+        versionedPriceBook.apply(RandomPrices.copy(newPrices));
+        try (PriceBookSnapshot snapshot = versionedPriceBook.snapshot())
+        {
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(snapshot.getPrices()));
+        }
+
+        try (OffHeapPriceBook offHeapPriceBook = new OffHeapPriceBook(RandomPrices.copy(oldPrices)))
+        {
+            offHeapPriceBook.apply(RandomPrices.copy(newPrices));
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(offHeapPriceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testMatchesMerge()
+    {
+        for (int seed = 0; seed < 300; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+            newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            CompactPriceBook priceBook = new CompactPriceBook(oldPrices);
+            priceBook.apply(newPrices);
+
+            Assert.assertEquals("seed " + seed, expectedDescription,
+                    RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices), RandomPrices.copy(newPrices))));
+            Assert.assertEquals("seed " + seed, expectedDescription, RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testBatchMatchesMerge()
+    {
+        for (int seed = 0; seed < 100; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(10, 30);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(12, 20, 1500, 40);
+            newPrices.addAll(randomPrices.createOverlappingNewPrices(4, 8, 600, 20));
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            CompactPriceBook priceBook = new CompactPriceBook(oldPrices);
+            priceBook.apply(newPrices);
+
+            Assert.assertEquals("seed " + seed, expectedDescription,
+                    RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices), RandomPrices.copy(newPrices))));
+            Assert.assertEquals("seed " + seed, expectedDescription, RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testCollidedPricesMatchPriceBookAcrossBatches()
+    {
+        int collidedSeedCount = 0;
+        for (int seed = 0; seed < 100; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(10, 8);
+            List<List<Price>> batches = new ArrayList<>();
+            for (int i = 0; i < 6; i++)
+            {
+                batches.add(i % 2 == 0
+                        ? randomPrices.createCollidingNewPrices(10, 4, 1500, 10)
+                        : randomPrices.createDisjointNewPrices(10, 3, 400, 10));
+            }
+
+            List<List<String>> expectedDescriptions = describePriceBookBatches(oldPrices, batches);
+            if (expectedDescriptions == null)
+            {
+                continue;
+            }
+
+            CompactPriceBook compactPriceBook = new CompactPriceBook(RandomPrices.copy(oldPrices));
+            try (OffHeapPriceBook offHeapPriceBook = new OffHeapPriceBook(RandomPrices.copy(oldPrices)))
+            {
+                for (int i = 0; i < batches.size(); i++)
+                {
+                    compactPriceBook.apply(RandomPrices.copy(batches.get(i)));
+                    offHeapPriceBook.apply(RandomPrices.copy(batches.get(i)));
+
+                    Assert.assertEquals("seed " + seed + ", batch " + i, expectedDescriptions.get(i),
+                            RandomPrices.describe(compactPriceBook.getPrices()));
+                    Assert.assertEquals("seed " + seed + ", batch " + i, expectedDescriptions.get(i),
+                            RandomPrices.describe(offHeapPriceBook.getPrices()));
+                }
+            }
+
+            if (compactPriceBook.size() > compactPriceBook.getPrices().stream()
+                    .map(price -> PriceKey.of(price) + " " + price.getBegin())
+                    .distinct()
+                    .count())
+            {
+                collidedSeedCount++;
+            }
+        }
+
+        Assert.assertTrue(collidedSeedCount > 0);
+    }
+
+    @Test
+    public void testEqualBeginLookupsMatchPriceBook()
+    {
+        List<Price> oldPrices = Arrays.asList(createHourPrice(0, 10, 1000), createHourPrice(0, 6, 9000));
+        List<Price> newPrices = Arrays.asList(createHourPrice(20, 30, 2000), createHourPrice(20, 25, 3000));
+
+        PriceBook priceBook = new PriceBook(RandomPrices.copy(oldPrices));
+        priceBook.apply(RandomPrices.copy(newPrices));
+        CompactPriceBook compactPriceBook = new CompactPriceBook(RandomPrices.copy(oldPrices));
+        compactPriceBook.apply(RandomPrices.copy(newPrices));
+        ConcurrentPriceBook concurrentPriceBook = new ConcurrentPriceBook(RandomPrices.copy(oldPrices));
+        concurrentPriceBook.apply(RandomPrices.copy(newPrices));
+        CachedPriceBook cachedPriceBook = new CachedPriceBook(concurrentPriceBook);
+        VersionedPriceBook versionedPriceBook = new VersionedPriceBook(RandomPrices.copy(oldPrices));
+        versionedPriceBook.apply(RandomPrices.copy(newPrices));
+
+        Assert.assertEquals(1000L, priceBook.priceAt("122856", 1, 1, PRICE_BEGIN.plusHours(3)).getValue().longValue());
+        Assert.assertEquals(2000L, priceBook.priceAt("122856", 1, 1, PRICE_BEGIN.plusHours(22)).getValue().longValue());
+
+        try (OffHeapPriceBook offHeapPriceBook = new OffHeapPriceBook(RandomPrices.copy(oldPrices));
+                PriceBookSnapshot snapshot = versionedPriceBook.snapshot())
+        {
+            offHeapPriceBook.apply(RandomPrices.copy(newPrices));
+
+            for (int hour = 0; hour < 32; hour++)
+            {
+                LocalDateTime time = PRICE_BEGIN.plusHours(hour);
+                long epochMillis = PriceTimes.toEpochMillis(time);
+                Price price = priceBook.priceAt("122856", 1, 1, time);
+                long expectedValue = price == null ? CompactPriceBook.NO_VALUE : price.getValue();
+
+                Assert.assertEquals("hour " + hour, expectedValue,
+                        compactPriceBook.valueAt("122856", 1, 1, epochMillis));
+                Assert.assertEquals("hour " + hour, expectedValue,
+                        concurrentPriceBook.valueAt("122856", 1, 1, epochMillis));
+                Assert.assertEquals("hour " + hour, expectedValue,
+                        cachedPriceBook.valueAt("122856", 1, 1, epochMillis));
+                Assert.assertEquals("hour " + hour, expectedValue, snapshot.valueAt("122856", 1, 1, epochMillis));
+                Assert.assertEquals("hour " + hour, expectedValue,
+                        offHeapPriceBook.valueAt("122856", 1, 1, epochMillis));
+                Assert.assertEquals("hour " + hour, RandomPrices.describe(priceBook.pricesAt(time)),
+                        RandomPrices.describe(compactPriceBook.pricesAt(time)));
+            }
+        }
+    }
+
+    @Test
+    public void testLookupsMatchPriceBook()
+    {
+        RandomPrices randomPrices = new RandomPrices(1);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+
+        PriceBook priceBook = new PriceBook(RandomPrices.copy(oldPrices));
+        priceBook.apply(RandomPrices.copy(newPrices));
+        CompactPriceBook compactPriceBook = new CompactPriceBook(oldPrices);
+        compactPriceBook.apply(newPrices);
+
+        for (int hour = 0; hour < 800; hour += 7)
+        {
+            LocalDateTime time = PRICE_BEGIN.plusHours(hour);
+            Assert.assertEquals(RandomPrices.describe(priceBook.pricesAt(time)),
+                    RandomPrices.describe(compactPriceBook.pricesAt(time)));
+
+            for (Price price : priceBook.pricesAt(time))
+            {
+                Assert.assertEquals(price.getValue().longValue(), compactPriceBook.valueAt(price.getProductCode(),
+                        price.getNumber(), price.getDepart(), PriceTimes.toEpochMillis(time)));
+            }
+        }
+
+        Assert.assertEquals(CompactPriceBook.NO_VALUE, compactPriceBook.valueAt("missing", 1, 1, 0));
+        Assert.assertNull(compactPriceBook.priceAt("missing", 1, 1, PRICE_BEGIN));
+    }
+
+    /**
+     * Применяет порции к {@link PriceBook} и описывает цены книги после каждой порции.
+     *
+     * @return описания или {@code null}, если результат книги зависит от формы дерева цен:
+     *         объединение завершилось ошибкой или книга, загруженная из старых цен в обратном
+     *         порядке, пришла к другому результату.
+     */
+    private static List<List<String>> describePriceBookBatches(
+            List<Price> oldPrices,
+            List<List<Price>> batches)
+    {
+        List<Price> reversedOldPrices = RandomPrices.copy(oldPrices);
+        Collections.reverse(reversedOldPrices);
+        PriceBook priceBook = new PriceBook(RandomPrices.copy(oldPrices));
+        PriceBook reversedPriceBook = new PriceBook(reversedOldPrices);
+
+        List<List<String>> descriptions = new ArrayList<>();
+        try
+        {
+            for (List<Price> batch : batches)
+            {
+                priceBook.apply(RandomPrices.copy(batch));
+                reversedPriceBook.apply(RandomPrices.copy(batch));
+
+                List<String> description = RandomPrices.describe(priceBook.getPrices());
+                if (!description.equals(RandomPrices.describe(reversedPriceBook.getPrices())))
+                {
+                    return null;
+                }
+                descriptions.add(description);
+            }
+        }
+        catch (ConcurrentModificationException e)
+        {
+            return null;
+        }
+
+        return descriptions;
+    }
+
+    private static Price createHourPrice(
+            int beginHour,
+            int endHour,
+            long value)
+    {
+        return RandomPrices.createPrice("122856", 1, 1, value, PRICE_BEGIN.plusHours(beginHour),
+                PRICE_BEGIN.plusHours(endHour));
+    }
+}
@@ -0,0 +1,181 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ConcurrentPriceBookTest
+{
+    private static String PRODUCT_CODE = "122856";
+
+    private static int KEY_COUNT = 8;
+
+    private static int WRITER_COUNT = 4;
+
+    private static int READER_COUNT = 4;
+
+    private static int WRITES_PER_WRITER = 2000;
+
+    private static long SLOT_MILLIS = 10;
+
+    private static long COVER_END = WRITER_COUNT * WRITES_PER_WRITER * SLOT_MILLIS;
+
+    @Test
+    public void testMatchesCompactPriceBook()
+    {
+        RandomPrices randomPrices = new RandomPrices(5);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+        newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+
+        ConcurrentPriceBook concurrentPriceBook = new ConcurrentPriceBook(oldPrices);
+        concurrentPriceBook.apply(newPrices);
+        CompactPriceBook compactPriceBook = new CompactPriceBook(oldPrices);
+        compactPriceBook.apply(newPrices);
+
+        Assert.assertEquals(RandomPrices.describeBaselineMerge(oldPrices, newPrices),
+                RandomPrices.describe(concurrentPriceBook.getPrices()));
+        Assert.assertEquals(RandomPrices.describe(compactPriceBook.getPrices()),
+                RandomPrices.describe(concurrentPriceBook.getPrices()));
+    }
+
+    @Test
+    public void testFailedKeyBatchLeavesKeyUnchanged()
+    {
+        LocalDateTime begin = LocalDateTime.parse("2013-01-01T00:00:00");
+        ConcurrentPriceBook priceBook = new ConcurrentPriceBook(Collections.singletonList(
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, begin, begin.plusDays(10))));
+
+        try
+        {
+            priceBook.apply(Collections.singletonList(
+                    RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 12000, begin.plusDays(5), begin.plusDays(2))));
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertEquals(RandomPrices.describe(Collections.singletonList(
+                    RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, begin, begin.plusDays(10)))),
+                    RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    /**
+     * Писатели разрывают цены ключей новыми ценами с уникальными значениями, а читатели
+     * проверяют, что цены ключа всегда покрывают весь срок без разрывов и наложений
+     * и в любой момент действует ровно одна цена.
+     */
+    @Test
+    public void testReadersNeverSeePartiallyAppliedSplits()
+            throws Exception
+    {
+        List<Price> oldPrices = new ArrayList<>();
+        for (int key = 0; key < KEY_COUNT; key++)
+        {
+            oldPrices.add(createPrice(key, 0, COVER_END, -1 - key));
+        }
+        ConcurrentPriceBook priceBook = new ConcurrentPriceBook(4);
+        priceBook.apply(oldPrices);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITER_COUNT + READER_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try
+        {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < WRITER_COUNT; writer++)
+            {
+                int w = writer;
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < WRITES_PER_WRITER; i++)
+                    {
+                        long slot = (long) i * WRITER_COUNT + w;
+                        priceBook.apply(Collections.singletonList(createPrice((int) (slot % KEY_COUNT),
+                                slot * SLOT_MILLIS + 1, slot * SLOT_MILLIS + SLOT_MILLIS - 1, slot)));
+                    }
+
+                    return null;
+                }));
+            }
+
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int reader = 0; reader < READER_COUNT; reader++)
+            {
+                int seed = reader;
+                readers.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    int checks = 0;
+                    start.await();
+                    while (writing.get() || checks == 0)
+                    {
+                        int key = random.nextInt(KEY_COUNT);
+                        assertCovered(priceBook.getPrices(PRODUCT_CODE, 1 + key, 1));
+                        Assert.assertNotEquals(CompactPriceBook.NO_VALUE,
+                                priceBook.valueAt(PRODUCT_CODE, 1 + key, 1, random.nextInt((int) COVER_END)));
+                        checks++;
+                    }
+
+                    return checks;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> writer : writers)
+            {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            for (Future<Integer> reader : readers)
+            {
+                Assert.assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for (long slot = 0; slot < WRITER_COUNT * WRITES_PER_WRITER; slot++)
+        {
+            int key = (int) (slot % KEY_COUNT);
+            Assert.assertEquals(slot, priceBook.valueAt(PRODUCT_CODE, 1 + key, 1, slot * SLOT_MILLIS + 1));
+            Assert.assertEquals(-1 - key, priceBook.valueAt(PRODUCT_CODE, 1 + key, 1, slot * SLOT_MILLIS));
+        }
+        Assert.assertEquals(KEY_COUNT + 2 * WRITER_COUNT * WRITES_PER_WRITER, priceBook.getPrices().size());
+    }
+
+    private static void assertCovered(
+            List<Price> prices)
+    {
+        Assert.assertFalse(prices.isEmpty());
+        Assert.assertEquals(PriceTimes.fromEpochMillis(0), prices.get(0).getBegin());
+        for (int i = 1; i < prices.size(); i++)
+        {
+            Assert.assertEquals(prices.get(i - 1).getEnd(), prices.get(i).getBegin());
+        }
+        Assert.assertEquals(PriceTimes.fromEpochMillis(COVER_END), prices.get(prices.size() - 1).getEnd());
+    }
+
+    private static Price createPrice(
+            int key,
+            long begin,
+            long end,
+            long value)
+    {
+        return RandomPrices.createPrice(PRODUCT_CODE, 1 + key, 1, value,
+                PriceTimes.fromEpochMillis(begin), PriceTimes.fromEpochMillis(end));
+    }
+}
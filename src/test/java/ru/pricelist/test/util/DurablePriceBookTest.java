@@ -0,0 +1,229 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.pricelist.test.api.Price;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class DurablePriceBookTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRecoversFromCheckpointAndLogTail()
+            throws IOException
+    {
+        RandomPrices randomPrices = new RandomPrices(15);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        CompactPriceBook expectedPriceBook = new CompactPriceBook();
+        expectedPriceBook.apply(RandomPrices.copy(oldPrices));
+
+        Path directory = temporaryFolder.getRoot().toPath().resolve("book");
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(1, priceBook.apply(RandomPrices.copy(oldPrices)));
+            for (int batch = 0; batch < 10; batch++)
+            {
+                List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+                newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+                expectedPriceBook.apply(RandomPrices.copy(newPrices));
+                priceBook.apply(newPrices);
+                if (batch == 0)
+                {
+                    Assert.assertEquals(RandomPrices.describeBaselineMerge(oldPrices, newPrices),
+                            RandomPrices.describe(priceBook.getPrices()));
+                }
+
+                if (batch == 5)
+                {
+                    priceBook.checkpoint();
+                }
+            }
+
+            Assert.assertEquals(11, priceBook.getSequence());
+            Assert.assertEquals(7, priceBook.getCheckpointSequence());
+            Assert.assertEquals(2, listFiles(directory).size());
+        }
+
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(11, priceBook.getSequence());
+            Assert.assertEquals(7, priceBook.getCheckpointSequence());
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+
+            priceBook.checkpoint();
+        }
+
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(11, priceBook.getCheckpointSequence());
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testDropsTornLogTail()
+            throws IOException
+    {
+        RandomPrices randomPrices = new RandomPrices(16);
+        List<List<Price>> batches = new ArrayList<>();
+        for (int batch = 0; batch < 3; batch++)
+        {
+            batches.add(randomPrices.createDisjointNewPrices(20, 2, 200, 5));
+        }
+
+        Path directory = temporaryFolder.getRoot().toPath().resolve("book");
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            for (List<Price> batch : batches)
+            {
+                priceBook.apply(RandomPrices.copy(batch));
+            }
+        }
+
+        Path log = listFiles(directory).get(0);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 10);
+        }
+
+        CompactPriceBook expectedPriceBook = new CompactPriceBook();
+        expectedPriceBook.apply(RandomPrices.copy(batches.get(0)));
+        expectedPriceBook.apply(RandomPrices.copy(batches.get(1)));
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(2, priceBook.getSequence());
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+
+            Assert.assertEquals(3, priceBook.apply(RandomPrices.copy(batches.get(2))));
+        }
+
+        expectedPriceBook.apply(RandomPrices.copy(batches.get(2)));
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(3, priceBook.getSequence());
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersGetConsecutiveSequences()
+            throws Exception
+    {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("book");
+        List<Price> expectedPrices = new ArrayList<>();
+        Set<Long> sequences = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int writer = 0; writer < 64; writer++)
+            {
+                Price price = RandomPrices.createPrice("122856", writer, 1, 11000,
+                        LocalDateTime.parse("2013-01-01T00:00:00"),
+                        LocalDateTime.parse("2013-01-31T23:59:59"));
+                expectedPrices.add(price);
+                List<Price> batch = RandomPrices.copy(Collections.singletonList(price));
+                futures.add(executor.submit(() -> priceBook.apply(batch)));
+            }
+
+            for (Future<Long> future : futures)
+            {
+                sequences.add(future.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(LongStream.rangeClosed(1, 64).boxed().collect(Collectors.toSet()), sequences);
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(RandomPrices.describe(expectedPrices), RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNullProductCode()
+            throws IOException
+    {
+        try (DurablePriceBook priceBook = new DurablePriceBook(temporaryFolder.getRoot().toPath()))
+        {
+            priceBook.apply(Collections.singletonList(RandomPrices.createPrice(null, 1, 1, 11000,
+                    LocalDateTime.parse("2013-01-01T00:00:00"),
+                    LocalDateTime.parse("2013-01-31T23:59:59"))));
+        }
+    }
+
+    @Test
+    public void testRejectedBatchIsNotLogged()
+            throws IOException
+    {
+        LocalDateTime begin = LocalDateTime.parse("2013-01-01T00:00:00");
+        List<Price> invalidPrices = new ArrayList<>();
+        invalidPrices.add(RandomPrices.createPrice("122856", 1, 1, 11000, begin, begin.plusHours(10)));
+        invalidPrices.add(RandomPrices.createPrice("6654", 1, 1, 11000, begin.plusHours(10), begin));
+        List<Price> newPrices = Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 12000, begin.plusHours(5), begin.plusHours(20)));
+
+        Path directory = temporaryFolder.getRoot().toPath().resolve("book");
+        Set<Price> expectedPrices;
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            try
+            {
+                priceBook.apply(RandomPrices.copy(invalidPrices));
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e)
+            {
+                Assert.assertEquals(0, priceBook.getSequence());
+                Assert.assertTrue(priceBook.getPrices().isEmpty());
+            }
+
+            Assert.assertEquals(1, priceBook.apply(RandomPrices.copy(newPrices)));
+            expectedPrices = priceBook.getPrices();
+        }
+
+        try (DurablePriceBook priceBook = new DurablePriceBook(directory))
+        {
+            Assert.assertEquals(1, priceBook.getSequence());
+            Assert.assertEquals(RandomPrices.describe(expectedPrices), RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    private List<Path> listFiles(
+            Path directory)
+            throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory))
+        {
+            return paths.sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.pricelist.test.api.Price;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+public class ExternalPriceMergeTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMergeMatchesMerge()
+            throws IOException
+    {
+        Path tempDirectory = temporaryFolder.newFolder().toPath();
+        Path output = temporaryFolder.getRoot().toPath().resolve("merged.run");
+        for (long memoryBudget : new long[] {4096, 1 << 20, ExternalPriceMerge.DEFAULT_MEMORY_BUDGET})
+        {
+            for (int seed = 0; seed < 10; seed++)
+            {
+                RandomPrices randomPrices = new RandomPrices(seed);
+                List<Price> oldPrices = randomPrices.createPricelist(300, 8);
+                List<Price> newPrices = randomPrices.createDisjointNewPrices(400, 3, 400, 6);
+                newPrices.addAll(randomPrices.createPricelist(20, 4));
+                newPrices.addAll(randomPrices.createOverlappingNewPrices(20, 4, 200, 6));
+                List<String> oldDescription = RandomPrices.describe(oldPrices);
+                List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+                if (expectedDescription == null)
+                {
+                    continue;
+                }
+
+                long count = new ExternalPriceMerge(tempDirectory, memoryBudget)
+                        .merge(oldPrices.iterator(), newPrices.iterator(), output);
+
+                List<Price> mergedPrices = new ArrayList<>();
+                Assert.assertEquals(count, ExternalPriceMerge.forEach(output, mergedPrices::add));
+                Assert.assertEquals(expectedDescription, RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices),
+                        RandomPrices.copy(newPrices))));
+                Assert.assertEquals(expectedDescription, RandomPrices.describe(mergedPrices));
+                Assert.assertEquals(oldDescription, RandomPrices.describe(oldPrices));
+                Assert.assertEquals(0, countFiles(tempDirectory));
+            }
+        }
+    }
+
+    @Test
+    public void testMergeMatchesBaselineOnOverlappingPrices()
+            throws IOException
+    {
+        Path tempDirectory = temporaryFolder.newFolder().toPath();
+        Path output = temporaryFolder.getRoot().toPath().resolve("merged.run");
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(40, 6);
+            List<Price> newPrices = randomPrices.createOverlappingNewPrices(40, 4, 200, 6);
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            new ExternalPriceMerge(tempDirectory, 4096).merge(oldPrices.iterator(), newPrices.iterator(), output);
+
+            List<Price> mergedPrices = new ArrayList<>();
+            ExternalPriceMerge.forEach(output, mergedPrices::add);
+            Assert.assertEquals("seed " + seed, expectedDescription, RandomPrices.describe(mergedPrices));
+        }
+    }
+
+    @Test
+    public void testMergeMatchesBaselineAcrossBatches()
+            throws IOException
+    {
+        Path tempDirectory = temporaryFolder.newFolder().toPath();
+        Path output = temporaryFolder.getRoot().toPath().resolve("merged.run");
+        int comparedBatchCount = 0;
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            Collection<Price> oldPrices = randomPrices.createIrregularPricelist(10, 6, 6);
+            for (int batch = 0; batch < 4; batch++)
+            {
+                List<Price> newPrices = randomPrices.createDisjointNewPrices(10, 3, 400, 6);
+                newPrices.addAll(randomPrices.createOverlappingNewPrices(2, 4, 200, 6));
+                Set<Price> expectedPrices = RandomPrices.mergeBaseline(oldPrices, newPrices);
+                if (expectedPrices == null)
+                {
+                    break;
+                }
+
+                new ExternalPriceMerge(tempDirectory, 4096).merge(oldPrices.iterator(), newPrices.iterator(), output);
+
+                List<Price> mergedPrices = new ArrayList<>();
+                ExternalPriceMerge.forEach(output, mergedPrices::add);
+                Assert.assertEquals("seed " + seed + ", batch " + batch, RandomPrices.describe(expectedPrices),
+                        RandomPrices.describe(mergedPrices));
+
+                oldPrices = expectedPrices;
+                if (batch > 0)
+                {
+                    comparedBatchCount++;
+                }
+            }
+        }
+
+        Assert.assertTrue(comparedBatchCount > 0);
+    }
+
+    @Test
+    public void testMergeWritesPricesByKeyAndBegin()
+            throws IOException
+    {
+        RandomPrices randomPrices = new RandomPrices(17);
+        List<Price> oldPrices = randomPrices.createPricelist(100, 6);
+        List<Price> newPrices = randomPrices.createDisjointNewPrices(100, 3, 400, 6);
+
+        Path output = temporaryFolder.getRoot().toPath().resolve("merged.run");
+        new ExternalPriceMerge(temporaryFolder.newFolder().toPath(), 8192)
+                .merge(oldPrices.iterator(), newPrices.iterator(), output);
+
+        List<Price> mergedPrices = new ArrayList<>();
+        ExternalPriceMerge.forEach(output, mergedPrices::add);
+        for (int i = 1; i < mergedPrices.size(); i++)
+        {
+            Price previous = mergedPrices.get(i - 1);
+            Price price = mergedPrices.get(i);
+            int order = previous.getProductCode().compareTo(price.getProductCode());
+            if (order == 0)
+            {
+                order = Integer.compare(previous.getNumber(), price.getNumber());
+            }
+            if (order == 0)
+            {
+                order = Integer.compare(previous.getDepart(), price.getDepart());
+            }
+            if (order == 0)
+            {
+                order = previous.getBegin().compareTo(price.getBegin());
+            }
+
+            Assert.assertTrue(previous + " " + price, order <= 0);
+        }
+    }
+
+    private long countFiles(
+            Path directory)
+            throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory))
+        {
+            return paths.count();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.pricelist.test.api.Price;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class OffHeapPriceBookTest
+{
+    private static LocalDateTime PRICE_BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testMatchesCompactPriceBook()
+    {
+        for (int seed = 0; seed < 50; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+
+            CompactPriceBook expectedPriceBook = new CompactPriceBook(oldPrices);
+            try (OffHeapPriceBook priceBook = new OffHeapPriceBook(1024, Long.MAX_VALUE))
+            {
+                priceBook.apply(oldPrices);
+                for (int i = 0; i < 5; i++)
+                {
+                    List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+                    newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+                    expectedPriceBook.apply(newPrices);
+                    priceBook.apply(newPrices);
+
+                    List<String> expectedDescription = i == 0
+                            ? RandomPrices.describeBaselineMerge(oldPrices, newPrices)
+                            : null;
+                    if (expectedDescription != null)
+                    {
+                        Assert.assertEquals("seed " + seed, expectedDescription,
+                                RandomPrices.describe(priceBook.getPrices()));
+                    }
+                }
+
+                Assert.assertEquals("seed " + seed, RandomPrices.describe(expectedPriceBook.getPrices()),
+                        RandomPrices.describe(priceBook.getPrices()));
+                Assert.assertEquals(expectedPriceBook.size(), priceBook.size());
+
+                for (Price price : oldPrices)
+                {
+                    LocalDateTime time = price.getBegin().plusMinutes(30);
+                    Assert.assertEquals(
+                            expectedPriceBook.valueAt(price.getProductCode(), price.getNumber(), price.getDepart(),
+                                    PriceTimes.toEpochMillis(time)),
+                            priceBook.valueAt(price.getProductCode(), price.getNumber(), price.getDepart(),
+                                    PriceTimes.toEpochMillis(time)));
+                    Assert.assertEquals(
+                            String.valueOf(expectedPriceBook.priceAt(price.getProductCode(), price.getNumber(),
+                                    price.getDepart(), time)),
+                            String.valueOf(priceBook.priceAt(price.getProductCode(), price.getNumber(),
+                                    price.getDepart(), time)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFreedBlocksAreReused()
+    {
+        try (OffHeapPriceBook priceBook = new OffHeapPriceBook(4096, Long.MAX_VALUE))
+        {
+            growKey(priceBook, 1, 20);
+            long usedMemory = priceBook.getUsedMemory();
+            long freeMemory = priceBook.getFreeMemory();
+            Assert.assertTrue(freeMemory > 0);
+
+            growKey(priceBook, 2, 20);
+            Assert.assertEquals(40, priceBook.size());
+            Assert.assertEquals(2 * usedMemory, priceBook.getUsedMemory());
+            Assert.assertEquals(freeMemory, priceBook.getFreeMemory());
+            Assert.assertEquals(4096, priceBook.getReservedMemory());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMemoryLimit()
+    {
+        try (OffHeapPriceBook priceBook = new OffHeapPriceBook(1024, 2048))
+        {
+            List<Price> prices = new ArrayList<>();
+            for (int depart = 0; depart < 100; depart++)
+            {
+                prices.add(RandomPrices.createPrice("122856", 1, depart, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(1)));
+            }
+            priceBook.apply(prices);
+        }
+    }
+
+    @Test
+    public void testFailedLoadReleasesMemory()
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int depart = 0; depart < 100; depart++)
+        {
+            prices.add(RandomPrices.createPrice("122856", 1, depart, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(1)));
+        }
+
+        BufferPoolMXBean directPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .findFirst()
+                .get();
+        long memoryUsed = directPool.getMemoryUsed();
+        try
+        {
+            new OffHeapPriceBook(prices, 1024, 2048);
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertEquals(memoryUsed, directPool.getMemoryUsed());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedPriceBook()
+    {
+        OffHeapPriceBook priceBook = new OffHeapPriceBook(Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(1))));
+        Assert.assertEquals(1, priceBook.getPrices().size());
+
+        priceBook.close();
+        Assert.assertEquals(0, priceBook.getReservedMemory());
+        priceBook.getPrices();
+    }
+
+    /**
+     * Добавляет ключу интервалы по одному, чтобы его блок проходил все классы размера.
+     */
+    private static void growKey(
+            OffHeapPriceBook priceBook,
+            int depart,
+            int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            priceBook.apply(Collections.singletonList(RandomPrices.createPrice("122856", 1, depart, 11000 + i,
+                    PRICE_BEGIN.plusHours(i), PRICE_BEGIN.plusHours(i + 1))));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class PersistentPriceMapTest
+{
+    /**
+     * "Aa" и "BB" имеют одинаковый хеш, поэтому ключи с ними и одинаковыми номером
+     * и отделом попадают в узел коллизий.
+     */
+    private static String[] PRODUCT_CODES = {"Aa", "BB", "122856", "6654", "8090"};
+
+    @Test
+    public void testMatchesHashMapAndKeepsOldVersions()
+    {
+        Random random = new Random(11);
+        List<PersistentPriceMap> versions = new ArrayList<>();
+        List<Map<PriceKey, PriceIntervals>> expectedVersions = new ArrayList<>();
+
+        PersistentPriceMap map = PersistentPriceMap.EMPTY;
+        Map<PriceKey, PriceIntervals> expected = new HashMap<>();
+        for (int version = 0; version < 50; version++)
+        {
+            PersistentPriceMap.Editor editor = map.edit();
+            for (int i = 0; i < 100; i++)
+            {
+                PriceKey key = new PriceKey(PRODUCT_CODES[random.nextInt(PRODUCT_CODES.length)],
+                        random.nextInt(40), random.nextInt(40));
+                PriceIntervals intervals = new PriceIntervals();
+                editor.put(key, intervals);
+                expected.put(key, intervals);
+            }
+            map = editor.build();
+
+            versions.add(map);
+            expectedVersions.add(new HashMap<>(expected));
+        }
+
+        for (int version = 0; version < versions.size(); version++)
+        {
+            assertMapEquals(expectedVersions.get(version), versions.get(version));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBuiltEditorRejectsChanges()
+    {
+        PersistentPriceMap.Editor editor = PersistentPriceMap.EMPTY.edit();
+        editor.build();
+
+        editor.put(new PriceKey("122856", 1, 1), new PriceIntervals());
+    }
+
+    private void assertMapEquals(
+            Map<PriceKey, PriceIntervals> expected,
+            PersistentPriceMap map)
+    {
+        Assert.assertEquals(expected.size(), map.size());
+        for (Map.Entry<PriceKey, PriceIntervals> entry : expected.entrySet())
+        {
+            Assert.assertSame(entry.getValue(), map.get(new PriceKey(entry.getKey().getProductCode(),
+                    entry.getKey().getNumber(), entry.getKey().getDepart())));
+        }
+        Assert.assertNull(map.get(new PriceKey("missing", 1, 1)));
+
+        Map<PriceKey, PriceIntervals> entries = new HashMap<>();
+        map.forEach(entries::put);
+        Assert.assertEquals(expected, entries);
+    }
+}
@@ -0,0 +1,480 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+import org.unitils.reflectionassert.ReflectionComparatorMode;
+import ru.pricelist.test.api.Price;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class PriceBookTest
+{
+    private static String PRODUCT_CODE = "122856";
+
+    private static LocalDateTime PRICE_BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    private static LocalDateTime PRICE_END = LocalDateTime.parse("2013-01-31T23:59:59");
+
+    @Test
+    public void testEmptyPriceBook()
+    {
+        PriceBook priceBook = new PriceBook();
+        priceBook.apply(Collections.emptyList());
+
+        Assert.assertTrue(priceBook.getPrices().isEmpty());
+    }
+
+    @Test
+    public void testApplyToEmptyPriceBook()
+    {
+        PriceBook priceBook = new PriceBook();
+        priceBook.apply(createPricelist());
+
+        ReflectionAssert.assertReflectionEquals(createPricelist(), priceBook.getPrices(),
+                ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testSeveralAppliesMatchChainedMerges()
+    {
+        List<List<Price>> deltas = new ArrayList<>();
+        deltas.add(Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 110,
+                PRICE_BEGIN.plusMinutes(10), PRICE_END.minusMinutes(10))));
+        deltas.add(Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 110,
+                PRICE_END.minusMinutes(20), PRICE_END.plusMinutes(10))));
+        deltas.add(Collections.singletonList(createPrice("8090", 1, 1, 24000,
+                PRICE_BEGIN, PRICE_END)));
+        deltas.add(Collections.singletonList(createPrice("8090", 1, 1, 25000,
+                PRICE_BEGIN.plusDays(1), PRICE_BEGIN.plusDays(2))));
+
+        PriceBook priceBook = new PriceBook(createPricelist());
+        List<Price> expectedPrices = createPricelist();
+        List<Price> baselinePrices = createPricelist();
+        for (List<Price> delta : deltas)
+        {
+            priceBook.apply(copy(delta));
+            expectedPrices = new ArrayList<>(Prices.merge(expectedPrices, copy(delta)));
+            baselinePrices = new ArrayList<>(BaselinePrices.merge(baselinePrices, copy(delta)));
+
+            ReflectionAssert.assertReflectionEquals(baselinePrices, expectedPrices,
+                    ReflectionComparatorMode.LENIENT_ORDER);
+            ReflectionAssert.assertReflectionEquals(expectedPrices, priceBook.getPrices(),
+                    ReflectionComparatorMode.LENIENT_ORDER);
+        }
+    }
+
+    @Test
+    public void testResentPricesSkipUnchangedKeys()
+    {
+        for (int seed = 0; seed < 10; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> prices = new ArrayList<>(new CompactPriceBook(Prices.merge(randomPrices.createPricelist(30, 8),
+                    randomPrices.createDisjointNewPrices(40, 3, 400, 10))).getPrices());
+
+            List<Price> resentPrices = RandomPrices.copy(prices);
+            Collections.shuffle(resentPrices, new Random(seed));
+            Price changedPrice = resentPrices.get(0);
+            changedPrice.setValue(changedPrice.getValue() + 1);
+
+            PriceBook priceBook = new PriceBook(RandomPrices.copy(prices));
+            priceBook.apply(RandomPrices.copy(resentPrices));
+            CompactPriceBook expectedPriceBook = new CompactPriceBook(prices);
+            expectedPriceBook.apply(resentPrices);
+
+            Set<PriceKey> keys = new HashSet<>();
+            prices.forEach(price -> keys.add(PriceKey.of(price)));
+            Assert.assertEquals(keys.size() - 1, priceBook.getSkippedKeyCount());
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testResentOverlappingPricesAreMerged()
+    {
+        List<Price> prices = new ArrayList<>();
+        prices.add(createPrice(PRODUCT_CODE, 1, 1, 110, PRICE_BEGIN, PRICE_END));
+        prices.add(createPrice(PRODUCT_CODE, 1, 1, 120, PRICE_BEGIN.plusDays(1), PRICE_END.plusDays(1)));
+
+        PriceBook priceBook = new PriceBook(copy(prices));
+        priceBook.apply(copy(prices));
+
+        Assert.assertEquals(0, priceBook.getSkippedKeyCount());
+        ReflectionAssert.assertReflectionEquals(Prices.merge(copy(prices), copy(prices)), priceBook.getPrices(),
+                ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testAppliedNonMergedPriceTakesPartInNextApply()
+    {
+        PriceBook priceBook = new PriceBook();
+        priceBook.apply(Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 110, PRICE_BEGIN, PRICE_END)));
+        priceBook.apply(Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 110,
+                PRICE_END.minusMinutes(10), PRICE_END.plusMinutes(10))));
+
+        ReflectionAssert.assertReflectionEquals(
+                Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 110, PRICE_BEGIN, PRICE_END.plusMinutes(10))),
+                priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testNonMergedPricesWithSameBeginAreKept()
+    {
+        assertMergedAsBaseline(Collections.emptyList(), Arrays.asList(
+                createPrice("1", 1, 1, 1, PRICE_BEGIN, PRICE_END),
+                createPrice("1", 1, 1, 2, PRICE_BEGIN, PRICE_END)), 2);
+
+        assertMergedAsBaseline(
+                Collections.singletonList(createPrice(PRODUCT_CODE, 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(5))),
+                Arrays.asList(
+                        createPrice(PRODUCT_CODE, 1, 1, 12000, PRICE_BEGIN.plusDays(1), PRICE_BEGIN.plusDays(2)),
+                        createPrice(PRODUCT_CODE, 1, 1, 13000, PRICE_BEGIN.plusDays(1), PRICE_BEGIN.plusDays(3)),
+                        createPrice(PRODUCT_CODE, 1, 1, 14000, PRICE_BEGIN.plusDays(1), PRICE_BEGIN.plusDays(4))),
+                5);
+    }
+
+    @Test
+    public void testRetentionPolicyArchivesExpiredPrices()
+    {
+        List<Price> archivedPrices = new ArrayList<>();
+        PriceRetentionPolicy retentionPolicy = PriceRetentionPolicy
+                .keepEndingAfter(LocalDateTime.parse("2013-01-15T00:00:00"))
+                .archiveTo(archivedPrices::add);
+
+        PriceBook priceBook = new PriceBook(createPricelist(), null, null, false, retentionPolicy);
+        priceBook.apply(Arrays.asList(
+                createPrice(PRODUCT_CODE, 1, 1, 110, PRICE_BEGIN.plusDays(2), PRICE_END.plusDays(10)),
+                createPrice(PRODUCT_CODE, 3, 1, 130, PRICE_BEGIN, PRICE_BEGIN.plusDays(1))));
+
+        List<Price> expectedPrices = createPricelist();
+        expectedPrices.remove(1);
+        expectedPrices.remove(0);
+        expectedPrices.add(createPrice(PRODUCT_CODE, 1, 1, 110, PRICE_BEGIN.plusDays(2), PRICE_END.plusDays(10)));
+
+        List<Price> expectedArchivedPrices = new ArrayList<>();
+        expectedArchivedPrices.add(createPricelist().get(0));
+        expectedArchivedPrices.add(createPrice(PRODUCT_CODE, 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(2)));
+        expectedArchivedPrices.add(createPrice(PRODUCT_CODE, 3, 1, 130, PRICE_BEGIN, PRICE_BEGIN.plusDays(1)));
+
+        ReflectionAssert.assertReflectionEquals(expectedPrices, priceBook.getPrices(),
+                ReflectionComparatorMode.LENIENT_ORDER);
+        ReflectionAssert.assertReflectionEquals(expectedArchivedPrices, archivedPrices,
+                ReflectionComparatorMode.LENIENT_ORDER);
+        Assert.assertEquals(3, priceBook.getPrunedCount());
+    }
+
+    @Test
+    public void testRetentionMatchesFilteredMerge()
+    {
+        LocalDateTime watermark = PRICE_BEGIN.plusHours(150);
+        for (int seed = 0; seed < 50; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(30, 3, 400, 8);
+
+            List<Price> expectedPrices = new ArrayList<>();
+            for (Price price : Prices.merge(RandomPrices.copy(oldPrices), RandomPrices.copy(newPrices)))
+            {
+                if (price.getEnd().isAfter(watermark))
+                {
+                    expectedPrices.add(price);
+                }
+            }
+
+            Assert.assertEquals("seed " + seed, RandomPrices.describe(expectedPrices),
+                    RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices), RandomPrices.copy(newPrices),
+                            PriceRetentionPolicy.keepEndingAfter(watermark))));
+        }
+    }
+
+    @Test
+    public void testRetentionPrunesAfterMerge()
+    {
+        List<Price> archivedPrices = new ArrayList<>();
+        PriceRetentionPolicy retentionPolicy = PriceRetentionPolicy
+                .keepEndingAfter(PRICE_BEGIN.plusDays(15))
+                .archiveTo(archivedPrices::add);
+
+        List<Price> oldPrices = new ArrayList<>();
+        oldPrices.add(createPrice(PRODUCT_CODE, 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(10)));
+        oldPrices.add(createPrice(PRODUCT_CODE, 1, 1, 12000, PRICE_BEGIN.plusDays(10), PRICE_BEGIN.plusDays(12)));
+        for (boolean copyOnWrite : new boolean[] {false, true})
+        {
+            archivedPrices.clear();
+            PriceBook priceBook = new PriceBook(copy(oldPrices), null, null, copyOnWrite, retentionPolicy);
+            Assert.assertEquals(0, priceBook.getPrunedCount());
+
+            priceBook.apply(Collections.singletonList(
+                    createPrice(PRODUCT_CODE, 1, 1, 12000, PRICE_BEGIN.plusDays(11), PRICE_BEGIN.plusDays(20))));
+
+            ReflectionAssert.assertReflectionEquals(Collections.singletonList(
+                    createPrice(PRODUCT_CODE, 1, 1, 12000, PRICE_BEGIN.plusDays(10), PRICE_BEGIN.plusDays(20))),
+                    priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+            ReflectionAssert.assertReflectionEquals(Collections.singletonList(oldPrices.get(0)), archivedPrices,
+                    ReflectionComparatorMode.LENIENT_ORDER);
+        }
+    }
+
+    @Test
+    public void testPruneSweepsUntouchedKeys()
+    {
+        MovingClock clock = new MovingClock(PRICE_BEGIN.plusDays(10));
+        PriceBook priceBook = new PriceBook(createPricelist(), null, null, false,
+                PriceRetentionPolicy.keepHistory(Duration.ofDays(10), clock));
+        Assert.assertEquals(0, priceBook.getPrunedCount());
+
+        clock.setTime(PRICE_END.plusDays(10));
+        Assert.assertEquals(4, priceBook.prune());
+        Assert.assertEquals(0, priceBook.prune());
+
+        ReflectionAssert.assertReflectionEquals(Collections.singletonList(createPricelist().get(2)),
+                priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+        Assert.assertEquals(4, priceBook.getPrunedCount());
+    }
+
+    @Test
+    public void testPruneSkipsLivePricesOfOverlappingTree()
+    {
+        List<Price> prices = new ArrayList<>();
+        prices.add(createPrice(PRODUCT_CODE, 1, 1, 11000, PRICE_BEGIN, PRICE_END));
+        prices.add(createPrice(PRODUCT_CODE, 1, 1, 12000, PRICE_BEGIN.plusDays(1), PRICE_BEGIN.plusDays(9)));
+        prices.add(createPrice(PRODUCT_CODE, 1, 1, 13000, PRICE_BEGIN.plusDays(2), null));
+
+        MovingClock clock = new MovingClock(PRICE_BEGIN);
+        PriceBook priceBook = new PriceBook(prices, null, null, false,
+                PriceRetentionPolicy.keepHistory(Duration.ofDays(10), clock));
+        Assert.assertEquals(0, priceBook.getPrunedCount());
+
+        clock.setTime(PRICE_BEGIN.plusDays(29));
+        Assert.assertEquals(1, priceBook.prune());
+
+        prices.remove(1);
+        ReflectionAssert.assertReflectionEquals(prices, priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testPricesBetween()
+    {
+        PriceBook priceBook = new PriceBook(createPricelist());
+        List<Price> pricelist = createPricelist();
+        LocalDateTime from = LocalDateTime.parse("2013-01-15T00:00:00");
+
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(pricelist.get(1), pricelist.get(3)),
+                priceBook.pricesBetween(1, from, from.plusDays(1)), ReflectionComparatorMode.LENIENT_ORDER);
+        ReflectionAssert.assertReflectionEquals(Collections.singletonList(pricelist.get(1)),
+                priceBook.pricesBetween(1, 1, from, from.plusDays(1)), ReflectionComparatorMode.LENIENT_ORDER);
+        ReflectionAssert.assertReflectionEquals(Collections.singletonList(pricelist.get(2)),
+                priceBook.pricesBetween(1, PRICE_END, PRICE_END.plusMonths(1)), ReflectionComparatorMode.LENIENT_ORDER);
+        Assert.assertTrue(priceBook.pricesBetween(3, from, from.plusDays(1)).isEmpty());
+    }
+
+    @Test
+    public void testChangesBetween()
+    {
+        PriceBook priceBook = new PriceBook(createPricelist());
+        LocalDateTime from = LocalDateTime.parse("2013-01-10T00:00:00");
+
+        ReflectionAssert.assertReflectionEquals(Collections.singletonList(createPricelist().get(3)),
+                priceBook.changesBetween(from, from.plusDays(1)));
+
+        priceBook.apply(Collections.singletonList(createPrice("6654", 1, 2, 4000, from.plusHours(12), from.plusHours(18))));
+
+        List<Price> expectedPrices = new ArrayList<>();
+        expectedPrices.add(createPricelist().get(3));
+        expectedPrices.add(createPrice("6654", 1, 2, 5000, PRICE_BEGIN, from.plusHours(12)));
+        expectedPrices.add(createPrice("6654", 1, 2, 4000, from.plusHours(12), from.plusHours(18)));
+        expectedPrices.add(createPrice("6654", 1, 2, 5000, from.plusHours(18), PRICE_END));
+
+        ReflectionAssert.assertReflectionEquals(expectedPrices, priceBook.changesBetween(from, from.plusDays(1)));
+    }
+
+    @Test
+    public void testIndexesMatchFullScan()
+    {
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            PriceBook priceBook = new PriceBook(randomPrices.createPricelist(30, 8));
+            for (int i = 0; i < 5; i++)
+            {
+                priceBook.apply(randomPrices.createDisjointNewPrices(10, 3, 400, 1000000));
+
+                LocalDateTime from = PRICE_BEGIN.plusHours(i * 60);
+                LocalDateTime to = from.plusHours(24);
+                List<Price> expectedChanges = new ArrayList<>();
+                List<Price> expectedDepartPrices = new ArrayList<>();
+                List<Price> expectedNumberDepartPrices = new ArrayList<>();
+                for (Price price : priceBook.getPrices())
+                {
+                    if (!price.getBegin().isBefore(from) && price.getBegin().isBefore(to)
+                            || !price.getEnd().isBefore(from) && price.getEnd().isBefore(to))
+                    {
+                        expectedChanges.add(price);
+                    }
+                    if (price.getDepart() == 2 && price.getEnd().isAfter(from) && price.getBegin().isBefore(to))
+                    {
+                        expectedDepartPrices.add(price);
+                        if (price.getNumber() == 3)
+                        {
+                            expectedNumberDepartPrices.add(price);
+                        }
+                    }
+                }
+
+                Assert.assertEquals("seed " + seed, RandomPrices.describe(expectedChanges),
+                        RandomPrices.describe(priceBook.changesBetween(from, to)));
+                Assert.assertEquals("seed " + seed, RandomPrices.describe(expectedDepartPrices),
+                        RandomPrices.describe(priceBook.pricesBetween(2, from, to)));
+                Assert.assertEquals("seed " + seed, RandomPrices.describe(expectedNumberDepartPrices),
+                        RandomPrices.describe(priceBook.pricesBetween(3, 2, from, to)));
+            }
+        }
+    }
+
+    @Test
+    public void testPriceAt()
+    {
+        PriceBook priceBook = new PriceBook(createPricelist());
+
+        Assert.assertEquals(Long.valueOf(11000), priceBook.priceAt(PRODUCT_CODE, 1, 1, PRICE_BEGIN).getValue());
+        Assert.assertEquals(Long.valueOf(11000),
+                priceBook.priceAt(PRODUCT_CODE, 1, 1, PRICE_END.minusNanos(1)).getValue());
+        Assert.assertNull(priceBook.priceAt(PRODUCT_CODE, 1, 1, PRICE_END));
+        Assert.assertNull(priceBook.priceAt(PRODUCT_CODE, 1, 1, PRICE_BEGIN.minusNanos(1)));
+        Assert.assertNull(priceBook.priceAt(PRODUCT_CODE, 3, 1, PRICE_BEGIN));
+    }
+
+    @Test
+    public void testPricesAt()
+    {
+        PriceBook priceBook = new PriceBook(createPricelist());
+
+        List<Price> expectedPrices = createPricelist();
+        expectedPrices.remove(2);
+        expectedPrices.remove(0);
+
+        ReflectionAssert.assertReflectionEquals(expectedPrices,
+                priceBook.pricesAt(LocalDateTime.parse("2013-01-15T00:00:00")), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    private void assertMergedAsBaseline(
+            List<Price> oldPrices,
+            List<Price> newPrices,
+            int expectedSize)
+    {
+        Set<Price> expectedPrices = BaselinePrices.merge(copy(oldPrices), copy(newPrices));
+        Assert.assertEquals(expectedSize, expectedPrices.size());
+
+        PriceBook priceBook = new PriceBook(copy(oldPrices));
+        priceBook.apply(copy(newPrices));
+        ReflectionAssert.assertReflectionEquals(expectedPrices, priceBook.getPrices(),
+                ReflectionComparatorMode.LENIENT_ORDER);
+        ReflectionAssert.assertReflectionEquals(expectedPrices, Prices.merge(copy(oldPrices), copy(newPrices)),
+                ReflectionComparatorMode.LENIENT_ORDER);
+        ReflectionAssert.assertReflectionEquals(expectedPrices,
+                Prices.mergeCopyOnWrite(copy(oldPrices), copy(newPrices)), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    private List<Price> copy(
+            List<Price> prices)
+    {
+        List<Price> copies = new ArrayList<>();
+        for (Price price : prices)
+        {
+            copies.add(createPrice(price.getProductCode(), price.getNumber(), price.getDepart(), price.getValue(),
+                    price.getBegin(), price.getEnd()));
+        }
+
+        return copies;
+    }
+
+    private List<Price> createPricelist()
+    {
+        List<Price> prices = new ArrayList<>();
+        prices.add(createPrice("122856", 1, 1, 12000,
+                LocalDateTime.parse("2012-11-01T00:00:00"), LocalDateTime.parse("2012-11-30T23:59:59")));
+        prices.add(createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_END));
+        prices.add(createPrice("122856", 1, 1, 14000,
+                LocalDateTime.parse("2013-02-20T23:59:59"), LocalDateTime.parse("2013-02-21T23:59:59")));
+        prices.add(createPrice("122856", 2, 1, 99000,
+                LocalDateTime.parse("2013-01-10T00:00:00"), LocalDateTime.parse("2013-01-20T23:59:59")));
+        prices.add(createPrice("6654", 1, 2, 5000,
+                LocalDateTime.parse("2013-01-01T00:00:00"), LocalDateTime.parse("2013-01-31T23:59:59")));
+
+        return prices;
+    }
+
+    private Price createPrice(
+            String productCode,
+            int number,
+            int depart,
+            long value,
+            LocalDateTime begin,
+            LocalDateTime end)
+    {
+        Price price = new Price();
+        price.setProductCode(productCode);
+        price.setNumber(number);
+        price.setDepart(depart);
+        price.setBegin(begin);
+        price.setEnd(end);
+        price.setValue(value);
+
+        return price;
+    }
+
+    /**
+     * Часы, время которых переставляется вручную.
+     */
+    private static final class MovingClock
+    extends Clock
+    {
+        private Instant instant;
+
+        private MovingClock(
+                LocalDateTime time)
+        {
+            setTime(time);
+        }
+
+        private void setTime(
+                LocalDateTime time)
+        {
+            instant = time.toInstant(ZoneOffset.UTC);
+        }
+
+        @Override
+        public ZoneId getZone()
+        {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(
+                ZoneId zone)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant()
+        {
+            return instant;
+        }
+    }
+}
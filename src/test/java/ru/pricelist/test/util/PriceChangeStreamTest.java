@@ -0,0 +1,210 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+import ru.pricelist.test.api.Price;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PriceChangeStreamTest
+{
+    private static LocalDateTime BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testEventsDescribeMergeOutcomes()
+    {
+        PriceChangeStream stream = new PriceChangeStream(16);
+        List<String> events = new ArrayList<>();
+        PriceChangeStream.Subscription subscription = stream.subscribe(
+                (event, sequence, endOfBatch) -> events.add(describe(event)));
+
+        PriceBook priceBook = new PriceBook(Arrays.asList(
+                RandomPrices.createPrice("split", 1, 1, 100, day(1), day(10)),
+                RandomPrices.createPrice("extend", 1, 1, 100, day(1), day(5)),
+                RandomPrices.createPrice("remove", 1, 1, 100, day(1), day(5)),
+                RandomPrices.createPrice("truncate", 1, 1, 100, day(5), day(10))), stream);
+        priceBook.apply(Arrays.asList(
+                RandomPrices.createPrice("split", 1, 1, 200, day(3), day(5)),
+                RandomPrices.createPrice("extend", 1, 1, 100, day(3), day(8)),
+                RandomPrices.createPrice("extend", 1, 1, 100, day(2), day(4)),
+                RandomPrices.createPrice("remove", 1, 1, 300, day(0), day(6)),
+                RandomPrices.createPrice("truncate", 1, 1, 300, day(3), day(6))));
+
+        Assert.assertEquals(8, subscription.poll());
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(
+                "SPLIT split 1-3 was 1-10",
+                "INSERTED split 5-10",
+                "EXTENDED extend 1-8 was 1-5",
+                "REMOVED remove 1-5",
+                "TRUNCATED truncate 6-10 was 5-10",
+                "INSERTED split 3-5",
+                "INSERTED remove 0-6",
+                "INSERTED truncate 3-6"), events);
+        Assert.assertEquals(0, subscription.poll());
+        Assert.assertEquals(8, stream.getPublishedCount());
+    }
+
+    @Test
+    public void testListenerReceivesEachChangeOnce()
+    {
+        List<String> events = new ArrayList<>();
+        PriceMergeListener listener = new PriceMergeListener()
+        {
+            @Override
+            public void priceAdded(
+                    Price price)
+            {
+                events.add("added " + price.getProductCode());
+            }
+
+            @Override
+            public void priceChanged(
+                    PriceChangeEvent.Type type,
+                    Price price,
+                    LocalDateTime oldBegin,
+                    LocalDateTime oldEnd)
+            {
+                events.add(type + " " + price.getProductCode());
+            }
+        };
+
+        PriceBook priceBook = new PriceBook(Collections.singletonList(
+                RandomPrices.createPrice("split", 1, 1, 100, day(1), day(10))), listener);
+        priceBook.apply(Collections.singletonList(
+                RandomPrices.createPrice("split", 1, 1, 200, day(3), day(5))));
+
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(
+                "SPLIT split",
+                "INSERTED split",
+                "INSERTED split"), events);
+
+        List<String> legacyEvents = new ArrayList<>();
+        priceBook = new PriceBook(Collections.singletonList(
+                RandomPrices.createPrice("split", 1, 1, 100, day(1), day(10))), new PriceMergeListener()
+        {
+            @Override
+            public void priceAdded(
+                    Price price)
+            {
+                legacyEvents.add("added " + price.getBegin().getDayOfMonth());
+            }
+
+            @Override
+            public void priceUpdated(
+                    Price price,
+                    LocalDateTime oldBegin,
+                    LocalDateTime oldEnd)
+            {
+                legacyEvents.add("updated " + price.getEnd().getDayOfMonth() + " was " + oldEnd.getDayOfMonth());
+            }
+        });
+        priceBook.apply(Collections.singletonList(
+                RandomPrices.createPrice("split", 1, 1, 200, day(3), day(5))));
+
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(
+                "updated 4 was 11",
+                "added 6",
+                "added 4"), legacyEvents);
+    }
+
+    @Test
+    public void testSlowConsumersReceiveAllEventsInOrder()
+            throws InterruptedException
+    {
+        PriceChangeStream stream = new PriceChangeStream(8);
+        List<String> expectedEvents = new ArrayList<>();
+        PriceMergeListener listener = new PriceMergeListener()
+        {
+            @Override
+            public void priceChanged(
+                    PriceChangeEvent.Type type,
+                    Price price,
+                    LocalDateTime oldBegin,
+                    LocalDateTime oldEnd)
+            {
+                stream.priceChanged(type, price, oldBegin, oldEnd);
+                expectedEvents.add(stream.getPublishedCount() - 1 + " " + type + " " + price.getProductCode()
+                        + " " + price.getBegin() + " " + price.getEnd() + " " + price.getValue());
+            }
+        };
+
+        List<String> fastEvents = Collections.synchronizedList(new ArrayList<>());
+        List<String> slowEvents = Collections.synchronizedList(new ArrayList<>());
+        PriceChangeStream.Subscription fast = stream.subscribe(
+                (event, sequence, endOfBatch) -> fastEvents.add(describe(event, sequence)), 3);
+        PriceChangeStream.Subscription slow = stream.subscribe((event, sequence, endOfBatch) -> {
+            slowEvents.add(describe(event, sequence));
+            if (sequence % 16 == 0)
+            {
+                try
+                {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread fastThread = new Thread(fast);
+        Thread slowThread = new Thread(slow);
+        fastThread.start();
+        slowThread.start();
+
+        RandomPrices randomPrices = new RandomPrices(21);
+        PriceBook priceBook = new PriceBook(randomPrices.createPricelist(20, 6), listener);
+        for (int batch = 0; batch < 20; batch++)
+        {
+            priceBook.apply(randomPrices.createDisjointNewPrices(10, 2, 400, 1000000));
+        }
+
+        while (fast.getLag() > 0 || slow.getLag() > 0)
+        {
+            Thread.sleep(1);
+        }
+        fast.close();
+        slow.close();
+        fastThread.join();
+        slowThread.join();
+
+        Assert.assertTrue(expectedEvents.size() > 100);
+        Assert.assertTrue(stream.getBackPressureCount() > 0);
+        Assert.assertEquals(0, stream.getSubscriptionCount());
+        ReflectionAssert.assertReflectionEquals(expectedEvents, fastEvents);
+        ReflectionAssert.assertReflectionEquals(expectedEvents, slowEvents);
+    }
+
+    private static LocalDateTime day(
+            int day)
+    {
+        return BEGIN.plusDays(day);
+    }
+
+    private static String describe(
+            PriceChangeEvent event)
+    {
+        return event.getType() + " " + event.getProductCode() + " " + dayOf(event.getBegin()) + "-"
+                + dayOf(event.getEnd()) + (event.getOldBegin() == null ? ""
+                        : " was " + dayOf(event.getOldBegin()) + "-" + dayOf(event.getOldEnd()));
+    }
+
+    private static String describe(
+            PriceChangeEvent event,
+            long sequence)
+    {
+        return sequence + " " + event.getType() + " " + event.getProductCode() + " " + event.getBegin() + " "
+                + event.getEnd() + " " + event.getValue();
+    }
+
+    private static long dayOf(
+            LocalDateTime time)
+    {
+        return Duration.between(BEGIN, time).toDays();
+    }
+}
@@ -0,0 +1,111 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.unitils.reflectionassert.ReflectionAssert;
+import org.unitils.reflectionassert.ReflectionComparatorMode;
+import ru.pricelist.test.api.Price;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class PriceFeedsTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testImportMatchesApply()
+            throws IOException
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+
+            StringBuilder feed = new StringBuilder("product_code,number,depart,begin,end,value\n");
+            for (Price price : newPrices)
+            {
+                feed.append(price.getProductCode()).append(',')
+                        .append(price.getNumber()).append(',')
+                        .append(price.getDepart()).append(',')
+                        .append(price.getBegin()).append(',')
+                        .append(price.getEnd()).append(',')
+                        .append(price.getValue()).append('\n');
+            }
+            Path path = temporaryFolder.getRoot().toPath().resolve("prices.csv");
+            Files.write(path, feed.toString().getBytes(StandardCharsets.UTF_8));
+
+            CompactPriceBook expectedPriceBook = new CompactPriceBook(RandomPrices.copy(oldPrices));
+            expectedPriceBook.apply(RandomPrices.copy(newPrices));
+
+            CompactPriceBook priceBook = new CompactPriceBook(RandomPrices.copy(oldPrices));
+            long records = PriceFeeds.importFile(path, ',', true, priceBook, pool, 64 + seed * 16);
+
+            Assert.assertEquals(newPrices.size(), records);
+            Assert.assertEquals(RandomPrices.describe(expectedPriceBook.getPrices()),
+                    RandomPrices.describe(priceBook.getPrices()));
+        }
+    }
+
+    @Test
+    public void testImportTabSeparatedTimeFormats()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.tsv");
+        Files.write(path, Arrays.asList(
+                "122856\t1\t1\t2013-01-01T00:00\t2013-01-31 23:59:59\t11000\r",
+                "",
+                "Код товара\t-2\t-3\t2012-02-29T10:15:30.5\t2013-02-28T10:15:30.123456789\t-9223372036854775808"),
+                StandardCharsets.UTF_8);
+
+        CompactPriceBook priceBook = new CompactPriceBook();
+        Assert.assertEquals(2, PriceFeeds.importFile(path, '\t', false, priceBook));
+
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(
+                RandomPrices.createPrice("122856", 1, 1, 11000,
+                        LocalDateTime.parse("2013-01-01T00:00:00"), LocalDateTime.parse("2013-01-31T23:59:59")),
+                RandomPrices.createPrice("Код товара", -2, -3, Long.MIN_VALUE,
+                        LocalDateTime.parse("2012-02-29T10:15:30.500"),
+                        LocalDateTime.parse("2013-02-28T10:15:30.123"))),
+                priceBook.getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testImportRejectsMalformedRecord()
+            throws IOException
+    {
+        String[] records = {
+                "122856,1,1,2013-01-01T00:00:00,2013-01-31T23:59:59",
+                "122856,1,1,2013-01-01T00:00:00,2013-01-31T23:59:59,11000,1",
+                "122856,x,1,2013-01-01T00:00:00,2013-01-31T23:59:59,11000",
+                "122856,1,1,2013-02-29T00:00:00,2013-03-31T23:59:59,11000",
+                "122856,1,1,2013-01-01,2013-01-31T23:59:59,11000",
+                "122856,1,4294967296,2013-01-01T00:00:00,2013-01-31T23:59:59,11000"};
+
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.csv");
+        for (String record : records)
+        {
+            Files.write(path, record.getBytes(StandardCharsets.UTF_8));
+            try
+            {
+                PriceFeeds.importFile(path, ',', false, new CompactPriceBook());
+                Assert.fail("Malformed record was imported: " + record);
+            }
+            catch (IOException e)
+            {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed price record at byte "));
+            }
+        }
+    }
+}
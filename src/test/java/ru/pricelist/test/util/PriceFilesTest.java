@@ -0,0 +1,213 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.unitils.reflectionassert.ReflectionAssert;
+import org.unitils.reflectionassert.ReflectionComparatorMode;
+import ru.pricelist.test.api.Price;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PriceFilesTest
+{
+    private static LocalDateTime PRICE_BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testEmptyPriceFile()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, Collections.emptyList());
+
+        try (MappedPriceFile priceFile = PriceFiles.map(path))
+        {
+            Assert.assertEquals(0, priceFile.size());
+            Assert.assertTrue(new CompactPriceBook(priceFile).getPrices().isEmpty());
+            Assert.assertEquals(CompactPriceBook.NO_VALUE, priceFile.valueAt("122856", 1, 1, 0));
+        }
+    }
+
+    @Test
+    public void testUnboundedPrice()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, Collections.singletonList(
+                RandomPrices.createPrice("Код товара", 1, 1, 11000, LocalDateTime.MIN, LocalDateTime.MAX)));
+
+        try (MappedPriceFile priceFile = PriceFiles.map(path))
+        {
+            ReflectionAssert.assertReflectionEquals(
+                    Collections.singletonList(RandomPrices.createPrice("Код товара", 1, 1, 11000,
+                            LocalDateTime.MIN, LocalDateTime.MAX)),
+                    new CompactPriceBook(priceFile).getPrices(), ReflectionComparatorMode.LENIENT_ORDER);
+        }
+    }
+
+    @Test
+    public void testMergeResultRoundTrip()
+            throws IOException
+    {
+        RandomPrices randomPrices = new RandomPrices(7);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+
+        CompactPriceBook priceBook = new CompactPriceBook(oldPrices);
+        priceBook.apply(newPrices);
+
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, priceBook);
+        MappedPriceFile priceFile = PriceFiles.map(path);
+
+        Assert.assertEquals(priceBook.size(), priceFile.size());
+        Assert.assertEquals(RandomPrices.describe(priceBook.getPrices()),
+                RandomPrices.describe(new CompactPriceBook(priceFile).getPrices()));
+
+        for (int hour = 0; hour < 800; hour += 7)
+        {
+            LocalDateTime time = PRICE_BEGIN.plusHours(hour);
+            for (Price price : priceBook.pricesAt(time))
+            {
+                Assert.assertEquals(price.getValue().longValue(), priceFile.valueAt(price.getProductCode(),
+                        price.getNumber(), price.getDepart(), PriceTimes.toEpochMillis(time)));
+                ReflectionAssert.assertReflectionEquals(price,
+                        priceFile.priceAt(price.getProductCode(), price.getNumber(), price.getDepart(), time));
+            }
+        }
+
+        Assert.assertEquals(CompactPriceBook.NO_VALUE, priceFile.valueAt("missing", 1, 1, 0));
+        Assert.assertNull(priceFile.priceAt("122856", 1, 1, PRICE_BEGIN.minusYears(1)));
+    }
+
+    @Test
+    public void testOverlappingMergeResultRoundTrip()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            CompactPriceBook priceBook = new CompactPriceBook(randomPrices.createPricelist(10, 8));
+            for (int i = 0; i < 3; i++)
+            {
+                priceBook.apply(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+            }
+
+            PriceFiles.write(path, priceBook);
+
+            try (MappedPriceFile priceFile = PriceFiles.map(path))
+            {
+                Assert.assertEquals("seed " + seed, RandomPrices.describe(priceBook.getPrices()),
+                        RandomPrices.describe(new CompactPriceBook(priceFile).getPrices()));
+            }
+        }
+    }
+
+    @Test
+    public void testCollidedPricesRoundTrip()
+            throws IOException
+    {
+        CompactPriceBook priceBook = new CompactPriceBook(Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusHours(10))));
+        priceBook.apply(Arrays.asList(
+                RandomPrices.createPrice("122856", 1, 1, 5000, PRICE_BEGIN.plusHours(20), PRICE_BEGIN.plusHours(30)),
+                RandomPrices.createPrice("122856", 1, 1, 6000, PRICE_BEGIN.plusHours(20), PRICE_BEGIN.plusHours(25))));
+
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, priceBook);
+        MappedPriceFile priceFile = PriceFiles.map(path);
+
+        Assert.assertEquals(3, priceFile.size());
+        Assert.assertEquals(5000, priceFile.valueAt("122856", 1, 1,
+                PriceTimes.toEpochMillis(PRICE_BEGIN.plusHours(22))));
+
+        CompactPriceBook loadedPriceBook = new CompactPriceBook(priceFile);
+        Assert.assertEquals(RandomPrices.describe(priceBook.getPrices()),
+                RandomPrices.describe(loadedPriceBook.getPrices()));
+
+        List<Price> newPrices = Collections.singletonList(RandomPrices.createPrice("122856", 1, 1, 7000,
+                PRICE_BEGIN.plusHours(22), PRICE_BEGIN.plusHours(24)));
+        priceBook.apply(RandomPrices.copy(newPrices));
+        loadedPriceBook.apply(RandomPrices.copy(newPrices));
+
+        Assert.assertEquals(RandomPrices.describe(priceBook.getPrices()),
+                RandomPrices.describe(loadedPriceBook.getPrices()));
+        Assert.assertTrue(RandomPrices.describe(loadedPriceBook.getPrices()).contains(RandomPrices.createPrice(
+                "122856", 1, 1, 6000, PRICE_BEGIN.plusHours(20), PRICE_BEGIN.plusHours(25)).toString()));
+    }
+
+    @Test
+    public void testWriteReplacesExistingFile()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, new RandomPrices(3).createPricelist(10, 4));
+        PriceFiles.write(path, Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, PRICE_BEGIN, PRICE_BEGIN.plusDays(1))));
+
+        try (MappedPriceFile priceFile = PriceFiles.map(path))
+        {
+            Assert.assertEquals(1, priceFile.size());
+        }
+        Assert.assertEquals(Collections.singletonList(path.getFileName()),
+                Arrays.asList(Files.list(temporaryFolder.getRoot().toPath()).map(Path::getFileName).toArray()));
+    }
+
+    @Test
+    public void testCloseReleasesMappings()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, new RandomPrices(3).createPricelist(10, 4));
+
+        BufferPoolMXBean mappedPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("mapped"))
+                .findFirst()
+                .get();
+        long mappingCount = mappedPool.getCount();
+
+        MappedPriceFile priceFile = PriceFiles.map(path);
+        Assert.assertEquals(mappingCount + 1, mappedPool.getCount());
+        CompactPriceBook priceBook = new CompactPriceBook(priceFile);
+
+        priceFile.close();
+        priceFile.close();
+        Assert.assertEquals(mappingCount, mappedPool.getCount());
+        Assert.assertEquals(40, priceBook.size());
+
+        try
+        {
+            priceFile.valueAt("122856", 1, 1, 0);
+            Assert.fail();
+        }
+        catch (IllegalStateException e)
+        {
+            Assert.assertEquals("Price file is closed", e.getMessage());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMapTruncatedFile()
+            throws IOException
+    {
+        Path path = temporaryFolder.getRoot().toPath().resolve("prices.bin");
+        PriceFiles.write(path, new RandomPrices(3).createPricelist(10, 4));
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 1));
+
+        PriceFiles.map(path);
+    }
+}
@@ -0,0 +1,157 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PriceIntervalsTest
+{
+    @Test
+    public void testSweepMatchesSequentialMerge()
+    {
+        for (int seed = 0; seed < 2000; seed++)
+        {
+            Random random = new Random(seed);
+            PriceIntervals swept = createIntervals(random);
+            PriceIntervals merged = copy(swept);
+
+            IntervalBuffer batch = new IntervalBuffer();
+            long begin = random.nextInt(50);
+            int count = PriceIntervals.SWEEP_THRESHOLD + random.nextInt(20);
+            for (int i = 0; i < count; i++)
+            {
+                long end = begin + 1 + random.nextInt(30);
+                batch.append(begin, end, random.nextInt(25));
+                begin = end + (random.nextBoolean() ? 0 : random.nextInt(10));
+            }
+            shuffle(batch, random);
+
+            IntervalBuffer nonMerged = new IntervalBuffer();
+            for (int i = 0; i < batch.size(); i++)
+            {
+                if (!merged.merge(batch.getBegin(i), batch.getEnd(i), batch.getValue(i)))
+                {
+                    nonMerged.append(batch.getBegin(i), batch.getEnd(i), batch.getValue(i));
+                }
+            }
+            for (int i = 0; i < nonMerged.size(); i++)
+            {
+                merged.addNonMerged(nonMerged.getBegin(i), nonMerged.getEnd(i), nonMerged.getValue(i));
+            }
+
+            swept.mergeBatch(batch, new IntervalBuffer(), new IntervalBuffer(1));
+
+            Assert.assertEquals("seed " + seed, describe(merged), describe(swept));
+        }
+    }
+
+    @Test
+    public void testOverlappingBatchIsMergedSequentially()
+    {
+        PriceIntervals intervals = new PriceIntervals();
+        intervals.add(0, 100, 1);
+
+        IntervalBuffer batch = new IntervalBuffer();
+        batch.append(10, 20, 2);
+        batch.append(15, 30, 3);
+        batch.append(40, 50, 1);
+        batch.append(60, 70, 4);
+        intervals.mergeBatch(batch, new IntervalBuffer(), new IntervalBuffer());
+
+        Assert.assertEquals("[0, 10) = 1; [10, 20) = 2; [15, 30) = 3; [30, 60) = 1; [60, 70) = 4; [70, 100) = 1; ",
+                describe(intervals));
+    }
+
+    @Test
+    public void testNonMergedIntervalWithExistingBeginIsKept()
+    {
+        PriceIntervals intervals = new PriceIntervals();
+        IntervalBuffer batch = new IntervalBuffer();
+        batch.append(10, 20, 2);
+        batch.append(10, 30, 3);
+        intervals.mergeBatch(batch, new IntervalBuffer(), new IntervalBuffer());
+
+        Assert.assertEquals("[10, 20) = 2; [10, 30) = 3; ", describe(intervals));
+
+        intervals = new PriceIntervals();
+        intervals.add(0, 10, 1);
+        intervals.add(40, 40, 9);
+        batch.clear();
+        batch.append(10, 20, 2);
+        batch.append(20, 30, 3);
+        batch.append(30, 40, 4);
+        batch.append(40, 50, 5);
+        intervals.mergeBatch(batch, new IntervalBuffer(), new IntervalBuffer());
+
+        Assert.assertEquals("[0, 10) = 1; [10, 20) = 2; [20, 30) = 3; [30, 40) = 4; [40, 40) = 9; [40, 50) = 5; ",
+                describe(intervals));
+    }
+
+    /**
+     * Создает интервалы с различающимися значениями: на таких данных результат
+     * объединения не зависит от порядка обработки непересекающихся новых цен.
+     */
+    private PriceIntervals createIntervals(
+            Random random)
+    {
+        PriceIntervals intervals = new PriceIntervals();
+        long begin = random.nextInt(20);
+        int count = random.nextInt(25);
+        long valueShift = random.nextInt(8);
+        for (int i = 0; i < count; i++)
+        {
+            long end = begin + 1 + random.nextInt(40);
+            intervals.add(begin, end, (i * 7 + valueShift) % 25);
+            begin = end + (random.nextBoolean() ? 0 : random.nextInt(15));
+        }
+
+        return intervals;
+    }
+
+    private PriceIntervals copy(
+            PriceIntervals intervals)
+    {
+        PriceIntervals copy = new PriceIntervals();
+        for (int i = 0; i < intervals.size(); i++)
+        {
+            copy.add(intervals.getBegin(i), intervals.getEnd(i), intervals.getValue(i));
+        }
+
+        return copy;
+    }
+
+    private void shuffle(
+            IntervalBuffer batch,
+            Random random)
+    {
+        IntervalBuffer source = new IntervalBuffer();
+        source.copyFrom(batch);
+        batch.clear();
+
+        boolean[] taken = new boolean[source.size()];
+        for (int left = source.size(); left > 0; left--)
+        {
+            int index = random.nextInt(source.size());
+            while (taken[index])
+            {
+                index = (index + 1) % source.size();
+            }
+            taken[index] = true;
+            batch.append(source.getBegin(index), source.getEnd(index), source.getValue(index));
+        }
+    }
+
+    private String describe(
+            PriceIntervals intervals)
+    {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < intervals.size(); i++)
+        {
+            description.append('[').append(intervals.getBegin(i)).append(", ").append(intervals.getEnd(i))
+                    .append(") = ").append(intervals.getValue(i)).append("; ");
+        }
+
+        return description.toString();
+    }
+}
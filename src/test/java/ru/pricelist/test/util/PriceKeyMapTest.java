@@ -0,0 +1,105 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class PriceKeyMapTest
+{
+    @Test
+    public void testPackedKeysRoundTrip()
+    {
+        int[][] keys = {
+                {0, 0, 0},
+                {PackedPriceKeys.MAX_PRODUCT_ID, Short.MAX_VALUE, (1 << 23) - 1},
+                {17, Short.MIN_VALUE, -(1 << 23)},
+                {3, -1, -1}};
+
+        for (int[] key : keys)
+        {
+            long packedKey = PackedPriceKeys.pack(key[0], key[1], key[2]);
+
+            Assert.assertNotEquals(0, packedKey);
+            Assert.assertEquals(key[0], PackedPriceKeys.productId(packedKey));
+            Assert.assertEquals(key[1], PackedPriceKeys.number(packedKey));
+            Assert.assertEquals(key[2], PackedPriceKeys.depart(packedKey));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackRejectsOutOfRangeDepart()
+    {
+        PackedPriceKeys.pack(0, 1, 1 << 23);
+    }
+
+    @Test
+    public void testLongObjectHashMapMatchesHashMap()
+    {
+        Random random = new Random(12);
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++)
+        {
+            long key = 1 + random.nextInt(5000) * 0x10000L;
+            Long value = random.nextLong();
+
+            Assert.assertEquals(expected.put(key, value), map.put(key, value));
+        }
+
+        Assert.assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet())
+        {
+            Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Assert.assertNull(map.get(2));
+
+        Map<Long, Long> entries = new HashMap<>();
+        for (int slot = 0; slot < map.capacity(); slot++)
+        {
+            if (map.keyAt(slot) != 0)
+            {
+                entries.put(map.keyAt(slot), map.valueAt(slot));
+            }
+        }
+        Assert.assertEquals(expected, entries);
+    }
+
+    @Test
+    public void testKeysOutOfPackedRange()
+    {
+        PriceKeyMap<PriceIntervals> map = new PriceKeyMap<>();
+        PriceKey[] keys = {
+                new PriceKey("122856", 1, 1),
+                new PriceKey(null, 1, 1),
+                new PriceKey("122856", 1, Integer.MAX_VALUE),
+                new PriceKey("122856", Integer.MIN_VALUE, 1),
+                new PriceKey("6654", -2, -3)};
+
+        Map<PriceKey, PriceIntervals> expected = new HashMap<>();
+        for (PriceKey key : keys)
+        {
+            PriceIntervals intervals = map.computeIfAbsent(key.getProductCode(), key.getNumber(), key.getDepart(),
+                    PriceIntervals::new);
+
+            Assert.assertSame(intervals, map.computeIfAbsent(key.getProductCode(), key.getNumber(),
+                    key.getDepart(), PriceIntervals::new));
+            expected.put(key, intervals);
+        }
+
+        Assert.assertEquals(keys.length, map.size());
+        for (PriceKey key : keys)
+        {
+            Assert.assertSame(expected.get(key), map.get(key.getProductCode(), key.getNumber(), key.getDepart()));
+        }
+        Assert.assertNull(map.get("122856", 2, 1));
+        Assert.assertNull(map.get("missing", 1, 1));
+        Assert.assertNull(map.get(null, 2, 1));
+
+        Map<PriceKey, PriceIntervals> entries = new HashMap<>();
+        map.forEach(entries::put);
+        Assert.assertEquals(expected, entries);
+    }
+}
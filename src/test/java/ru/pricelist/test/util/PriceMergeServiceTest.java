@@ -0,0 +1,193 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.unitils.reflectionassert.ReflectionAssert;
+import org.unitils.reflectionassert.ReflectionComparatorMode;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PriceMergeServiceTest
+{
+    private static int THREAD_COUNT = 8;
+
+    private static int SUBMISSIONS_PER_THREAD = 50;
+
+    private static LocalDateTime BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testConcurrentSubmissionsMatchSequentialApplies()
+            throws Exception
+    {
+        RandomPrices randomPrices = new RandomPrices(22);
+        List<Price> oldPrices = new ArrayList<>();
+        List<List<List<Price>>> threadSubmissions = new ArrayList<>();
+        for (int thread = 0; thread < THREAD_COUNT; thread++)
+        {
+            oldPrices.addAll(withDepartOffset(randomPrices.createPricelist(12, 6), thread));
+
+            List<List<Price>> submissions = new ArrayList<>();
+            for (int i = 0; i < SUBMISSIONS_PER_THREAD; i++)
+            {
+                submissions.add(withDepartOffset(randomPrices.createDisjointNewPrices(3, 1, 400, 1000000), thread));
+            }
+            threadSubmissions.add(submissions);
+        }
+
+        PriceBook expectedPriceBook = new PriceBook(RandomPrices.copy(oldPrices));
+        for (List<List<Price>> submissions : threadSubmissions)
+        {
+            for (List<Price> submission : submissions)
+            {
+                expectedPriceBook.apply(RandomPrices.copy(submission));
+            }
+        }
+
+        ExecutorService producers = Executors.newFixedThreadPool(THREAD_COUNT);
+        try (PriceMergeService service = new PriceMergeService(oldPrices, 200, TimeUnit.MICROSECONDS, 64, null))
+        {
+            List<CompletableFuture<Integer>> producerResults = new ArrayList<>();
+            for (List<List<Price>> submissions : threadSubmissions)
+            {
+                producerResults.add(CompletableFuture.supplyAsync(() -> {
+                    List<CompletableFuture<PriceMergeService.MergeResult>> results = new ArrayList<>();
+                    for (List<Price> submission : submissions)
+                    {
+                        results.add(service.submit(submission));
+                    }
+
+                    int coalescedCount = 0;
+                    for (CompletableFuture<PriceMergeService.MergeResult> result : results)
+                    {
+                        coalescedCount += result.join().getSubmissionCount() > 1 ? 1 : 0;
+                    }
+
+                    return coalescedCount;
+                }, producers));
+            }
+
+            int coalescedCount = 0;
+            for (CompletableFuture<Integer> producerResult : producerResults)
+            {
+                coalescedCount += producerResult.get(30, TimeUnit.SECONDS);
+            }
+
+            Assert.assertTrue(coalescedCount > 0);
+            Assert.assertTrue(service.getBatchCount() < THREAD_COUNT * SUBMISSIONS_PER_THREAD);
+            ReflectionAssert.assertReflectionEquals(expectedPriceBook.getPrices(), service.getPrices(),
+                    ReflectionComparatorMode.LENIENT_ORDER);
+        }
+        finally
+        {
+            producers.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullBatchIsAppliedBeforeWindowEnds()
+            throws Exception
+    {
+        try (PriceMergeService service = new PriceMergeService(Collections.emptyList(), 1, TimeUnit.HOURS, 10,
+                null))
+        {
+            List<CompletableFuture<PriceMergeService.MergeResult>> results = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+            {
+                List<Price> submission = new ArrayList<>();
+                submission.add(RandomPrices.createPrice("122856", 1, i, 11000, BEGIN, BEGIN.plusDays(1)));
+                submission.add(RandomPrices.createPrice("122856", 2, i, 12000, BEGIN, BEGIN.plusDays(1)));
+                results.add(service.submit(submission));
+            }
+
+            for (CompletableFuture<PriceMergeService.MergeResult> result : results)
+            {
+                PriceMergeService.MergeResult mergeResult = result.get(30, TimeUnit.SECONDS);
+                Assert.assertEquals(1, mergeResult.getBatchSequence());
+                Assert.assertEquals(5, mergeResult.getSubmissionCount());
+                Assert.assertEquals(10, mergeResult.getPriceCount());
+            }
+            Assert.assertEquals(10, service.getPrices().size());
+        }
+    }
+
+    @Test
+    public void testErrorFailsAllPendingSubmissions()
+            throws Exception
+    {
+        List<Runnable> drains = new ArrayList<>();
+        List<Price> oldPrices = Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 1, 11000, BEGIN, BEGIN.plusDays(1)));
+        PriceMergeService service = new PriceMergeService(oldPrices, 0, TimeUnit.MICROSECONDS, 1, drains::add);
+
+        Price failingPrice = new Price()
+        {
+            @Override
+            public LocalDateTime getBegin()
+            {
+                throw new OutOfMemoryError("test");
+            }
+
+            @Override
+            public LocalDateTime getEnd()
+            {
+                throw new OutOfMemoryError("test");
+            }
+        };
+        failingPrice.setProductCode("122856");
+        failingPrice.setNumber(1);
+        failingPrice.setDepart(1);
+        CompletableFuture<PriceMergeService.MergeResult> failedResult =
+                service.submit(Collections.singletonList(failingPrice));
+        CompletableFuture<PriceMergeService.MergeResult> pendingResult = service.submit(Collections.singletonList(
+                RandomPrices.createPrice("122856", 1, 2, 11000, BEGIN, BEGIN.plusDays(1))));
+        Assert.assertEquals(1, drains.size());
+
+        try
+        {
+            drains.get(0).run();
+            Assert.fail();
+        }
+        catch (OutOfMemoryError e)
+        {
+            Assert.assertEquals("test", e.getMessage());
+        }
+
+        for (CompletableFuture<PriceMergeService.MergeResult> result : Arrays.asList(failedResult, pendingResult))
+        {
+            try
+            {
+                result.get(30, TimeUnit.SECONDS);
+                Assert.fail();
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+            }
+        }
+
+        service.close();
+        Assert.assertEquals(1, drains.size());
+    }
+
+    private static List<Price> withDepartOffset(
+            List<Price> prices,
+            int thread)
+    {
+        for (Price price : prices)
+        {
+            price.setDepart(price.getDepart() + thread * 100);
+        }
+
+        return prices;
+    }
+}
@@ -0,0 +1,107 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class PriceTimelineTest
+{
+    private static String PRODUCT_CODE = "122856";
+
+    private static LocalDateTime BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testMatchesCompactPriceBook()
+    {
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            Set<Price> prices = Prices.merge(randomPrices.createPricelist(30, 8),
+                    randomPrices.createDisjointNewPrices(40, 3, 400, 4));
+
+            PriceTimeline timeline = PriceTimeline.compile(prices);
+            CompactPriceBook priceBook = new CompactPriceBook(prices);
+
+            Random random = new Random(seed);
+            for (Price price : prices)
+            {
+                long begin = PriceTimes.toEpochMillis(price.getBegin());
+                long end = PriceTimes.toEpochMillis(price.getEnd());
+                long[] times = {begin - 1, begin, begin + 1, end - 1, end, end + 1,
+                        begin + (long) (random.nextDouble() * (end - begin))};
+                for (long time : times)
+                {
+                    Assert.assertEquals(priceBook.valueAt(price.getProductCode(), price.getNumber(),
+                            price.getDepart(), time),
+                            timeline.valueAt(price.getProductCode(), price.getNumber(), price.getDepart(), time));
+                }
+            }
+            Assert.assertEquals(CompactPriceBook.NO_VALUE, timeline.valueAt("0", 1, 1, BEGIN));
+        }
+    }
+
+    @Test
+    public void testEqualBegins()
+    {
+        List<Price> prices = Arrays.asList(
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, BEGIN, BEGIN.plusDays(2)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 13000, BEGIN.plusDays(4), BEGIN.plusDays(6)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 12000, BEGIN.plusDays(4), BEGIN.plusDays(5)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 14000, BEGIN.plusDays(4), BEGIN.plusDays(5)));
+
+        PriceTimeline timeline = PriceTimeline.compile(prices);
+        CompactPriceBook priceBook = new CompactPriceBook(prices);
+        for (int hour = -1; hour < 8 * 24; hour++)
+        {
+            LocalDateTime time = BEGIN.plusHours(hour);
+            Assert.assertEquals("hour " + hour, priceBook.valueAt(PRODUCT_CODE, 1, 1, PriceTimes.toEpochMillis(time)),
+                    timeline.valueAt(PRODUCT_CODE, 1, 1, time));
+        }
+        Assert.assertEquals(13000, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(4)));
+
+        List<Price> reversedPrices = new ArrayList<>(prices);
+        Collections.reverse(reversedPrices);
+        for (Collection<Price> unorderedPrices : Arrays.asList(new LinkedHashSet<>(prices),
+                new LinkedHashSet<>(reversedPrices)))
+        {
+            PriceTimeline unorderedTimeline = PriceTimeline.compile(unorderedPrices);
+            Assert.assertEquals(12000, unorderedTimeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(4)));
+            Assert.assertEquals(CompactPriceBook.NO_VALUE,
+                    unorderedTimeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(5)));
+            Assert.assertEquals(11000, unorderedTimeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN));
+        }
+    }
+
+    @Test
+    public void testCoalescesAdjacentEqualValues()
+    {
+        List<Price> prices = Arrays.asList(
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, BEGIN, BEGIN.plusDays(1)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 11000, BEGIN.plusDays(1), BEGIN.plusDays(2)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 12000, BEGIN.plusDays(2), BEGIN.plusDays(3)),
+                RandomPrices.createPrice(PRODUCT_CODE, 1, 1, 12000, BEGIN.plusDays(4), BEGIN.plusDays(5)),
+                RandomPrices.createPrice(PRODUCT_CODE, 2, 1, 13000, BEGIN, LocalDateTime.MAX));
+
+        PriceTimeline timeline = PriceTimeline.compile(prices);
+
+        Assert.assertEquals(2, timeline.getKeyCount());
+        Assert.assertEquals(6, timeline.getStepCount());
+        Assert.assertEquals(11000, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusHours(36)));
+        Assert.assertEquals(12000, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(2)));
+        Assert.assertEquals(CompactPriceBook.NO_VALUE, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(3)));
+        Assert.assertEquals(12000, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(4)));
+        Assert.assertEquals(CompactPriceBook.NO_VALUE, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.plusDays(5)));
+        Assert.assertEquals(CompactPriceBook.NO_VALUE, timeline.valueAt(PRODUCT_CODE, 1, 1, BEGIN.minusDays(1)));
+        Assert.assertEquals(13000, timeline.valueAt(PRODUCT_CODE, 2, 1, LocalDateTime.MAX));
+    }
+}
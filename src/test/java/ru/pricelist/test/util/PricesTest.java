@@ -6,11 +6,20 @@ import org.unitils.reflectionassert.ReflectionAssert;
 import org.unitils.reflectionassert.ReflectionComparatorMode;
 import ru.pricelist.test.api.Price;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class PricesTest
 {
@@ -317,6 +326,374 @@ public class PricesTest
         test(expectedPrices, newPrices);
     }
 
+    @Test
+    public void testMergeParallelWithBothEmptyPricesCollections()
+    {
+        Set<Price> mergedPrices = Prices.mergeParallel(Collections.emptyList(),
+                Collections.emptyList(), new ForkJoinPool(4));
+
+        Assert.assertNotNull(mergedPrices);
+        Assert.assertTrue(mergedPrices.isEmpty());
+    }
+
+    @Test
+    public void testMergeParallelWithSeveralNewPrices()
+    {
+        List<Price> newPrices = new ArrayList<>();
+        newPrices.add(createPrice("122856", 1, 1, 11000,
+                LocalDateTime.parse("2013-01-20T00:00:00"), LocalDateTime.parse("2013-02-20T23:59:59")));
+        newPrices.add(createPrice("122856", 2, 1, 92000,
+                LocalDateTime.parse("2013-01-15T00:00:00"), LocalDateTime.parse("2013-01-25T23:59:59")));
+        newPrices.add(createPrice("6654", 1, 2, 4000,
+                LocalDateTime.parse("2013-01-12T00:00:00"), LocalDateTime.parse("2013-01-13T23:59:59")));
+
+        ReflectionAssert.assertReflectionEquals(Prices.merge(createPricelist(), newPrices),
+                Prices.mergeParallel(createPricelist(), newPrices, new ForkJoinPool(4)),
+                ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testMergeParallelMatchesMerge()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int seed = 0; seed < 5; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(3000, 4);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(4000, 2, 400, 6);
+            newPrices.addAll(randomPrices.createOverlappingNewPrices(20, 4, 200, 6));
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            Set<Price> mergedPrices = Prices.mergeParallel(RandomPrices.copy(oldPrices),
+                    RandomPrices.copy(newPrices), pool);
+
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(Prices.merge(oldPrices, newPrices)));
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(mergedPrices));
+            Assert.assertEquals(new HashSet<>(mergedPrices).size(), mergedPrices.size());
+        }
+    }
+
+    @Test
+    public void testMergeParallelMatchesBaselineOnOverlappingPrices()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(40, 6);
+            List<Price> newPrices = randomPrices.createOverlappingNewPrices(40, 4, 200, 6);
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            Assert.assertEquals("seed " + seed, expectedDescription,
+                    RandomPrices.describe(Prices.mergeParallel(oldPrices, newPrices, pool)));
+        }
+    }
+
+    @Test
+    public void testMergeMatchesBaselineAcrossBatches()
+    {
+        int comparedBatchCount = 0;
+        for (int seed = 0; seed < 100; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            Collection<Price> oldPrices = randomPrices.createIrregularPricelist(10, 6, 6);
+            for (int batch = 0; batch < 4; batch++)
+            {
+                List<Price> newPrices = randomPrices.createDisjointNewPrices(10, 3, 400, 6);
+                newPrices.addAll(randomPrices.createOverlappingNewPrices(2, 4, 200, 6));
+                Set<Price> expectedPrices = RandomPrices.mergeBaseline(oldPrices, newPrices);
+                if (expectedPrices == null)
+                {
+                    break;
+                }
+
+                List<String> expectedDescription = RandomPrices.describe(expectedPrices);
+                Assert.assertEquals("seed " + seed + ", batch " + batch, expectedDescription,
+                        RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices), RandomPrices.copy(newPrices))));
+                Assert.assertEquals("seed " + seed + ", batch " + batch, expectedDescription,
+                        RandomPrices.describe(Prices.mergeCopyOnWrite(oldPrices, newPrices)));
+
+                oldPrices = expectedPrices;
+                if (batch > 0)
+                {
+                    comparedBatchCount++;
+                }
+            }
+        }
+
+        Assert.assertTrue(comparedBatchCount > 0);
+    }
+
+    @Test
+    public void testMergeParallelMatchesBaselineAcrossBatches()
+    {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        int comparedBatchCount = 0;
+        for (int seed = 0; seed < 50; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            Collection<Price> oldPrices = randomPrices.createIrregularPricelist(40, 6, 6);
+            for (int batch = 0; batch < 4; batch++)
+            {
+                List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 6);
+                Set<Price> expectedPrices = RandomPrices.mergeBaseline(oldPrices, newPrices);
+                if (expectedPrices == null)
+                {
+                    break;
+                }
+
+                Assert.assertEquals("seed " + seed + ", batch " + batch, RandomPrices.describe(expectedPrices),
+                        RandomPrices.describe(Prices.mergeParallel(RandomPrices.copy(oldPrices),
+                                RandomPrices.copy(newPrices), pool)));
+
+                oldPrices = expectedPrices;
+                if (batch > 0)
+                {
+                    comparedBatchCount++;
+                }
+            }
+        }
+
+        Assert.assertTrue(comparedBatchCount > 0);
+    }
+
+    @Test
+    public void testMergeCopyOnWriteSharesUnchangedPrices()
+    {
+        Price truncatedPrice = RandomPrices.createPrice("122856", 1, 1, 11000,
+                LocalDateTime.parse("2013-01-01T00:00:00"), LocalDateTime.parse("2013-01-20T00:00:00"));
+        Price untouchedPrice = RandomPrices.createPrice("122856", 1, 1, 12000,
+                LocalDateTime.parse("2013-02-01T00:00:00"), LocalDateTime.parse("2013-02-20T00:00:00"));
+        Price newPrice = RandomPrices.createPrice("122856", 1, 1, 13000,
+                LocalDateTime.parse("2013-01-10T00:00:00"), LocalDateTime.parse("2013-01-25T00:00:00"));
+
+        Set<Price> mergedPrices = Prices.mergeCopyOnWrite(Arrays.asList(truncatedPrice, untouchedPrice),
+                Collections.singletonList(newPrice));
+
+        Assert.assertEquals(LocalDateTime.parse("2013-01-20T00:00:00"), truncatedPrice.getEnd());
+        Assert.assertEquals(3, mergedPrices.size());
+        Assert.assertFalse(mergedPrices.contains(truncatedPrice));
+        Assert.assertTrue(mergedPrices.contains(untouchedPrice));
+        Assert.assertTrue(mergedPrices.contains(newPrice));
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(
+                RandomPrices.createPrice("122856", 1, 1, 11000,
+                        LocalDateTime.parse("2013-01-01T00:00:00"), LocalDateTime.parse("2013-01-10T00:00:00")),
+                untouchedPrice,
+                newPrice),
+                mergedPrices, ReflectionComparatorMode.LENIENT_ORDER);
+    }
+
+    @Test
+    public void testMergeCopyOnWriteMatchesMerge()
+    {
+        for (int seed = 0; seed < 20; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(300, 8);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(400, 3, 400, 6);
+            newPrices.addAll(randomPrices.createOverlappingNewPrices(20, 4, 200, 6));
+            List<String> oldDescription = RandomPrices.describe(oldPrices);
+            List<String> newDescription = RandomPrices.describe(newPrices);
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            Set<Price> mergedPrices = Prices.mergeCopyOnWrite(oldPrices, newPrices);
+
+            Assert.assertEquals(oldDescription, RandomPrices.describe(oldPrices));
+            Assert.assertEquals(newDescription, RandomPrices.describe(newPrices));
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(Prices.merge(RandomPrices.copy(oldPrices),
+                    RandomPrices.copy(newPrices))));
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(mergedPrices));
+
+            Set<Price> inputPrices = Collections.newSetFromMap(new IdentityHashMap<>());
+            inputPrices.addAll(oldPrices);
+            inputPrices.addAll(newPrices);
+            long sharedPrices = mergedPrices.stream().filter(inputPrices::contains).count();
+            Assert.assertTrue(sharedPrices > mergedPrices.size() / 2);
+        }
+    }
+
+    @Test
+    public void testMergeChangesWithBothEmptyPricesCollections()
+    {
+        Assert.assertTrue(Prices.mergeChanges(Collections.emptyList(), Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testMergeChangesWithNewPriceInsideDifferentValueOldPrice()
+    {
+        List<Price> oldPrices = createPricelist();
+        for (int i = 0; i < oldPrices.size(); i++)
+        {
+            oldPrices.get(i).setId((long) i);
+        }
+
+        Price newPrice = createPrice(PRODUCT_CODE, PRICE_NUMBER, PRICE_DEPART, 11500,
+                LocalDateTime.parse("2013-01-10T00:00:00"), LocalDateTime.parse("2013-01-20T00:00:00"));
+        PriceChangeSet changes = Prices.mergeChanges(oldPrices, Collections.singletonList(newPrice));
+
+        Assert.assertEquals(1, changes.getUpdated().size());
+        PriceChangeSet.Update update = changes.getUpdated().get(0);
+        Assert.assertEquals(Long.valueOf(PRICE_POSITION), update.getId());
+        Assert.assertEquals(PRICE_BEGIN, update.getOldBegin());
+        Assert.assertEquals(PRICE_END, update.getOldEnd());
+        Assert.assertEquals(newPrice.getBegin(), update.getPrice().getEnd());
+
+        ReflectionAssert.assertReflectionEquals(Arrays.asList(newPrice,
+                createPrice(PRODUCT_CODE, PRICE_NUMBER, PRICE_DEPART, PRICE_VALUE, newPrice.getEnd(), PRICE_END)),
+                changes.getInserted(), ReflectionComparatorMode.LENIENT_ORDER);
+        Assert.assertTrue(changes.getDeleted().isEmpty());
+    }
+
+    @Test
+    public void testMergeChangesWithNewPriceCoveringDifferentValueOldPrice()
+    {
+        List<Price> oldPrices = createPricelist();
+        Price newPrice = createPrice(PRODUCT_CODE, PRICE_NUMBER, PRICE_DEPART, 11500,
+                PRICE_BEGIN.minusDays(1), PRICE_END.plusDays(1));
+        PriceChangeSet changes = Prices.mergeChanges(oldPrices, Collections.singletonList(newPrice));
+
+        Assert.assertSame(oldPrices.get(PRICE_POSITION), changes.getDeleted().get(0));
+        Assert.assertEquals(1, changes.getDeleted().size());
+        Assert.assertEquals(Collections.singletonList(newPrice), changes.getInserted());
+        Assert.assertTrue(changes.getUpdated().isEmpty());
+    }
+
+    @Test
+    public void testMergeChangesMatchMerge()
+    {
+        for (int seed = 0; seed < 50; seed++)
+        {
+            RandomPrices randomPrices = new RandomPrices(seed);
+            List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+            List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+            newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+            List<String> expectedDescription = RandomPrices.describeBaselineMerge(oldPrices, newPrices);
+            if (expectedDescription == null)
+            {
+                continue;
+            }
+
+            List<Price> changedPrices = RandomPrices.copy(oldPrices);
+            for (int i = 0; i < changedPrices.size(); i++)
+            {
+                changedPrices.get(i).setId((long) i);
+            }
+            PriceChangeSet changes = Prices.mergeChanges(changedPrices, RandomPrices.copy(newPrices));
+
+            List<Price> writtenPrices = RandomPrices.copy(oldPrices);
+            for (PriceChangeSet.Update update : changes.getUpdated())
+            {
+                Price price = writtenPrices.get(update.getId().intValue());
+                Assert.assertEquals(price.getBegin(), update.getOldBegin());
+                Assert.assertEquals(price.getEnd(), update.getOldEnd());
+
+                price.setBegin(update.getPrice().getBegin());
+                price.setEnd(update.getPrice().getEnd());
+            }
+            for (Price price : changes.getDeleted())
+            {
+                writtenPrices.set(price.getId().intValue(), null);
+            }
+            writtenPrices.removeIf(Objects::isNull);
+            writtenPrices.addAll(changes.getInserted());
+
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(Prices.merge(oldPrices, newPrices)));
+            Assert.assertEquals(expectedDescription, RandomPrices.describe(writtenPrices));
+        }
+    }
+
+    @Test
+    public void testMergeStatisticsCountsOutcomes()
+    {
+        PriceMergeStatistics statistics = new PriceMergeStatistics();
+
+        List<Price> newPrices = new ArrayList<>();
+        newPrices.add(createPrice("122856", 1, 1, 11000,
+                LocalDateTime.parse("2013-01-20T00:00:00"), LocalDateTime.parse("2013-02-20T23:59:59")));
+        newPrices.add(createPrice("122856", 2, 1, 92000,
+                LocalDateTime.parse("2013-01-15T00:00:00"), LocalDateTime.parse("2013-01-25T23:59:59")));
+        newPrices.add(createPrice("6654", 1, 2, 4000,
+                LocalDateTime.parse("2013-01-12T00:00:00"), LocalDateTime.parse("2013-01-13T23:59:59")));
+        newPrices.add(createPrice("8090", 1, 1, 300,
+                LocalDateTime.parse("2013-01-12T00:00:00"), LocalDateTime.parse("2013-01-13T23:59:59")));
+        Prices.merge(createPricelist(), newPrices, statistics);
+
+        Assert.assertEquals(4, statistics.getNewPriceCount());
+        Assert.assertEquals(3, statistics.getNonMergedCount());
+        Assert.assertEquals(1, statistics.getExtendedCount());
+        Assert.assertEquals(1, statistics.getTruncatedCount());
+        Assert.assertEquals(1, statistics.getSplitCount());
+        Assert.assertEquals(0, statistics.getRemovedCount());
+        Assert.assertEquals(1, statistics.getOverlapWidthHistogram()[0]);
+        Assert.assertEquals(3, statistics.getOverlapWidthHistogram()[1]);
+
+        newPrices = Collections.singletonList(createPrice(PRODUCT_CODE, PRICE_NUMBER, PRICE_DEPART, 14000,
+                LocalDateTime.parse("2012-11-01T10:00:00"), LocalDateTime.parse("2013-02-21T20:59:59")));
+        Prices.merge(createPricelist(), newPrices, statistics);
+
+        Assert.assertEquals(5, statistics.getNewPriceCount());
+        Assert.assertEquals(3, statistics.getNonMergedCount());
+        Assert.assertEquals(2, statistics.getExtendedCount());
+        Assert.assertEquals(2, statistics.getTruncatedCount());
+        Assert.assertEquals(1, statistics.getRemovedCount());
+        Assert.assertEquals(3, statistics.getMaxOverlapWidth());
+        Assert.assertEquals(2, Arrays.stream(statistics.getGroupingNanosHistogram()).sum());
+        Assert.assertEquals(2, Arrays.stream(statistics.getMergingNanosHistogram()).sum());
+        Assert.assertEquals(2, Arrays.stream(statistics.getCollectingNanosHistogram()).sum());
+
+        newPrices = new ArrayList<>();
+        newPrices.add(createPrice("6654", 1, 2, 5000,
+                LocalDateTime.parse("2013-01-05T00:00:00"), LocalDateTime.parse("2013-01-06T23:59:59")));
+        newPrices.add(createPrice("122856", 2, 1, 99000,
+                LocalDateTime.parse("2013-01-10T00:00:00"), LocalDateTime.parse("2013-01-15T23:59:59")));
+        Prices.merge(createPricelist(), newPrices, statistics);
+
+        Assert.assertEquals(2, statistics.getExtendedCount());
+        Assert.assertEquals(2, statistics.getContainedCount());
+
+        statistics.reset();
+        Assert.assertEquals(0, statistics.getNewPriceCount());
+        Assert.assertEquals(0, Arrays.stream(statistics.getOverlapWidthHistogram()).sum());
+    }
+
+    @Test
+    public void testMergeStatisticsMBean()
+            throws Exception
+    {
+        PriceMergeStatistics statistics = new PriceMergeStatistics();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("ru.pricelist.test:type=PriceMergeStatistics,name=PricesTest");
+        server.registerMBean(statistics, name);
+        try
+        {
+            Prices.merge(createPricelist(), createPricelist(), statistics);
+
+            Assert.assertEquals(5L, server.getAttribute(name, "NewPriceCount"));
+            Assert.assertEquals(3L, server.getAttribute(name, "SkippedKeyCount"));
+            Assert.assertEquals(0L, server.getAttribute(name, "ExtendedCount"));
+            Assert.assertEquals(0L, server.getAttribute(name, "RemovedCount"));
+
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            Assert.assertEquals(0L, server.getAttribute(name, "SkippedKeyCount"));
+        }
+        finally
+        {
+            server.unregisterMBean(name);
+        }
+    }
+
     private void test(
             List<Price> expectedPrices,
             List<Price> newPrices)
@@ -0,0 +1,287 @@
+package ru.pricelist.test.util;
+
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Генератор случайных прайс-листов для сравнения реализаций объединения.
+ */
+class RandomPrices
+{
+    private static LocalDateTime START = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    private static String[] PRODUCT_CODES = {"122856", "6654", "8090", "1"};
+
+    private final Random random;
+
+    RandomPrices(
+            long seed)
+    {
+        random = new Random(seed);
+    }
+
+    /**
+     * Создает прайс-лист без пересечений сроков действия цен одного ключа
+     * и с различающимися значениями цен одного ключа.
+     * <br>
+     * На таких данных результат {@link Prices#merge} не зависит от формы дерева цен.
+     */
+    List<Price> createPricelist(
+            int keyCount,
+            int pricesPerKey)
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++)
+        {
+            List<Integer> values = new ArrayList<>();
+            for (int i = 1; i <= pricesPerKey; i++)
+            {
+                values.add(i);
+            }
+            Collections.shuffle(values, random);
+
+            LocalDateTime begin = START.plusHours(random.nextInt(48));
+            for (int i = 0; i < pricesPerKey; i++)
+            {
+                LocalDateTime end = begin.plusHours(1 + random.nextInt(72));
+                prices.add(createPrice(key, values.get(i), begin, end));
+                begin = end.plusHours(random.nextInt(3) == 0 ? 0 : random.nextInt(24));
+            }
+        }
+
+        return prices;
+    }
+
+    /**
+     * Создает прайс-лист, в котором соседние цены ключа часто имеют одинаковые значения,
+     * а некоторые цены начинаются одновременно с предыдущей ценой ключа.
+     * <br>
+     * Значения цен выбираются из {@code 1 .. valueCount}; каждая пятая цена в среднем
+     * сопровождается ценой с тем же началом и случайным концом. Из таких цен в книгу
+     * попадает первая, а продление цен с одинаковыми значениями может сделать результат
+     * исходного алгоритма зависящим от формы дерева или завершить его ошибкой
+     * (см. {@link #mergeBaseline(Collection, Collection)}).
+     */
+    List<Price> createIrregularPricelist(
+            int keyCount,
+            int pricesPerKey,
+            int valueCount)
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++)
+        {
+            LocalDateTime begin = START.plusHours(random.nextInt(48));
+            for (int i = 0; i < pricesPerKey; i++)
+            {
+                LocalDateTime end = begin.plusHours(1 + random.nextInt(72));
+                prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin, end));
+                if (random.nextInt(5) == 0)
+                {
+                    prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin,
+                            begin.plusHours(1 + random.nextInt(72))));
+                }
+                begin = end.plusHours(random.nextBoolean() ? 0 : random.nextInt(24));
+            }
+        }
+
+        return prices;
+    }
+
+    /**
+     * Создает порцию новых цен без пересечений сроков действия цен одного ключа,
+     * перемешанных между собой.
+     * <br>
+     * Значения новых цен выбираются из {@code 1 .. valueCount} и могут совпадать
+     * со значениями старых цен того же ключа.
+     */
+    List<Price> createDisjointNewPrices(
+            int keyCount,
+            int pricesPerKey,
+            int hoursRange,
+            int valueCount)
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++)
+        {
+            LocalDateTime begin = START.plusHours(random.nextInt(hoursRange / pricesPerKey + 1));
+            for (int i = 0; i < pricesPerKey; i++)
+            {
+                LocalDateTime end = begin.plusHours(1 + random.nextInt(hoursRange / pricesPerKey + 1));
+                prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin, end));
+                begin = end.plusHours(random.nextInt(3) == 0 ? 0 : random.nextInt(12));
+            }
+        }
+
+        Collections.shuffle(prices, random);
+
+        return prices;
+    }
+
+    /**
+     * Создает порцию новых цен, сроки действия которых пересекаются между собой
+     * и с имеющимися ценами.
+     * <br>
+     * Каждая четвертая цена начинается одновременно с одной из предыдущих новых цен
+     * того же ключа; значения выбираются из {@code 1 .. valueCount} и часто совпадают
+     * со значениями старых и других новых цен.
+     */
+    List<Price> createOverlappingNewPrices(
+            int keyCount,
+            int pricesPerKey,
+            int hoursRange,
+            int valueCount)
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++)
+        {
+            List<LocalDateTime> begins = new ArrayList<>();
+            for (int i = 0; i < pricesPerKey; i++)
+            {
+                LocalDateTime begin = !begins.isEmpty() && random.nextInt(4) == 0
+                        ? begins.get(random.nextInt(begins.size()))
+                        : START.plusHours(random.nextInt(hoursRange));
+                begins.add(begin);
+
+                LocalDateTime end = begin.plusHours(1 + random.nextInt(hoursRange / pricesPerKey + 1));
+                prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin, end));
+            }
+        }
+
+        Collections.shuffle(prices, random);
+
+        return prices;
+    }
+
+    /**
+     * Создает порцию новых цен из пар цен одного ключа с одинаковым началом срока действия,
+     * перемешанных между собой.
+     * <br>
+     * Вторая цена пары заканчивается не позже первой, пары одного ключа не пересекаются;
+     * значения выбираются из {@code 1 .. valueCount}. Если пара попадает в промежуток между
+     * имеющимися ценами, одна из ее цен становится необъединенной ценой, начало которой уже занято.
+     */
+    List<Price> createCollidingNewPrices(
+            int keyCount,
+            int pairsPerKey,
+            int hoursRange,
+            int valueCount)
+    {
+        List<Price> prices = new ArrayList<>();
+        for (int key = 0; key < keyCount; key++)
+        {
+            LocalDateTime begin = START.plusHours(random.nextInt(hoursRange / pairsPerKey + 1));
+            for (int i = 0; i < pairsPerKey; i++)
+            {
+                int hours = 1 + random.nextInt(hoursRange / pairsPerKey + 1);
+                LocalDateTime end = begin.plusHours(hours);
+                prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin, end));
+                prices.add(createPrice(key, 1 + random.nextInt(valueCount), begin,
+                        end.minusHours(random.nextInt(hours))));
+                begin = end.plusHours(random.nextInt(12));
+            }
+        }
+
+        Collections.shuffle(prices, random);
+
+        return prices;
+    }
+
+    static List<Price> copy(
+            Collection<Price> prices)
+    {
+        List<Price> copies = new ArrayList<>();
+        for (Price price : prices)
+        {
+            copies.add(createPrice(price.getProductCode(), price.getNumber(), price.getDepart(), price.getValue(),
+                    price.getBegin(), price.getEnd()));
+        }
+
+        return copies;
+    }
+
+    /**
+     * Объединяет копии цен исходным алгоритмом {@link BaselinePrices#merge(Collection, Collection)}.
+     *
+     * @return описание результата (см. {@link #describe(Collection)}) или {@code null}, если исходный
+     *         алгоритм завершился ошибкой: продлевая цену при пересекающихся ценах с одинаковыми
+     *         значениями, он может изменить дерево во время его обхода.
+     */
+    static List<String> describeBaselineMerge(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices)
+    {
+        Set<Price> prices = mergeBaseline(oldPrices, newPrices);
+
+        return prices == null ? null : describe(prices);
+    }
+
+    /**
+     * Объединяет копии цен исходным алгоритмом {@link BaselinePrices#merge(Collection, Collection)}.
+     *
+     * @return результат или {@code null}, если исходный алгоритм завершился ошибкой
+     *         (см. {@link #describeBaselineMerge(Collection, Collection)}).
+     */
+    static Set<Price> mergeBaseline(
+            Collection<Price> oldPrices,
+            Collection<Price> newPrices)
+    {
+        try
+        {
+            return BaselinePrices.merge(copy(oldPrices), copy(newPrices));
+        }
+        catch (ConcurrentModificationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Представляет цены в виде упорядоченного списка строк, не зависящего от идентичности экземпляров.
+     */
+    static List<String> describe(
+            Collection<Price> prices)
+    {
+        return prices.stream()
+                .map(Price::toString)
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    static Price createPrice(
+            String productCode,
+            int number,
+            int depart,
+            long value,
+            LocalDateTime begin,
+            LocalDateTime end)
+    {
+        Price price = new Price();
+        price.setProductCode(productCode);
+        price.setNumber(number);
+        price.setDepart(depart);
+        price.setBegin(begin);
+        price.setEnd(end);
+        price.setValue(value);
+
+        return price;
+    }
+
+    private Price createPrice(
+            int key,
+            long value,
+            LocalDateTime begin,
+            LocalDateTime end)
+    {
+        return createPrice(PRODUCT_CODES[key % PRODUCT_CODES.length], 1 + key / PRODUCT_CODES.length % 3,
+                1 + key / PRODUCT_CODES.length / 3, value * 1000, begin, end);
+    }
+}
@@ -0,0 +1,102 @@
+package ru.pricelist.test.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.pricelist.test.api.Price;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+public class VersionedPriceBookTest
+{
+    private static LocalDateTime PRICE_BEGIN = LocalDateTime.parse("2013-01-01T00:00:00");
+
+    @Test
+    public void testSnapshotKeepsItsVersion()
+    {
+        RandomPrices randomPrices = new RandomPrices(9);
+        List<Price> oldPrices = randomPrices.createPricelist(30, 8);
+        List<Price> newPrices = randomPrices.createDisjointNewPrices(40, 3, 400, 10);
+        newPrices.addAll(randomPrices.createOverlappingNewPrices(10, 4, 200, 6));
+
+        VersionedPriceBook priceBook = new VersionedPriceBook(oldPrices);
+        CompactPriceBook compactPriceBook = new CompactPriceBook(oldPrices);
+
+        try (PriceBookSnapshot oldSnapshot = priceBook.snapshot())
+        {
+            Assert.assertEquals(1, priceBook.apply(newPrices));
+            compactPriceBook.apply(newPrices);
+
+            Assert.assertEquals(0, oldSnapshot.getVersion());
+            Assert.assertEquals(RandomPrices.describe(new CompactPriceBook(oldPrices).getPrices()),
+                    RandomPrices.describe(oldSnapshot.getPrices()));
+
+            try (PriceBookSnapshot newSnapshot = priceBook.snapshot())
+            {
+                Assert.assertEquals(1, newSnapshot.getVersion());
+                Assert.assertEquals(RandomPrices.describeBaselineMerge(oldPrices, newPrices),
+                        RandomPrices.describe(newSnapshot.getPrices()));
+                Assert.assertEquals(RandomPrices.describe(compactPriceBook.getPrices()),
+                        RandomPrices.describe(newSnapshot.getPrices()));
+                Assert.assertEquals(RandomPrices.describe(compactPriceBook.pricesAt(PRICE_BEGIN.plusHours(100))),
+                        RandomPrices.describe(newSnapshot.pricesAt(PRICE_BEGIN.plusHours(100))));
+                Assert.assertEquals(2, priceBook.getOpenSnapshotCount());
+            }
+        }
+
+        Assert.assertEquals(0, priceBook.getOpenSnapshotCount());
+    }
+
+    @Test
+    public void testVersionsShareUntouchedKeys()
+    {
+        VersionedPriceBook priceBook = new VersionedPriceBook(new RandomPrices(2).createPricelist(30, 8));
+        PriceKey touchedKey = new PriceKey("122856", 1, 1);
+        PriceKey untouchedKey = new PriceKey("6654", 1, 1);
+
+        try (PriceBookSnapshot oldSnapshot = priceBook.snapshot())
+        {
+            priceBook.apply(Collections.singletonList(RandomPrices.createPrice("122856", 1, 1, 999_000,
+                    PRICE_BEGIN.plusHours(5), PRICE_BEGIN.plusHours(6))));
+
+            try (PriceBookSnapshot newSnapshot = priceBook.snapshot())
+            {
+                Assert.assertNotNull(oldSnapshot.getIntervals(untouchedKey));
+                Assert.assertSame(oldSnapshot.getIntervals(untouchedKey), newSnapshot.getIntervals(untouchedKey));
+                Assert.assertNotSame(oldSnapshot.getIntervals(touchedKey), newSnapshot.getIntervals(touchedKey));
+
+                Assert.assertEquals(999_000, newSnapshot.valueAt("122856", 1, 1,
+                        PriceTimes.toEpochMillis(PRICE_BEGIN.plusHours(5))));
+                Assert.assertNotEquals(999_000, oldSnapshot.valueAt("122856", 1, 1,
+                        PriceTimes.toEpochMillis(PRICE_BEGIN.plusHours(5))));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedApplyKeepsCurrentVersion()
+    {
+        VersionedPriceBook priceBook = new VersionedPriceBook();
+        try
+        {
+            priceBook.apply(Collections.singletonList(RandomPrices.createPrice("122856", 1, 1, 11000,
+                    PRICE_BEGIN.plusDays(1), PRICE_BEGIN)));
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertEquals(0, priceBook.getVersion());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedSnapshotRejectsReads()
+    {
+        PriceBookSnapshot snapshot = new VersionedPriceBook().snapshot();
+        snapshot.close();
+        snapshot.close();
+
+        snapshot.priceAt("122856", 1, 1, PRICE_BEGIN);
+    }
+}